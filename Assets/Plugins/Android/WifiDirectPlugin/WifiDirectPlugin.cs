@@ -13,6 +13,36 @@ namespace WifiDirectPlugin {
         static AndroidJavaObject unityActivity;
         static WifiDirect thisDevice;
         public static PermissionCallbacks permissionCallbacks;
+        /// <summary>Peer ID of the group owner. The group owner gives its clients IDs from 1 upwards.</summary>
+        public const int GROUP_OWNER_PEER_ID = 0;
+        /// <summary>
+        /// Delivery modes for SendMessage(int, byte[], int). RELIABLE goes over the TCP stream.
+        /// UNRELIABLE goes over UDP, may be lost, and is dropped if a newer one already arrived.
+        /// UNRELIABLE_ACKED goes over UDP and is resent until acked, but may arrive out of order.
+        /// </summary>
+        public const int DELIVERY_RELIABLE = 0, DELIVERY_UNRELIABLE = 1, DELIVERY_UNRELIABLE_ACKED = 2;
+        /// <summary>Number of logical channels, see ConfigureChannel().</summary>
+        public const int CHANNEL_COUNT = 16;
+        /// <summary>Event codes in DrainEvents(). Each event is followed by the arguments of the matching event.</summary>
+        public const int EVENT_PEER_CONNECTED = 0, EVENT_PEER_DISCONNECTED = 1, EVENT_STATUS_CHANGED = 2, EVENT_DISCOVERY_STATUS_CHANGED = 3,
+            EVENT_CONNECTION_STATUS_CHANGED = 4, EVENT_ERROR = 5, EVENT_TRANSFER_PROGRESS = 6, EVENT_TRANSFER_COMPLETE = 7,
+            EVENT_SERVICE_CHANGED = 8, EVENT_STATE_CHANGED = 9;
+        /// <summary>Changes in ServiceChanged. A service is updated when its device name or TXT record changed.</summary>
+        public const int SERVICE_ADDED = 0, SERVICE_UPDATED = 1, SERVICE_EXPIRED = 2;
+        /// <summary>Indices into GetDiscoveredService().</summary>
+        public const int SERVICE_DEVICE_NAME = 0, SERVICE_SSID = 1, SERVICE_PLAYER_COUNT = 2, SERVICE_GAME_VERSION = 3, SERVICE_AGE_MILLIS = 4;
+        /// <summary>Codecs for SetCompression().</summary>
+        public const int COMPRESSION_NONE = 0, COMPRESSION_DEFLATE = 1;
+        /// <summary>What GetClockOffsetNanos() returns before the clocks are synchronised, and the send time of a message that wasn't stamped.</summary>
+        public const long CLOCK_UNKNOWN = long.MinValue;
+        /// <summary>Indices into GetStats(). Messages include keep-alive and other control frames, bytes include frame headers.</summary>
+        public const int STAT_MESSAGES_IN = 0, STAT_BYTES_IN = 1, STAT_MESSAGES_OUT = 2, STAT_BYTES_OUT = 3, STAT_SEND_QUEUE_DEPTH = 4,
+            STAT_CONNECTS = 5, STAT_DISCONNECTS = 6, STAT_RECONNECTS = 7, STAT_TIMEOUTS = 8, STAT_SEND_QUEUE_OVERFLOWS = 9;
+        /// <summary>Where each histogram starts in GetStats(). Add a HISTOGRAM offset to read one of its values.</summary>
+        public const int STAT_DECODE_TIME = 10, STAT_WRITE_TIME = 18, STAT_ROUND_TRIP_TIME = 26;
+        /// <summary>Offsets from the start of a histogram in GetStats(). Everything but the count is in nanoseconds.</summary>
+        public const int HISTOGRAM_COUNT = 0, HISTOGRAM_MIN = 1, HISTOGRAM_MEAN = 2, HISTOGRAM_P50 = 3, HISTOGRAM_P90 = 4,
+            HISTOGRAM_P99 = 5, HISTOGRAM_P999 = 6, HISTOGRAM_MAX = 7;
         /// <summary>Automatically instantiates if null. Use this to call instance methods.</summary>
         public static WifiDirect ThisDevice => thisDevice ??= new();
 
@@ -40,25 +70,32 @@ namespace WifiDirectPlugin {
         /// Subscribe to DiscoveryStatusChanged to be notified if the server was removed successfully.
         /// </summary>
         public void RemoveService() {wifiDirectManager.Call("RemoveService");}
+        /// <summary>
+        /// Server method.
+        /// Sets the player count and game version advertised to clients before they connect.
+        /// Re-advertises the service if it is already discoverable.
+        /// </summary>
+        public void SetServiceRecord(int playerCount, string gameVersion) {wifiDirectManager.Call("SetServiceRecord", playerCount, gameVersion);}
 
         /*================================ CLIENT ONLY METHODS ================================*/
         /// <summary>
         /// Client method.
         /// Asynchronous call to start discovering services hosted on other devices.
-        /// Subscribe to DiscoveryStatusChanged to be notified if the map of discovered devices has changed.
+        /// Services found before stay cached until they haven't been seen for the discovery TTL, see SetDiscoveryTtl().
+        /// Subscribe to ServiceChanged to be notified when a discovered service is added, updated or expires.
         /// </summary>
         public void DiscoverServices() {wifiDirectManager.Call("DiscoverServices");}
         /// <summary>
         /// Client method.
-        /// Cancels an ongoing service discovery search.
+        /// Cancels an ongoing service discovery search. Discovered services stay cached.
         /// Subscribe to DiscoveryStatusChanged to be notified if discovery has stopped.
         /// </summary>
         public void CancelDiscovery() {wifiDirectManager.Call("CancelDiscovery");}
         /// <summary>
         /// Client method.
-        /// Returns the current map of discovered devices that are hosting a valid service.
+        /// Returns a copy of the map of discovered devices that are hosting a valid service.
         /// (MAC address -> device name).
-        /// Subscribe to DiscoveryStatusChanged to be notified if the map of discovered devices has changed.
+        /// Subscribe to ServiceChanged to be notified if the map of discovered devices has changed.
         /// </summary>
         public Dictionary<string, string> GetDiscoveredServices() {//<MAC address, device name>
             return AndroidJNIHelper.ConvertFromJNIArray<Dictionary<string, string>>(
@@ -67,6 +104,17 @@ namespace WifiDirectPlugin {
         }
         /// <summary>
         /// Client method.
+        /// Returns what is known of a discovered service, see the SERVICE indices, or null if it isn't cached.
+        /// Unknown TXT record fields are empty, or -1 for the player count.
+        /// </summary>
+        public string[] GetDiscoveredService(string macAddress) {return wifiDirectManager.Call<string[]>("GetDiscoveredService", macAddress);}
+        /// <summary>
+        /// Client method.
+        /// Sets how long a discovered service stays cached after it was last seen. Defaults to 60000 ms.
+        /// </summary>
+        public void SetDiscoveryTtl(int millis) {wifiDirectManager.Call("SetDiscoveryTtl", millis);}
+        /// <summary>
+        /// Client method.
         /// Attempts to connect to a device with the given MAC address and passphrase.
         /// Subscribe to ConnectionStatusChanged to be notified if the connection attempt was successful.
         /// </summary>
@@ -85,31 +133,258 @@ namespace WifiDirectPlugin {
         /// </summary>
         public void Disconnect() {wifiDirectManager.Call("Disconnect");}
         /// <summary>
-        /// Sends a message to the other device.
+        /// Sends a message to the other device. If called by the group owner, the message is sent to every connected client.
         /// This function will only work if you are connected to another device.
         /// Subscribe to ConnectionAttempted and listen for status == SOCKET_CONNECTION_SUCCESSFUL to find out when you can start using this method.
         /// This method does not check if the communication thread or the socket is null, so it will throw a Java runtime error if called incorrectly.
         /// </summary>
         public void SendMessage(byte[] message) {wifiDirectManager.Call("SendMessage", message);}
+        /// <summary>
+        /// Sends a message to one peer, as given by PeerConnected.
+        /// Clients can send to other clients through the group owner, which needs SetRelayEnabled(true) on the group owner.
+        /// </summary>
+        public void SendMessage(int peerId, byte[] message) {wifiDirectManager.Call("SendMessage", peerId, message);}
+        /// <summary>
+        /// Sends a message to one peer with the given delivery mode, see DELIVERY_RELIABLE.
+        /// Falls back to the TCP stream when the UDP link is disabled or not ready yet, when a client sends to another client,
+        /// or when the message is bigger than 1200 bytes.
+        /// </summary>
+        public void SendMessage(int peerId, byte[] message, int delivery) {wifiDirectManager.Call("SendMessage", peerId, message, delivery);}
+        /// <summary>
+        /// Group owner method.
+        /// Opens a UDP socket next to the TCP one for the unreliable delivery modes. Takes effect on the next connection. Disabled by default.
+        /// </summary>
+        public void SetDatagramsEnabled(bool enabled) {wifiDirectManager.Call("SetDatagramsEnabled", enabled);}
+        /// <summary>
+        /// Sends a message to every other device in the group. The message is encoded once and shared by every recipient.
+        /// From a client, the group owner receives it and relays it to the other clients if relaying is enabled on it.
+        /// </summary>
+        public void BroadcastMessage(byte[] message) {wifiDirectManager.Call("BroadcastMessage", message);}
+        /// <summary>
+        /// Group owner method.
+        /// Lets clients send messages to each other through the group owner. Disabled by default.
+        /// </summary>
+        public void SetRelayEnabled(bool enabled) {wifiDirectManager.Call("SetRelayEnabled", enabled);}
+        /// <summary>
+        /// Sets the largest message in bytes that can be sent or received. Takes effect on the next connection.
+        /// Both devices should use the same value. A device that receives a larger message drops the connection.
+        /// </summary>
+        public void SetMaxMessageSize(int bytes) {wifiDirectManager.Call("SetMaxMessageSize", bytes);}
+        /// <summary>
+        /// Enables or disables Nagle's algorithm on the socket. Takes effect on the next connection. Defaults to true.
+        /// </summary>
+        public void SetTcpNoDelay(bool noDelay) {wifiDirectManager.Call("SetTcpNoDelay", noDelay);}
+        /// <summary>
+        /// Controls how queued messages are batched into writes.
+        /// 0 writes as soon as possible (default). A positive value waits that many microseconds to gather more messages into one write.
+        /// -1 only writes when FlushMessages() is called, e.g. once per frame.
+        /// </summary>
+        public void SetFlushInterval(int micros) {wifiDirectManager.Call("SetFlushInterval", micros);}
+        /// <summary>
+        /// Writes every queued message now. Only needed after SetFlushInterval(-1).
+        /// </summary>
+        public void FlushMessages() {wifiDirectManager.Call("FlushMessages");}
+        /// <summary>
+        /// Returns {messages sent, bytes sent, write calls} for the current connection.
+        /// </summary>
+        public long[] GetSendCounters() {return wifiDirectManager.Call<long[]>("GetSendCounters");}
+        /// <summary>
+        /// Sets the priority and delivery mode of a logical channel, from 0 to CHANNEL_COUNT - 1. Priority 0 is the most urgent.
+        /// Reliable channel messages are sent in 4 KB fragments, always taking the next one from the most urgent channel,
+        /// so a large transfer on a low priority channel doesn't hold up small messages on a higher one.
+        /// </summary>
+        public void ConfigureChannel(int channel, int priority, int delivery) {wifiDirectManager.Call("ConfigureChannel", channel, priority, delivery);}
+        /// <summary>
+        /// Sends a message to one peer on a logical channel. Messages on one channel arrive in order.
+        /// </summary>
+        public void SendOnChannel(int peerId, int channel, byte[] message) {wifiDirectManager.Call("SendOnChannel", peerId, channel, message);}
+        /// <summary>
+        /// Returns 4 values per channel: {messages sent, mean queueing latency in microseconds, max queueing latency in microseconds, messages waiting}.
+        /// </summary>
+        public long[] GetChannelStats() {return wifiDirectManager.Call<long[]>("GetChannelStats");}
+        /// <summary>
+        /// Streams a file to a peer in chunks without loading it into memory. Returns a transfer ID, or -1 if the file can't be read.
+        /// If the connection drops, sending the same file again resumes where it stopped.
+        /// </summary>
+        public int SendFile(int peerId, string path) {return wifiDirectManager.Call<int>("SendFile", peerId, path);}
+        /// <summary>
+        /// Client only. Streams a file to the group owner.
+        /// </summary>
+        public int SendFile(string path) {return wifiDirectManager.Call<int>("SendFile", path);}
+        /// <summary>
+        /// Sets the directory that received files are written to. Defaults to the app's files directory.
+        /// </summary>
+        public void SetTransferDirectory(string path) {wifiDirectManager.Call("SetTransferDirectory", path);}
+        /// <summary>
+        /// Sets how often peers are pinged, and the shortest silence after which a peer counts as lost.
+        /// The timeout grows on slow or jittery links. Defaults to 1000 and 6000 ms. Takes effect on the next connection.
+        /// </summary>
+        public void SetKeepAlive(int intervalMillis, int timeoutMillis) {wifiDirectManager.Call("SetKeepAlive", intervalMillis, timeoutMillis);}
+        /// <summary>
+        /// Sets how long a lost connection may take to come back before the peer is reported disconnected, and how many
+        /// bytes of unacknowledged messages each side keeps to send again. 0 ms reports every lost connection at once.
+        /// Defaults to 10000 ms and 8 MB. Takes effect on the next connection, both devices need the same setting.
+        /// </summary>
+        public void SetResume(int windowMillis, int replayBufferBytes) {wifiDirectManager.Call("SetResume", windowMillis, replayBufferBytes);}
+        /// <summary>
+        /// Group owner only. Disconnects a client once more than bytes are waiting to be sent to it, instead of queueing
+        /// without end. Counted in STAT_SEND_QUEUE_OVERFLOWS. 0 never disconnects. Defaults to 8 MB, takes effect on the next connection.
+        /// </summary>
+        public void SetSendQueueLimit(int bytes) {wifiDirectManager.Call("SetSendQueueLimit", bytes);}
+        /// <summary>
+        /// Compresses messages at least thresholdBytes long with the codec, for every peer that can decode it. A message that
+        /// doesn't shrink goes as it is, and so do channel messages, relays, datagrams and file transfers.
+        /// Worth it for large or repetitive messages like JSON state. Defaults to COMPRESSION_NONE and 128 bytes.
+        /// Takes effect on the next connection.
+        /// </summary>
+        public void SetCompression(int codec, int thresholdBytes) {wifiDirectManager.Call("SetCompression", codec, thresholdBytes);}
+        /// <summary>
+        /// Sets a replicated state slot, e.g. one per entity, which the peers get with the next SyncState() if it changed.
+        /// The group owner replicates its slots to every client, a client to the group owner. Slots are kept across connections.
+        /// </summary>
+        public void SetState(int key, byte[] value) {wifiDirectManager.Call("SetState", key, value);}
+        /// <summary>
+        /// Removes a replicated state slot, the peers get StateChanged with a null value after the next SyncState().
+        /// </summary>
+        public void RemoveState(int key) {wifiDirectManager.Call("RemoveState", key);}
+        /// <summary>
+        /// Sends every peer the state slots that changed since it last got them, call once per tick. Each slot goes as the
+        /// difference from the value the peer last acknowledged, and a peer that is 2 syncs behind only gets the newest values
+        /// once it catches up. Returns how many peers were sent something.
+        /// </summary>
+        public int SyncState() {return wifiDirectManager.Call<int>("SyncState");}
+        /// <summary>
+        /// Returns the value a peer last replicated for a state slot, or null if it has no such slot.
+        /// </summary>
+        public byte[] GetPeerState(int peerId, int key) {return wifiDirectManager.Call<byte[]>("GetPeerState", peerId, key);}
+        /// <summary>
+        /// Returns the keys of every state slot a peer replicated.
+        /// </summary>
+        public int[] GetPeerStateKeys(int peerId) {return wifiDirectManager.Call<int[]>("GetPeerStateKeys", peerId);}
+        /// <summary>
+        /// Returns the smoothed round trip time to a peer in milliseconds, or -1 if there is no sample yet.
+        /// </summary>
+        public float GetRoundTripMillis(int peerId) {return wifiDirectManager.Call<float>("GetRoundTripMillis", peerId);}
+        /// <summary>
+        /// From a client, the round trip to the group owner. From the group owner, the largest round trip to any client.
+        /// </summary>
+        public float GetRoundTripMillis() {return wifiDirectManager.Call<float>("GetRoundTripMillis");}
+        /// <summary>
+        /// Returns the mean deviation of the round trip time to a peer in milliseconds, or -1 if there is no sample yet.
+        /// </summary>
+        public float GetJitterMillis(int peerId) {return wifiDirectManager.Call<float>("GetJitterMillis", peerId);}
+        /// <summary>
+        /// Returns how far a peer's clock is ahead of this device's in nanoseconds, or CLOCK_UNKNOWN if there is no such peer or
+        /// the clocks aren't synchronised yet. Estimated from the keep-alive pings like NTP does, following the drift between the
+        /// two clocks. The first estimate comes one keep-alive interval after connecting.
+        /// </summary>
+        public long GetClockOffsetNanos(int peerId) {return wifiDirectManager.Call<long>("GetClockOffsetNanos", peerId);}
+        /// <summary>
+        /// From a client, how far the group owner's clock is ahead of this device's. On the group owner 0. Adding it to
+        /// GetLocalTimeNanos() gives every device of the group the same time, e.g. to start a round together.
+        /// </summary>
+        public long GetClockOffsetNanos() {return wifiDirectManager.Call<long>("GetClockOffsetNanos");}
+        /// <summary>
+        /// Returns the time in nanoseconds on the clock that every time of the plugin is on, which isn't Unity's Time.
+        /// </summary>
+        public long GetLocalTimeNanos() {return wifiDirectManager.Call<long>("GetLocalTimeNanos");}
+        /// <summary>
+        /// Asks every peer to stamp the messages it sends this device with the time it sent them, which arrives translated to
+        /// this device's clock in MessageReceivedEventArgs.SentAtNanos, and in poll mode as 8 bytes before each message.
+        /// Messages that weren't stamped, such as relays and datagrams, or that arrive before the clocks are synchronised, have
+        /// CLOCK_UNKNOWN. Costs 8 bytes per message. Disabled by default. Peers are asked on the next connection.
+        /// </summary>
+        public void SetMessageTimestamps(bool enabled) {wifiDirectManager.Call("SetMessageTimestamps", enabled);}
+        /// <summary>
+        /// Poll mode queues received messages and events in Java instead of invoking MessageReceived and the other events,
+        /// so they can be collected with DrainMessages() and DrainEvents() once per frame, with one JNI call each.
+        /// Messages that don't fit in the buffer are dropped, see GetDroppedMessages().
+        /// </summary>
+        public void SetPollingEnabled(bool enabled, int bufferBytes = 1024 * 1024) {wifiDirectManager.Call("SetPollingEnabled", enabled, bufferBytes);}
+        /// <summary>
+        /// Poll mode only. Returns every pending message, each one as the sender's peer ID, the length and the bytes, ints big-endian.
+        /// With SetMessageTimestamps(true) the bytes start with the time the message was sent, a big-endian long.
+        /// Use ForEachRecord() to read them.
+        /// </summary>
+        public byte[] DrainMessages() {return wifiDirectManager.Call<byte[]>("DrainMessages");}
+        /// <summary>
+        /// Poll mode only. Returns every pending event, each one as an EVENT code, the length of its arguments and the arguments.
+        /// Ints and longs are big-endian, booleans 1 byte, the path of a transfer is UTF-8 at the end.
+        /// </summary>
+        public byte[] DrainEvents() {return wifiDirectManager.Call<byte[]>("DrainEvents");}
+        /// <summary>
+        /// Returns how many messages were dropped in poll mode because the buffer was full.
+        /// </summary>
+        public long GetDroppedMessages() {return wifiDirectManager.Call<long>("GetDroppedMessages");}
+        /// <summary>
+        /// Returns the transport counters and latency histograms in one array, see STAT_MESSAGES_IN and STAT_DECODE_TIME.
+        /// Counters add up every connection since startup or ResetStats(). Cheap enough to call every frame.
+        /// </summary>
+        public long[] GetStats() {return wifiDirectManager.Call<long[]>("GetStats");}
+        /// <summary>
+        /// Clears every counter and histogram of GetStats().
+        /// </summary>
+        public void ResetStats() {wifiDirectManager.Call("ResetStats");}
+        /// <summary>
+        /// Starts recording every frame this device sends and receives over TCP, with its time, to an append-only file at path,
+        /// e.g. a file in Application.persistentDataPath, to replay a real session as a load test. Frames that would take the file past
+        /// maxMegabytes are left out. Keeps recording across connections until StopCapture(). Returns false if the file can't be created.
+        /// </summary>
+        public bool StartCapture(string path, int maxMegabytes) {return wifiDirectManager.Call<bool>("StartCapture", path, maxMegabytes);}
+        /// <summary>
+        /// Stops recording and completes the file. Returns its size in bytes, or -1 if nothing was being recorded.
+        /// </summary>
+        public long StopCapture() {return wifiDirectManager.Call<long>("StopCapture");}
+        /// <summary>
+        /// Metrics are enabled by default. Disabling them leaves the socket threads with a single flag check.
+        /// </summary>
+        public void SetMetricsEnabled(bool enabled) {wifiDirectManager.Call("SetMetricsEnabled", enabled);}
+        /// <summary>
+        /// Calls the handler for every record in a buffer returned by DrainMessages() or DrainEvents(), with the peer ID or EVENT
+        /// code, and the bytes as a segment of the buffer.
+        /// </summary>
+        public static void ForEachRecord(byte[] drained, Action<int, ArraySegment<byte>> handler) {
+            for (int i = 0; i + 8 <= drained.Length;) {
+                int tag = ReadInt(drained, i), length = ReadInt(drained, i + 4);
+                handler(tag, new ArraySegment<byte>(drained, i + 8, length));
+                i += 8 + length;
+            }
+        }
+        /// <summary>Reads a big-endian int, as used by the drained records.</summary>
+        public static int ReadInt(byte[] bytes, int offset) {return bytes[offset] << 24 | bytes[offset + 1] << 16 | bytes[offset + 2] << 8 | bytes[offset + 3];}
 
         /*================================ Event Handlers ================================*/
         //Subscribe to these events to handle important changes in the program.
         /// <summary>
-        /// Invoked when this device receives a message from the other.
+        /// Invoked when this device receives a message from a peer.
         /// This does not include keep-alive messages as those are handled in the Java runtime.
         /// </summary>
         public event EventHandler<MessageReceivedEventArgs> MessageReceived;
         /// <summary>
+        /// Invoked when a peer's socket connects. Clients see the group owner as GROUP_OWNER_PEER_ID.
+        /// The group owner sees each client with its own ID, starting at 1.
+        /// </summary>
+        public event EventHandler<PeerEventArgs> PeerConnected;
+        /// <summary>
+        /// Invoked when a peer's socket disconnects.
+        /// </summary>
+        public event EventHandler<PeerEventArgs> PeerDisconnected;
+        /// <summary>
         /// Invoked when Wifi-Direct on this device has been turned on or off.
         /// Status codes are WIFI_DIRECT_ENABLED and WIFI_DIRECT_DISABLED.
         /// </summary>
         public event EventHandler<StatusChangedEventArgs> StatusChanged;
         /// <summary>
         /// Invoked when a change has occured during service discovery.
-        /// Status codes are SERVICE_DISCOVERABLE, SERVICE_REMOVED, STARTED_DISCOVERY, SERVICE_LIST_CHANGED, and STOPPED_DISCOVERY.
+        /// Status codes are SERVICE_DISCOVERABLE, SERVICE_REMOVED, STARTED_DISCOVERY, and STOPPED_DISCOVERY.
+        /// Changes to the discovered services come through ServiceChanged instead.
         /// </summary>
         public event EventHandler<StatusChangedEventArgs> DiscoveryStatusChanged;
         /// <summary>
+        /// Invoked when a discovered service was added, updated or expired, see SERVICE_ADDED. Read it with GetDiscoveredService().
+        /// </summary>
+        public event EventHandler<ServiceChangedEventArgs> ServiceChanged;
+        /// <summary>
         /// Invoked when a change has occured to your connection with another device.
         /// Status codes are CONNECTION_SUCCESSFUL, DISCONNECTED, and CONNECTION_LOST.
         /// </summary>
@@ -122,24 +397,49 @@ namespace WifiDirectPlugin {
         /// ERROR_SENDING_MESSAGE, ERROR_RECEIVING_MESSAGE, and ERROR_CREATING_SERVER_SOCKET.
         /// </summary>
         public event EventHandler<ErrorEventArgs> Error;
+        /// <summary>
+        /// Invoked on both sides of a file transfer, about once per MB.
+        /// </summary>
+        public event EventHandler<TransferProgressEventArgs> TransferProgress;
+        /// <summary>
+        /// Invoked on both sides when a file transfer finishes or fails. A failed transfer can be resumed by sending the file again.
+        /// </summary>
+        public event EventHandler<TransferCompleteEventArgs> TransferComplete;
+        /// <summary>
+        /// Invoked when a peer replicated a new value for a state slot, with a null value if it removed the slot.
+        /// </summary>
+        public event EventHandler<StateChangedEventArgs> StateChanged;
 
         /*================================ Counterparts to JNI callback invocation functions ================================*/
         void OnMessageReceived(MessageReceivedEventArgs args) {MessageReceived?.Invoke(this, args);}
+        void OnPeerConnected(PeerEventArgs args) {PeerConnected?.Invoke(this, args);}
+        void OnPeerDisconnected(PeerEventArgs args) {PeerDisconnected?.Invoke(this, args);}
         void OnStatusChanged(StatusChangedEventArgs args) {StatusChanged?.Invoke(this, args);}
         void OnDiscoveryStatusChanged(StatusChangedEventArgs args) {DiscoveryStatusChanged?.Invoke(this, args);}
         void OnConnectionStatusChanged(StatusChangedEventArgs args) {ConnectionStatusChanged?.Invoke(this, args);}
         void OnError(ErrorEventArgs args) {Error?.Invoke(this, args);}
+        void OnTransferProgress(TransferProgressEventArgs args) {TransferProgress?.Invoke(this, args);}
+        void OnTransferComplete(TransferCompleteEventArgs args) {TransferComplete?.Invoke(this, args);}
+        void OnServiceChanged(ServiceChangedEventArgs args) {ServiceChanged?.Invoke(this, args);}
+        void OnStateChanged(StateChangedEventArgs args) {StateChanged?.Invoke(this, args);}
         
         sealed class EventCallbackProxy : AndroidJavaProxy {
             readonly WifiDirect manager;
 
             public EventCallbackProxy(WifiDirect m) : base("com.eclipsegames.wifidirect.WifiDirectManager$EventListener") {manager = m;}
 
-            void OnMessageReceived(byte[] message) {manager.OnMessageReceived(new(message));}
+            void OnMessageReceived(int peerId, byte[] message) {manager.OnMessageReceived(new(peerId, message));}
+            void OnTimedMessageReceived(int peerId, byte[] message, long sentAtNanos) {manager.OnMessageReceived(new(peerId, message, sentAtNanos));}
+            void OnPeerConnected(int peerId) {manager.OnPeerConnected(new(peerId));}
+            void OnPeerDisconnected(int peerId) {manager.OnPeerDisconnected(new(peerId));}
             void OnStatusChanged(int status) {manager.OnStatusChanged(new(status));}
             void OnDiscoveryStatusChanged(int status) {manager.OnDiscoveryStatusChanged(new(status));}
             void OnConnectionStatusChanged(int status) {manager.OnConnectionStatusChanged(new(status));}
             void OnError(int status, int reason) {manager.OnError(new(status, reason));}
+            void OnTransferProgress(int peerId, int transferId, long transferred, long total) {manager.OnTransferProgress(new(peerId, transferId, transferred, total));}
+            void OnTransferComplete(int peerId, int transferId, string path, bool succeeded) {manager.OnTransferComplete(new(peerId, transferId, path, succeeded));}
+            void OnServiceChanged(int change, string macAddress) {manager.OnServiceChanged(new(change, macAddress));}
+            void OnStateChanged(int peerId, int key, byte[] value) {manager.OnStateChanged(new(peerId, key, value));}
         }
     }
 
@@ -166,10 +466,21 @@ namespace WifiDirectPlugin {
         BUSY,
         NOT_AVAILABLE = -1
     }
-    /// <summary>Event args for MessageReceived event. Property: byte[] Message</summary>
+    /// <summary>
+    /// Event args for MessageReceived event. Properties: int PeerId, byte[] Message, long SentAtNanos, which is on
+    /// GetLocalTimeNanos()'s clock with SetMessageTimestamps(true), and CLOCK_UNKNOWN otherwise.
+    /// </summary>
     public sealed class MessageReceivedEventArgs : EventArgs {
+        public int PeerId {get; set;}
         public byte[] Message {get; set;}
-        public MessageReceivedEventArgs(byte[] msg) {Message = msg;}
+        public long SentAtNanos {get; set;}
+        public MessageReceivedEventArgs(int peer, byte[] msg) : this(peer, msg, WifiDirect.CLOCK_UNKNOWN) {}
+        public MessageReceivedEventArgs(int peer, byte[] msg, long sentAt) {PeerId = peer; Message = msg; SentAtNanos = sentAt;}
+    }
+    /// <summary>Event args for PeerConnected and PeerDisconnected events. Property: int PeerId</summary>
+    public sealed class PeerEventArgs : EventArgs {
+        public int PeerId {get; set;}
+        public PeerEventArgs(int peer) {PeerId = peer;}
     }
     /// <summary>Event args for all events except MessageReceived. Property: int Status</summary>
     public sealed class StatusChangedEventArgs : EventArgs {
@@ -184,4 +495,33 @@ namespace WifiDirectPlugin {
         public int Reason {get; set;}
         public ErrorEventArgs(int s, int r) {Status = s; Reason = r;}
     }
+    /// <summary>Event args for TransferProgress event. Properties: int PeerId, int TransferId, long Transferred, long Total</summary>
+    public sealed class TransferProgressEventArgs : EventArgs {
+        public int PeerId {get; set;}
+        public int TransferId {get; set;}
+        public long Transferred {get; set;}
+        public long Total {get; set;}
+        public TransferProgressEventArgs(int peer, int id, long done, long total) {PeerId = peer; TransferId = id; Transferred = done; Total = total;}
+    }
+    /// <summary>Event args for TransferComplete event. Properties: int PeerId, int TransferId, string Path, bool Succeeded</summary>
+    public sealed class TransferCompleteEventArgs : EventArgs {
+        public int PeerId {get; set;}
+        public int TransferId {get; set;}
+        public string Path {get; set;}
+        public bool Succeeded {get; set;}
+        public TransferCompleteEventArgs(int peer, int id, string path, bool ok) {PeerId = peer; TransferId = id; Path = path; Succeeded = ok;}
+    }
+    /// <summary>Event args for ServiceChanged event. Properties: int Change, string MacAddress</summary>
+    public sealed class ServiceChangedEventArgs : EventArgs {
+        public int Change {get; set;}
+        public string MacAddress {get; set;}
+        public ServiceChangedEventArgs(int change, string mac) {Change = change; MacAddress = mac;}
+    }
+    /// <summary>Event args for StateChanged event. Properties: int PeerId, int Key, byte[] Value, null if removed</summary>
+    public sealed class StateChangedEventArgs : EventArgs {
+        public int PeerId {get; set;}
+        public int Key {get; set;}
+        public byte[] Value {get; set;}
+        public StateChangedEventArgs(int peer, int key, byte[] value) {PeerId = peer; Key = key; Value = value;}
+    }
 }
\ No newline at end of file
@@ -23,6 +23,7 @@ public class WifiDirectManager : MonoBehaviour {
 		WifiDirect.ThisDevice.MessageReceived += HandleMessage;
 		WifiDirect.ThisDevice.StatusChanged += WifiDirectStatusChanged;
 		WifiDirect.ThisDevice.DiscoveryStatusChanged += PeerStatusChanged;
+		WifiDirect.ThisDevice.ServiceChanged += ServiceChanged;
 		WifiDirect.ThisDevice.ConnectionStatusChanged += ConnectionStatusChanged;
 		WifiDirect.ThisDevice.Error += ErrorOccured;
 		if (WifiDirect.permissionCallbacks != null) return;
@@ -70,13 +71,26 @@ public class WifiDirectManager : MonoBehaviour {
 	}
 
 	void DisplayDiscoveredDevices() {
-		Debug.Log("Updated discovered devices list:");
+		Debug.Log("Discovered devices:");
 		foreach (KeyValuePair<string, string> device in WifiDirect.ThisDevice.GetDiscoveredServices())
 			Debug.Log(device.Key + ": " + device.Value);
 		//let each discovered device be a button that the user can click to connect to that device.
 		//clicking a button will invoke OnNetworkSelected() - see below
 	}
 
+	void ServiceChanged(object sender, ServiceChangedEventArgs args) {
+		//only the button of this one device needs to change
+		if (args.Change == WifiDirect.SERVICE_EXPIRED) {
+			Debug.Log("Device gone: " + args.MacAddress);
+			return;
+		}
+		string[] service = WifiDirect.ThisDevice.GetDiscoveredService(args.MacAddress);
+		if (service == null) return;
+		Debug.Log((args.Change == WifiDirect.SERVICE_ADDED ? "Device found: " : "Device updated: ") + args.MacAddress + ": "
+			+ service[WifiDirect.SERVICE_DEVICE_NAME] + ", " + service[WifiDirect.SERVICE_PLAYER_COUNT] + " players, version "
+			+ service[WifiDirect.SERVICE_GAME_VERSION]);
+	}
+
 	public void OnNetworkSelected() {
 		instructions.text = selectedInstructions;
 		//display an input field for the user to enter the passphrase.
@@ -109,9 +123,8 @@ public class WifiDirectManager : MonoBehaviour {
 		switch ((WifiDirectStatus)args.Status) {
 			case WifiDirectStatus.SERVICE_DISCOVERABLE: break;
 			case WifiDirectStatus.SERVICE_REMOVED: break;
-			case WifiDirectStatus.STARTED_DISCOVERY: break;
-			case WifiDirectStatus.SERVICE_LIST_CHANGED:
-				DisplayDiscoveredDevices();
+			case WifiDirectStatus.STARTED_DISCOVERY:
+				DisplayDiscoveredDevices();//devices found earlier are still cached
 				break;
 			case WifiDirectStatus.STOPPED_DISCOVERY: break;
 		}
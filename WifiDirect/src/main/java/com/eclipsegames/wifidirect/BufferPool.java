@@ -0,0 +1,34 @@
+package com.eclipsegames.wifidirect;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**Lock-free pool of equally sized byte arrays. Acquiring and releasing never allocate once the pool is warm,
+ * which keeps the socket threads from producing garbage on every read.*/
+final class BufferPool {
+    private final AtomicReferenceArray<byte[]> slots;
+    private final int bufferSize;
+
+    BufferPool(int capacity, int bufferSize) {
+        slots = new AtomicReferenceArray<>(capacity);
+        this.bufferSize = bufferSize;
+    }
+
+    int BufferSize() {return bufferSize;}
+
+    /**Returns a pooled array, or a new one if the pool is empty. Contents are not cleared.*/
+    byte[] Acquire() {
+        for (int i = 0; i < slots.length(); i++) {
+            byte[] buffer = slots.getAndSet(i, null);
+            if (buffer != null) return buffer;
+        }
+        return new byte[bufferSize];
+    }
+
+    /**Gives an array back to the pool. Arrays of the wrong size, or that don't fit in a full pool, are left to the GC.
+     * The caller must not touch the array afterwards.*/
+    void Release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) return;
+        for (int i = 0; i < slots.length(); i++)
+            if (slots.compareAndSet(i, null, buffer)) return;
+    }
+}
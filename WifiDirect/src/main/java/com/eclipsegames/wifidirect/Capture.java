@@ -0,0 +1,200 @@
+package com.eclipsegames.wifidirect;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**Records every frame a device sends and receives over TCP into an append-only log file, with the time it was handed to
+ * the socket or came out of it, so a real session can be replayed as a load test, see Replay.
+ * The file is memory-mapped REGION_SIZE bytes at a time, so appending a record is a copy into memory under a lock, without
+ * a system call, and the OS writes the pages out in the background. While nothing is captured, each frame costs one volatile
+ * read. Frames are recorded as they are on the wire, compressed ones included. UDP datagrams aren't recorded.
+ * The file starts with MAGIC, VERSION and the wall clock time in ms the capture started at. Each record is its direction,
+ * the nanoseconds since the start, the peer ID on the other end, then the frame: length, type and payload. The direction
+ * is written last, and is 0 past the last record, so a log cut short by a crash still reads up to its last whole record.*/
+final class Capture {
+    static final byte SENT = 1, RECEIVED = 2;
+    static final int RECORD_HEADER_SIZE = 13 + FrameCodec.HEADER_SIZE;//direction, nanoseconds, peer ID, then the frame header
+    static final int MAGIC = 0x57444350, VERSION = 1;//"WDCP"
+    private static final int FILE_HEADER_SIZE = 16;
+    private static final int REGION_SIZE = 16 << 20;
+
+    private volatile Log log;//null while not capturing
+
+    boolean Capturing() {return log != null;}
+
+    /**Starts a new log at the file, replacing it. Once the file reaches maxBytes, further frames are dropped.*/
+    synchronized void Start(File file, long maxBytes) throws IOException {
+        Stop();
+        log = new Log(file, maxBytes);
+    }
+
+    /**Completes the log and trims the file to what was written. Returns its size in bytes, or -1 if nothing was captured.*/
+    synchronized long Stop() throws IOException {
+        Log current = log;
+        if (current == null) return -1;
+        log = null;
+        return current.Close();
+    }
+
+    /**Returns how many frames didn't fit under maxBytes, or 0 if nothing is captured.*/
+    long GetDropped() {
+        Log current = log;
+        return current == null ? 0 : current.dropped;
+    }
+
+    /**Records a frame whose payload is buffer[offset, offset + length).*/
+    void Record(byte direction, int peerId, byte type, byte[] buffer, int offset, int length) {
+        Log current = log;
+        if (current != null) current.Append(direction, peerId, type, buffer, offset, length, null);
+    }
+
+    /**Records an encoded frame, header included, from its position to its limit. The position is left where it was.*/
+    void Record(byte direction, int peerId, ByteBuffer frame) {
+        Log current = log;
+        if (current != null) current.Append(direction, peerId, frame.get(frame.position() + 4), null, 0, frame.remaining() - FrameCodec.HEADER_SIZE, frame);
+    }
+
+    private static final class Log {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long maxBytes, startNanos = System.nanoTime();
+        private MappedByteBuffer region;
+        private long regionStart, position;
+        private volatile long dropped;
+        private boolean closed;
+
+        private Log(File path, long maxBytes) throws IOException {
+            file = new RandomAccessFile(path, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            this.maxBytes = maxBytes;
+            Map(0, FILE_HEADER_SIZE);
+            region.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+            position = FILE_HEADER_SIZE;
+        }
+
+        @SuppressWarnings("NonAtomicOperationOnVolatileField")//only written under the lock
+        private synchronized void Append(byte direction, int peerId, byte type, byte[] buffer, int offset, int length, ByteBuffer frame) {
+            if (closed) return;
+            long nanos = System.nanoTime() - startNanos;
+            int size = RECORD_HEADER_SIZE + length;
+            if (position + size > maxBytes) {
+                dropped++;
+                return;
+            }
+            try {
+                if (position + size > regionStart + region.capacity()) Map(position, size);
+            } catch (IOException e) {
+                dropped++;
+                return;
+            }
+            int at = (int) (position - regionStart);
+            region.position(at + 1);
+            region.putLong(nanos).putInt(peerId).putInt(length).put(type);
+            if (frame == null) region.put(buffer, offset, length);
+            else {
+                int start = frame.position();
+                frame.position(start + FrameCodec.HEADER_SIZE);
+                region.put(frame);
+                frame.position(start);
+            }
+            region.put(at, direction);//last, the record is complete from here on
+            position += size;
+        }
+
+        /**Maps the next region from the position, large enough for a record of the size.*/
+        private void Map(long position, int size) throws IOException {
+            region = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(REGION_SIZE, size));
+            regionStart = position;
+        }
+
+        private synchronized long Close() throws IOException {
+            closed = true;
+            try {
+                region.force();
+                region = null;//unmapped once collected, the file can't always be trimmed while mapped
+                channel.truncate(position);
+            } finally {file.close();}
+            return position;
+        }
+    }
+
+    /**Reads a log record by record. Every getter refers to the record of the last Next() that returned true.*/
+    static final class Reader implements Closeable {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long size, startMillis;
+        private MappedByteBuffer region;
+        private long regionStart, position;
+        private byte direction, type;
+        private long nanos;
+        private int peerId;
+        private ByteBuffer payload;
+
+        Reader(File path) throws IOException {
+            file = new RandomAccessFile(path, "r");
+            channel = file.getChannel();
+            size = channel.size();
+            try {
+                if (size < FILE_HEADER_SIZE) throw new IOException("Not a capture");
+                Map(0, FILE_HEADER_SIZE);
+                if (region.getInt() != MAGIC) throw new IOException("Not a capture");
+                if (region.getInt() != VERSION) throw new IOException("Unknown capture version");
+                startMillis = region.getLong();
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            position = FILE_HEADER_SIZE;
+        }
+
+        /**Moves to the next record. Returns false at the end of the log.*/
+        boolean Next() throws IOException {
+            if (position + RECORD_HEADER_SIZE > size) return false;
+            if (position + RECORD_HEADER_SIZE > regionStart + region.capacity()) Map(position, RECORD_HEADER_SIZE);
+            int at = (int) (position - regionStart);
+            byte direction = region.get(at);
+            int length = region.getInt(at + 13);
+            if (direction == 0 || length < 0 || position + RECORD_HEADER_SIZE + length > size) return false;
+            if (position + RECORD_HEADER_SIZE + length > regionStart + region.capacity()) {
+                Map(position, RECORD_HEADER_SIZE + length);
+                at = 0;
+            }
+            this.direction = direction;
+            nanos = region.getLong(at + 1);
+            peerId = region.getInt(at + 9);
+            type = region.get(at + 17);
+            region.limit(at + RECORD_HEADER_SIZE + length).position(at + RECORD_HEADER_SIZE);
+            payload = region.slice().asReadOnlyBuffer();
+            region.clear();
+            position += RECORD_HEADER_SIZE + length;
+            return true;
+        }
+
+        /**The wall clock time in ms the capture started at.*/
+        long GetStartMillis() {return startMillis;}
+        /**SENT or RECEIVED.*/
+        byte GetDirection() {return direction;}
+        /**Nanoseconds since the capture started.*/
+        long GetNanos() {return nanos;}
+        int GetPeerId() {return peerId;}
+        byte GetType() {return type;}
+        /**A read-only view of the payload, valid until the next Next().*/
+        ByteBuffer GetPayload() {return payload;}
+
+        private void Map(long position, int minimum) throws IOException {
+            region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, Math.max(REGION_SIZE, minimum)));
+            regionStart = position;
+        }
+
+        @Override public void close() throws IOException {
+            region = null;
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.eclipsegames.wifidirect;
+
+import java.net.ProtocolException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**Numbered logical channels over one connection. Channel messages are cut into fragments, and the writer always takes the
+ * next fragment from the highest priority channel that has one, so a small urgent message only ever waits for the fragment
+ * being written instead of a whole bulk transfer. Channels of the same priority take turns, one fragment each, so they
+ * never wait on each other's transfers either. Messages on the same channel keep their order.
+ * A fragment is a TYPE_FRAGMENT frame holding the channel, flags, the total message length on the first fragment, then data.*/
+final class ChannelMux {
+    static final int CHANNEL_COUNT = 16;
+    static final int FRAGMENT_SIZE = 4 * 1024;
+    private static final byte FLAG_FIRST = 1, FLAG_LAST = 2;
+
+    private ChannelMux() {}
+
+    /**Channel settings and queueing statistics, shared by every connection.*/
+    static final class Config {
+        private final AtomicIntegerArray priorities = new AtomicIntegerArray(CHANNEL_COUNT);//0 is the most urgent
+        private final AtomicIntegerArray deliveries = new AtomicIntegerArray(CHANNEL_COUNT);
+        private final AtomicLongArray queued = new AtomicLongArray(CHANNEL_COUNT), sent = new AtomicLongArray(CHANNEL_COUNT);
+        private final AtomicLongArray latencyTotal = new AtomicLongArray(CHANNEL_COUNT), latencyMax = new AtomicLongArray(CHANNEL_COUNT);
+
+        void Configure(int channel, int priority, int delivery) {
+            priorities.set(channel, priority);
+            deliveries.set(channel, delivery);
+        }
+
+        int GetDelivery(int channel) {return deliveries.get(channel);}
+
+        /**Returns {messages sent, mean queueing latency in microseconds, max queueing latency in microseconds, messages waiting}
+         * for every channel, one after the other.*/
+        long[] GetStats() {
+            long[] stats = new long[CHANNEL_COUNT * 4];
+            for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+                long count = sent.get(channel);
+                stats[channel * 4] = count;
+                stats[channel * 4 + 1] = count == 0 ? 0 : latencyTotal.get(channel) / count / 1000;
+                stats[channel * 4 + 2] = latencyMax.get(channel) / 1000;
+                stats[channel * 4 + 3] = queued.get(channel) - count;
+            }
+            return stats;
+        }
+
+        private void RecordSent(int channel, long latencyNanos) {
+            latencyTotal.addAndGet(channel, latencyNanos);
+            latencyMax.accumulateAndGet(channel, latencyNanos, Math::max);
+            sent.incrementAndGet(channel);
+        }
+    }
+
+    private static final class Outgoing {
+        private final byte[] message;
+        private final long queuedAt = System.nanoTime();
+        private Outgoing(byte[] message) {this.message = message;}
+    }
+
+    /**Per connection send side. Offer() can be called from any thread, the rest only from the writer.*/
+    static final class Scheduler {
+        private final Config config;
+        private final ConcurrentLinkedQueue<Outgoing>[] queues;
+        private final Outgoing[] current = new Outgoing[CHANNEL_COUNT];
+        private final int[] sentBytes = new int[CHANNEL_COUNT];
+        private int nextChannel = -1, lastChannel = CHANNEL_COUNT - 1;//the turn goes round from the channel written last
+
+        @SuppressWarnings("unchecked")
+        Scheduler(Config config) {
+            this.config = config;
+            queues = (ConcurrentLinkedQueue<Outgoing>[]) new ConcurrentLinkedQueue<?>[CHANNEL_COUNT];
+            for (int i = 0; i < CHANNEL_COUNT; i++) queues[i] = new ConcurrentLinkedQueue<>();
+        }
+
+        void Offer(int channel, byte[] message) {
+            queues[channel].offer(new Outgoing(message));
+            config.queued.incrementAndGet(channel);
+        }
+
+        /**Returns the size of the next fragment frame, or 0 if nothing is waiting.*/
+        int NextFragmentSize() {
+            nextChannel = -1;
+            int best = Integer.MAX_VALUE;
+            for (int i = 1; i <= CHANNEL_COUNT; i++) {
+                int channel = (lastChannel + i) % CHANNEL_COUNT;
+                if (current[channel] == null && (current[channel] = queues[channel].poll()) == null) continue;
+                int priority = config.priorities.get(channel);
+                if (priority < best) {
+                    best = priority;
+                    nextChannel = channel;
+                }
+            }
+            if (nextChannel == -1) return 0;
+            int offset = sentBytes[nextChannel], length = Math.min(FRAGMENT_SIZE, current[nextChannel].message.length - offset);
+            return FrameCodec.HEADER_SIZE + 2 + (offset == 0 ? 4 : 0) + length;
+        }
+
+        /**Writes the fragment sized by the last NextFragmentSize() call.*/
+        void WriteFragment(byte[] dest, int offset) {
+            int channel = lastChannel = nextChannel;
+            byte[] message = current[channel].message;
+            int start = sentBytes[channel], length = Math.min(FRAGMENT_SIZE, message.length - start);
+            boolean first = start == 0, last = start + length == message.length;
+            int headerSize = 2 + (first ? 4 : 0);
+            FrameCodec.WriteHeader(dest, offset, FrameCodec.TYPE_FRAGMENT, headerSize + length);
+            offset += FrameCodec.HEADER_SIZE;
+            dest[offset] = (byte) channel;
+            dest[offset + 1] = (byte) ((first ? FLAG_FIRST : 0) | (last ? FLAG_LAST : 0));
+            if (first) FrameCodec.WriteInt(dest, offset + 2, message.length);
+            System.arraycopy(message, start, dest, offset + headerSize, length);
+            if (last) {
+                config.RecordSent(channel, System.nanoTime() - current[channel].queuedAt);
+                current[channel] = null;
+                sentBytes[channel] = 0;
+            } else sentBytes[channel] = start + length;
+        }
+
+        /**Returns the next fragment frame in its own array, or null if nothing is waiting.*/
+        byte[] NextFragment() {
+            int size = NextFragmentSize();
+            if (size == 0) return null;
+            byte[] frame = new byte[size];
+            WriteFragment(frame, 0);
+            return frame;
+        }
+    }
+
+    /**Per connection receive side. Puts fragments back together, one message in progress per channel.*/
+    static final class Assembler {
+        /**The message is a view that is only valid until the call returns.*/
+        interface Handler {
+            void OnMessage(int channel, byte[] buffer, int offset, int length);
+        }
+
+        private final int maxMessageSize;
+        private final byte[][] messages = new byte[CHANNEL_COUNT][];
+        private final int[] filled = new int[CHANNEL_COUNT];
+
+        Assembler(int maxMessageSize) {this.maxMessageSize = maxMessageSize;}
+
+        void OnFragment(byte[] buffer, int offset, int length, Handler handler) throws ProtocolException {
+            if (length < 2 || buffer[offset] < 0 || buffer[offset] >= CHANNEL_COUNT) throw new ProtocolException("Bad fragment");
+            int channel = buffer[offset], flags = buffer[offset + 1];
+            boolean first = (flags & FLAG_FIRST) != 0, last = (flags & FLAG_LAST) != 0;
+            int dataOffset = offset + 2 + (first ? 4 : 0), dataLength = offset + length - dataOffset;
+            if (first) {
+                int total = FrameCodec.ReadInt(buffer, offset + 2);
+                if (total < dataLength || total > maxMessageSize) throw new ProtocolException("Bad fragment length " + total);
+                if (last) {//unfragmented, no need to copy
+                    handler.OnMessage(channel, buffer, dataOffset, dataLength);
+                    return;
+                }
+                messages[channel] = new byte[total];
+                filled[channel] = 0;
+            }
+            byte[] message = messages[channel];
+            if (message == null || filled[channel] + dataLength > message.length) throw new ProtocolException("Unexpected fragment");
+            System.arraycopy(buffer, dataOffset, message, filled[channel], dataLength);
+            filled[channel] += dataLength;
+            if (!last) return;
+            messages[channel] = null;
+            handler.OnMessage(channel, message, 0, message.length);
+        }
+    }
+}
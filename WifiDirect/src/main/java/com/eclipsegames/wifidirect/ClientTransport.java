@@ -0,0 +1,321 @@
+package com.eclipsegames.wifidirect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**Connects to the group owner with a blocking socket, a reader (this thread) and a writer thread.
+ * When the connection is lost rather than closed, it reconnects to the same port over the group, which outlives the socket,
+ * and resumes its session so that nothing sent either way is lost or delivered twice, see Session. Only once the resume
+ * window has passed does it report CONNECTION_LOST.*/
+final class ClientTransport extends Transport implements FrameCodec.FrameHandler, ChannelMux.Assembler.Handler {
+    private static final int GROUP_OWNER_ID = SelectorServer.GROUP_OWNER_ID;
+    private static final long FIRST_BACKOFF_MILLIS = 50, MAX_BACKOFF_MILLIS = 1000;
+    private final String ipAddress;
+    private Socket otherDeviceSocket;//replaced by the reading thread only, other threads may only close it
+    private InputStream iStream;//reading thread only
+    private OutputStream oStream;
+    private final KeepAlive.Session keepAlive;
+    private final FrameWriter writer;
+    private FrameCodec.Decoder decoder;
+    private final ChannelMux.Assembler assembler;
+    private final Compression compression;
+    private final Compression.Decoder decompressor;//reading thread only
+    private volatile DatagramLink datagrams;
+    private volatile int localPeerId = -1;
+    private final long resumeWindowNanos;
+    private Session<FrameWriter.Frame> session;
+    private volatile long sessionId;//0 until the group owner's welcome names the session
+    private boolean resuming;//reconnected and waiting for the group owner's answer, reading thread only
+    private long resumeDeadline;
+
+    ClientTransport(String ip, Settings settings, Listener listener) {
+        super("WifiDirectClient", settings, listener);
+        ipAddress = ip;
+        resumeWindowNanos = TimeUnit.MILLISECONDS.toNanos(settings.resumeWindowMillis);
+        writer = new FrameWriter("WifiDirectWriter", new ChannelMux.Scheduler(settings.channels), e -> {
+            if (Resumable()) Drop();
+            else listener.OnError(ERROR_SENDING);
+        });
+        writer.SetMetrics(metrics);
+        writer.SetCapture(capture, GROUP_OWNER_ID);
+        NewSession();
+        keepAlive = new KeepAlive.Session(writer::EnqueueControl, () -> {
+            metrics.Add(Metrics.TIMEOUTS, 1);
+            if (Resumable()) Drop();
+            else {
+                listener.OnConnectionStatusChanged(CONNECTION_LOST);
+                CloseThread();
+            }
+        }, settings.keepAliveIntervalMillis, settings.keepAliveTimeoutMillis);
+        assembler = new ChannelMux.Assembler(maxFrameSize);
+        compression = new Compression(settings.compressionCodec, settings.compressionThreshold);
+        decompressor = new Compression.Decoder(maxFrameSize);
+        writer.SetFlushInterval(settings.flushIntervalMicros);
+    }
+
+    /**Returns the peer ID the group owner gave this device, or -1 until its welcome arrived.*/
+    int GetLocalPeerId() {return localPeerId;}
+
+    @Override public void run() {
+        try {
+            Connect(0);
+            writer.Start(oStream);
+            keepAlive.Start();
+            if (metrics.Get(Metrics.CONNECTS) > 0) metrics.Add(Metrics.RECONNECTS, 1);
+            metrics.Add(Metrics.CONNECTS, 1);
+            state.OnPeerConnected(GROUP_OWNER_ID);
+            listener.OnConnectionStatusChanged(CONNECTED);
+            listener.OnPeerConnected(GROUP_OWNER_ID);
+        } catch (IOException e) {
+            listener.OnConnectionStatusChanged(CONNECT_FAILED);
+            CleanResources();
+            return;
+        }
+        decoder = new FrameCodec.Decoder(settings.receiveBuffers, maxFrameSize);
+        decoder.SetMetrics(metrics);
+        try {while (ReadFrames() && Resume());}
+        finally {
+            decoder.Release();
+            CleanResources();
+            metrics.Add(Metrics.DISCONNECTS, 1);
+            transfers.OnPeerDisconnected(GROUP_OWNER_ID);
+            state.OnPeerDisconnected(GROUP_OWNER_ID);
+            listener.OnPeerDisconnected(GROUP_OWNER_ID);
+        }
+    }
+
+    /**Connects to the group owner and introduces this device with a TYPE_RESUME frame: its peer ID, its session ID, how
+     * many data frames it received, the codecs it decodes and whether it wants timestamps. A session ID of 0 asks for a new session. 0 waits for the connection without a timeout.*/
+    private void Connect(int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        synchronized (this) {otherDeviceSocket = socket;}
+        socket.connect(new InetSocketAddress(ipAddress, settings.port), timeoutMillis);
+        socket.setTcpNoDelay(settings.tcpNoDelay);
+        iStream = socket.getInputStream();
+        oStream = socket.getOutputStream();
+        byte[] hello = new byte[22];
+        FrameCodec.WriteInt(hello, 0, localPeerId);
+        FrameCodec.WriteLong(hello, 4, sessionId);
+        FrameCodec.WriteLong(hello, 12, session.GetReceived());
+        hello[20] = Compression.DECODABLE;
+        hello[21] = settings.messageTimestamps ? ClockSync.WANTS_TIMESTAMPS : 0;
+        capture.Record(Capture.SENT, GROUP_OWNER_ID, FrameCodec.TYPE_RESUME, hello, 0, hello.length);
+        oStream.write(FrameCodec.Encode(FrameCodec.TYPE_RESUME, hello));//the writer isn't running yet, so this goes first
+    }
+
+    /**Reads until the connection ends. Returns true if it was lost in a way the session can survive.*/
+    private boolean ReadFrames() {
+        InputStream in = iStream;
+        try {
+            while (!isInterrupted()) {//continuously read messages, until the socket is closed
+                if (!decoder.ReadFrom(in, this)) {
+                    listener.OnConnectionStatusChanged(DISCONNECTED);
+                    return false;
+                }
+            }
+        } catch (ProtocolException e) {listener.OnError(ERROR_RECEIVING);}
+        catch (IOException e) {
+            if (!isInterrupted() && Resumable()) return true;
+            listener.OnError(ERROR_RECEIVING);
+        }
+        return false;
+    }
+
+    private boolean Resumable() {return resumeWindowNanos > 0 && sessionId != 0;}
+
+    /**Reconnects to the group owner, backing off between attempts, until the resume window has passed.
+     * Returns true once connected, the group owner's answer then decides in OnFrame() whether the session goes on.*/
+    private boolean Resume() {
+        keepAlive.Stop();
+        writer.Close();
+        CloseSocket(true);
+        writer.Await();//its last frames must be in the replay buffer before the group owner answers
+        if (!resuming) resumeDeadline = System.nanoTime() + resumeWindowNanos;//a failed attempt keeps the first deadline
+        for (long backoff = FIRST_BACKOFF_MILLIS; !isInterrupted(); backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS)) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(resumeDeadline - System.nanoTime());
+            if (remaining <= 0) break;
+            try {
+                Connect((int) remaining);
+                otherDeviceSocket.setSoTimeout((int) remaining);//the answer has to come within the window as well
+                decoder.Clear();
+                resuming = true;
+                return true;
+            } catch (IOException e) {
+                CloseSocket(true);
+                try {Thread.sleep(Math.min(backoff, remaining));}
+                catch (InterruptedException interrupted) {interrupt();}
+            }
+        }
+        if (!isInterrupted()) listener.OnConnectionStatusChanged(CONNECTION_LOST);
+        return false;
+    }
+
+    /**The group owner resumed the session and received count of our data frames. Writes again the ones after that.*/
+    private void Resumed(long count) throws ProtocolException {
+        List<FrameWriter.Frame> frames = session.Resume(count);
+        if (frames == null) throw new ProtocolException("Frames the group owner is missing are no longer buffered");
+        resuming = false;
+        try {otherDeviceSocket.setSoTimeout(0);}
+        catch (IOException e) {throw new ProtocolException(e.getMessage());}
+        writer.Start(oStream, frames);
+        keepAlive.Start();
+        metrics.Add(Metrics.RECONNECTS, 1);
+    }
+
+    /**The group owner no longer had our session, it dropped the group owner's side of everything. Goes on as a new peer.*/
+    private void Restarted() {
+        resuming = false;
+        try {otherDeviceSocket.setSoTimeout(0);} catch (IOException ignored) {/*The next read fails*/}
+        transfers.OnPeerDisconnected(GROUP_OWNER_ID);
+        state.OnPeerDisconnected(GROUP_OWNER_ID);
+        listener.OnPeerDisconnected(GROUP_OWNER_ID);
+        metrics.Add(Metrics.DISCONNECTS, 1);
+        NewSession();
+        writer.Start(oStream);
+        keepAlive.Start();
+        metrics.Add(Metrics.CONNECTS, 1);
+        state.OnPeerConnected(GROUP_OWNER_ID);
+        listener.OnPeerConnected(GROUP_OWNER_ID);
+    }
+
+    private void NewSession() {
+        session = new Session<>(settings.replayBufferBytes, FrameWriter.Frame::Size);
+        sessionId = 0;
+        if (resumeWindowNanos > 0) writer.SetSession(session);
+    }
+
+    @Override public void OnFrame(byte type, byte[] buffer, int offset, int length) throws ProtocolException {
+        capture.Record(Capture.RECEIVED, GROUP_OWNER_ID, type, buffer, offset, length);
+        keepAlive.Heard();//any frame shows the other device is still there
+        if (resuming && (type == FrameCodec.TYPE_WELCOME || Session.IsNumbered(type))) Restarted();//a resumed session answers first
+        if (resumeWindowNanos > 0 && Session.IsNumbered(type) && session.Received(length)) writer.EnqueueOwned(FrameCodec.TYPE_ACK, session.Ack());
+        if (type == FrameCodec.TYPE_MESSAGE) listener.OnMessage(GROUP_OWNER_ID, decoder.PayloadView(offset, length));
+        else if (type == Compression.TYPE_COMPRESSED_MESSAGE) listener.OnMessage(GROUP_OWNER_ID, decompressor.Decompress(buffer, offset, length));
+        else if (type == ClockSync.TYPE_TIMED_MESSAGE && length >= ClockSync.TIMESTAMP_SIZE)
+            listener.OnTimedMessage(GROUP_OWNER_ID, decoder.PayloadView(offset + ClockSync.TIMESTAMP_SIZE, length - ClockSync.TIMESTAMP_SIZE), SentAt(buffer, offset));
+        else if (type == ClockSync.TYPE_TIMED_COMPRESSED_MESSAGE && length >= ClockSync.TIMESTAMP_SIZE)
+            listener.OnTimedMessage(GROUP_OWNER_ID, decompressor.Decompress(buffer, offset + ClockSync.TIMESTAMP_SIZE, length - ClockSync.TIMESTAMP_SIZE), SentAt(buffer, offset));
+        else if (type == FrameCodec.TYPE_FRAGMENT) assembler.OnFragment(buffer, offset, length, this);
+        else if (type == FrameCodec.TYPE_TRANSFER) transfers.OnFrame(GROUP_OWNER_ID, decoder.PayloadView(offset, length));
+        else if (type == FrameCodec.TYPE_STATE) state.OnFrame(GROUP_OWNER_ID, decoder.PayloadView(offset, length));
+        else if (type == FrameCodec.TYPE_PING) keepAlive.OnPing(decoder.PayloadView(offset, length));
+        else if (type == FrameCodec.TYPE_PONG) metrics.Record(Metrics.ROUND_TRIP, keepAlive.OnPong(decoder.PayloadView(offset, length)));
+        else if (type == FrameCodec.TYPE_RELAYED && length >= 4)//sent by another client
+            listener.OnMessage(FrameCodec.ReadInt(buffer, offset), decoder.PayloadView(offset + 4, length - 4));
+        else if (type == ClockSync.TYPE_TIMED_RELAYED && length >= ClockSync.TIMESTAMP_SIZE + 4) {//stamped on the group owner's clock
+            int start = offset + ClockSync.TIMESTAMP_SIZE;
+            listener.OnTimedMessage(FrameCodec.ReadInt(buffer, start), decoder.PayloadView(start + 4, length - ClockSync.TIMESTAMP_SIZE - 4), SentAt(buffer, offset));
+        }
+        else if (type == FrameCodec.TYPE_ACK && length >= 8) session.Acked(FrameCodec.ReadLong(buffer, offset));
+        else if (type == FrameCodec.TYPE_RESUME && length >= 8 && resuming) Resumed(FrameCodec.ReadLong(buffer, offset));
+        else if (type == FrameCodec.TYPE_WELCOME && length >= 8) {
+            localPeerId = FrameCodec.ReadInt(buffer, offset);
+            int udpPort = FrameCodec.ReadInt(buffer, offset + 4);
+            if (length >= 16) sessionId = FrameCodec.ReadLong(buffer, offset + 8);
+            boolean compress = length >= 17 && compression.Choose(buffer[offset + 16]) != Compression.NONE;
+            writer.SetEncoder(compress ? compression.NewEncoder() : null);
+            writer.SetTimestamps(length >= 18 && (buffer[offset + 17] & ClockSync.WANTS_TIMESTAMPS) != 0);
+            if (udpPort != 0 && datagrams == null) OpenDatagrams(udpPort);
+        }
+    }
+
+    /**The timestamp at the start of a timed message, on our clock.*/
+    private long SentAt(byte[] buffer, int offset) {return keepAlive.clock.ToLocalNanos(FrameCodec.ReadLong(buffer, offset));}
+
+    @Override public void OnMessage(int channel, byte[] buffer, int offset, int length) {
+        listener.OnMessage(GROUP_OWNER_ID, ByteBuffer.wrap(buffer, offset, length).slice().asReadOnlyBuffer());
+    }
+
+    /**Opens the UDP side of the link once the group owner has told us its port.*/
+    private void OpenDatagrams(int udpPort) {
+        try {
+            DatagramLink link = new DatagramLink(0, localPeerId, listener::OnMessage);
+            link.Start();
+            link.Connect(GROUP_OWNER_ID, new InetSocketAddress(otherDeviceSocket.getInetAddress(), udpPort));
+            datagrams = link;
+        } catch (IOException e) {listener.OnError(ERROR_CONNECTING);}//carry on over TCP only
+    }
+
+    @Override void SendMessage(byte[] message) {SendMessage(GROUP_OWNER_ID, message);}
+
+    @Override void SendMessage(int peerId, byte[] message) {
+        if (peerId == GROUP_OWNER_ID) {
+            if (message.length > maxFrameSize) listener.OnError(ERROR_SENDING);
+            else writer.Enqueue(FrameCodec.TYPE_MESSAGE, message);
+        } else Relay(peerId, message);
+    }
+
+    @Override void SendMessage(int peerId, byte[] message, int delivery) {
+        DatagramLink link = datagrams;
+        if (delivery == DELIVERY_RELIABLE || link == null || peerId != GROUP_OWNER_ID || !link.Send(peerId, message, delivery == DELIVERY_UNRELIABLE_ACKED))
+            SendMessage(peerId, message);
+    }
+
+    @Override void BroadcastMessage(byte[] message) {Relay(FrameCodec.ALL_PEERS, message);}
+
+    @Override void SendOnChannel(int peerId, int channel, byte[] message) {
+        if (peerId != GROUP_OWNER_ID) Relay(peerId, message);
+        else if (message.length > maxFrameSize) listener.OnError(ERROR_SENDING);
+        else writer.EnqueueOnChannel(channel, message);
+    }
+
+    @Override boolean SendFrame(int peerId, byte type, byte[] payload) {
+        if (peerId != GROUP_OWNER_ID) return false;
+        writer.EnqueueOwned(type, payload);
+        return true;
+    }
+
+    @Override KeepAlive.Session GetKeepAlive(int peerId) {return peerId == GROUP_OWNER_ID ? keepAlive : null;}
+    @Override float GetRoundTripMillis() {return keepAlive.GetRoundTripMillis();}
+
+    /**Asks the group owner to forward the message to another peer, or to all of them.*/
+    private void Relay(int target, byte[] message) {
+        if (message.length + 4 > maxFrameSize) {
+            listener.OnError(ERROR_SENDING);
+            return;
+        }
+        byte[] payload = new byte[4 + message.length];
+        FrameCodec.WriteInt(payload, 0, target);
+        System.arraycopy(message, 0, payload, 4, message.length);
+        writer.EnqueueOwned(FrameCodec.TYPE_RELAY, payload);
+    }
+
+    @Override void SetFlushInterval(int micros) {writer.SetFlushInterval(micros);}
+    @Override void FlushMessages() {writer.Flush();}
+    @Override long[] GetSendCounters() {return writer.GetCounters();}
+
+    /**Can run twice, from the keep-alive timer or CloseThread() and from the reading thread once its socket is closed.*/
+    private void CleanResources() {
+        keepAlive.Stop();
+        writer.Close();
+        CloseSocket(false);
+        if (datagrams != null) datagrams.Close();
+    }
+
+    /**Closes a connection that stopped working. The reading thread then resumes the session or gives up.*/
+    private void Drop() {CloseSocket(true);}
+
+    /**A lost connection is reset rather than closed, so the group owner keeps our session instead of taking it as a goodbye.
+     * Closing the socket closes its streams, which makes the reading thread's next read fail. Nothing is cleared, since
+     * this can run on any thread while the reading thread still uses the socket and its streams.*/
+    private synchronized void CloseSocket(boolean lost) {
+        if (otherDeviceSocket == null) return;
+        try {
+            if (lost) otherDeviceSocket.setSoLinger(true, 0);
+            else if (otherDeviceSocket.isConnected() && !otherDeviceSocket.isClosed()) otherDeviceSocket.shutdownOutput();
+        } catch (IOException ignored) {/*Already closed*/}
+        try {otherDeviceSocket.close();} catch (IOException ignored) {/*Already closed*/}
+    }
+
+    @Override void CloseThread() {
+        interrupt();
+        CleanResources();
+    }
+}
@@ -0,0 +1,130 @@
+package com.eclipsegames.wifidirect;
+
+import java.util.Arrays;
+
+/**Estimates how far a peer's System.nanoTime() is from ours, NTP style (RFC 5905), from the keep-alive pings. Every pong
+ * carries the ping's send time t0 and the peer's receive and send times t1 and t2, and arrives at t3. That gives a sample
+ * of the offset, peer clock minus ours, ((t1 - t0) + (t2 - t3)) / 2, which is wrong by at most half the round trip delay
+ * (t3 - t0) - (t2 - t1), and only by as much as one direction took longer than the other.
+ * The last WINDOW samples are kept. Queueing only ever adds delay, so the samples with the lowest delays are the least
+ * skewed, and only the best quarter of the window, or those within MIN_MARGIN_NANOS of the best, are used, weighted by how
+ * close they came to the best. Spikes never get in. A least squares line through their offsets over local time follows the
+ * drift between the two crystals, tens of ppm on most devices, once they span long enough to tell drift from noise, until
+ * then their weighted mean is used.
+ * nanoTime() counts from an arbitrary origin on each device, so offsets can be anywhere in the long range. They are only
+ * ever subtracted from each other before being averaged, so the arithmetic wraps around safely.
+ * Samples come from the thread reading from the peer, estimates can be read from any thread.
+ * The same pongs let timestamped messages be translated to local time, see TYPE_TIMED_MESSAGE.*/
+final class ClockSync {
+    /**An offset or a local time that isn't known yet, before the first pong with timestamps.*/
+    static final long UNKNOWN = Long.MIN_VALUE;
+    /**Bit of the last byte of the client hello and of the welcome: the sender wants messages to it stamped.*/
+    static final byte WANTS_TIMESTAMPS = 1;
+    /**A message whose payload starts with the sender's nanoTime() when it was queued, then the message, or the compressed
+     * message. Only sent to peers that asked with WANTS_TIMESTAMPS.*/
+    static final byte TYPE_TIMED_MESSAGE = FrameCodec.TYPE_MESSAGE | FrameCodec.FLAG_TIMESTAMPED;
+    static final byte TYPE_TIMED_COMPRESSED_MESSAGE = (byte) (Compression.TYPE_COMPRESSED_MESSAGE | FrameCodec.FLAG_TIMESTAMPED);
+    /**A relay whose payload starts with the client's nanoTime() when it was queued, then the target and the message.
+     * Sent while the group owner asked for timestamps.*/
+    static final byte TYPE_TIMED_RELAY = FrameCodec.TYPE_RELAY | FrameCodec.FLAG_TIMESTAMPED;
+    /**A relayed message whose payload starts with its send time translated to the group owner's clock, then the source and
+     * the message. Only sent to clients that asked with WANTS_TIMESTAMPS, and only once the group owner's clock is
+     * synchronised with the source's.*/
+    static final byte TYPE_TIMED_RELAYED = FrameCodec.TYPE_RELAYED | FrameCodec.FLAG_TIMESTAMPED;
+    static final int TIMESTAMP_SIZE = 8;
+    static final int WINDOW = 64;
+    private static final long MIN_MARGIN_NANOS = 250_000;
+    private static final long MIN_FIT_SPAN_NANOS = 2_000_000_000L;
+    private static final double MAX_DRIFT = 500e-6;//no crystal is that far off, a steeper line is noise
+
+    /**The offset at a local time, and how much it changes per nanosecond of local time.*/
+    private static final class Estimate {
+        private final long at, offset;
+        private final double drift;
+        private Estimate(long at, long offset, double drift) {this.at = at; this.offset = offset; this.drift = drift;}
+
+        private long OffsetAt(long local) {return offset + Math.round(drift * (local - at));}
+    }
+
+    private final long[] times = new long[WINDOW], offsets = new long[WINDOW], delays = new long[WINDOW];//reading thread only
+    private final long[] sorted = new long[WINDOW];
+    private int count, next;
+    private volatile Estimate estimate;
+
+    /**Takes one exchange. t0 and t3 are on our clock, t1 and t2 on the peer's. Returns false if it was impossible.*/
+    boolean AddSample(long t0, long t1, long t2, long t3) {
+        long delay = (t3 - t0) - (t2 - t1);
+        if (t3 - t0 < 0 || t2 - t1 < 0 || delay < 0) return false;
+        times[next] = t0 + (t3 - t0) / 2;
+        offsets[next] = (t1 - t0) - delay / 2;//((t1 - t0) + (t2 - t3)) / 2 without the sum overflowing
+        delays[next] = delay;
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+        Estimate();
+        return true;
+    }
+
+    boolean HasEstimate() {return estimate != null;}
+
+    /**Returns the peer's clock minus ours now, or UNKNOWN.*/
+    long GetOffsetNanos() {return GetOffsetNanos(System.nanoTime());}
+
+    /**Returns the peer's clock minus ours at a local time, or UNKNOWN.*/
+    long GetOffsetNanos(long local) {
+        Estimate current = estimate;
+        return current == null ? UNKNOWN : current.OffsetAt(local);
+    }
+
+    /**Returns how much faster the peer's clock runs than ours, e.g. 20e-6 for 20 ppm, or 0 until there is a line.*/
+    double GetDrift() {
+        Estimate current = estimate;
+        return current == null ? 0 : current.drift;
+    }
+
+    /**Translates a time on the peer's clock to ours, or returns UNKNOWN.*/
+    long ToLocalNanos(long remote) {
+        Estimate current = estimate;
+        if (current == null) return UNKNOWN;
+        return remote - current.OffsetAt(remote - current.offset);
+    }
+
+    /**A sample can be off by half of how much slower it was than the quickest, so it counts inversely to that squared.*/
+    private static double Weight(long excess) {
+        double error = excess + MIN_MARGIN_NANOS;
+        return 1 / (error * error);
+    }
+
+    private void Estimate() {
+        System.arraycopy(delays, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        long limit = Math.max(sorted[count / 4], sorted[0] + MIN_MARGIN_NANOS);
+        int newest = (next + WINDOW - 1) % WINDOW;
+        long at = times[newest], base = offsets[newest];//everything relative to the newest sample, small numbers
+        int used = 0;
+        double sumW = 0, sumX = 0, sumY = 0;
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (delays[i] > limit) continue;
+            long x = times[i] - at;
+            double weight = Weight(delays[i] - sorted[0]);
+            used++;
+            sumW += weight;
+            sumX += weight * x;
+            sumY += weight * (offsets[i] - base);
+            first = Math.min(first, x);
+            last = Math.max(last, x);
+        }
+        double meanX = sumX / sumW, meanY = sumY / sumW, drift = 0;
+        if (used >= 3 && last - first >= MIN_FIT_SPAN_NANOS) {
+            double sumXY = 0, sumXX = 0;
+            for (int i = 0; i < count; i++) {
+                if (delays[i] > limit) continue;
+                double weight = Weight(delays[i] - sorted[0]), dx = times[i] - at - meanX;
+                sumXY += weight * dx * (offsets[i] - base - meanY);
+                sumXX += weight * dx * dx;
+            }
+            drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, sumXY / sumXX));
+        }
+        estimate = new Estimate(at, base + Math.round(meanY - drift * meanX), drift);
+    }
+}
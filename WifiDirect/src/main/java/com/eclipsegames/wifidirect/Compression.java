@@ -0,0 +1,162 @@
+package com.eclipsegames.wifidirect;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**Optional compression of messages. Each side announces the codecs it can decode in its first frame, TYPE_RESUME from a
+ * client and TYPE_WELCOME from the group owner, and only compresses for a peer that can decode its codec, so devices with
+ * different settings still understand each other. A compressed message is a TYPE_MESSAGE frame with FrameCodec.FLAG_COMPRESSED set
+ * in its type, and a payload of the codec, the original length and the compressed bytes. Messages below the threshold, and
+ * messages that don't shrink, go as they are.
+ * Codecs keep their Deflater or Inflater and their work buffers from one message to the next, so compressing allocates
+ * nothing once the buffers have grown. The writer thread and every reading thread own theirs, and the group owner, which
+ * compresses on whatever thread sends, keeps a pool of them.
+ * Only messages are compressed. Channel fragments, file transfers, relays and datagrams go as they are.*/
+final class Compression {
+    static final int NONE = 0, DEFLATE = 1;
+    /**Codecs this device can decode, as the bit mask of their IDs it announces.*/
+    static final byte DECODABLE = 1 << DEFLATE;
+    static final int DEFAULT_THRESHOLD = 128;
+    static final byte TYPE_COMPRESSED_MESSAGE = FrameCodec.TYPE_MESSAGE | FrameCodec.FLAG_COMPRESSED;
+    private static final int PREFIX_SIZE = 5;//codec, then the original length
+
+    /**One compression algorithm. An instance is only used by one thread at a time, and reused for every message.*/
+    interface Codec {
+        /**Compresses src[offset, offset + length) into dest[destOffset, destOffset + destLength). Returns the compressed
+         * length, or -1 if it didn't fit.*/
+        int Compress(byte[] src, int offset, int length, byte[] dest, int destOffset, int destLength);
+        /**Decompresses src[offset, offset + length) into the first originalLength bytes of dest. Returns false if the data is
+         * corrupt or doesn't decompress to exactly originalLength bytes.*/
+        boolean Decompress(byte[] src, int offset, int length, byte[] dest, int originalLength);
+    }
+
+    static Codec NewCodec(int codec) {
+        if (codec == DEFLATE) return new DeflateCodec();
+        throw new IllegalArgumentException("Unknown codec " + codec);
+    }
+
+    private final int codec, threshold;
+    private final ConcurrentLinkedQueue<Encoder> encoders = new ConcurrentLinkedQueue<>();
+
+    /**codec is what this device compresses with, NONE to send everything as it is.*/
+    Compression(int codec, int threshold) {
+        if (codec != NONE && (DECODABLE & 1 << codec) == 0) throw new IllegalArgumentException("Unknown codec " + codec);
+        this.codec = codec;
+        this.threshold = threshold;
+    }
+
+    /**Returns the codec to compress with for a peer that announced the mask, or NONE if it can't decode ours.*/
+    int Choose(byte peerDecodable) {return codec != NONE && (peerDecodable & 1 << codec) != 0 ? codec : NONE;}
+
+    /**For a thread of its own, e.g. a writer thread, once Choose() found a codec.*/
+    Encoder NewEncoder() {return new Encoder(NewCodec(codec), codec, threshold);}
+
+    /**Returns a new frame of the message compressed with the chosen codec, or null if it should go as it is.
+     * Safe to call from any thread, the encoders are pooled.*/
+    byte[] EncodeFrame(byte[] message) {return EncodeFrame(message, 0);}
+
+    /**Same, with reserved bytes left for the caller between the header and the compressed message, see FrameCodec.Encode().*/
+    byte[] EncodeFrame(byte[] message, int reserved) {
+        if (codec == NONE || message.length < threshold) return null;
+        Encoder encoder = encoders.poll();
+        if (encoder == null) encoder = NewEncoder();
+        try {
+            int length = encoder.Compress(message);
+            if (length < 0) return null;
+            byte[] frame = new byte[FrameCodec.HEADER_SIZE + reserved + length];
+            FrameCodec.WriteHeader(frame, 0, TYPE_COMPRESSED_MESSAGE, reserved + length);
+            System.arraycopy(encoder.Output(), 0, frame, FrameCodec.HEADER_SIZE + reserved, length);
+            return frame;
+        } finally {encoders.offer(encoder);}
+    }
+
+    /**Compresses messages for one thread into a reused work buffer.*/
+    static final class Encoder {
+        private final Codec codec;
+        private final byte id;
+        private final int threshold;
+        private byte[] work = new byte[1024];
+
+        private Encoder(Codec codec, int id, int threshold) {
+            this.codec = codec;
+            this.id = (byte) id;
+            this.threshold = threshold;
+        }
+
+        /**Writes the compressed payload to Output(). Returns its length, or -1 if the message should go as it is because it
+         * is below the threshold or wouldn't shrink.*/
+        int Compress(byte[] message) {
+            if (message.length < threshold) return -1;
+            int limit = message.length - 1;//compressed has to be smaller, prefix included
+            if (limit <= PREFIX_SIZE) return -1;
+            if (work.length < limit) work = new byte[Math.max(limit, work.length * 2)];
+            work[0] = id;
+            FrameCodec.WriteInt(work, 1, message.length);
+            int length = codec.Compress(message, 0, message.length, work, PREFIX_SIZE, limit - PREFIX_SIZE);
+            return length < 0 ? -1 : PREFIX_SIZE + length;
+        }
+
+        /**The payload of the last Compress(), valid until the next one.*/
+        byte[] Output() {return work;}
+    }
+
+    /**Decompresses messages for one reading thread, into a reused buffer.*/
+    static final class Decoder {
+        private final int maxMessageSize;
+        private final Codec[] codecs = new Codec[8];//by ID, created on first use
+        private byte[] work = new byte[0];
+        private ByteBuffer view;
+
+        Decoder(int maxMessageSize) {this.maxMessageSize = maxMessageSize;}
+
+        /**Returns a read-only view of the original message, only valid until the next call.*/
+        ByteBuffer Decompress(byte[] buffer, int offset, int length) throws ProtocolException {
+            if (length < PREFIX_SIZE) throw new ProtocolException("Truncated compressed message");
+            int id = buffer[offset], originalLength = FrameCodec.ReadInt(buffer, offset + 1);
+            if (id <= NONE || id >= codecs.length || (DECODABLE & 1 << id) == 0) throw new ProtocolException("Unknown codec " + id);
+            if (originalLength < 0 || originalLength > maxMessageSize) throw new ProtocolException("Compressed message too large: " + originalLength);
+            if (codecs[id] == null) codecs[id] = NewCodec(id);
+            if (work.length < originalLength) {
+                work = new byte[Math.min(maxMessageSize, Math.max(originalLength, work.length * 2))];
+                view = null;
+            }
+            if (!codecs[id].Decompress(buffer, offset + PREFIX_SIZE, length - PREFIX_SIZE, work, originalLength))
+                throw new ProtocolException("Corrupt compressed message");
+            if (view == null) view = ByteBuffer.wrap(work).asReadOnlyBuffer();
+            view.clear();
+            view.limit(originalLength);
+            return view;
+        }
+    }
+
+    /**Raw deflate at the fastest level, without the zlib header and checksum, which TCP makes redundant.*/
+    private static final class DeflateCodec implements Codec {
+        private Deflater deflater;
+        private Inflater inflater;
+        private final byte[] end = new byte[1];
+
+        @Override public int Compress(byte[] src, int offset, int length, byte[] dest, int destOffset, int destLength) {
+            if (deflater == null) deflater = new Deflater(Deflater.BEST_SPEED, true);
+            deflater.reset();
+            deflater.setInput(src, offset, length);
+            deflater.finish();
+            int compressed = deflater.deflate(dest, destOffset, destLength);
+            return deflater.finished() ? compressed : -1;
+        }
+
+        @Override public boolean Decompress(byte[] src, int offset, int length, byte[] dest, int originalLength) {
+            if (inflater == null) inflater = new Inflater(true);
+            inflater.reset();
+            inflater.setInput(src, offset, length);
+            try {
+                int inflated = inflater.inflate(dest, 0, originalLength);
+                if (!inflater.finished() && inflated == originalLength) inflated += inflater.inflate(end, 0, 1);//reads the end of the stream
+                return inflated == originalLength && inflater.finished();
+            } catch (DataFormatException e) {return false;}
+        }
+    }
+}
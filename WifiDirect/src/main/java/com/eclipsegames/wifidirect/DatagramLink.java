@@ -0,0 +1,211 @@
+package com.eclipsegames.wifidirect;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**Unordered, unreliable UDP link that runs next to the TCP stream, so a lost packet never holds up the ones after it.
+ * Every datagram carries a 1 byte type, the sender's peer ID and a sequence number. Plain and acked messages are numbered
+ * separately. Plain messages older than the newest one received are dropped as stale. Acked messages are resent until the
+ * other side acks them, and are delivered once each, even if they arrive out of order.*/
+final class DatagramLink {
+    static final int HEADER_SIZE = 9;
+    static final int MAX_PAYLOAD = 1200;//keeps datagrams under the usual MTU
+    private static final byte TYPE_DATA = 0, TYPE_ACKED_DATA = 1, TYPE_ACK = 2, TYPE_HELLO = 3;
+    private static final long RESEND_NANOS = 50_000_000L;
+    private static final int MAX_SENDS = 20;
+    private static final int MAX_ACKED_AHEAD = 4096;//out of order acked messages remembered before a gap is given up on
+
+    /**Called on the link thread. The payload is a reused view that is only valid until the call returns.*/
+    interface Listener {
+        void OnDatagram(int peerId, ByteBuffer payload);
+    }
+
+    private static final class Unacked {
+        private final ByteBuffer packet;
+        private long sentAt;
+        private int sends;
+        private Unacked(ByteBuffer packet) {this.packet = packet;}
+    }
+
+    private static final class Remote {
+        private final int peerId;
+        private final InetAddress expectedAddress;
+        private volatile SocketAddress address;//unknown on the group owner until the peer says hello
+        private int nextPlain, nextAcked;//sending side, guarded by the Remote
+        private final Map<Integer, Unacked> unacked = new ConcurrentHashMap<>();
+        private int newestPlain;//receiving side, link thread only
+        private boolean receivedPlain;
+        private int ackedFloor;//every acked sequence number below this has been received
+        private final Set<Integer> ackedAhead = new HashSet<>();//received acked sequence numbers above the floor
+
+        private Remote(int peerId, InetAddress expectedAddress, SocketAddress address) {
+            this.peerId = peerId;
+            this.expectedAddress = expectedAddress;
+            this.address = address;
+        }
+
+        private synchronized int NextSequence(boolean acked) {return acked ? nextAcked++ : nextPlain++;}
+
+        /**Returns true the first time an acked sequence number is seen.*/
+        private boolean FirstAcked(int sequence) {
+            if (sequence - ackedFloor < 0) return false;//wraps around correctly
+            if (sequence != ackedFloor) {
+                if (!ackedAhead.add(sequence)) return false;
+                if (ackedAhead.size() <= MAX_ACKED_AHEAD) return true;
+                while (!ackedAhead.contains(ackedFloor)) ackedFloor++;//the sender gave up on the gap
+            } else ackedFloor++;
+            while (ackedAhead.remove(ackedFloor)) ackedFloor++;
+            return true;
+        }
+
+        /**Returns true if a plain sequence number is newer than every plain one received so far.*/
+        private boolean NewestPlain(int sequence) {
+            if (receivedPlain && sequence - newestPlain <= 0) return false;
+            receivedPlain = true;
+            newestPlain = sequence;
+            return true;
+        }
+    }
+
+    private final int localPeerId;
+    private final Listener listener;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Map<Integer, Remote> remotes = new ConcurrentHashMap<>();
+    private final Thread thread;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(HEADER_SIZE + MAX_PAYLOAD);
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(HEADER_SIZE);
+    private volatile boolean running = true;
+
+    /**Binds the UDP socket. Port 0 picks any free port, see GetPort().*/
+    DatagramLink(int port, int localPeerId, Listener listener) throws IOException {
+        this.localPeerId = localPeerId;
+        this.listener = listener;
+        channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        thread = new Thread(this::Run, "WifiDirectDatagrams");
+    }
+
+    int GetPort() {return channel.socket().getLocalPort();}
+
+    void Start() {thread.start();}
+
+    void Close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**Group owner side. Accepts datagrams from this peer once it says hello from the given address.*/
+    void Expect(int peerId, InetAddress address) {remotes.put(peerId, new Remote(peerId, address, null));}
+
+    /**Client side. Registers the group owner's address and says hello so the group owner learns ours.*/
+    void Connect(int peerId, InetSocketAddress address) {
+        remotes.put(peerId, new Remote(peerId, address.getAddress(), address));
+        Send(peerId, TYPE_HELLO, FrameCodec.EMPTY_PAYLOAD);
+    }
+
+    void Remove(int peerId) {remotes.remove(peerId);}
+
+    /**Sends a message without waiting for anything. Safe to call from any thread.
+     * Returns false if the message is too big, the peer is unknown, or its address hasn't been learned yet.*/
+    boolean Send(int peerId, byte[] message, boolean acked) {
+        return Send(peerId, acked ? TYPE_ACKED_DATA : TYPE_DATA, message);
+    }
+
+    private boolean Send(int peerId, byte type, byte[] message) {
+        Remote remote = remotes.get(peerId);
+        if (remote == null || message.length > MAX_PAYLOAD || (remote.address == null && type != TYPE_HELLO)) return false;
+        int sequence = remote.NextSequence(type != TYPE_DATA);
+        ByteBuffer packet = ByteBuffer.allocate(HEADER_SIZE + message.length);
+        packet.put(type).putInt(localPeerId).putInt(sequence).put(message).flip();
+        if (type != TYPE_DATA) {
+            Unacked unacked = new Unacked(packet);
+            unacked.sentAt = System.nanoTime();
+            unacked.sends = 1;
+            remote.unacked.put(sequence, unacked);
+        }
+        try {channel.send(packet.duplicate(), remote.address);}
+        catch (IOException e) {return type != TYPE_DATA;}//will be resent
+        return true;
+    }
+
+    private void Run() {
+        try {
+            while (running) {
+                selector.select(RESEND_NANOS / 1_000_000);
+                selector.selectedKeys().clear();
+                for (SocketAddress from; running && (from = ReceiveOne()) != null;) Handle(from);
+                Resend();
+            }
+        } catch (IOException ignored) {/*Closed*/}
+        finally {
+            try {selector.close();} catch (IOException ignored) {/*Already closed*/}
+            try {channel.close();} catch (IOException ignored) {/*Already closed*/}
+        }
+    }
+
+    private SocketAddress ReceiveOne() throws IOException {
+        receiveBuffer.clear();
+        SocketAddress from = channel.receive(receiveBuffer);
+        receiveBuffer.flip();
+        return from;
+    }
+
+    private void Handle(SocketAddress from) throws IOException {
+        if (receiveBuffer.remaining() < HEADER_SIZE || !(from instanceof InetSocketAddress)) return;
+        byte type = receiveBuffer.get();
+        Remote remote = remotes.get(receiveBuffer.getInt());
+        int sequence = receiveBuffer.getInt();
+        if (remote == null || !remote.expectedAddress.equals(((InetSocketAddress) from).getAddress())) return;
+        if (type == TYPE_ACK) {
+            remote.unacked.remove(sequence);
+            return;
+        }
+        if (type == TYPE_DATA) {
+            if (remote.NewestPlain(sequence)) listener.OnDatagram(remote.peerId, receiveBuffer);
+            return;
+        }
+        if (type == TYPE_HELLO) remote.address = from;
+        ackBuffer.clear();
+        ackBuffer.put(TYPE_ACK).putInt(localPeerId).putInt(sequence).flip();
+        channel.send(ackBuffer, from);
+        if (remote.FirstAcked(sequence) && type == TYPE_ACKED_DATA) listener.OnDatagram(remote.peerId, receiveBuffer);
+    }
+
+    private void Resend() throws IOException {
+        long now = System.nanoTime();
+        for (Remote remote : remotes.values()) {
+            Iterator<Unacked> pending = remote.unacked.values().iterator();
+            while (pending.hasNext()) {
+                Unacked unacked = pending.next();
+                if (now - unacked.sentAt < RESEND_NANOS || remote.address == null) continue;
+                if (unacked.sends >= MAX_SENDS) {//give up, the TCP keep-alive will notice a dead peer
+                    pending.remove();
+                    continue;
+                }
+                unacked.sentAt = now;
+                unacked.sends++;
+                channel.send(unacked.packet.duplicate(), remote.address);
+            }
+        }
+    }
+}
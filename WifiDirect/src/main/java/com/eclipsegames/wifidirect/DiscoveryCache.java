@@ -0,0 +1,108 @@
+package com.eclipsegames.wifidirect;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**Services found by DNS-SD discovery, by MAC address, kept across discovery runs until they haven't been seen for the TTL.
+ * The DNS-SD callbacks write it and any thread reads it. Entries are immutable and replaced whole with an atomic compute,
+ * and expiry only removes an entry that wasn't replaced since it was looked at, so a service seen again while it expires
+ * stays. The listener hears what changed for one MAC address at a time, called outside the map by the thread that made the
+ * change. A refresh that changes nothing but the time it was seen is not reported.*/
+final class DiscoveryCache {
+    static final int DEFAULT_TTL_MILLIS = 60_000;
+    static final int ADDED = 0, UPDATED = 1, EXPIRED = 2;
+    /**TXT record keys the group owner advertises.*/
+    static final String KEY_SSID = "SSID", KEY_PLAYER_COUNT = "players", KEY_GAME_VERSION = "version";
+
+    interface Listener {
+        void OnServiceChanged(int change, String macAddress);
+    }
+
+    /**One discovered group owner. The TXT record fields are null, or -1 for the player count, until its TXT record arrives.*/
+    static final class Service {
+        final String macAddress, deviceName;
+        final Map<String, String> record;
+        final long lastSeenNanos;
+
+        private Service(String macAddress, String deviceName, Map<String, String> record, long lastSeenNanos) {
+            this.macAddress = macAddress;
+            this.deviceName = deviceName;
+            this.record = record;
+            this.lastSeenNanos = lastSeenNanos;
+        }
+
+        String GetSsid() {return record.get(KEY_SSID);}
+        String GetGameVersion() {return record.get(KEY_GAME_VERSION);}
+
+        int GetPlayerCount() {
+            try {return Integer.parseInt(record.get(KEY_PLAYER_COUNT));}
+            catch (NumberFormatException e) {return -1;}
+        }
+
+        /**Same device name and record, whenever it was seen.*/
+        private boolean SameAs(Service other) {return other.deviceName.equals(deviceName) && other.record.equals(record);}
+    }
+
+    private final ConcurrentHashMap<String, Service> services = new ConcurrentHashMap<>();
+    private final Listener listener;
+    private volatile long ttlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL_MILLIS);
+
+    DiscoveryCache(Listener listener) {this.listener = listener;}
+
+    void SetTtl(int millis) {ttlNanos = TimeUnit.MILLISECONDS.toNanos(millis);}
+
+    long GetTtlNanos() {return ttlNanos;}
+
+    /**A service response or TXT record from a device. A null record keeps the one from before, the two come separately.*/
+    void Seen(String macAddress, String deviceName, Map<String, String> record, long now) {
+        Service[] previous = new Service[1];
+        Service current = services.compute(macAddress, (mac, old) -> {
+            previous[0] = old;
+            Map<String, String> merged = record != null ? Collections.unmodifiableMap(new HashMap<>(record))
+                : old != null ? old.record : Collections.emptyMap();
+            String name = deviceName != null ? deviceName : old != null ? old.deviceName : "";
+            long lastSeen = old != null && old.lastSeenNanos - now > 0 ? old.lastSeenNanos : now;//callers may race
+            return new Service(mac, name, merged, lastSeen);
+        });
+        if (previous[0] == null) listener.OnServiceChanged(ADDED, macAddress);
+        else if (!current.SameAs(previous[0])) listener.OnServiceChanged(UPDATED, macAddress);
+    }
+
+    /**Removes every service last seen a TTL or more before now. Returns how many were removed.*/
+    int Expire(long now) {
+        long ttl = ttlNanos;
+        int expired = 0;
+        for (Service service : services.values()) {
+            if (now - service.lastSeenNanos < ttl || !services.remove(service.macAddress, service)) continue;
+            expired++;
+            listener.OnServiceChanged(EXPIRED, service.macAddress);
+        }
+        return expired;
+    }
+
+    /**Returns when the next service expires, or -1 if there is none.*/
+    long NextExpiry() {
+        long next = -1, ttl = ttlNanos;
+        for (Service service : services.values()) {
+            long expiry = service.lastSeenNanos + ttl;
+            if (next == -1 || expiry - next < 0) next = expiry;
+        }
+        return next;
+    }
+
+    /**Returns the service, or null if it isn't cached.*/
+    Service Get(String macAddress) {return services.get(Objects.requireNonNull(macAddress));}
+
+    /**Returns a copy of every cached service as MAC address and device name.*/
+    Map<String, String> GetNames() {
+        Map<String, String> names = new HashMap<>();
+        for (Service service : services.values()) names.put(service.macAddress, service.deviceName);
+        return names;
+    }
+
+    int Size() {return services.size();}
+}
@@ -0,0 +1,351 @@
+package com.eclipsegames.wifidirect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**Streams files between peers in chunks, so a file is never held in memory whole, however big it is.
+ * The sender reads chunks from a FileChannel and keeps at most WINDOW chunks unacked, the receiver checks each chunk's CRC32
+ * and writes it straight from the receive buffer into a partial file, which is renamed once the last chunk is written.
+ * If the connection drops, offering the same file name again resumes from the end of the partial file, once the sender has
+ * checked the CRC32 of what the partial file holds against its own file. A partial file of something else starts over.
+ * Every message is a TYPE_TRANSFER frame that starts with an op and the sender's transfer ID.
+ * Frames are handled on one shared worker thread, in the order they arrived, so checksumming a large partial file or
+ * waiting on the disk never holds up the thread reading from the peer, which on the group owner serves every peer.*/
+final class FileTransfer {
+    static final int CHUNK_SIZE = 32 * 1024;//fits in one write batch
+    static final int WINDOW = 8;
+    static final String PARTIAL_SUFFIX = ".part";
+    private static final long PROGRESS_STEP = 1024 * 1024;
+    private static final byte OP_OFFER = 0, OP_ACCEPT = 1, OP_CHUNK = 2, OP_ACK = 3, OP_REJECT = 4, OP_CANCEL = 5, OP_RESTART = 6;
+    private static final int CHUNK_HEADER_SIZE = 17;//op, ID, offset, CRC32
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "WifiDirectTransfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**Sends a frame to a peer. Returns false if there is no such peer.*/
+    interface Link {
+        boolean Send(int peerId, byte type, byte[] payload);
+    }
+
+    /**Called on the transfer worker thread, or on the caller's thread for failures when sending starts.
+     * Transfer IDs are given by the sending side, so they only identify a transfer together with the peer ID.*/
+    interface Listener {
+        void OnTransferProgress(int peerId, int transferId, long transferred, long total);
+        void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded);
+    }
+
+    private static final class Outgoing {
+        private final int peerId, id;
+        private final String path;
+        private final FileChannel file;
+        private final long size;
+        private final CRC32 crc = new CRC32();
+        private long sent, acked, nextProgress;//guarded by the Outgoing
+
+        private Outgoing(int peerId, int id, String path, FileChannel file, long size) {
+            this.peerId = peerId;
+            this.id = id;
+            this.path = path;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private static final class Incoming {
+        private final int peerId, id;
+        private final File partial, target;
+        private final FileChannel file;
+        private final long size;
+        private final CRC32 crc = new CRC32();
+        private long written, nextProgress;
+
+        private Incoming(int peerId, int id, File partial, File target, FileChannel file, long size) {
+            this.peerId = peerId;
+            this.id = id;
+            this.partial = partial;
+            this.target = target;
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private final Link link;
+    private final Listener listener;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Map<Long, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final Map<Long, Incoming> incoming = new ConcurrentHashMap<>();
+    private volatile File directory;
+
+    FileTransfer(Link link, Listener listener) {
+        this.link = link;
+        this.listener = listener;
+    }
+
+    /**Received files are written to this directory. Nothing is accepted until it is set.*/
+    void SetDirectory(File directory) {this.directory = directory;}
+
+    private static long Key(int peerId, int id) {return (long) peerId << 32 | (id & 0xFFFFFFFFL);}
+
+    /**Offers a file to a peer. Returns the transfer ID, or -1 if the file can't be opened or there is no such peer.*/
+    int SendFile(int peerId, String path) {
+        File source = new File(path);
+        FileChannel file;
+        long size;
+        try {
+            file = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+            size = file.size();
+        } catch (IOException e) {return -1;}
+        int id = nextId.getAndIncrement();
+        Outgoing transfer = new Outgoing(peerId, id, path, file, size);
+        outgoing.put(Key(peerId, id), transfer);
+        byte[] name = source.getName().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer offer = ByteBuffer.allocate(13 + name.length).put(OP_OFFER).putInt(id).putLong(size).put(name);
+        if (link.Send(peerId, FrameCodec.TYPE_TRANSFER, offer.array())) return id;
+        outgoing.remove(Key(peerId, id));
+        Close(file);
+        return -1;
+    }
+
+    /**Handles a TYPE_TRANSFER frame from a peer on the worker. The payload is copied, so it can be a reused view.
+     * A frame too short for its op is dropped.*/
+    void OnFrame(int peerId, ByteBuffer payload) {
+        if (payload.remaining() < 5) return;
+        byte op = payload.get(payload.position());
+        int size = op == OP_OFFER || op == OP_ACK ? 13 : op == OP_ACCEPT || op == OP_CHUNK ? CHUNK_HEADER_SIZE : 5;
+        if (payload.remaining() < size) return;
+        byte[] frame = new byte[payload.remaining()];
+        payload.get(frame);
+        WORKER.execute(() -> Handle(peerId, ByteBuffer.wrap(frame)));
+    }
+
+    private void Handle(int peerId, ByteBuffer payload) {
+        byte op = payload.get();
+        int id = payload.getInt();
+        switch (op) {
+            case OP_OFFER: OnOffer(peerId, id, payload); break;
+            case OP_CHUNK: OnChunk(peerId, id, payload); break;
+            case OP_ACCEPT: OnAccept(peerId, id, payload.getLong(), payload.getInt()); break;
+            case OP_ACK: OnAck(peerId, id, payload.getLong(), false); break;
+            case OP_RESTART: OnRestart(incoming.get(Key(peerId, id))); break;
+            case OP_REJECT: Fail(outgoing.get(Key(peerId, id))); break;
+            case OP_CANCEL: Fail(incoming.get(Key(peerId, id))); break;
+        }
+    }
+
+    /**Fails every transfer with a peer that went away, after the frames it already sent. Partial files are kept so the
+     * transfer can be resumed.*/
+    void OnPeerDisconnected(int peerId) {
+        WORKER.execute(() -> {
+            for (Outgoing transfer : outgoing.values()) if (transfer.peerId == peerId) Fail(transfer);
+            for (Incoming transfer : incoming.values()) if (transfer.peerId == peerId) Fail(transfer);
+        });
+    }
+
+    /**Fails every transfer in progress.*/
+    void Close() {
+        WORKER.execute(() -> {
+            for (Outgoing transfer : outgoing.values()) Fail(transfer);
+            for (Incoming transfer : incoming.values()) Fail(transfer);
+        });
+    }
+
+    /*================================ Receiving side ================================*/
+
+    private void OnOffer(int peerId, int id, ByteBuffer payload) {
+        long size = payload.getLong();
+        byte[] nameBytes = new byte[payload.remaining()];
+        payload.get(nameBytes);
+        String name = new File(new String(nameBytes, StandardCharsets.UTF_8)).getName();//no paths from the other device
+        File dir = directory;
+        if (dir == null || name.isEmpty() || size < 0) {
+            Reply(peerId, OP_REJECT, id);
+            return;
+        }
+        File partial = new File(dir, name + PARTIAL_SUFFIX), target = new File(dir, name);
+        Incoming transfer;
+        int prefixCrc;
+        try {
+            FileChannel file = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            //only whole chunks were checked, and the last chunk is always sent again so the file is only finished by a checked chunk
+            long resume = Math.min(file.size(), Math.max(0, size - 1)) / CHUNK_SIZE * CHUNK_SIZE;
+            file.truncate(resume);
+            prefixCrc = Checksum(file, resume);
+            transfer = new Incoming(peerId, id, partial, target, file, size);
+            transfer.written = resume;
+            transfer.nextProgress = resume + PROGRESS_STEP;
+        } catch (IOException e) {
+            Reply(peerId, OP_REJECT, id);
+            listener.OnTransferComplete(peerId, id, target.getPath(), false);
+            return;
+        }
+        incoming.put(Key(peerId, id), transfer);
+        link.Send(peerId, FrameCodec.TYPE_TRANSFER, ByteBuffer.allocate(17).put(OP_ACCEPT).putInt(id).putLong(transfer.written).putInt(prefixCrc).array());
+        if (transfer.written == size) Finish(transfer);
+    }
+
+    /**The partial file held something else, the sender starts over from the beginning.*/
+    private void OnRestart(Incoming transfer) {
+        if (transfer == null) return;
+        try {
+            transfer.file.truncate(0);
+        } catch (IOException e) {
+            Reply(transfer.peerId, OP_REJECT, transfer.id);
+            Fail(transfer);
+            return;
+        }
+        transfer.written = 0;
+        transfer.nextProgress = PROGRESS_STEP;
+    }
+
+    private void OnChunk(int peerId, int id, ByteBuffer payload) {
+        Incoming transfer = incoming.get(Key(peerId, id));
+        if (transfer == null) return;
+        long offset = payload.getLong();
+        int crc = payload.getInt();
+        transfer.crc.reset();
+        transfer.crc.update(payload.duplicate());
+        if (offset != transfer.written || (int) transfer.crc.getValue() != crc || offset + payload.remaining() > transfer.size) {
+            Reply(peerId, OP_REJECT, id);
+            Fail(transfer);
+            return;
+        }
+        try {
+            while (payload.hasRemaining()) transfer.written += transfer.file.write(payload, transfer.written);
+        } catch (IOException e) {
+            Reply(peerId, OP_REJECT, id);
+            Fail(transfer);
+            return;
+        }
+        if (transfer.written == transfer.size) Finish(transfer);
+        else {
+            link.Send(peerId, FrameCodec.TYPE_TRANSFER, ByteBuffer.allocate(13).put(OP_ACK).putInt(id).putLong(transfer.written).array());
+            if (transfer.written >= transfer.nextProgress) {
+                transfer.nextProgress = transfer.written + PROGRESS_STEP;
+                listener.OnTransferProgress(peerId, id, transfer.written, transfer.size);
+            }
+        }
+    }
+
+    /**Moves the finished file into place, then acks the last chunk.*/
+    private void Finish(Incoming transfer) {
+        incoming.remove(Key(transfer.peerId, transfer.id));
+        Close(transfer.file);
+        boolean moved = (!transfer.target.exists() || transfer.target.delete()) && transfer.partial.renameTo(transfer.target);
+        if (moved) link.Send(transfer.peerId, FrameCodec.TYPE_TRANSFER, ByteBuffer.allocate(13).put(OP_ACK).putInt(transfer.id).putLong(transfer.size).array());
+        else Reply(transfer.peerId, OP_REJECT, transfer.id);
+        listener.OnTransferProgress(transfer.peerId, transfer.id, transfer.size, transfer.size);
+        listener.OnTransferComplete(transfer.peerId, transfer.id, transfer.target.getPath(), moved);
+    }
+
+    /*================================ Sending side ================================*/
+
+    /**Resumes from the end of the receiver's partial file if it matches the start of this file, otherwise starts over.*/
+    private void OnAccept(int peerId, int id, long offset, int prefixCrc) {
+        Outgoing transfer = outgoing.get(Key(peerId, id));
+        if (transfer == null) return;
+        if (offset > 0) {
+            try {
+                if (offset > transfer.size || Checksum(transfer.file, offset) != prefixCrc) {
+                    Reply(peerId, OP_RESTART, id);
+                    offset = 0;
+                }
+            } catch (IOException e) {
+                Reply(peerId, OP_CANCEL, id);
+                Fail(transfer);
+                return;
+            }
+        }
+        OnAck(peerId, id, offset, true);
+    }
+
+    private void OnAck(int peerId, int id, long offset, boolean accepted) {
+        Outgoing transfer = outgoing.get(Key(peerId, id));
+        if (transfer == null) return;
+        synchronized (transfer) {
+            if (accepted) transfer.sent = transfer.nextProgress = offset;//resumes from where the partial file ends
+            transfer.acked = offset;
+            if (offset >= transfer.nextProgress) {
+                transfer.nextProgress = offset + PROGRESS_STEP;
+                listener.OnTransferProgress(peerId, id, offset, transfer.size);
+            }
+        }
+        if (offset == transfer.size && !accepted) {
+            outgoing.remove(Key(peerId, id));
+            Close(transfer.file);
+            listener.OnTransferComplete(peerId, id, transfer.path, true);
+        } else Pump(transfer);
+    }
+
+    /**Sends chunks until the window is full.*/
+    private void Pump(Outgoing transfer) {
+        synchronized (transfer) {
+            try {
+                while (transfer.sent < transfer.size && transfer.sent - transfer.acked < (long) WINDOW * CHUNK_SIZE) {
+                    int length = (int) Math.min(CHUNK_SIZE, transfer.size - transfer.sent);
+                    byte[] chunk = new byte[CHUNK_HEADER_SIZE + length];
+                    ByteBuffer data = ByteBuffer.wrap(chunk, CHUNK_HEADER_SIZE, length);
+                    while (data.hasRemaining()) {
+                        if (transfer.file.read(data, transfer.sent + data.position() - CHUNK_HEADER_SIZE) < 0) throw new IOException("File shrank");
+                    }
+                    transfer.crc.reset();
+                    transfer.crc.update(chunk, CHUNK_HEADER_SIZE, length);
+                    ByteBuffer.wrap(chunk).put(OP_CHUNK).putInt(transfer.id).putLong(transfer.sent).putInt((int) transfer.crc.getValue());
+                    if (!link.Send(transfer.peerId, FrameCodec.TYPE_TRANSFER, chunk)) throw new IOException("Peer is gone");
+                    transfer.sent += length;
+                }
+            } catch (IOException e) {
+                Reply(transfer.peerId, OP_CANCEL, transfer.id);
+                Fail(transfer);
+            }
+        }
+    }
+
+    /*================================ Helpers ================================*/
+
+    /**Returns the CRC32 of the first length bytes of the file.*/
+    private static int Checksum(FileChannel file, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        for (long position = 0; position < length;) {
+            buffer.clear().limit((int) Math.min(CHUNK_SIZE, length - position));
+            int read = file.read(buffer, position);
+            if (read < 0) throw new IOException("File shrank");
+            buffer.flip();
+            crc.update(buffer);
+            position += read;
+        }
+        return (int) crc.getValue();
+    }
+
+    private void Reply(int peerId, byte op, int id) {
+        link.Send(peerId, FrameCodec.TYPE_TRANSFER, ByteBuffer.allocate(5).put(op).putInt(id).array());
+    }
+
+    private void Fail(Outgoing transfer) {
+        if (transfer == null || outgoing.remove(Key(transfer.peerId, transfer.id)) == null) return;
+        Close(transfer.file);
+        listener.OnTransferComplete(transfer.peerId, transfer.id, transfer.path, false);
+    }
+
+    private void Fail(Incoming transfer) {
+        if (transfer == null || incoming.remove(Key(transfer.peerId, transfer.id)) == null) return;
+        Close(transfer.file);
+        listener.OnTransferComplete(transfer.peerId, transfer.id, transfer.target.getPath(), false);
+    }
+
+    private static void Close(FileChannel file) {
+        try {file.close();} catch (IOException ignored) {/*Already closed*/}
+    }
+}
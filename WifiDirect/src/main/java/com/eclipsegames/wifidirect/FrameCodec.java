@@ -0,0 +1,233 @@
+package com.eclipsegames.wifidirect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**Length-prefixed framing for the socket stream. TCP does not keep message boundaries, so every frame is written as
+ * a 4 byte big-endian payload length, a 1 byte frame type, then the payload itself.*/
+final class FrameCodec {
+    static final int HEADER_SIZE = 5;
+    static final int DEFAULT_MAX_FRAME_SIZE = 1 << 20;//max payload size in bytes
+    static final byte TYPE_MESSAGE = 1;//0 is unused, it was an empty keep-alive before TYPE_PING
+    static final byte TYPE_RELAY = 2;//client to group owner, payload is the target peer ID then the message
+    static final byte TYPE_RELAYED = 3;//group owner to client, payload is the source peer ID then the message
+    static final byte TYPE_WELCOME = 4;//group owner to a new client, payload is the client's peer ID, the UDP port or 0, the session ID or 0, the codecs it decodes, then whether it wants timestamps
+    static final byte TYPE_FRAGMENT = 5;//part of a logical channel message, see ChannelMux
+    static final byte TYPE_TRANSFER = 6;//file transfer, see FileTransfer
+    static final byte TYPE_PING = 7, TYPE_PONG = 8;//payload is the pinging side's timestamp, echoed back with the receive and send times of the pong, see KeepAlive
+    static final byte TYPE_RESUME = 9;//first frame of a client, and the group owner's answer to a resumed session, see Session
+    static final byte TYPE_ACK = 10;//payload is the number of data frames received so far, see Session
+    static final byte TYPE_STATE = 11;//state replication, see StateSync
+    static final byte FLAG_COMPRESSED = (byte) 0x80;//set in the type of a TYPE_MESSAGE whose payload is compressed, see Compression
+    static final byte FLAG_TIMESTAMPED = 0x40;//set in the type of a TYPE_MESSAGE whose payload starts with its send time, see ClockSync
+    static final int ALL_PEERS = -1;//relay target meaning every other device in the group
+    static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    private FrameCodec() {}
+
+    /**Writes a frame header for a payload of the given length at dest[offset].*/
+    static void WriteHeader(byte[] dest, int offset, byte type, int length) {
+        WriteInt(dest, offset, length);
+        dest[offset + 4] = type;
+    }
+
+    /**Returns a new array holding the header, a 4 byte peer ID, then the message. Used for relay frames.*/
+    static byte[] EncodeWithPeer(byte type, int peerId, byte[] message, int offset, int length) {
+        byte[] frame = new byte[HEADER_SIZE + 4 + length];
+        WriteHeader(frame, 0, type, 4 + length);
+        WriteInt(frame, HEADER_SIZE, peerId);
+        System.arraycopy(message, offset, frame, HEADER_SIZE + 4, length);
+        return frame;
+    }
+
+    /**Pings, pongs and acks are written as soon as they are queued, whatever the flush interval, see FrameWriter.SetFlushInterval().*/
+    static boolean IsUrgent(byte type) {return type == TYPE_PING || type == TYPE_PONG || type == TYPE_ACK;}
+
+    static void WriteInt(byte[] dest, int offset, int value) {
+        dest[offset] = (byte) (value >>> 24);
+        dest[offset + 1] = (byte) (value >>> 16);
+        dest[offset + 2] = (byte) (value >>> 8);
+        dest[offset + 3] = (byte) value;
+    }
+
+    static void WriteLong(byte[] dest, int offset, long value) {
+        WriteInt(dest, offset, (int) (value >>> 32));
+        WriteInt(dest, offset + 4, (int) value);
+    }
+
+    /**Returns a new array holding the header followed by the payload, ready to be written in a single call.*/
+    static byte[] Encode(byte type, byte[] payload) {return Encode(type, 0, payload);}
+
+    /**Same, with reserved bytes left for the caller between the header and the payload, counted in the payload length.*/
+    static byte[] Encode(byte type, int reserved, byte[] payload) {
+        byte[] frame = new byte[HEADER_SIZE + reserved + payload.length];
+        WriteHeader(frame, 0, type, reserved + payload.length);
+        System.arraycopy(payload, 0, frame, HEADER_SIZE + reserved, payload.length);
+        return frame;
+    }
+
+    static int ReadInt(byte[] src, int offset) {
+        return (src[offset] & 0xFF) << 24 | (src[offset + 1] & 0xFF) << 16 | (src[offset + 2] & 0xFF) << 8 | (src[offset + 3] & 0xFF);
+    }
+
+    static long ReadLong(byte[] src, int offset) {return (long) ReadInt(src, offset) << 32 | ReadInt(src, offset + 4) & 0xFFFFFFFFL;}
+
+    /**The latest ping or pong waiting to be written, copied into an array kept for it, so one every tick allocates
+     * nothing. A newer one replaces the one waiting, only the latest matters to KeepAlive.*/
+    static final class Slot {
+        static final int CAPACITY = 64;//payload bytes, longer ones go through the queue
+        private final byte[] frame = new byte[HEADER_SIZE + CAPACITY];
+        private volatile int size;//0 while empty
+
+        /**Copies the frame in. Returns false if the payload is longer than CAPACITY. Safe to call from any thread.*/
+        synchronized boolean Offer(byte type, byte[] payload) {
+            if (payload.length > CAPACITY) return false;
+            WriteHeader(frame, 0, type, payload.length);
+            System.arraycopy(payload, 0, frame, HEADER_SIZE, payload.length);
+            size = HEADER_SIZE + payload.length;
+            return true;
+        }
+
+        boolean IsEmpty() {return size == 0;}
+
+        /**Copies the waiting frame, header included, to dest[offset] and empties the slot. Returns its size, or 0 if
+         * there was none. dest needs room for HEADER_SIZE + CAPACITY bytes.*/
+        synchronized int Take(byte[] dest, int offset) {
+            int taken = size;
+            System.arraycopy(frame, 0, dest, offset, taken);
+            size = 0;
+            return taken;
+        }
+    }
+
+    /**Called once per complete frame. The payload is only valid until the call returns, the buffer is reused afterwards.*/
+    interface FrameHandler {
+        void OnFrame(byte type, byte[] buffer, int offset, int length) throws ProtocolException;
+    }
+
+    /**Incremental decoder. Bytes are read straight into one growable buffer and frames are handed out as views into it,
+     * so a frame is never copied by the decoder. Only the unfinished tail of a read is moved back to the front.*/
+    static final class Decoder {
+        private final int maxFrameSize;
+        private final BufferPool pool;
+        private byte[] buffer;
+        private int start, end;//undecoded bytes are buffer[start, end)
+        private ByteBuffer view;//read-only view of buffer, reused for every frame
+        private ByteBuffer channelTarget;//writable view of buffer for channel reads
+        private Metrics metrics;
+        private int reads;//counts reads to pick the ones whose decode time is sampled
+
+        Decoder(int initialCapacity, int maxFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+            pool = null;
+            buffer = new byte[Math.max(initialCapacity, HEADER_SIZE)];
+        }
+
+        /**Borrows the initial buffer from the pool. Call Release() once the decoder is no longer used.*/
+        Decoder(BufferPool pool, int maxFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+            this.pool = pool;
+            buffer = pool.Acquire();
+        }
+
+        /**Records every read and the time it took to decode and deliver its frames. Null records nothing.*/
+        void SetMetrics(Metrics metrics) {this.metrics = metrics;}
+
+        /**Returns the buffer to the pool. The decoder must not be used afterwards.*/
+        void Release() {
+            if (pool != null) pool.Release(buffer);
+            buffer = null;
+            view = null;
+            channelTarget = null;
+        }
+
+        /**Drops whatever is left of the last connection's stream, so the decoder can read from a new one.*/
+        void Clear() {start = end = 0;}
+
+        /**Returns a read-only view of buffer[offset, offset + length) for the frame being dispatched.
+         * The same object is returned for every frame, so it is only valid until FrameHandler.OnFrame() returns.*/
+        ByteBuffer PayloadView(int offset, int length) {
+            if (view == null || view.capacity() != buffer.length) view = ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+            view.clear();
+            view.position(offset).limit(offset + length);
+            return view;
+        }
+
+        /**Blocks for one read from the stream and dispatches every frame it completed.
+         * Returns false once the end of the stream has been reached.*/
+        boolean ReadFrom(InputStream in, FrameHandler handler) throws IOException {
+            MakeRoom();
+            int bytesRead = in.read(buffer, end, buffer.length - end);
+            if (bytesRead == -1) return false;
+            end += bytesRead;
+            Dispatch(handler, bytesRead);
+            return true;
+        }
+
+        /**Reads whatever the channel has available and dispatches every frame it completed. Works with non-blocking channels.
+         * Returns false once the end of the stream has been reached.*/
+        boolean ReadFrom(ReadableByteChannel channel, FrameHandler handler) throws IOException {
+            MakeRoom();
+            if (channelTarget == null || channelTarget.capacity() != buffer.length) channelTarget = ByteBuffer.wrap(buffer);
+            channelTarget.clear();
+            channelTarget.position(end);
+            int bytesRead = channel.read(channelTarget);
+            if (bytesRead == -1) return false;
+            end += bytesRead;
+            Dispatch(handler, bytesRead);
+            return true;
+        }
+
+        /**One call site for Dispatch(handler) whether metrics are on or off, so the JIT compiles a single copy of the loop.*/
+        private void Dispatch(FrameHandler handler, int bytesRead) throws ProtocolException {
+            Metrics metrics = this.metrics;
+            if (metrics != null && !metrics.Enabled()) metrics = null;
+            boolean timed = metrics != null && (++reads & Metrics.DECODE_SAMPLE_MASK) == 0;
+            long start = timed ? System.nanoTime() : 0;
+            int frames = Dispatch(handler);
+            if (metrics != null) metrics.RecordRead(bytesRead, frames, timed ? System.nanoTime() - start : -1);
+        }
+
+        /**Dispatches every complete frame currently buffered. Returns how many there were.*/
+        int Dispatch(FrameHandler handler) throws ProtocolException {
+            int frames = 0;
+            while (end - start >= HEADER_SIZE) {
+                int length = ReadInt(buffer, start);
+                if (length < 0) throw new ProtocolException("Negative frame length " + length);
+                if (length > maxFrameSize) throw new ProtocolException("Frame of " + length + " bytes exceeds the maximum of " + maxFrameSize);
+                if (end - start - HEADER_SIZE < length) {
+                    Reserve(HEADER_SIZE + length);
+                    return frames;
+                }
+                byte type = buffer[start + 4];
+                int offset = start + HEADER_SIZE;
+                start = offset + length;
+                frames++;
+                handler.OnFrame(type, buffer, offset, length);
+            }
+            if (start == end) start = end = 0;
+            return frames;
+        }
+
+        /**Makes sure there is space at the end of the buffer for the next read.*/
+        private void MakeRoom() {
+            if (end < buffer.length) return;
+            Reserve(end - start + 1);
+        }
+
+        /**Makes sure the frame starting at buffer[start] fits in the buffer, compacting and growing as needed.*/
+        private void Reserve(int frameSize) {
+            if (buffer.length - start >= frameSize) return;
+            int pending = end - start;
+            byte[] dest = frameSize > buffer.length ? new byte[Math.max(frameSize, Math.min(buffer.length * 2, maxFrameSize + HEADER_SIZE))] : buffer;
+            System.arraycopy(buffer, start, dest, 0, pending);
+            if (dest != buffer && pool != null) pool.Release(buffer);
+            buffer = dest;
+            start = 0;
+            end = pending;
+        }
+    }
+}
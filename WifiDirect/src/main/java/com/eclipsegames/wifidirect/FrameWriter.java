@@ -0,0 +1,283 @@
+package com.eclipsegames.wifidirect;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**Single writer for one connection. Any thread can queue frames, and one dedicated thread drains the queue, packing every
+ * pending frame into one buffer so a burst of small messages goes out in a single write call, in the order it was queued.
+ * Logical channel fragments are pulled from the channel scheduler after the queued frames, while there is room.
+ * Messages and relays can be stamped with the time they were queued, for a peer that asked for it, see ClockSync.
+ * The writer can be closed and started again on a new stream, what was still queued is written to the new one.*/
+final class FrameWriter implements Metrics.Queue {
+    static final int FLUSH_IMMEDIATE = 0, FLUSH_MANUAL = -1;
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    /**Called on the writer thread when the stream fails. The writer stops afterwards.*/
+    interface ErrorHandler {
+        void OnWriteError(IOException e);
+    }
+
+    /**A queued frame, also what a Session keeps for replay. A TYPE_TIMED_MESSAGE or TYPE_TIMED_RELAY keeps its timestamp
+     * apart from the payload.*/
+    static final class Frame {
+        final byte type;
+        final byte[] payload;
+        final long nanos;
+        Frame(byte type, byte[] payload) {this(type, payload, 0);}
+        Frame(byte type, byte[] payload, long nanos) {this.type = type; this.payload = payload; this.nanos = nanos;}
+
+        int Size() {return FrameCodec.HEADER_SIZE + StampSize(type) + payload.length;}
+    }
+
+    private final ConcurrentLinkedQueue<Frame> queue = new ConcurrentLinkedQueue<>();//lock-free, many producers and one consumer
+    private final FrameCodec.Slot ping = new FrameCodec.Slot(), pong = new FrameCodec.Slot();
+    private final ErrorHandler errorHandler;
+    private final ChannelMux.Scheduler scheduler;
+    private final byte[] batch = new byte[BATCH_SIZE];
+    private final String name;
+    private volatile Thread thread;//replaced on every Start(), producers must unpark the current one
+    private OutputStream out;
+    private Metrics metrics;
+    private Capture capture;
+    private int capturePeerId;
+    private Session<Frame> session;
+    private volatile Compression.Encoder encoder;//null sends messages as they are
+    private ArrayDeque<Frame> replay = new ArrayDeque<>();//written before the queue, writer thread only once started
+    private volatile boolean running, flushRequested, urgent, timestamps;
+    private volatile long flushIntervalNanos;
+    private volatile long messagesWritten, bytesWritten, writeCalls;//only written by the writer thread
+
+    FrameWriter(String name, ErrorHandler errorHandler) {this(name, null, errorHandler);}
+
+    FrameWriter(String name, ChannelMux.Scheduler scheduler, ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+        this.scheduler = scheduler;
+        this.name = name;
+    }
+
+    /**Records every write, and registers the queue for its depth while the writer runs. Call before Start().*/
+    void SetMetrics(Metrics metrics) {this.metrics = metrics;}
+
+    /**Records every frame written, as sent to the peer. Call before Start().*/
+    void SetCapture(Capture capture, int peerId) {
+        this.capture = capture;
+        capturePeerId = peerId;
+    }
+
+    /**Hands every data frame to the session before it is written, and every channel fragment as a copy. Call before Start().*/
+    void SetSession(Session<Frame> session) {this.session = session;}
+
+    /**Compresses messages from now on, on the writer thread, or stops with null. The session keeps them uncompressed.*/
+    void SetEncoder(Compression.Encoder encoder) {this.encoder = encoder;}
+
+    /**Stamps every message queued from now on with the time it was queued, or stops.*/
+    void SetTimestamps(boolean enabled) {timestamps = enabled;}
+
+    /**Starts writing to the stream. Frames queued before this call are sent first.*/
+    void Start(OutputStream out) {Start(out, Collections.emptyList());}
+
+    /**Starts writing to the stream, beginning with the replayed frames, then the queue. If the writer ran before, waits for
+     * its previous thread to end, which Close() and closing the previous stream make quick.*/
+    void Start(OutputStream out, List<Frame> replayed) {
+        Await();
+        this.out = out;
+        ArrayDeque<Frame> next = new ArrayDeque<>(replayed);
+        next.addAll(replay);//left from a replay cut short
+        replay = next;
+        running = true;
+        if (metrics != null) metrics.Register(this);
+        thread = new Thread(this::Run, name);
+        thread.start();
+    }
+
+    /**Stops the writer thread without reporting errors from then on. Frames still queued stay for the next Start().*/
+    void Close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**Waits for the writer thread to end after Close(), once it can no longer hand frames to the session.*/
+    void Await() {
+        Thread current = thread;
+        if (current == null || current == Thread.currentThread()) return;
+        try {current.join();}
+        catch (InterruptedException e) {Thread.currentThread().interrupt();}
+    }
+
+    /**FLUSH_IMMEDIATE writes as soon as something is queued. A positive value waits that many microseconds after the first
+     * queued frame to gather more into the same write. FLUSH_MANUAL only writes when Flush() is called, e.g. once per game tick.
+     * Pings, pongs and acks are written as soon as they are queued whatever the interval, with whatever is queued before
+     * them, so round trip times don't include the game's tick or the gathering delay.*/
+    void SetFlushInterval(int micros) {
+        flushIntervalNanos = micros * 1000L;
+        LockSupport.unpark(thread);
+    }
+
+    /**Queues a frame with a copy of the payload, so the caller can reuse its array at once.*/
+    void Enqueue(byte type, byte[] payload) {EnqueueOwned(type, payload.clone());}
+
+    /**Queues a frame with the payload itself, which is written later and kept by the session until the peer acks it. Only
+     * for an array nothing writes to afterwards, such as one built for this frame.*/
+    void EnqueueOwned(byte type, byte[] payload) {
+        boolean stamped = timestamps && (type == FrameCodec.TYPE_MESSAGE || type == FrameCodec.TYPE_RELAY);
+        queue.offer(stamped ? new Frame((byte) (type | FrameCodec.FLAG_TIMESTAMPED), payload, System.nanoTime()) : new Frame(type, payload));
+        if (FrameCodec.IsUrgent(type)) {
+            urgent = true;
+            LockSupport.unpark(thread);
+        } else if (flushIntervalNanos != FLUSH_MANUAL * 1000L) LockSupport.unpark(thread);
+    }
+
+    /**Queues a TYPE_PING or TYPE_PONG, copied into a slot of its own rather than kept by reference, so the caller can
+     * reuse its array at once and nothing is allocated. Replaces one of the same type that wasn't written yet, and is
+     * written before the queue.*/
+    void EnqueueControl(byte type, byte[] payload) {
+        if (!(type == FrameCodec.TYPE_PING ? ping : pong).Offer(type, payload)) {
+            Enqueue(type, payload);//longer than a ping of ours, only from a peer that pings oddly
+            return;
+        }
+        urgent = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**Queues a copy of a message on a logical channel, cut into fragments as the socket takes them. Needs the scheduler
+     * constructor.*/
+    void EnqueueOnChannel(int channel, byte[] message) {
+        scheduler.Offer(channel, message.clone());
+        if (flushIntervalNanos != FLUSH_MANUAL * 1000L) LockSupport.unpark(thread);
+    }
+
+    /**Writes everything queued so far. Only needed with FLUSH_MANUAL.*/
+    void Flush() {
+        flushRequested = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**Returns {messages written, bytes written, write calls}. Bytes include frame headers.*/
+    long[] GetCounters() {return new long[] {messagesWritten, bytesWritten, writeCalls};}
+
+    /**Walks the queue, only meant for the occasional stats snapshot.*/
+    @Override public int QueueDepth() {return queue.size();}
+
+    private void Run() {
+        try {
+            boolean backlog = false;//channel fragments left over from the last write, keep going without waiting
+            while (running) {
+                long interval = flushIntervalNanos;
+                boolean urgent = this.urgent;
+                boolean idle = queue.isEmpty() && replay.isEmpty() && ping.IsEmpty() && pong.IsEmpty()
+                    && (scheduler == null || scheduler.NextFragmentSize() == 0);
+                if (!backlog && (idle || (interval < 0 && !flushRequested && !urgent))) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                if (interval > 0 && !backlog && !urgent) {//let more frames pile up
+                    long deadline = System.nanoTime() + interval;
+                    for (long remaining = interval; remaining > 0 && running; remaining = deadline - System.nanoTime())
+                        LockSupport.parkNanos(this, remaining);
+                }
+                flushRequested = false;
+                this.urgent = false;
+                backlog = Drain();
+            }
+        } catch (IOException e) {
+            if (running) {
+                running = false;
+                errorHandler.OnWriteError(e);
+            }
+        } finally {
+            if (metrics != null) metrics.Unregister(this);
+        }
+    }
+
+    /**Returns true if channel fragments are still waiting.*/
+    private boolean Drain() throws IOException {
+        long written = messagesWritten;
+        int position = TakeControl(ping, 0);
+        position += TakeControl(pong, position);
+        Frame frame;
+        Compression.Encoder encoder = this.encoder;
+        while ((frame = replay.isEmpty() ? queue.poll() : replay.poll()) != null) {
+            if (session != null && Session.IsNumbered(frame.type)) session.Sent(frame);
+            byte type = frame.type;
+            byte[] payload = frame.payload;
+            int length = payload.length, stamp = StampSize(type);
+            if ((type == FrameCodec.TYPE_MESSAGE || type == ClockSync.TYPE_TIMED_MESSAGE) && encoder != null && (length = encoder.Compress(payload)) >= 0) {
+                type |= FrameCodec.FLAG_COMPRESSED;
+                payload = encoder.Output();
+            } else length = payload.length;
+            if (capture != null && capture.Capturing())
+                capture.Record(Capture.SENT, capturePeerId, type, stamp == 0 ? payload : Stamped(frame.nanos, payload, length), 0, stamp + length);
+            int size = FrameCodec.HEADER_SIZE + stamp + length;
+            if (position + size > batch.length && position > 0) {
+                Write(batch, position);
+                position = 0;
+            }
+            messagesWritten++;
+            if (size > batch.length) {//too big to pack, send header and payload as they are
+                FrameCodec.WriteHeader(batch, 0, type, stamp + length);
+                if (stamp > 0) FrameCodec.WriteLong(batch, FrameCodec.HEADER_SIZE, frame.nanos);
+                Write(batch, FrameCodec.HEADER_SIZE + stamp);
+                Write(payload, length);
+                continue;
+            }
+            FrameCodec.WriteHeader(batch, position, type, stamp + length);
+            if (stamp > 0) FrameCodec.WriteLong(batch, position + FrameCodec.HEADER_SIZE, frame.nanos);
+            System.arraycopy(payload, 0, batch, position + FrameCodec.HEADER_SIZE + stamp, length);
+            position += size;
+        }
+        boolean backlog = false;
+        for (int size; scheduler != null && (size = scheduler.NextFragmentSize()) > 0;) {
+            if (position + size > batch.length) {
+                backlog = true;
+                break;
+            }
+            scheduler.WriteFragment(batch, position);
+            if (capture != null) capture.Record(Capture.SENT, capturePeerId, FrameCodec.TYPE_FRAGMENT, batch, position + FrameCodec.HEADER_SIZE, size - FrameCodec.HEADER_SIZE);
+            if (session != null)
+                session.Sent(new Frame(FrameCodec.TYPE_FRAGMENT, Arrays.copyOfRange(batch, position + FrameCodec.HEADER_SIZE, position + size)));
+            position += size;
+            messagesWritten++;
+        }
+        if (position > 0) Write(batch, position);
+        if (metrics != null) metrics.Add(Metrics.MESSAGES_OUT, messagesWritten - written);
+        return backlog;
+    }
+
+    /**Moves a waiting ping or pong into the batch at position and returns its size, or 0.*/
+    @SuppressWarnings("NonAtomicOperationOnVolatileField")//single writer thread
+    private int TakeControl(FrameCodec.Slot slot, int position) {
+        int size = slot.Take(batch, position);
+        if (size == 0) return 0;
+        if (capture != null) capture.Record(Capture.SENT, capturePeerId, batch[position + 4], batch, position + FrameCodec.HEADER_SIZE, size - FrameCodec.HEADER_SIZE);
+        messagesWritten++;
+        return size;
+    }
+
+    private static int StampSize(byte type) {
+        return type == ClockSync.TYPE_TIMED_MESSAGE || type == ClockSync.TYPE_TIMED_RELAY ? ClockSync.TIMESTAMP_SIZE : 0;
+    }
+
+    /**Returns the payload of a timestamped frame in one piece, for the capture.*/
+    private static byte[] Stamped(long nanos, byte[] payload, int length) {
+        byte[] stamped = new byte[ClockSync.TIMESTAMP_SIZE + length];
+        FrameCodec.WriteLong(stamped, 0, nanos);
+        System.arraycopy(payload, 0, stamped, ClockSync.TIMESTAMP_SIZE, length);
+        return stamped;
+    }
+
+    @SuppressWarnings("NonAtomicOperationOnVolatileField")//single writer thread
+    private void Write(byte[] bytes, int length) throws IOException {
+        bytesWritten += length;
+        writeCalls++;
+        boolean timed = metrics != null && metrics.Enabled();
+        long start = timed ? System.nanoTime() : 0;
+        out.write(bytes, 0, length);
+        if (timed) metrics.RecordWrite(length, System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,122 @@
+package com.eclipsegames.wifidirect;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**Keep-alive for every connection, driven by one shared timer thread instead of a thread per connection.
+ * Each session pings its peer every interval with a TYPE_PING frame holding the send time, and the peer echoes the payload
+ * back in a TYPE_PONG frame, followed by the times it received the ping and sent the pong on its own clock.
+ * Round trips are smoothed the way TCP does (RFC 6298), giving an RTT and a jitter estimate, and the four times of each
+ * exchange feed the session's ClockSync. A peer that only echoes, an older version, gives round trips only.
+ * Any frame from the peer counts as a sign of life. The peer is lost after max(timeout, interval + 4 * RTO) of silence,
+ * where RTO is the smoothed RTT plus 4 times its variation, so slow links get more slack than the configured minimum.*/
+final class KeepAlive {
+    static final int DEFAULT_INTERVAL_MILLIS = 1000, DEFAULT_TIMEOUT_MILLIS = 6000;
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "WifiDirectKeepAlive");
+        thread.setDaemon(true);
+        return thread;
+    });
+    static {TIMER.setRemoveOnCancelPolicy(true);}
+
+    private KeepAlive() {}
+
+    /**Sends a frame to the peer of a session. Called on the timer thread for pings, and on the reading thread for pongs.
+     * The payload is reused for the next ping or pong, so it must be copied or encoded before Send() returns.*/
+    interface Link {
+        void Send(byte type, byte[] payload);
+    }
+
+    /**One connection. Heard(), OnPing() and OnPong() are called by the thread reading from the peer.*/
+    static final class Session {
+        final ClockSync clock = new ClockSync();
+        private final Link link;
+        private final Runnable onLost;
+        private final long intervalNanos, timeoutNanos;
+        private volatile long lastHeard = System.nanoTime();
+        private volatile long smoothedNanos = -1, variationNanos, lastNanos = -1;//written by the reading thread only
+        private final byte[] ping = new byte[8];//timer thread only
+        private byte[] pong = new byte[24];//reading thread only, grows if the peer's pings are longer
+        private ScheduledFuture<?> task;
+
+        Session(Link link, Runnable onLost, int intervalMillis, int timeoutMillis) {
+            this.link = link;
+            this.onLost = onLost;
+            intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+
+        synchronized void Start() {
+            lastHeard = System.nanoTime();
+            if (task == null) task = TIMER.scheduleAtFixedRate(this::Tick, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**Stops pinging. Start() starts again, on the next connection of a resumed session.*/
+        synchronized void Stop() {
+            if (task != null) task.cancel(false);
+            task = null;
+        }
+
+        /**Any frame from the peer shows it is still there.*/
+        void Heard() {lastHeard = System.nanoTime();}
+
+        /**Echoes a ping back to the peer, with the time it arrived and the time the pong is sent.*/
+        void OnPing(ByteBuffer payload) {
+            long received = System.nanoTime();
+            int echo = payload.remaining();
+            if (pong.length != echo + 16) pong = new byte[echo + 16];
+            payload.get(pong, 0, echo);
+            FrameCodec.WriteLong(pong, echo, received);
+            FrameCodec.WriteLong(pong, echo + 8, System.nanoTime());
+            link.Send(FrameCodec.TYPE_PONG, pong);
+        }
+
+        /**Takes an RTT sample from one of our pings coming back, and a clock sample if the peer added its times.
+         * Returns the RTT sample in nanoseconds, or -1 if it was invalid.*/
+        @SuppressWarnings("NonAtomicOperationOnVolatileField")//single writer
+        long OnPong(ByteBuffer payload) {
+            long now = System.nanoTime();
+            if (payload.remaining() < 8) return -1;
+            long sent = payload.getLong(), sample = now - sent;
+            if (sample < 0) return -1;
+            if (payload.remaining() >= 16) clock.AddSample(sent, payload.getLong(), payload.getLong(), now);
+            lastNanos = sample;
+            if (smoothedNanos < 0) {
+                smoothedNanos = sample;
+                variationNanos = sample / 2;
+            } else {
+                variationNanos += (Math.abs(smoothedNanos - sample) - variationNanos) / 4;
+                smoothedNanos += (sample - smoothedNanos) / 8;
+            }
+            return sample;
+        }
+
+        /**Returns the smoothed round trip time, or -1 before the first pong.*/
+        float GetRoundTripMillis() {return smoothedNanos < 0 ? -1 : smoothedNanos / 1e6f;}
+
+        /**Returns the mean deviation of the round trip time, or -1 before the first pong.*/
+        float GetJitterMillis() {return smoothedNanos < 0 ? -1 : variationNanos / 1e6f;}
+
+        /**Returns the latest round trip sample, or -1 before the first pong.*/
+        float GetLastRoundTripMillis() {return lastNanos < 0 ? -1 : lastNanos / 1e6f;}
+
+        /**Returns how long the peer may be silent before it counts as lost.*/
+        long GetTimeoutNanos() {
+            long smoothed = smoothedNanos;
+            return smoothed < 0 ? timeoutNanos : Math.max(timeoutNanos, intervalNanos + 4 * (smoothed + 4 * variationNanos));
+        }
+
+        private void Tick() {
+            long now = System.nanoTime();
+            if (now - lastHeard > GetTimeoutNanos()) {
+                Stop();
+                onLost.run();
+                return;
+            }
+            FrameCodec.WriteLong(ping, 0, now);
+            link.Send(FrameCodec.TYPE_PING, ping);
+        }
+    }
+}
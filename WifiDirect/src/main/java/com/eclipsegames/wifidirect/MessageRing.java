@@ -0,0 +1,128 @@
+package com.eclipsegames.wifidirect;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Bounded lock-free ring of records, written by any number of threads and drained by one.
+ * A record is a 4 byte tag, a 4 byte length and the bytes, all big-endian, and is drained in exactly that layout, so a whole
+ * batch of messages can be handed over in one call. Producers reserve space with a CAS on the tail, copy their record in,
+ * then publish it by setting its slot in a separate array of 8 byte slots, which the consumer reads before the bytes.
+ * A record that would run past the end of the buffer leaves a padding slot instead and starts again at the front.*/
+final class MessageRing {
+    static final int RECORD_HEADER_SIZE = 8;
+    private static final int ALIGNMENT = 8;
+
+    private final byte[] buffer;
+    private final int mask;
+    private final AtomicIntegerArray published;//record size at its first slot once written, minus the size for padding, 0 when free
+    private final AtomicLong tail = new AtomicLong(), dropped = new AtomicLong();
+    private volatile long head;
+    private byte[] scratch;//consumer only
+
+    /**The capacity is rounded up to a power of two.*/
+    MessageRing(int capacity) {
+        int size = Math.max(64, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        buffer = new byte[size];
+        mask = size - 1;
+        published = new AtomicIntegerArray(size / ALIGNMENT);
+    }
+
+    int Capacity() {return buffer.length;}
+
+    /**Returns how many records didn't fit and were dropped.*/
+    long GetDropped() {return dropped.get();}
+
+    /**Copies the remaining bytes of the payload into the ring, moving its position to its limit.
+     * Returns false and drops the record if the ring is full.*/
+    boolean Offer(int tag, ByteBuffer payload) {
+        int length = payload.remaining();
+        int position = Reserve(length);
+        if (position < 0) return false;
+        payload.get(buffer, position + RECORD_HEADER_SIZE, length);
+        Publish(tag, position, length);
+        return true;
+    }
+
+    /**Same, with 8 bytes ahead of the payload in the record, e.g. a timestamp.*/
+    boolean Offer(int tag, long prefix, ByteBuffer payload) {
+        int length = payload.remaining();
+        int position = Reserve(8 + length);
+        if (position < 0) return false;
+        FrameCodec.WriteLong(buffer, position + RECORD_HEADER_SIZE, prefix);
+        payload.get(buffer, position + RECORD_HEADER_SIZE + 8, length);
+        Publish(tag, position, 8 + length);
+        return true;
+    }
+
+    boolean Offer(int tag, byte[] payload, int offset, int length) {
+        int position = Reserve(length);
+        if (position < 0) return false;
+        System.arraycopy(payload, offset, buffer, position + RECORD_HEADER_SIZE, length);
+        Publish(tag, position, length);
+        return true;
+    }
+
+    /**Returns where the record starts in the buffer, or -1 if it doesn't fit.*/
+    private int Reserve(int length) {
+        int size = RecordSize(length);
+        if (size > buffer.length || length < 0) {
+            dropped.incrementAndGet();
+            return -1;
+        }
+        long start;
+        int padding;
+        while (true) {
+            start = tail.get();
+            int position = (int) (start & mask);
+            padding = position + size > buffer.length ? buffer.length - position : 0;
+            if (start + padding + size - head > buffer.length) {
+                dropped.incrementAndGet();
+                return -1;
+            }
+            if (tail.compareAndSet(start, start + padding + size)) break;
+        }
+        if (padding > 0) {
+            published.lazySet((int) (start & mask) / ALIGNMENT, -padding);
+            start += padding;
+        }
+        return (int) (start & mask);
+    }
+
+    private void Publish(int tag, int position, int length) {
+        FrameCodec.WriteInt(buffer, position, tag);
+        FrameCodec.WriteInt(buffer, position + 4, length);
+        published.lazySet(position / ALIGNMENT, RecordSize(length));//orders the writes above before it
+    }
+
+    private static int RecordSize(int length) {return (RECORD_HEADER_SIZE + length + ALIGNMENT - 1) & -ALIGNMENT;}
+
+    /**Copies as many whole records as fit into dest, in the order they were reserved, and returns the number of bytes copied.
+     * Only one thread may drain.*/
+    int Drain(byte[] dest) {
+        long position = head;
+        int written = 0;
+        while (true) {
+            int index = (int) (position & mask), size = published.get(index / ALIGNMENT);
+            if (size == 0) break;//not written yet
+            if (size > 0) {
+                int record = RECORD_HEADER_SIZE + FrameCodec.ReadInt(buffer, index + 4);
+                if (written + record > dest.length) break;
+                System.arraycopy(buffer, index, dest, written, record);
+                written += record;
+            } else size = -size;
+            published.set(index / ALIGNMENT, 0);
+            position += size;
+        }
+        head = position;//frees the space for the producers
+        return written;
+    }
+
+    /**Returns every pending record in a new array, empty if there are none. Only one thread may drain.*/
+    byte[] Drain() {
+        if (scratch == null) scratch = new byte[buffer.length];
+        int length = Drain(scratch);
+        return length == 0 ? FrameCodec.EMPTY_PAYLOAD : Arrays.copyOf(scratch, length);
+    }
+}
@@ -0,0 +1,140 @@
+package com.eclipsegames.wifidirect;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**Transport counters and latency histograms of one WifiDirectManager, kept across connections.
+ * Reads and writes are recorded once per socket call rather than once per message, behind a single volatile read of the
+ * enabled flag, so with metrics off that read is all that is left on the hot path. Decode times are sampled, see
+ * DECODE_SAMPLE_MASK. The send queue depth isn't counted at all, the live queues are asked for their size when the stats
+ * are taken.*/
+final class Metrics {
+    static final int MESSAGES_IN = 0, BYTES_IN = 1, MESSAGES_OUT = 2, BYTES_OUT = 3, SEND_QUEUE_DEPTH = 4,
+        CONNECTS = 5, DISCONNECTS = 6, RECONNECTS = 7, TIMEOUTS = 8, SEND_QUEUE_OVERFLOWS = 9, COUNTER_COUNT = 10;
+    static final int DECODE = 0, WRITE = 1, ROUND_TRIP = 2, HISTOGRAM_COUNT = 3;
+    /**Values per histogram in GetStats(): count, min, mean, p50, p90, p99, p99.9 and max, in nanoseconds but the count.*/
+    static final int HISTOGRAM_STATS = 8;
+    static final int STATS_SIZE = COUNTER_COUNT + HISTOGRAM_COUNT * HISTOGRAM_STATS;
+    /**Only one read in DECODE_SAMPLE_MASK + 1 is timed, the two clock reads cost more than decoding a small read.*/
+    static final int DECODE_SAMPLE_MASK = 7;
+    private static final int STRIDE = 8;//one counter per 64 byte cache line, so the reading and writing threads don't share one
+
+    /**A send queue, asked for its depth when the stats are taken.*/
+    interface Queue {
+        int QueueDepth();
+    }
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT * STRIDE);
+    private final Histogram[] histograms = new Histogram[HISTOGRAM_COUNT];
+    private final Set<Queue> queues = ConcurrentHashMap.newKeySet();
+    private volatile boolean enabled = true;
+
+    Metrics() {for (int i = 0; i < HISTOGRAM_COUNT; i++) histograms[i] = new Histogram();}
+
+    boolean Enabled() {return enabled;}
+
+    /**Counters and histograms stop moving while disabled, and keep their values.*/
+    void SetEnabled(boolean enabled) {this.enabled = enabled;}
+
+    void Add(int counter, long delta) {if (enabled) counters.addAndGet(counter * STRIDE, delta);}
+
+    long Get(int counter) {return counters.get(counter * STRIDE);}
+
+    /**Records a value in nanoseconds. Negative values stand for no sample and are skipped.*/
+    void Record(int histogram, long nanos) {if (enabled && nanos >= 0) histograms[histogram].Record(nanos);}
+
+    /**One read from a socket, and the time it took to decode and deliver the frames it completed, or -1 if it wasn't timed.*/
+    void RecordRead(int bytes, int frames, long nanos) {
+        counters.addAndGet(BYTES_IN * STRIDE, bytes);
+        counters.addAndGet(MESSAGES_IN * STRIDE, frames);
+        if (nanos >= 0) histograms[DECODE].Record(nanos);
+    }
+
+    /**One write call to a socket and the time it blocked for.*/
+    void RecordWrite(long bytes, long nanos) {
+        counters.addAndGet(BYTES_OUT * STRIDE, bytes);
+        histograms[WRITE].Record(nanos);
+    }
+
+    void Register(Queue queue) {queues.add(queue);}
+
+    void Unregister(Queue queue) {queues.remove(queue);}
+
+    /**Returns the counters, with the current send queue depth at SEND_QUEUE_DEPTH, then HISTOGRAM_STATS values for every
+     * histogram. Taken while other threads record, so the values are close to but not exactly one instant.*/
+    long[] GetStats() {
+        long[] stats = new long[STATS_SIZE];
+        for (int i = 0; i < COUNTER_COUNT; i++) stats[i] = counters.get(i * STRIDE);
+        for (Queue queue : queues) stats[SEND_QUEUE_DEPTH] += queue.QueueDepth();
+        for (int i = 0; i < HISTOGRAM_COUNT; i++) histograms[i].Snapshot(stats, COUNTER_COUNT + i * HISTOGRAM_STATS);
+        return stats;
+    }
+
+    /**Clears every counter and histogram. Values recorded at the same time may be lost.*/
+    void Reset() {
+        for (int i = 0; i < COUNTER_COUNT; i++) counters.set(i * STRIDE, 0);
+        for (Histogram histogram : histograms) histogram.Reset();
+    }
+
+    /**Lock-free log-linear histogram in the style of HdrHistogram. Values below 128 get a bucket each, above that every
+     * power of two is split into 64 buckets, so a value is never off by more than 1/64 (1.6%) of itself, up to Long.MAX_VALUE,
+     * in 3712 buckets. Recording is one atomic increment plus the sum, min and max.*/
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 7, SUB_BUCKETS = 1 << SUB_BUCKET_BITS, HALF = SUB_BUCKETS / 2;
+        static final int BUCKET_COUNT = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF;
+        private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong sum = new AtomicLong(), min = new AtomicLong(Long.MAX_VALUE), max = new AtomicLong();
+
+        void Record(long value) {
+            if (value < 0) value = 0;
+            counts.incrementAndGet(Index(value));
+            sum.addAndGet(value);
+            if (value < min.get()) min.accumulateAndGet(value, Math::min);
+            if (value > max.get()) max.accumulateAndGet(value, Math::max);
+        }
+
+        static int Index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+            return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+        }
+
+        /**Returns the largest value that falls in the bucket.*/
+        static long HighestValue(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int shift = (index - SUB_BUCKETS) / HALF + 1, top = HALF + (index - SUB_BUCKETS) % HALF;
+            return ((long) (top + 1) << shift) - 1;
+        }
+
+        /**Writes count, min, mean, p50, p90, p99, p99.9 and max at dest[offset]. All 0 while empty.
+         * Buckets only grow between the two passes, so a percentile is found no later than the first pass counted it.*/
+        void Snapshot(long[] dest, int offset) {
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) count += counts.get(i);
+            if (count == 0) return;
+            long highest = max.get();
+            dest[offset] = count;
+            dest[offset + 1] = Math.min(min.get(), highest);
+            dest[offset + 2] = sum.get() / count;
+            long seen = 0;
+            int bucket = 0;
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                long target = Math.max(1, (long) Math.ceil(PERCENTILES[p] / 100 * count));
+                while (bucket < BUCKET_COUNT - 1 && seen + counts.get(bucket) < target) seen += counts.get(bucket++);
+                dest[offset + 3 + p] = Math.min(HighestValue(bucket), highest);
+            }
+            dest[offset + 7] = highest;
+        }
+
+        void Reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) counts.set(i, 0);
+            sum.set(0);
+            min.set(Long.MAX_VALUE);
+            max.set(0);
+        }
+    }
+}
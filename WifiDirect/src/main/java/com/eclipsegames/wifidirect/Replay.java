@@ -0,0 +1,206 @@
+package com.eclipsegames.wifidirect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**Feeds a Capture back into a group owner and clients over loopback, at the speed it was recorded, N times faster, or as
+ * fast as the transports take it, and measures the throughput and the latency of every message from its send call to its
+ * delivery. A capture from a client is played by one client and a group owner, one from a group owner by a group owner and
+ * a client per peer it talked to. Every message, relay and compressed message is sent again with SendMessage(), at its
+ * captured time, over the link and in the direction it was captured on. Keep-alives, acks and welcomes come from the
+ * transports themselves, channel fragments, state and file transfers are left out and counted as skipped.
+ * Only uses java.net and java.nio like the transports, so tests and benchmarks run it on a plain JVM.*/
+final class Replay {
+    /**As fast as the transports take it. Messages then mostly wait in the send queues, which is what the latency shows.*/
+    static final double MAX_SPEED = 0;
+
+    static final class Result {
+        /**Messages delivered, their bytes, and captured frames that weren't replayed.*/
+        long messages, bytes, skipped;
+        /**From the first send to the last delivery.*/
+        long elapsedNanos;
+        /**How far behind its captured time the latest message was sent, if the replay couldn't keep up.*/
+        long maxLateNanos;
+        final Metrics.Histogram latency = new Metrics.Histogram();
+
+        double MessagesPerSecond() {return elapsedNanos == 0 ? 0 : messages * 1e9 / elapsedNanos;}
+        double BytesPerSecond() {return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;}
+
+        /**count, min, mean, p50, p90, p99, p99.9 and max in nanoseconds, as a histogram in Metrics.GetStats().*/
+        long[] Latency() {
+            long[] stats = new long[Metrics.HISTOGRAM_STATS];
+            latency.Snapshot(stats, 0);
+            return stats;
+        }
+    }
+
+    private static final class Message {
+        private final long nanos;
+        private final int link;
+        private final boolean toOwner;
+        private final byte[] payload;
+        private Message(long nanos, int link, boolean toOwner, byte[] payload) {this.nanos = nanos; this.link = link; this.toOwner = toOwner; this.payload = payload;}
+    }
+
+    /**One way of one link. TCP keeps the order, so the nth delivery is the nth send.*/
+    private static final class Direction {
+        private final AtomicLongArray sentAt;
+        private final AtomicInteger delivered = new AtomicInteger();
+        private int sent;
+        private Direction(int count) {sentAt = new AtomicLongArray(Math.max(count, 1));}
+    }
+
+    private final List<Message> messages = new ArrayList<>();
+    private final Map<Integer, Integer> links = new TreeMap<>();//captured peer ID to link index
+    private final Result result = new Result();
+    private final AtomicLong delivered = new AtomicLong(), deliveredBytes = new AtomicLong(), lastDelivery = new AtomicLong();
+    private Direction[] toOwner, toClient;
+    private final Map<Integer, Integer> ownerLinks = new ConcurrentHashMap<>();//replayed peer ID to link index
+
+    private Replay() {}
+
+    /**Replays the capture, speed times as fast as it was recorded or at MAX_SPEED, and waits up to timeoutMillis after the
+     * last send for everything to be delivered. Returns what was delivered by then.*/
+    static Result Run(File capture, double speed, long timeoutMillis) throws IOException, InterruptedException {
+        Replay replay = new Replay();
+        replay.Load(capture);
+        return replay.Play(speed, timeoutMillis);
+    }
+
+    /**Reads the messages of the capture, decompressed and without relay headers, and works out the links.*/
+    private void Load(File capture) throws IOException {
+        List<long[]> records = new ArrayList<>();//nanos, peer ID, direction of each message
+        List<byte[]> payloads = new ArrayList<>();
+        boolean capturedOwner = false;
+        Compression.Decoder decompressor = new Compression.Decoder(Integer.MAX_VALUE - 8);
+        try (Capture.Reader reader = new Capture.Reader(capture)) {
+            while (reader.Next()) {
+                byte type = reader.GetType();
+                ByteBuffer payload = reader.GetPayload();
+                if (type == FrameCodec.TYPE_RELAY || type == FrameCodec.TYPE_RELAYED || type == ClockSync.TYPE_TIMED_RELAY || type == ClockSync.TYPE_TIMED_RELAYED) {
+                    int header = 4 + ((type & FrameCodec.FLAG_TIMESTAMPED) != 0 ? ClockSync.TIMESTAMP_SIZE : 0);
+                    if (payload.remaining() < header) continue;
+                    payload.position(payload.position() + header);
+                } else if (type == ClockSync.TYPE_TIMED_MESSAGE || type == ClockSync.TYPE_TIMED_COMPRESSED_MESSAGE) {//stamped again if the replay asks
+                    if (payload.remaining() < ClockSync.TIMESTAMP_SIZE) continue;
+                    payload.position(payload.position() + ClockSync.TIMESTAMP_SIZE);
+                    type &= ~FrameCodec.FLAG_TIMESTAMPED;
+                } else if (type != FrameCodec.TYPE_MESSAGE && type != Compression.TYPE_COMPRESSED_MESSAGE) {
+                    result.skipped++;
+                    continue;
+                }
+                byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                if (type == Compression.TYPE_COMPRESSED_MESSAGE) {
+                    ByteBuffer message = decompressor.Decompress(bytes, 0, bytes.length);
+                    bytes = new byte[message.remaining()];
+                    message.get(bytes);
+                }
+                if (reader.GetPeerId() != SelectorServer.GROUP_OWNER_ID) capturedOwner = true;
+                records.add(new long[] {reader.GetNanos(), reader.GetPeerId(), reader.GetDirection()});
+                payloads.add(bytes);
+            }
+        }
+        for (long[] record : records) links.putIfAbsent((int) record[1], links.size());
+        int[] toOwnerCounts = new int[links.size()], toClientCounts = new int[links.size()];
+        for (int i = 0; i < records.size(); i++) {
+            long[] record = records.get(i);
+            boolean sent = record[2] == Capture.SENT;
+            Message message = new Message(record[0], links.get((int) record[1]), capturedOwner != sent, payloads.get(i));
+            messages.add(message);
+            if (message.toOwner) toOwnerCounts[message.link]++;
+            else toClientCounts[message.link]++;
+        }
+        toOwner = new Direction[links.size()];
+        toClient = new Direction[links.size()];
+        for (int i = 0; i < links.size(); i++) {
+            toOwner[i] = new Direction(toOwnerCounts[i]);
+            toClient[i] = new Direction(toClientCounts[i]);
+        }
+    }
+
+    private Result Play(double speed, long timeoutMillis) throws InterruptedException {
+        List<Transport> transports = new ArrayList<>();
+        try {
+            ServerTransport owner = new ServerTransport(new Transport.Settings(0), new Events(-1));
+            transports.add(owner);
+            owner.start();
+            while (owner.GetPort() < 0) Thread.sleep(1);
+            ClientTransport[] clients = new ClientTransport[links.size()];
+            int[] peerIds = new int[links.size()];
+            for (int link = 0; link < clients.length; link++) {
+                clients[link] = new ClientTransport("127.0.0.1", new Transport.Settings(owner.GetPort()), new Events(link));
+                transports.add(clients[link]);
+                clients[link].start();
+                while (clients[link].GetLocalPeerId() < 0) Thread.sleep(1);
+                peerIds[link] = clients[link].GetLocalPeerId();
+                ownerLinks.put(peerIds[link], link);
+            }
+            if (messages.isEmpty()) return result;
+
+            long start = System.nanoTime(), first = messages.get(0).nanos;
+            for (Message message : messages) {
+                if (speed > 0) {
+                    long due = start + (long) ((message.nanos - first) / speed);
+                    for (long wait; (wait = due - System.nanoTime()) > 0;) LockSupport.parkNanos(wait);
+                    result.maxLateNanos = Math.max(result.maxLateNanos, System.nanoTime() - due);
+                }
+                Direction direction = message.toOwner ? toOwner[message.link] : toClient[message.link];
+                direction.sentAt.set(direction.sent++, System.nanoTime());
+                if (message.toOwner) clients[message.link].SendMessage(message.payload);
+                else owner.SendMessage(peerIds[message.link], message.payload);
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (delivered.get() < messages.size() && System.nanoTime() - deadline < 0) Thread.sleep(1);
+            result.messages = delivered.get();
+            result.bytes = deliveredBytes.get();
+            result.elapsedNanos = Math.max(0, lastDelivery.get() - start);
+            return result;
+        } finally {
+            for (Transport transport : transports) transport.CloseThread();
+            for (Transport transport : transports) transport.join(5000);
+        }
+    }
+
+    private void Delivered(Direction direction, ByteBuffer payload) {
+        long now = System.nanoTime();
+        int index = direction.delivered.getAndIncrement();
+        if (index < direction.sentAt.length()) result.latency.Record(now - direction.sentAt.get(index));
+        deliveredBytes.addAndGet(payload.remaining());
+        lastDelivery.accumulateAndGet(now, Math::max);
+        delivered.incrementAndGet();
+    }
+
+    /**Events of the group owner, link -1, or of the client of a link.*/
+    private final class Events implements Transport.Listener {
+        private final int link;
+        private Events(int link) {this.link = link;}
+
+        @Override public void OnMessage(int peerId, ByteBuffer payload) {
+            if (link >= 0) Delivered(toClient[link], payload);
+            else {
+                Integer from = ownerLinks.get(peerId);
+                if (from != null) Delivered(toOwner[from], payload);
+            }
+        }
+        @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {OnMessage(peerId, payload);}
+        @Override public void OnPeerConnected(int peerId) {}
+        @Override public void OnPeerDisconnected(int peerId) {}
+        @Override public void OnConnectionStatusChanged(int status) {}
+        @Override public void OnError(int error) {}
+        @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {}
+        @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {}
+        @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {}
+    }
+}
@@ -0,0 +1,673 @@
+package com.eclipsegames.wifidirect;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Non-blocking group owner. A single event loop accepts, reads and writes for every client of the group through one Selector,
+ * instead of keeping a thread or more per connection. Peers are given increasing IDs starting at 1, since 0 is the group owner.
+ * Frames sent to several peers are encoded once into a shared read-only buffer, and every peer writes its own duplicate of it,
+ * so each peer keeps its own write progress and a slow peer never holds up the others. A peer that falls so far behind that
+ * its queue grows past the send queue limit is disconnected rather than left to use up the memory.
+ * Logical channel messages are only cut into fragments when the socket can take them, so a waiting bulk transfer never
+ * fills the queue ahead of a more urgent channel.
+ * With sessions enabled, a peer whose connection is lost is kept with everything queued for it for the resume window,
+ * and a client that reconnects with its session ID gets the same peer back, see Session. Only the first frame of a new
+ * connection tells whether it is a new peer, so peers are announced once it arrives rather than on accept.
+ * Messages are compressed for peers whose first frame said they can decode the codec, see Compression, once per broadcast,
+ * and stamped with the time they were queued for peers whose first frame asked for it, see ClockSync. A stamped relay keeps
+ * its stamp, translated to the group owner's clock, for the peers that asked.*/
+final class SelectorServer implements Metrics.Queue {
+    static final int GROUP_OWNER_ID = 0, ALL_PEERS = FrameCodec.ALL_PEERS;
+    static final int DEFAULT_SEND_QUEUE_LIMIT = 8 * 1024 * 1024;
+    private static final int GATHER_SIZE = 64, UNASSIGNED = -1;
+
+    /**Called on the event loop thread.*/
+    interface Listener {
+        void OnPeerConnected(int peerId);
+        void OnPeerDisconnected(int peerId);
+        /**A lost connection came back within the resume window. The peer was never reported disconnected.*/
+        void OnPeerResumed(int peerId);
+        /**The payload is a reused read-only view that is only valid until the call returns.*/
+        void OnFrame(int peerId, byte type, ByteBuffer payload);
+        /**A message stamped by the peer, decompressed and without its timestamp, which is on the peer's clock.*/
+        void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos);
+        /**The peer is disconnected after an error.*/
+        void OnError(int peerId, IOException e);
+    }
+
+    /**Translates a peer's timestamp to the group owner's clock, or returns ClockSync.UNKNOWN. Called on the event loop.*/
+    interface Clock {
+        long ToLocalNanos(int peerId, long remoteNanos);
+    }
+
+    /**A connected client, or a suspended one while sessions are enabled. Its socket, key and decoder are null while it is
+     * suspended, and belong to the newest connection once it resumes.*/
+    private final class Peer implements FrameCodec.FrameHandler, ChannelMux.Assembler.Handler {
+        private int id;//UNASSIGNED until the first frame of a connection arrives, with sessions enabled
+        private volatile SocketChannel channel;
+        private SelectionKey key;
+        private FrameCodec.Decoder decoder;
+        private Session<ByteBuffer> session;
+        private long sessionId, suspendedAt;
+        private Peer resumed;//the peer this connection resumed, which its frames go to
+        private volatile int codec = Compression.NONE;//what messages to this peer are compressed with
+        private volatile boolean timestamps;//messages to this peer are stamped
+        private ArrayDeque<ByteBuffer> replay = new ArrayDeque<>();//written before outbound after a resume, event loop only
+        private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();//encoded frames, any thread
+        private final AtomicLong outboundBytes = new AtomicLong();
+        private final AtomicBoolean overflowed = new AtomicBoolean();
+        private final FrameCodec.Slot[] control = {new FrameCodec.Slot(), new FrameCodec.Slot()};//ping, pong
+        private final ByteBuffer[] controlFrames = new ByteBuffer[2];//what each slot was last taken into, event loop only
+        private final ChannelMux.Scheduler scheduler = new ChannelMux.Scheduler(channels);
+        private final ChannelMux.Assembler assembler = new ChannelMux.Assembler(maxFrameSize);
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final ByteBuffer[] gather = new ByteBuffer[GATHER_SIZE];//frames being written, event loop only
+        private int gathered;
+
+        private Peer(int id, SocketChannel channel) throws IOException {
+            this.id = id;
+            this.channel = channel;
+            decoder = new FrameCodec.Decoder(pool, maxFrameSize);
+            decoder.SetMetrics(metrics);
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+            for (int i = 0; i < controlFrames.length; i++) {
+                controlFrames[i] = ByteBuffer.wrap(new byte[FrameCodec.HEADER_SIZE + FrameCodec.Slot.CAPACITY]);
+                controlFrames[i].limit(0);
+            }
+        }
+
+        @Override public void OnFrame(byte type, byte[] buffer, int offset, int length) throws ProtocolException {
+            if (resumed != null) {
+                resumed.OnFrame(type, buffer, offset, length);
+                return;
+            }
+            if (capture != null) capture.Record(Capture.RECEIVED, id, type, buffer, offset, length);
+            if (type == FrameCodec.TYPE_RESUME && length > 20) codec = compression.Choose(buffer[offset + 20]);//the client's hello
+            if (type == FrameCodec.TYPE_RESUME && length > 21) timestamps = (buffer[offset + 21] & ClockSync.WANTS_TIMESTAMPS) != 0;
+            if (id == UNASSIGNED && Identify(this, type, buffer, offset, length)) return;
+            if (session != null) {
+                if (type == FrameCodec.TYPE_ACK) {
+                    if (length >= 8) session.Acked(FrameCodec.ReadLong(buffer, offset));
+                    return;
+                }
+                if (Session.IsNumbered(type) && session.Received(length)) Enqueue(this, ByteBuffer.wrap(FrameCodec.Encode(FrameCodec.TYPE_ACK, session.Ack())));
+            }
+            if (type == FrameCodec.TYPE_FRAGMENT) {
+                assembler.OnFragment(buffer, offset, length, this);
+                return;
+            }
+            if (type == Compression.TYPE_COMPRESSED_MESSAGE) {
+                listener.OnFrame(id, FrameCodec.TYPE_MESSAGE, decompressor.Decompress(buffer, offset, length));
+                return;
+            }
+            if (type == ClockSync.TYPE_TIMED_MESSAGE || type == ClockSync.TYPE_TIMED_COMPRESSED_MESSAGE) {
+                if (length < ClockSync.TIMESTAMP_SIZE) return;
+                int start = offset + ClockSync.TIMESTAMP_SIZE, size = length - ClockSync.TIMESTAMP_SIZE;
+                listener.OnTimedMessage(id, type == ClockSync.TYPE_TIMED_MESSAGE ? decoder.PayloadView(start, size) : decompressor.Decompress(buffer, start, size),
+                    FrameCodec.ReadLong(buffer, offset));
+                return;
+            }
+            if (type != FrameCodec.TYPE_RELAY && type != ClockSync.TYPE_TIMED_RELAY) {
+                listener.OnFrame(id, type, decoder.PayloadView(offset, length));
+                return;
+            }
+            int stamp = type == ClockSync.TYPE_TIMED_RELAY ? ClockSync.TIMESTAMP_SIZE : 0;
+            if (length < stamp + 4) return;
+            int target = FrameCodec.ReadInt(buffer, offset + stamp), start = offset + stamp + 4, size = length - stamp - 4;
+            if (target == ALL_PEERS || target == GROUP_OWNER_ID) {//the group owner is one of the other devices
+                if (stamp == 0) listener.OnFrame(id, FrameCodec.TYPE_MESSAGE, decoder.PayloadView(start, size));
+                else listener.OnTimedMessage(id, decoder.PayloadView(start, size), FrameCodec.ReadLong(buffer, offset));
+            }
+            if (!relayEnabled || target == GROUP_OWNER_ID) return;
+            long sentAt = stamp == 0 || clock == null ? ClockSync.UNKNOWN : clock.ToLocalNanos(id, FrameCodec.ReadLong(buffer, offset));
+            if (target != ALL_PEERS) {
+                Peer peer = peers.get(target);
+                if (peer != null) Enqueue(peer, RelayedFrame(id, buffer, start, size, peer.timestamps ? sentAt : ClockSync.UNKNOWN));
+                return;
+            }
+            ByteBuffer[] frames = new ByteBuffer[2];//indexed by stamped, encoded on first use
+            for (Peer peer : peers.values()) {
+                if (peer.id == id) continue;
+                int variant = peer.timestamps && sentAt != ClockSync.UNKNOWN ? 1 : 0;
+                if (frames[variant] == null) frames[variant] = RelayedFrame(id, buffer, start, size, variant == 1 ? sentAt : ClockSync.UNKNOWN);
+                Enqueue(peer, frames[variant].duplicate());
+            }
+        }
+
+        @Override public void OnMessage(int channel, byte[] buffer, int offset, int length) {
+            listener.OnFrame(id, FrameCodec.TYPE_MESSAGE, ByteBuffer.wrap(buffer, offset, length).slice().asReadOnlyBuffer());
+        }
+
+        /**Writes replayed frames, then queued frames, then channel fragments, with gathering writes until they are all empty
+         * or the socket is full. Returns true once everything has been written.*/
+        @SuppressWarnings("NonAtomicOperationOnVolatileField")//only the event loop writes the counters
+        private boolean Write() throws IOException {
+            while (true) {
+                for (int i = 0; i < control.length && gathered < GATHER_SIZE && replay.isEmpty(); i++) {//the resume answer goes first
+                    ByteBuffer frame = controlFrames[i];
+                    if (frame.hasRemaining()) continue;//still being written, the slot waits for the next round
+                    int size = control[i].Take(frame.array(), 0);
+                    if (size == 0) continue;
+                    frame.position(0);
+                    frame.limit(size);
+                    if (capture != null) capture.Record(Capture.SENT, id, frame);
+                    gather[gathered++] = frame;
+                }
+                for (ByteBuffer frame; gathered < GATHER_SIZE && (frame = replay.isEmpty() ? Poll() : replay.poll()) != null;) {
+                    if (session != null && Session.IsNumbered(frame.get(frame.position() + 4))) session.Sent(frame);
+                    if (capture != null) capture.Record(Capture.SENT, id, frame);
+                    gather[gathered++] = frame;
+                }
+                for (byte[] fragment; gathered < GATHER_SIZE && (fragment = scheduler.NextFragment()) != null;) {
+                    ByteBuffer frame = ByteBuffer.wrap(fragment);
+                    if (session != null) session.Sent(frame);
+                    if (capture != null) capture.Record(Capture.SENT, id, frame);
+                    gather[gathered++] = frame;
+                }
+                if (gathered == 0) return true;
+                boolean timed = metrics != null && metrics.Enabled();
+                long start = timed ? System.nanoTime() : 0;
+                long written = channel.write(gather, 0, gathered);
+                bytesWritten += written;
+                writeCalls++;
+                int done = 0;
+                while (done < gathered && !gather[done].hasRemaining()) done++;
+                messagesWritten += done;
+                if (timed) {
+                    metrics.RecordWrite(written, System.nanoTime() - start);
+                    metrics.Add(Metrics.MESSAGES_OUT, done);
+                }
+                System.arraycopy(gather, done, gather, 0, gathered - done);
+                for (int i = gathered - done; i < gathered; i++) gather[i] = null;
+                gathered -= done;
+                if (gathered > 0) return false;//socket send buffer is full
+            }
+        }
+
+        private ByteBuffer Poll() {
+            ByteBuffer frame = outbound.poll();
+            if (frame != null) outboundBytes.addAndGet(-frame.remaining());
+            return frame;
+        }
+    }
+
+    private final int maxFrameSize;
+    private final BufferPool pool;
+    private final Listener listener;
+    private final ChannelMux.Config channels;
+    private final Compression.Decoder decompressor;//event loop only
+    private Compression compression = new Compression(Compression.NONE, 0);
+    private Clock clock;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Map<Integer, Peer> peers = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Peer> writeRequests = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Integer> disconnectRequests = new ConcurrentLinkedQueue<>(), lostRequests = new ConcurrentLinkedQueue<>();
+    private final List<Peer> unassigned = new ArrayList<>();//connections waiting for their first frame, event loop only
+    private final ArrayDeque<Peer> suspended = new ArrayDeque<>();//in the order they were suspended, so the oldest expires first
+    private int nextPeerId = GROUP_OWNER_ID + 1;
+    private long resumeWindowNanos;
+    private int replayLimit;
+    private volatile boolean running = true, tcpNoDelay = true, flushRequested, urgent, relayEnabled;
+    private volatile long flushIntervalNanos;
+    private volatile long sendQueueLimit = DEFAULT_SEND_QUEUE_LIMIT;
+    private long batchDeadline = -1;
+    private Metrics metrics;
+    private Capture capture;
+    private volatile long messagesWritten, bytesWritten, writeCalls;
+
+    /**Binds the server socket. Port 0 picks any free port, see GetPort().*/
+    SelectorServer(int port, int maxFrameSize, BufferPool pool, Listener listener) throws IOException {
+        this(port, maxFrameSize, pool, new ChannelMux.Config(), listener);
+    }
+
+    SelectorServer(int port, int maxFrameSize, BufferPool pool, ChannelMux.Config channels, Listener listener) throws IOException {
+        this.channels = channels;
+        this.maxFrameSize = maxFrameSize;
+        this.pool = pool;
+        this.listener = listener;
+        decompressor = new Compression.Decoder(maxFrameSize);
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    int GetPort() {return serverChannel.socket().getLocalPort();}
+
+    int GetPeerCount() {return peers.size();}
+
+    /**Returns the remote address of a peer, or null if there is no such peer or it is suspended.*/
+    InetAddress GetPeerAddress(int peerId) {
+        Peer peer = peers.get(peerId);
+        SocketChannel channel = peer == null ? null : peer.channel;
+        return channel == null ? null : channel.socket().getInetAddress();
+    }
+
+    /**Returns the ID of a peer's session, for its welcome frame, or 0 without sessions.*/
+    long GetSessionId(int peerId) {
+        Peer peer = peers.get(peerId);
+        return peer == null ? 0 : peer.sessionId;
+    }
+
+    /**Keeps lost peers for resumeWindowMillis, with up to replayLimit bytes of unacked frames each. 0 disables sessions.
+     * Call before Run().*/
+    void SetSessions(int resumeWindowMillis, int replayLimit) {
+        resumeWindowNanos = resumeWindowMillis * 1_000_000L;
+        this.replayLimit = replayLimit;
+    }
+
+    /**Lets stamped relays keep their stamp, see TYPE_TIMED_RELAYED. Without it they are forwarded unstamped. Call before Run().*/
+    void SetClock(Clock clock) {this.clock = clock;}
+
+    /**Compresses messages for the peers that can decode the codec. Call before Run().*/
+    void SetCompression(Compression compression) {this.compression = compression;}
+
+    void SetTcpNoDelay(boolean noDelay) {tcpNoDelay = noDelay;}
+
+    /**When enabled, relay frames from a client are forwarded to their target peer, or to every other peer.
+     * Relay frames meant for everyone are delivered to the listener either way.*/
+    void SetRelayEnabled(boolean enabled) {relayEnabled = enabled;}
+
+    /**Same meaning as FrameWriter.SetFlushInterval(), pings, pongs and acks included. Batched intervals are rounded up to
+     * whole milliseconds.*/
+    void SetFlushInterval(int micros) {
+        flushIntervalNanos = micros * 1000L;
+        selector.wakeup();
+    }
+
+    /**Disconnects a peer whose queued frames would take more than bytes, counted in Metrics.SEND_QUEUE_OVERFLOWS.
+     * Channel messages aren't counted until they are cut into fragments. 0 never disconnects.*/
+    void SetSendQueueLimit(int bytes) {sendQueueLimit = bytes;}
+
+    /**Writes everything queued so far. Only needed with FrameWriter.FLUSH_MANUAL.*/
+    void Flush() {
+        flushRequested = true;
+        selector.wakeup();
+    }
+
+    /**Records every read and write, and registers the outbound queues for their depth while running. Call before Run().*/
+    void SetMetrics(Metrics metrics) {this.metrics = metrics;}
+
+    /**Records every frame read and written. Call before Run().*/
+    void SetCapture(Capture capture) {this.capture = capture;}
+
+    /**Walks every peer's queue, only meant for the occasional stats snapshot.*/
+    @Override public int QueueDepth() {
+        int depth = 0;
+        for (Peer peer : peers.values()) depth += peer.outbound.size();
+        return depth;
+    }
+
+    /**Returns {messages written, bytes written, write calls} summed over every peer.*/
+    long[] GetCounters() {return new long[] {messagesWritten, bytesWritten, writeCalls};}
+
+    /**Queues a frame for one peer. Safe to call from any thread. Returns false if there is no such peer.
+     * Control frames for a suspended peer are dropped, they would be stale by the time it resumes.*/
+    boolean Send(int peerId, byte type, byte[] payload) {
+        Peer peer = peers.get(peerId);
+        if (peer == null) return false;
+        if (peer.channel == null && !Session.IsNumbered(type)) return true;
+        boolean stamped = peer.timestamps;
+        byte[] frame = type != FrameCodec.TYPE_MESSAGE ? FrameCodec.Encode(type, payload)
+            : EncodeMessage(payload, peer.codec != Compression.NONE, stamped, stamped ? System.nanoTime() : 0);
+        Enqueue(peer, ByteBuffer.wrap(frame));
+        return true;
+    }
+
+    /**Queues a TYPE_PING or TYPE_PONG for one peer, copied into a slot the peer keeps for it, so nothing is allocated
+     * per ping. Replaces one of the same type that wasn't written yet. Safe to call from any thread. Returns false if
+     * there is no such peer.*/
+    boolean SendControl(int peerId, byte type, byte[] payload) {
+        Peer peer = peers.get(peerId);
+        if (peer == null) return false;
+        if (peer.channel == null) return true;
+        if (!peer.control[type == FrameCodec.TYPE_PING ? 0 : 1].Offer(type, payload)) return Send(peerId, type, payload);
+        ScheduleWrite(peer);
+        urgent = true;//only once the peer is in writeRequests
+        selector.wakeup();
+        return true;
+    }
+
+    /**Queues a copy of a message on a logical channel for one peer. Safe to call from any thread. Returns false if there is
+     * no such peer.*/
+    boolean SendOnChannel(int peerId, int channel, byte[] message) {
+        Peer peer = peers.get(peerId);
+        if (peer == null) return false;
+        peer.scheduler.Offer(channel, message.clone());
+        ScheduleWrite(peer);
+        return true;
+    }
+
+    /**Queues a frame for every peer except excludedPeerId. The frame is encoded once and shared by every peer, and a
+     * message is encoded once for all the peers that take it the same way: compressed or not, stamped or not, with one
+     * timestamp for all of them. Safe to call from any thread. Returns the number of peers it was queued for.*/
+    int Broadcast(byte type, byte[] payload, int excludedPeerId) {
+        if (type != FrameCodec.TYPE_MESSAGE) return FanOut(ReadOnlyFrame(FrameCodec.Encode(type, payload)), excludedPeerId);
+        ByteBuffer[] frames = new ByteBuffer[4];//indexed by compressed + 2 * stamped, encoded on first use
+        long sentAt = System.nanoTime();
+        int count = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.id == excludedPeerId) continue;
+            boolean compressed = peer.codec != Compression.NONE, stamped = peer.timestamps;
+            int variant = (compressed ? 1 : 0) + (stamped ? 2 : 0);
+            if (frames[variant] == null) frames[variant] = ReadOnlyFrame(EncodeMessage(payload, compressed, stamped, sentAt));
+            Enqueue(peer, frames[variant].duplicate());
+            count++;
+        }
+        return count;
+    }
+
+    /**Returns a message frame, compressed if it shrinks, and stamped with sentAt, ahead of the compressed part.*/
+    private byte[] EncodeMessage(byte[] message, boolean compressed, boolean stamped, long sentAt) {
+        int reserved = stamped ? ClockSync.TIMESTAMP_SIZE : 0;
+        byte[] frame = compressed ? compression.EncodeFrame(message, reserved) : null;
+        if (frame == null) frame = FrameCodec.Encode(FrameCodec.TYPE_MESSAGE, reserved, message);
+        if (stamped) {
+            frame[4] |= FrameCodec.FLAG_TIMESTAMPED;
+            FrameCodec.WriteLong(frame, FrameCodec.HEADER_SIZE, sentAt);
+        }
+        return frame;
+    }
+
+    private static ByteBuffer ReadOnlyFrame(byte[] frame) {return ByteBuffer.wrap(frame).asReadOnlyBuffer();}
+
+    /**Returns a relayed message from source, stamped with sentAt on our clock unless it is UNKNOWN.*/
+    private static ByteBuffer RelayedFrame(int source, byte[] message, int offset, int length, long sentAt) {
+        if (sentAt == ClockSync.UNKNOWN) return ReadOnlyFrame(FrameCodec.EncodeWithPeer(FrameCodec.TYPE_RELAYED, source, message, offset, length));
+        byte[] frame = new byte[FrameCodec.HEADER_SIZE + ClockSync.TIMESTAMP_SIZE + 4 + length];
+        FrameCodec.WriteHeader(frame, 0, ClockSync.TYPE_TIMED_RELAYED, ClockSync.TIMESTAMP_SIZE + 4 + length);
+        FrameCodec.WriteLong(frame, FrameCodec.HEADER_SIZE, sentAt);
+        FrameCodec.WriteInt(frame, FrameCodec.HEADER_SIZE + ClockSync.TIMESTAMP_SIZE, source);
+        System.arraycopy(message, offset, frame, FrameCodec.HEADER_SIZE + ClockSync.TIMESTAMP_SIZE + 4, length);
+        return ReadOnlyFrame(frame);
+    }
+
+    /**Queues an independent view of the same frame for every peer but one.*/
+    private int FanOut(ByteBuffer frame, int excludedPeerId) {
+        int count = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.id == excludedPeerId) continue;
+            Enqueue(peer, frame.duplicate());
+            count++;
+        }
+        return count;
+    }
+
+    /**Closes the connection to one peer on the event loop. Safe to call from any thread.*/
+    void Disconnect(int peerId) {
+        disconnectRequests.offer(peerId);
+        selector.wakeup();
+    }
+
+    /**Closes the connection to a peer that stopped answering. With sessions the peer is suspended and may still resume,
+     * otherwise it is disconnected. Safe to call from any thread.*/
+    void Lose(int peerId) {
+        lostRequests.offer(peerId);
+        selector.wakeup();
+    }
+
+    /**Stops the event loop, which closes every connection.*/
+    void Close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**Runs the event loop on the calling thread until Close() is called or the selector fails.*/
+    void Run() throws IOException {
+        if (metrics != null) metrics.Register(this);
+        try {
+            while (running) {
+                long deadline = NextDeadline();
+                if (deadline == -1) selector.select();
+                else selector.select(Math.max(1, NanosToMillis(deadline - System.nanoTime())));
+                if (!running) break;
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) Accept();
+                    else {
+                        Peer peer = (Peer) key.attachment();
+                        if (key.isReadable()) Read(peer);
+                        if (key.isValid() && key.isWritable()) Flush(peer);
+                    }
+                }
+                for (Integer peerId; (peerId = disconnectRequests.poll()) != null;) {
+                    Peer peer = peers.get(peerId);
+                    if (peer != null) Disconnect(peer);
+                }
+                for (Integer peerId; (peerId = lostRequests.poll()) != null;) {
+                    Peer peer = peers.get(peerId);
+                    if (peer != null) Suspend(peer);
+                }
+                long now = System.nanoTime();
+                for (Peer peer; (peer = suspended.peekFirst()) != null && now - (peer.suspendedAt + resumeWindowNanos) >= 0;) Disconnect(peer);
+                FlushRequested(now);
+            }
+        } finally {
+            for (Peer peer : peers.values()) Disconnect(peer);
+            for (Peer peer : new ArrayList<>(unassigned)) Disconnect(peer);
+            try {serverChannel.close();} catch (IOException ignored) {/*Already closed*/}
+            try {selector.close();} catch (IOException ignored) {/*Already closed*/}
+            if (metrics != null) metrics.Unregister(this);
+        }
+    }
+
+    /**Returns when the event loop has to wake up by itself, for a batched flush or an expiring session, or -1 if never.*/
+    private long NextDeadline() {
+        Peer oldest = suspended.peekFirst();
+        if (oldest == null) return batchDeadline;
+        long expiry = oldest.suspendedAt + resumeWindowNanos;
+        return batchDeadline == -1 || expiry - batchDeadline < 0 ? expiry : batchDeadline;
+    }
+
+    private static long NanosToMillis(long nanos) {return Math.max(0, (nanos + 999_999) / 1_000_000);}
+
+    private void Enqueue(Peer peer, ByteBuffer frame) {
+        boolean urgent = FrameCodec.IsUrgent(frame.get(frame.position() + 4));//before the event loop can start writing it
+        int size = frame.remaining();
+        long limit = sendQueueLimit;
+        if (limit > 0 && peer.outboundBytes.addAndGet(size) > limit) {
+            peer.outboundBytes.addAndGet(-size);
+            Overflowed(peer);
+            return;
+        }
+        if (limit <= 0) peer.outboundBytes.addAndGet(size);
+        peer.outbound.offer(frame);
+        ScheduleWrite(peer);
+        if (urgent) {//only once the peer is in writeRequests
+            this.urgent = true;
+            selector.wakeup();
+        }
+    }
+
+    /**Drops the frame and disconnects the peer, which can't keep up. Its queue is freed on the event loop.*/
+    private void Overflowed(Peer peer) {
+        if (!peer.overflowed.compareAndSet(false, true)) return;
+        if (metrics != null) metrics.Add(Metrics.SEND_QUEUE_OVERFLOWS, 1);
+        Disconnect(peer.id);
+    }
+
+    private void ScheduleWrite(Peer peer) {
+        if (!peer.writeScheduled.compareAndSet(false, true)) return;//already waiting for the event loop
+        writeRequests.offer(peer);
+        if (flushIntervalNanos >= 0) selector.wakeup();
+    }
+
+    /**Writes for every peer that queued frames, following the flush policy.*/
+    private void FlushRequested(long now) {
+        long interval = flushIntervalNanos;
+        if (writeRequests.isEmpty()) return;
+        boolean urgent = this.urgent;
+        if (interval < 0 && !flushRequested && !urgent) return;
+        if (interval > 0 && !urgent) {
+            if (batchDeadline == -1) batchDeadline = now + interval;
+            if (now - batchDeadline < 0) return;
+        }
+        batchDeadline = -1;
+        flushRequested = false;
+        this.urgent = false;//before polling, so one queued from now on stays for the next pass
+        for (Peer peer; (peer = writeRequests.poll()) != null;) {
+            peer.writeScheduled.set(false);
+            Flush(peer);
+        }
+    }
+
+    private void Accept() {
+        SocketChannel channel = null;
+        try {
+            channel = serverChannel.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(tcpNoDelay);
+            if (resumeWindowNanos > 0) {
+                unassigned.add(new Peer(UNASSIGNED, channel));
+                return;
+            }
+            Peer peer = new Peer(nextPeerId++, channel);
+            peers.put(peer.id, peer);
+            listener.OnPeerConnected(peer.id);
+        } catch (IOException e) {
+            if (channel != null) try {channel.close();} catch (IOException ignored) {/*Already closed*/}
+            listener.OnError(GROUP_OWNER_ID, e);
+        }
+    }
+
+    private void Read(Peer peer) {
+        try {
+            if (!peer.decoder.ReadFrom(peer.channel, peer)) Disconnect(peer);
+        } catch (ProtocolException e) {
+            listener.OnError(peer.id, e);
+            Disconnect(peer);
+        } catch (IOException e) {Lost(peer, e);}
+    }
+
+    private void Flush(Peer peer) {
+        if (peer.channel == null || !peer.key.isValid()) return;
+        try {
+            int interest = peer.Write() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if (peer.key.interestOps() != interest) peer.key.interestOps(interest);
+        } catch (IOException e) {Lost(peer, e);}
+    }
+
+    /**The socket failed, which a session survives. Without one it is an error, unless the connection never became a peer.*/
+    private void Lost(Peer peer, IOException e) {
+        Peer target = peer.resumed != null ? peer.resumed : peer;
+        if (target.session != null) Suspend(target);
+        else {
+            if (target.id != UNASSIGNED) listener.OnError(target.id, e);
+            Disconnect(target);
+        }
+    }
+
+    /**Handles the first frame of a connection while sessions are enabled. A TYPE_RESUME frame naming a session that can
+     * resume moves the connection to its peer, anything else makes the connection a new peer.
+     * Returns true if the frame has been handled.*/
+    private boolean Identify(Peer connection, byte type, byte[] buffer, int offset, int length) {
+        unassigned.remove(connection);
+        if (type == FrameCodec.TYPE_RESUME && length >= 20) {
+            Peer peer = peers.get(FrameCodec.ReadInt(buffer, offset));
+            long sessionId = FrameCodec.ReadLong(buffer, offset + 4);
+            if (peer != null && sessionId != 0 && peer.sessionId == sessionId && Resume(peer, connection, FrameCodec.ReadLong(buffer, offset + 12)))
+                return true;
+        }
+        connection.id = nextPeerId++;
+        connection.session = new Session<>(replayLimit, ByteBuffer::limit);
+        do connection.sessionId = ThreadLocalRandom.current().nextLong();
+        while (connection.sessionId == 0);
+        peers.put(connection.id, connection);
+        listener.OnPeerConnected(connection.id);
+        return type == FrameCodec.TYPE_RESUME;
+    }
+
+    /**Gives a peer the socket of a new connection, then answers with the number of frames received from the client and
+     * writes again every frame after the client's count. Returns false if the frames it is missing were evicted.*/
+    private boolean Resume(Peer peer, Peer connection, long clientReceived) {
+        List<ByteBuffer> frames = peer.session.Resume(clientReceived);
+        if (frames == null) return false;
+        if (peer.channel != null) CloseSocket(peer, true);//the client noticed the loss before we did
+        suspended.remove(peer);
+        ArrayDeque<ByteBuffer> replay = new ArrayDeque<>();
+        replay.add(ByteBuffer.wrap(FrameCodec.Encode(FrameCodec.TYPE_RESUME, Session.CountPayload(peer.session.GetReceived()))));
+        for (ByteBuffer frame : frames) {
+            frame.rewind();//every queued frame starts at position 0
+            replay.add(frame);
+        }
+        for (ByteBuffer frame : peer.replay) if (Session.IsNumbered(frame.get(4))) replay.add(frame);//left from a replay cut short
+        peer.replay = replay;
+        peer.channel = connection.channel;
+        peer.key = connection.key;
+        peer.key.attach(peer);
+        peer.decoder = connection.decoder;
+        connection.resumed = peer;
+        listener.OnPeerResumed(peer.id);
+        ScheduleWrite(peer);
+        return true;
+    }
+
+    /**Closes the socket of a peer whose connection was lost and keeps the peer, with everything queued for it, until it
+     * resumes or the resume window has passed.*/
+    private void Suspend(Peer peer) {
+        if (peer.channel == null) return;
+        CloseSocket(peer, true);
+        peer.suspendedAt = System.nanoTime();
+        suspended.addLast(peer);
+    }
+
+    /**A lost connection is reset rather than closed, so the client knows to resume instead of taking it as a goodbye.*/
+    private void CloseSocket(Peer peer, boolean lost) {
+        peer.key.cancel();
+        try {
+            if (lost) peer.channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            else peer.channel.shutdownOutput();
+        } catch (IOException ignored) {/*Already closed*/}
+        try {peer.channel.close();} catch (IOException ignored) {/*Already closed*/}
+        peer.decoder.Release();
+        peer.channel = null;
+        peer.key = null;
+        peer.decoder = null;
+        for (int i = 0; i < peer.gathered; i++) peer.gather[i] = null;//already in the session's replay buffer
+        peer.gathered = 0;
+        for (ByteBuffer frame : peer.controlFrames) frame.limit(0);//for the next connection
+    }
+
+    private void Disconnect(Peer peer) {
+        if (peer.resumed != null) peer = peer.resumed;
+        if (peer.id == UNASSIGNED) {
+            unassigned.remove(peer);
+            CloseSocket(peer, false);
+            return;
+        }
+        if (peers.remove(peer.id) == null) return;
+        suspended.remove(peer);
+        if (peer.channel != null) CloseSocket(peer, false);
+        listener.OnPeerDisconnected(peer.id);
+    }
+}
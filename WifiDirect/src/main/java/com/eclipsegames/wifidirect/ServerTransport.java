@@ -0,0 +1,159 @@
+package com.eclipsegames.wifidirect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**Group owner. Serves every client of the group from a single selector thread.*/
+final class ServerTransport extends Transport implements SelectorServer.Listener {
+    private volatile SelectorServer server;
+    private DatagramLink datagrams;
+    private final Map<Integer, KeepAlive.Session> keepAlives = new ConcurrentHashMap<>();
+
+    ServerTransport(Settings settings, Listener listener) {super("WifiDirectServer", settings, listener);}
+
+    /**Returns the TCP port clients connect to, or -1 until the server socket is bound.*/
+    int GetPort() {
+        SelectorServer selectorServer = server;
+        return selectorServer == null ? -1 : selectorServer.GetPort();
+    }
+
+    int GetPeerCount() {
+        SelectorServer selectorServer = server;
+        return selectorServer == null ? 0 : selectorServer.GetPeerCount();
+    }
+
+    @Override public void run() {
+        SelectorServer selectorServer;
+        try {selectorServer = new SelectorServer(settings.port, maxFrameSize, settings.receiveBuffers, settings.channels, this);}
+        catch (IOException e) {
+            listener.OnError(ERROR_LISTENING);
+            return;
+        }
+        selectorServer.SetTcpNoDelay(settings.tcpNoDelay);
+        selectorServer.SetRelayEnabled(settings.relayEnabled);
+        selectorServer.SetFlushInterval(settings.flushIntervalMicros);
+        selectorServer.SetMetrics(metrics);
+        selectorServer.SetCapture(capture);
+        selectorServer.SetSessions(settings.resumeWindowMillis, settings.replayBufferBytes);
+        selectorServer.SetSendQueueLimit(settings.sendQueueLimitBytes);
+        selectorServer.SetCompression(new Compression(settings.compressionCodec, settings.compressionThreshold));
+        selectorServer.SetClock((peerId, remoteNanos) -> {
+            KeepAlive.Session keepAlive = keepAlives.get(peerId);
+            return keepAlive == null ? ClockSync.UNKNOWN : keepAlive.clock.ToLocalNanos(remoteNanos);
+        });
+        if (settings.datagramsEnabled) {
+            try {
+                datagrams = new DatagramLink(settings.port == 0 ? 0 : settings.port + 1, SelectorServer.GROUP_OWNER_ID, this::OnDatagram);
+                datagrams.Start();
+            } catch (IOException e) {listener.OnError(ERROR_LISTENING);}//carry on over TCP only
+        }
+        server = selectorServer;
+        if (isInterrupted()) selectorServer.Close();//CloseThread() came before the server was there to close
+        try {selectorServer.Run();}
+        catch (IOException e) {listener.OnError(ERROR_RECEIVING);}
+        finally {if (datagrams != null) datagrams.Close();}
+    }
+
+    private void OnDatagram(int peerId, ByteBuffer payload) {listener.OnMessage(peerId, payload);}
+
+    @Override void SendMessage(byte[] message) {BroadcastMessage(message);}
+
+    @Override void SendMessage(int peerId, byte[] message) {
+        if (message.length > maxFrameSize || !server.Send(peerId, FrameCodec.TYPE_MESSAGE, message)) listener.OnError(ERROR_SENDING);
+    }
+
+    @Override void SendMessage(int peerId, byte[] message, int delivery) {
+        if (delivery == DELIVERY_RELIABLE || datagrams == null || !datagrams.Send(peerId, message, delivery == DELIVERY_UNRELIABLE_ACKED))
+            SendMessage(peerId, message);
+    }
+
+    @Override void BroadcastMessage(byte[] message) {
+        if (message.length > maxFrameSize) listener.OnError(ERROR_SENDING);
+        else server.Broadcast(FrameCodec.TYPE_MESSAGE, message, SelectorServer.GROUP_OWNER_ID);
+    }
+
+    @Override void SendOnChannel(int peerId, int channel, byte[] message) {
+        if (message.length > maxFrameSize || !server.SendOnChannel(peerId, channel, message)) listener.OnError(ERROR_SENDING);
+    }
+
+    @Override boolean SendFrame(int peerId, byte type, byte[] payload) {return server != null && server.Send(peerId, type, payload);}
+
+    @Override KeepAlive.Session GetKeepAlive(int peerId) {return keepAlives.get(peerId);}
+
+    @Override float GetRoundTripMillis() {
+        float max = -1;
+        for (KeepAlive.Session session : keepAlives.values()) max = Math.max(max, session.GetRoundTripMillis());
+        return max;
+    }
+
+    @Override void SetRelayEnabled(boolean enabled) {if (server != null) server.SetRelayEnabled(enabled);}
+    @Override void SetFlushInterval(int micros) {if (server != null) server.SetFlushInterval(micros);}
+    @Override void FlushMessages() {server.Flush();}
+    @Override long[] GetSendCounters() {return server.GetCounters();}
+
+    @Override void CloseThread() {
+        interrupt();
+        if (server != null) server.Close();
+        transfers.Close();
+    }
+
+    @Override public void OnPeerConnected(int peerId) {
+        byte[] welcome = new byte[18];
+        FrameCodec.WriteInt(welcome, 0, peerId);
+        if (datagrams != null) {
+            datagrams.Expect(peerId, server.GetPeerAddress(peerId));
+            FrameCodec.WriteInt(welcome, 4, datagrams.GetPort());
+        }
+        FrameCodec.WriteLong(welcome, 8, server.GetSessionId(peerId));
+        welcome[16] = Compression.DECODABLE;
+        welcome[17] = settings.messageTimestamps ? ClockSync.WANTS_TIMESTAMPS : 0;
+        server.Send(peerId, FrameCodec.TYPE_WELCOME, welcome);
+        KeepAlive.Session keepAlive = new KeepAlive.Session((type, payload) -> server.SendControl(peerId, type, payload),
+            () -> {
+                metrics.Add(Metrics.TIMEOUTS, 1);
+                server.Lose(peerId);
+            }, settings.keepAliveIntervalMillis, settings.keepAliveTimeoutMillis);
+        keepAlives.put(peerId, keepAlive);
+        keepAlive.Start();
+        state.OnPeerConnected(peerId);
+        metrics.Add(Metrics.CONNECTS, 1);
+        listener.OnPeerConnected(peerId);
+    }
+
+    @Override public void OnPeerDisconnected(int peerId) {
+        if (datagrams != null) datagrams.Remove(peerId);
+        transfers.OnPeerDisconnected(peerId);
+        state.OnPeerDisconnected(peerId);
+        KeepAlive.Session keepAlive = keepAlives.remove(peerId);
+        if (keepAlive != null) keepAlive.Stop();
+        metrics.Add(Metrics.DISCONNECTS, 1);
+        listener.OnPeerDisconnected(peerId);
+    }
+
+    /**The peer doesn't notice, its keep-alive picks up again on the new connection.*/
+    @Override public void OnPeerResumed(int peerId) {
+        KeepAlive.Session keepAlive = keepAlives.get(peerId);
+        if (keepAlive != null) keepAlive.Start();
+        metrics.Add(Metrics.RECONNECTS, 1);
+    }
+
+    @Override public void OnFrame(int peerId, byte type, ByteBuffer payload) {
+        KeepAlive.Session keepAlive = keepAlives.get(peerId);
+        if (keepAlive != null) keepAlive.Heard();
+        if (type == FrameCodec.TYPE_MESSAGE) listener.OnMessage(peerId, payload);
+        else if (type == FrameCodec.TYPE_TRANSFER) transfers.OnFrame(peerId, payload);
+        else if (type == FrameCodec.TYPE_STATE) state.OnFrame(peerId, payload);
+        else if (type == FrameCodec.TYPE_PING && keepAlive != null) keepAlive.OnPing(payload);
+        else if (type == FrameCodec.TYPE_PONG && keepAlive != null) metrics.Record(Metrics.ROUND_TRIP, keepAlive.OnPong(payload));
+    }
+
+    @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {
+        KeepAlive.Session keepAlive = keepAlives.get(peerId);
+        if (keepAlive != null) keepAlive.Heard();
+        listener.OnTimedMessage(peerId, payload, keepAlive == null ? ClockSync.UNKNOWN : keepAlive.clock.ToLocalNanos(sentAtNanos));
+    }
+
+    @Override public void OnError(int peerId, IOException e) {listener.OnError(ERROR_RECEIVING);}
+}
@@ -0,0 +1,92 @@
+package com.eclipsegames.wifidirect;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**One side of a connection that can outlive its socket. Data frames are numbered per direction by their position in the
+ * stream, so the sequence numbers never go on the wire: both sides count them. The sender keeps every data frame it wrote
+ * in a replay buffer until the other side acks it with a TYPE_ACK frame holding its count. When a socket drops, the client
+ * reconnects and sends TYPE_RESUME with the session ID and its count, the group owner answers with its own count, and each
+ * side writes again exactly the frames after the other's count, so nothing is lost or delivered twice.
+ * The replay buffer is bounded in bytes. Once the oldest unacked frames have been evicted to stay under the bound, the
+ * session can only resume if the other side turns out to have received them.
+ * F is however the writer holds a frame: FrameWriter.Frame on a client, an encoded ByteBuffer on the group owner.*/
+final class Session<F> {
+    static final int DEFAULT_RESUME_WINDOW_MILLIS = 10_000, DEFAULT_REPLAY_BYTES = 8 * 1024 * 1024;
+    private static final int ACK_FRAMES = 64, ACK_BYTES = 256 * 1024;//the receiver acks after this many frames or bytes
+
+    private final int replayLimit;
+    private final ToIntFunction<F> sizeOf;
+    private final ArrayDeque<F> replay = new ArrayDeque<>();//frames base + 1 to sent, guarded by this
+    private long replayBytes, base, sent;
+    private long received, receivedBytes, acked;//reading thread only
+
+    Session(int replayLimit, ToIntFunction<F> sizeOf) {
+        this.replayLimit = replayLimit;
+        this.sizeOf = sizeOf;
+    }
+
+    /**Data frames are numbered and replayed. Control frames belong to one socket and are never replayed.*/
+    static boolean IsNumbered(byte type) {
+        return type == FrameCodec.TYPE_MESSAGE || type == FrameCodec.TYPE_RELAY || type == FrameCodec.TYPE_RELAYED
+            || type == FrameCodec.TYPE_FRAGMENT || type == FrameCodec.TYPE_TRANSFER || type == FrameCodec.TYPE_STATE
+            || type == Compression.TYPE_COMPRESSED_MESSAGE || type == ClockSync.TYPE_TIMED_MESSAGE || type == ClockSync.TYPE_TIMED_COMPRESSED_MESSAGE
+            || type == ClockSync.TYPE_TIMED_RELAY || type == ClockSync.TYPE_TIMED_RELAYED;
+    }
+
+    /**Called by the writer for every data frame, in stream order, before it is written.*/
+    synchronized void Sent(F frame) {
+        replay.addLast(frame);
+        replayBytes += sizeOf.applyAsInt(frame);
+        sent++;
+        while (replayBytes > replayLimit) Drop();
+    }
+
+    /**The other side received the first count data frames.*/
+    synchronized void Acked(long count) {
+        while (base < count && !replay.isEmpty()) Drop();
+    }
+
+    private void Drop() {
+        replayBytes -= sizeOf.applyAsInt(replay.pollFirst());
+        base++;
+    }
+
+    /**Returns the frames the other side is missing after it received the first count, in order, or null if some of them
+     * were evicted or the count makes no sense. The frames are taken out of the buffer, they go back in as they are
+     * written again. Only call while no writer is running.*/
+    synchronized List<F> Resume(long count) {
+        if (count < base || count > sent) return null;
+        Acked(count);
+        List<F> frames = new ArrayList<>(replay);
+        replay.clear();
+        replayBytes = 0;
+        sent = base;
+        return frames;
+    }
+
+    /**Called by the reading thread for every data frame received. Returns true when an ack is due, see Ack().*/
+    boolean Received(int length) {
+        received++;
+        receivedBytes += length;
+        return received - acked >= ACK_FRAMES || receivedBytes >= ACK_BYTES;
+    }
+
+    /**Returns the TYPE_ACK payload for everything received so far.*/
+    byte[] Ack() {
+        acked = received;
+        receivedBytes = 0;
+        return CountPayload(received);
+    }
+
+    /**Number of data frames received, what the other side replays after.*/
+    long GetReceived() {return received;}
+
+    static byte[] CountPayload(long count) {
+        byte[] payload = new byte[8];
+        FrameCodec.WriteLong(payload, 0, count);
+        return payload;
+    }
+}
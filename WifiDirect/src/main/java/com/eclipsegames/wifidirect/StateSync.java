@@ -0,0 +1,364 @@
+package com.eclipsegames.wifidirect;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**Replicates keyed state, e.g. one slot per entity, from this device to its peers. The game sets slots whenever they change
+ * and calls Sync() once per tick, which sends each peer one snapshot of the slots that changed since it last got them.
+ * A value goes as its XOR with the value the peer last acknowledged for that slot, written as runs of unchanged and changed
+ * bytes, so a slot where a few fields moved costs a few bytes. The peer keeps the values of the snapshots that aren't
+ * acknowledged yet, so it has whichever baseline a delta refers to, and rebuilds the full value of every slot.
+ * At most MAX_UNACKED snapshots are on their way to a peer. Until it acknowledges one, Sync() sends it nothing and the
+ * changes wait in the slots, where a newer value replaces the older one, so a slow link gets the latest state late rather
+ * than a backlog of stale snapshots.
+ * Every message is a TYPE_STATE frame that starts with an op and a snapshot number. The group owner syncs to every client,
+ * a client to the group owner.*/
+final class StateSync {
+    static final int MAX_UNACKED = 2;
+    private static final byte OP_SNAPSHOT = 0, OP_ACK = 1;
+    private static final int SNAPSHOT_HEADER_SIZE = 13;//op, number, last acked number, slot count
+    private static final int MIN_UNCHANGED_RUN = 3;//shorter runs cost less sent as changed bytes than as a new run
+
+    /**Called on the thread that reads from the peer.*/
+    interface Listener {
+        /**The value is a read-only view of the slot's full value, or null if the slot was removed.*/
+        void OnStateChanged(int peerId, int key, ByteBuffer value);
+    }
+
+    /**The slots of this device, kept across connections. Safe to use from any thread.*/
+    static final class Slots {
+        private final Map<Integer, Slot> slots = new HashMap<>();
+        private long version;
+
+        /**The array is kept, not copied, so it must not be changed afterwards.*/
+        synchronized void Set(int key, byte[] value) {
+            Slot slot = slots.get(key);
+            if (slot == null) slots.put(key, new Slot(value, ++version));
+            else if (!Arrays.equals(slot.value, value)) {
+                slot.value = value;
+                slot.version = ++version;
+            }
+        }
+
+        synchronized void Remove(int key) {slots.remove(key);}
+
+        /**Returns the value, or null if there is no such slot.*/
+        synchronized byte[] Get(int key) {
+            Slot slot = slots.get(key);
+            return slot == null ? null : slot.value.clone();
+        }
+
+        synchronized int Size() {return slots.size();}
+    }
+
+    private static final class Slot {
+        private byte[] value;
+        private long version;
+        private Slot(byte[] value, long version) {this.value = value; this.version = version;}
+    }
+
+    /**What one peer has of one slot. The acked value is the baseline of the next delta.*/
+    private static final class Baseline {
+        private long sentVersion;
+        private int sentNumber, ackedNumber;//0 for no baseline
+        private byte[] acked;
+        private boolean removed;//the removal was sent
+    }
+
+    private static final class Snapshot {
+        private final int number;
+        private final int[] keys;
+        private final byte[][] values;//null for a removal
+        private Snapshot(int number, int[] keys, byte[][] values) {this.number = number; this.keys = keys; this.values = values;}
+    }
+
+    /**Sending side of one peer, guarded by itself.*/
+    private static final class Outgoing {
+        private final int peerId;
+        private final Map<Integer, Baseline> baselines = new HashMap<>();
+        private final ArrayDeque<Snapshot> unacked = new ArrayDeque<>();
+        private final Buffer buffer = new Buffer();
+        private int nextNumber = 1, acked;
+        private Outgoing(int peerId) {this.peerId = peerId;}
+    }
+
+    private static final class Version {
+        private final int number;
+        private final byte[] value;//null for a removal
+        private Version(int number, byte[] value) {this.number = number; this.value = value;}
+    }
+
+    private static final class Removal {
+        private final int key, number;
+        private Removal(int key, int number) {this.key = key; this.number = number;}
+    }
+
+    /**Receiving side of one peer. The histories are only used by the reading thread, the values by anyone.*/
+    private static final class Incoming {
+        private final Map<Integer, ArrayDeque<Version>> histories = new HashMap<>();
+        private final ArrayDeque<Removal> removals = new ArrayDeque<>();//history dropped once the sender saw the removal acked
+        private final Map<Integer, byte[]> values = new ConcurrentHashMap<>();
+    }
+
+    private final Slots slots;
+    private final FileTransfer.Link link;
+    private final Listener listener;
+    private final Map<Integer, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final Map<Integer, Incoming> incoming = new ConcurrentHashMap<>();
+
+    StateSync(Slots slots, FileTransfer.Link link, Listener listener) {
+        this.slots = slots;
+        this.link = link;
+        this.listener = listener;
+    }
+
+    /**Starts syncing to a peer, which gets every slot in the first snapshot.*/
+    void OnPeerConnected(int peerId) {
+        outgoing.put(peerId, new Outgoing(peerId));
+        incoming.put(peerId, new Incoming());
+    }
+
+    /**Forgets what the peer had and what it sent.*/
+    void OnPeerDisconnected(int peerId) {
+        outgoing.remove(peerId);
+        incoming.remove(peerId);
+    }
+
+    /**Returns the value a peer last sent for a slot, or null if it has no such slot.*/
+    byte[] Get(int peerId, int key) {
+        Incoming peer = incoming.get(peerId);
+        byte[] value = peer == null ? null : peer.values.get(key);
+        return value == null ? null : value.clone();
+    }
+
+    /**Returns the keys of every slot a peer sent.*/
+    int[] GetKeys(int peerId) {
+        Incoming peer = incoming.get(peerId);
+        return peer == null ? new int[0] : peer.values.keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**Sends every peer that isn't waiting for MAX_UNACKED acks the slots that changed for it. Returns how many snapshots
+     * were sent.*/
+    int Sync() {
+        int sent = 0;
+        for (Outgoing peer : outgoing.values()) if (Sync(peer)) sent++;
+        return sent;
+    }
+
+    /**Returns how many snapshots to a peer aren't acknowledged yet.*/
+    int GetUnacked(int peerId) {
+        Outgoing peer = outgoing.get(peerId);
+        if (peer == null) return 0;
+        synchronized (peer) {return peer.unacked.size();}
+    }
+
+    /**Handles a TYPE_STATE frame from a peer.*/
+    void OnFrame(int peerId, ByteBuffer payload) {
+        if (payload.remaining() < 5) return;
+        byte op = payload.get();
+        int number = payload.getInt();
+        try {
+            if (op == OP_SNAPSHOT) OnSnapshot(peerId, number, payload);
+            else if (op == OP_ACK) OnAck(peerId, number);
+        } catch (BufferUnderflowException | IllegalStateException e) {/*Malformed, not acked*/}
+    }
+
+    /*================================ Sending side ================================*/
+
+    /**Sends a snapshot inside the lock, so snapshots are queued in the order they are numbered.*/
+    private boolean Sync(Outgoing peer) {
+        synchronized (peer) {
+            if (peer.unacked.size() >= MAX_UNACKED) return false;//conflated, the slots keep only the newest values
+            int number = peer.nextNumber;
+            Buffer out = peer.buffer;
+            out.Clear();
+            out.Put(OP_SNAPSHOT);
+            out.PutInt(number);
+            out.PutInt(peer.acked);
+            out.PutInt(0);//slot count, filled in below
+            List<Integer> keys = new ArrayList<>();
+            List<byte[]> values = new ArrayList<>();
+            synchronized (slots) {
+                for (Map.Entry<Integer, Slot> entry : slots.slots.entrySet()) {
+                    Baseline baseline = peer.baselines.get(entry.getKey());
+                    Slot slot = entry.getValue();
+                    if (baseline != null && !baseline.removed && slot.version <= baseline.sentVersion) continue;
+                    if (baseline == null) peer.baselines.put(entry.getKey(), baseline = new Baseline());
+                    baseline.sentVersion = slot.version;
+                    baseline.removed = false;
+                    Write(out, entry.getKey(), baseline, number, slot.value);
+                    keys.add(entry.getKey());
+                    values.add(slot.value);
+                }
+                for (Map.Entry<Integer, Baseline> entry : peer.baselines.entrySet()) {
+                    Baseline baseline = entry.getValue();
+                    if (baseline.removed || slots.slots.containsKey(entry.getKey())) continue;
+                    baseline.removed = true;
+                    Write(out, entry.getKey(), baseline, number, null);
+                    keys.add(entry.getKey());
+                    values.add(null);
+                }
+            }
+            if (keys.isEmpty()) return false;
+            FrameCodec.WriteInt(out.bytes, SNAPSHOT_HEADER_SIZE - 4, keys.size());
+            peer.unacked.add(new Snapshot(number, keys.stream().mapToInt(Integer::intValue).toArray(), values.toArray(new byte[0][])));
+            peer.nextNumber++;
+            return link.Send(peer.peerId, FrameCodec.TYPE_STATE, out.ToArray());
+        }
+    }
+
+    /**Writes a slot as its key, the number of the snapshot its baseline came in or 0, its length + 1 or 0 if it was removed,
+     * then its delta against the baseline.*/
+    private static void Write(Buffer out, int key, Baseline baseline, int number, byte[] value) {
+        out.PutInt(key);
+        out.PutInt(baseline.ackedNumber);
+        baseline.sentNumber = number;
+        if (value == null) {
+            out.PutVarint(0);
+            return;
+        }
+        out.PutVarint(value.length + 1);
+        WriteDelta(baseline.acked == null ? FrameCodec.EMPTY_PAYLOAD : baseline.acked, value, out);
+    }
+
+    private void OnAck(int peerId, int number) {
+        Outgoing peer = outgoing.get(peerId);
+        if (peer == null) return;
+        synchronized (peer) {
+            for (Snapshot snapshot; (snapshot = peer.unacked.peek()) != null && snapshot.number - number <= 0;) {
+                peer.unacked.poll();
+                peer.acked = snapshot.number;
+                for (int i = 0; i < snapshot.keys.length; i++) {
+                    Baseline baseline = peer.baselines.get(snapshot.keys[i]);
+                    if (baseline == null) continue;
+                    if (snapshot.values[i] == null && baseline.removed && baseline.sentNumber == snapshot.number) {
+                        peer.baselines.remove(snapshot.keys[i]);//nothing refers to it any more
+                        continue;
+                    }
+                    baseline.acked = snapshot.values[i];
+                    baseline.ackedNumber = snapshot.values[i] == null ? 0 : snapshot.number;
+                }
+            }
+        }
+    }
+
+    /*================================ Receiving side ================================*/
+
+    private void OnSnapshot(int peerId, int number, ByteBuffer payload) {
+        Incoming peer = incoming.get(peerId);
+        if (peer == null) return;
+        int acked = payload.getInt(), count = payload.getInt();
+        for (int i = 0; i < count; i++) {
+            int key = payload.getInt(), baseNumber = payload.getInt(), length = ReadVarint(payload) - 1;
+            ArrayDeque<Version> history = peer.histories.computeIfAbsent(key, k -> new ArrayDeque<>());
+            byte[] base = Baseline(history, baseNumber);
+            Version version = new Version(number, length < 0 ? null : ReadDelta(base, length, payload));
+            history.add(version);
+            if (version.value == null) {
+                peer.removals.add(new Removal(key, number));
+                peer.values.remove(key);
+                listener.OnStateChanged(peerId, key, null);
+            } else {
+                peer.values.put(key, version.value);
+                listener.OnStateChanged(peerId, key, ByteBuffer.wrap(version.value).asReadOnlyBuffer());
+            }
+        }
+        for (Removal removal; (removal = peer.removals.peek()) != null && removal.number - acked <= 0;) {
+            peer.removals.poll();
+            ArrayDeque<Version> history = peer.histories.get(removal.key);
+            if (history != null && history.peekLast().number == removal.number) peer.histories.remove(removal.key);//not added again since
+        }
+        link.Send(peerId, FrameCodec.TYPE_STATE, ByteBuffer.allocate(5).put(OP_ACK).putInt(number).array());
+    }
+
+    /**Returns the value a slot had in the snapshot a delta refers to, dropping the older ones, which the sender no longer
+     * refers to since its acked snapshots only move forward.*/
+    private static byte[] Baseline(ArrayDeque<Version> history, int baseNumber) {
+        if (baseNumber == 0) return FrameCodec.EMPTY_PAYLOAD;
+        while (!history.isEmpty() && history.peekFirst().number - baseNumber < 0) history.pollFirst();
+        Version base = history.peekFirst();
+        if (base == null || base.number != baseNumber) throw new IllegalStateException("Missing baseline " + baseNumber);
+        return base.value == null ? FrameCodec.EMPTY_PAYLOAD : base.value;
+    }
+
+    /*================================ Delta encoding ================================*/
+
+    /**Writes value XOR base, with base padded with zeros to the length of value, as pairs of runs: the number of unchanged
+     * bytes, the number of changed bytes, then the changed bytes XOR base. Unchanged runs shorter than MIN_UNCHANGED_RUN are
+     * sent as changed bytes.*/
+    static void WriteDelta(byte[] base, byte[] value, Buffer out) {
+        int position = 0;
+        while (position < value.length) {
+            int unchanged = position;
+            while (unchanged < value.length && Xor(base, value, unchanged) == 0) unchanged++;
+            int changed = unchanged, end = unchanged;
+            while (end < value.length) {
+                if (Xor(base, value, end) != 0) {
+                    changed = ++end;
+                    continue;
+                }
+                int run = end;
+                while (run < value.length && run - end < MIN_UNCHANGED_RUN && Xor(base, value, run) == 0) run++;
+                if (run - end >= MIN_UNCHANGED_RUN || run == value.length) break;
+                end = run;
+            }
+            out.PutVarint(unchanged - position);
+            out.PutVarint(changed - unchanged);
+            for (int i = unchanged; i < changed; i++) out.Put(Xor(base, value, i));
+            position = changed;
+        }
+    }
+
+    /**Rebuilds a value of the length from its base and the runs of WriteDelta().*/
+    static byte[] ReadDelta(byte[] base, int length, ByteBuffer in) {
+        byte[] value = Arrays.copyOf(base, length);
+        int position = 0;
+        while (position < length) {
+            position += ReadVarint(in);
+            int changed = ReadVarint(in);
+            if (position + changed > length) throw new IllegalStateException("Delta past the end of the value");
+            for (int end = position + changed; position < end; position++) value[position] ^= in.get();
+        }
+        return value;
+    }
+
+    private static byte Xor(byte[] base, byte[] value, int i) {return (byte) (i < base.length ? base[i] ^ value[i] : value[i]);}
+
+    private static int ReadVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IllegalStateException("Varint too long");
+    }
+
+    /**A growing byte array that snapshots are written into, reused by every snapshot to the same peer.*/
+    static final class Buffer {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        void Clear() {length = 0;}
+        byte[] ToArray() {return Arrays.copyOf(bytes, length);}
+
+        void Put(byte b) {
+            if (length == bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            bytes[length++] = b;
+        }
+
+        void PutInt(int value) {for (int shift = 24; shift >= 0; shift -= 8) Put((byte) (value >>> shift));}
+
+        void PutVarint(int value) {
+            for (; (value & ~0x7F) != 0; value >>>= 7) Put((byte) (value & 0x7F | 0x80));
+            Put((byte) value);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.eclipsegames.wifidirect;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**The socket side of a connection, one per group: ServerTransport on the group owner, ClientTransport on a client.
+ * Only uses java.net and java.nio, so it runs on a plain JVM as well, which is how the tests and the benchmarks drive it.
+ * WifiDirectManager starts one once Wi-Fi Direct has formed the group, and turns what it reports into EventListener calls.*/
+abstract class Transport extends Thread {
+    /**Connection status codes for Listener.OnConnectionStatusChanged().*/
+    static final int CONNECTED = 0, CONNECT_FAILED = 1, DISCONNECTED = 2, CONNECTION_LOST = 3;
+    /**Error codes for Listener.OnError().*/
+    static final int ERROR_LISTENING = 0, ERROR_CONNECTING = 1, ERROR_SENDING = 2, ERROR_RECEIVING = 3;
+    /**Delivery modes, see WifiDirectManager.DELIVERY_RELIABLE.*/
+    static final int DELIVERY_RELIABLE = 0, DELIVERY_UNRELIABLE = 1, DELIVERY_UNRELIABLE_ACKED = 2;
+
+    /**Called on the transport's own threads.*/
+    interface Listener extends FileTransfer.Listener, StateSync.Listener {
+        void OnPeerConnected(int peerId);
+        void OnPeerDisconnected(int peerId);
+        /**The payload is a borrowed view that is only valid during this call.*/
+        void OnMessage(int peerId, ByteBuffer payload);
+        /**A message the peer stamped with the time it sent it, because this device asked, see Settings.messageTimestamps.
+         * sentAtNanos is that time translated to this device's System.nanoTime(), or ClockSync.UNKNOWN until the clocks are
+         * synchronised. Same payload as OnMessage().*/
+        void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos);
+        /**Client only, one of CONNECTED to CONNECTION_LOST.*/
+        void OnConnectionStatusChanged(int status);
+        /**One of the ERROR codes.*/
+        void OnError(int error);
+    }
+
+    /**Everything a transport reads when it starts. Later changes only reach a running transport through its setters.*/
+    static final class Settings {
+        /**TCP port of the group owner, the UDP link uses the next one. 0 lets the group owner pick a free port.*/
+        int port;
+        int maxFrameSize = FrameCodec.DEFAULT_MAX_FRAME_SIZE;
+        boolean tcpNoDelay = true, relayEnabled, datagramsEnabled;
+        int flushIntervalMicros = FrameWriter.FLUSH_IMMEDIATE;
+        int keepAliveIntervalMillis = KeepAlive.DEFAULT_INTERVAL_MILLIS, keepAliveTimeoutMillis = KeepAlive.DEFAULT_TIMEOUT_MILLIS;
+        /**How long a lost connection may take to come back with its session, see Session. 0 disables resuming.*/
+        int resumeWindowMillis = Session.DEFAULT_RESUME_WINDOW_MILLIS, replayBufferBytes = Session.DEFAULT_REPLAY_BYTES;
+        /**Group owner only, how many bytes may wait to be sent to one peer before it is disconnected, 0 for no limit.*/
+        int sendQueueLimitBytes = SelectorServer.DEFAULT_SEND_QUEUE_LIMIT;
+        /**What this device compresses messages with, see Compression. Messages shorter than the threshold go as they are.*/
+        int compressionCodec = Compression.NONE, compressionThreshold = Compression.DEFAULT_THRESHOLD;
+        /**Asks every peer to stamp its messages to this device with the time it sent them, see ClockSync.*/
+        boolean messageTimestamps;
+        File transferDirectory = new File(System.getProperty("java.io.tmpdir"));
+        /**Replicated to the peers by StateSync, shared with the caller so the slots outlive the connection.*/
+        StateSync.Slots stateSlots = new StateSync.Slots();
+        /**Where every frame is recorded while capturing, shared with the caller so a capture can span connections.*/
+        Capture capture = new Capture();
+        final BufferPool receiveBuffers;
+        final ChannelMux.Config channels;
+        final Metrics metrics;
+
+        Settings(int port) {this(port, new BufferPool(4, 16 * 1024), new ChannelMux.Config(), new Metrics());}
+
+        /**The pool, the channel config and the metrics are shared with the caller, so they outlive the connection.*/
+        Settings(int port, BufferPool receiveBuffers, ChannelMux.Config channels, Metrics metrics) {
+            this.port = port;
+            this.receiveBuffers = receiveBuffers;
+            this.channels = channels;
+            this.metrics = metrics;
+        }
+    }
+
+    protected final Settings settings;
+    protected final int maxFrameSize;
+    protected final Listener listener;
+    protected final Metrics metrics;
+    protected final Capture capture;
+    final FileTransfer transfers;
+    final StateSync state;
+
+    protected Transport(String name, Settings settings, Listener listener) {
+        super(name);
+        this.settings = settings;
+        this.listener = listener;
+        maxFrameSize = settings.maxFrameSize;
+        metrics = settings.metrics;
+        capture = settings.capture;
+        transfers = new FileTransfer(this::SendFrame, listener);
+        transfers.SetDirectory(settings.transferDirectory);
+        state = new StateSync(settings.stateSlots, this::SendFrame, listener);
+    }
+
+    /**Sends to every connected device.*/
+    abstract void SendMessage(byte[] message);
+    abstract void SendMessage(int peerId, byte[] message);
+    /**delivery is one of the DELIVERY modes.*/
+    abstract void SendMessage(int peerId, byte[] message, int delivery);
+    abstract void BroadcastMessage(byte[] message);
+    abstract void SendOnChannel(int peerId, int channel, byte[] message);
+    /**Returns the keep-alive session with a peer, or null if there is no such peer.*/
+    abstract KeepAlive.Session GetKeepAlive(int peerId);
+    abstract float GetRoundTripMillis();
+    /**Queues an already built frame payload, which is kept as it is and must not be changed afterwards. Returns false if
+     * there is no such peer.*/
+    abstract boolean SendFrame(int peerId, byte type, byte[] payload);
+    void SetRelayEnabled(boolean enabled) {}
+    abstract void SetFlushInterval(int micros);
+    abstract void FlushMessages();
+    abstract long[] GetSendCounters();
+    /**Closes every connection. The thread ends shortly after.*/
+    abstract void CloseThread();
+}
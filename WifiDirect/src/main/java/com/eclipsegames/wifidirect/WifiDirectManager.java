@@ -16,28 +16,85 @@ import android.net.wifi.p2p.WifiP2pManager.ActionListener;
 import android.net.wifi.p2p.WifiP2pManager.Channel;
 import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceInfo;
 import android.net.wifi.p2p.nsd.WifiP2pDnsSdServiceRequest;
+import android.os.Handler;
 import android.os.Looper;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public final class WifiDirectManager {
     private final Activity activity;
     private final WifiP2pManager p2pManager;
     private final Channel channel;
-    private final EventListener eventListener;
+    private final EventListener callbacks;
+    private volatile EventListener eventListener;//the callbacks, or the polling queues
     private WifiDirectBroadcastReceiver receiver;
-    private final Map<String, String> discoveredServices = new HashMap<>();//<MAC address, device name>
-    private WifiDirectThread thread;
+    private final DiscoveryCache discoveryCache = new DiscoveryCache((change, macAddress) -> eventListener.OnServiceChanged(change, macAddress));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());//runs expiry on the thread of the DNS-SD callbacks
+    private final Runnable expireServices = this::ExpireServices;
+    private Transport transport;
+    private final TransportEvents transportEvents = new TransportEvents();
     private WifiP2pDnsSdServiceInfo serviceInfo;
     private static final int PORT_NUM = 8888;
+    private static final String SERVICE_INSTANCE = "3-Pennies-Server", NETWORK_NAME = "DIRECT-pn3-Pennies-Server";
+    private volatile int playerCount = -1;
+    private volatile String gameVersion = "";
+    /**Peer ID of the group owner. Clients only ever talk to this peer, the group owner gives its clients IDs from 1 upwards.*/
+    public static final int GROUP_OWNER_PEER_ID = SelectorServer.GROUP_OWNER_ID;
+    /**Delivery modes for SendMessage(). RELIABLE goes over the TCP stream. UNRELIABLE goes over UDP, may be lost, and is dropped
+     * if a newer one already arrived. UNRELIABLE_ACKED goes over UDP and is resent until acked, but may arrive out of order.*/
+    public static final int DELIVERY_RELIABLE = Transport.DELIVERY_RELIABLE, DELIVERY_UNRELIABLE = Transport.DELIVERY_UNRELIABLE,
+        DELIVERY_UNRELIABLE_ACKED = Transport.DELIVERY_UNRELIABLE_ACKED;
+    /**Number of logical channels, see ConfigureChannel().*/
+    public static final int CHANNEL_COUNT = ChannelMux.CHANNEL_COUNT;
+    private int maxFrameSize = FrameCodec.DEFAULT_MAX_FRAME_SIZE;
+    private volatile MessageViewListener messageViewListener;
+    private final BufferPool receiveBuffers = new BufferPool(4, 16 * 1024);
+    private volatile boolean tcpNoDelay = true;
+    private volatile int flushIntervalMicros = FrameWriter.FLUSH_IMMEDIATE;
+    private volatile boolean relayEnabled, datagramsEnabled;
+    private final ChannelMux.Config channels = new ChannelMux.Config();
+    private final Metrics metrics = new Metrics();
+    private volatile String transferDirectory;
+    private final StateSync.Slots stateSlots = new StateSync.Slots();
+    private final Capture capture = new Capture();
+    /**Event codes in DrainEvents(). Each event is followed by its arguments, as in the matching EventListener method.*/
+    public static final int EVENT_PEER_CONNECTED = 0, EVENT_PEER_DISCONNECTED = 1, EVENT_STATUS_CHANGED = 2, EVENT_DISCOVERY_STATUS_CHANGED = 3,
+        EVENT_CONNECTION_STATUS_CHANGED = 4, EVENT_ERROR = 5, EVENT_TRANSFER_PROGRESS = 6, EVENT_TRANSFER_COMPLETE = 7,
+        EVENT_SERVICE_CHANGED = 8, EVENT_STATE_CHANGED = 9;
+    /**Changes in OnServiceChanged(). A service is updated when its device name or TXT record changed, not when it was only seen again.*/
+    public static final int SERVICE_ADDED = DiscoveryCache.ADDED, SERVICE_UPDATED = DiscoveryCache.UPDATED, SERVICE_EXPIRED = DiscoveryCache.EXPIRED;
+    /**Indices into GetDiscoveredService().*/
+    public static final int SERVICE_DEVICE_NAME = 0, SERVICE_SSID = 1, SERVICE_PLAYER_COUNT = 2, SERVICE_GAME_VERSION = 3, SERVICE_AGE_MILLIS = 4;
+    private static final int DEFAULT_POLL_BUFFER_SIZE = 1024 * 1024, EVENT_BUFFER_SIZE = 64 * 1024;
+    private volatile PollingListener polling;
+    private volatile int keepAliveIntervalMillis = KeepAlive.DEFAULT_INTERVAL_MILLIS, keepAliveTimeoutMillis = KeepAlive.DEFAULT_TIMEOUT_MILLIS;
+    private volatile int resumeWindowMillis = Session.DEFAULT_RESUME_WINDOW_MILLIS, replayBufferBytes = Session.DEFAULT_REPLAY_BYTES;
+    private volatile int sendQueueLimitBytes = SelectorServer.DEFAULT_SEND_QUEUE_LIMIT;
+    /**Codecs for SetCompression().*/
+    public static final int COMPRESSION_NONE = Compression.NONE, COMPRESSION_DEFLATE = Compression.DEFLATE;
+    private volatile int compressionCodec = Compression.NONE, compressionThreshold = Compression.DEFAULT_THRESHOLD;
+    /**What GetClockOffsetNanos() returns before the clocks are synchronised, and the send time of a message that wasn't stamped.*/
+    public static final long CLOCK_UNKNOWN = ClockSync.UNKNOWN;
+    private volatile boolean messageTimestamps;
+    /**Indices into GetStats(). Frames include keep-alive and other control frames, bytes include frame headers.*/
+    public static final int STAT_MESSAGES_IN = Metrics.MESSAGES_IN, STAT_BYTES_IN = Metrics.BYTES_IN, STAT_MESSAGES_OUT = Metrics.MESSAGES_OUT,
+        STAT_BYTES_OUT = Metrics.BYTES_OUT, STAT_SEND_QUEUE_DEPTH = Metrics.SEND_QUEUE_DEPTH, STAT_CONNECTS = Metrics.CONNECTS,
+        STAT_DISCONNECTS = Metrics.DISCONNECTS, STAT_RECONNECTS = Metrics.RECONNECTS, STAT_TIMEOUTS = Metrics.TIMEOUTS,
+        STAT_SEND_QUEUE_OVERFLOWS = Metrics.SEND_QUEUE_OVERFLOWS;
+    /**Where each histogram starts in GetStats(). Decode is the time to decode and deliver the frames of one socket read,
+     * sampled from one read in 8, write is the time one socket write call took, round trip is the keep-alive round trip.*/
+    public static final int STAT_DECODE_TIME = Metrics.COUNTER_COUNT + Metrics.DECODE * Metrics.HISTOGRAM_STATS,
+        STAT_WRITE_TIME = Metrics.COUNTER_COUNT + Metrics.WRITE * Metrics.HISTOGRAM_STATS,
+        STAT_ROUND_TRIP_TIME = Metrics.COUNTER_COUNT + Metrics.ROUND_TRIP * Metrics.HISTOGRAM_STATS;
+    /**Offsets from the start of a histogram in GetStats(). Everything but the count is in nanoseconds.*/
+    public static final int HISTOGRAM_COUNT = 0, HISTOGRAM_MIN = 1, HISTOGRAM_MEAN = 2, HISTOGRAM_P50 = 3, HISTOGRAM_P90 = 4,
+        HISTOGRAM_P99 = 5, HISTOGRAM_P999 = 6, HISTOGRAM_MAX = 7;
 
     /*============================================================================*/
     /*================================ PUBLIC API ================================*/
@@ -45,6 +102,7 @@ public final class WifiDirectManager {
 
     /**Please call the Close() method before the object is destroyed by the GC to ensure that resources are released.*/
     public WifiDirectManager(Activity a, EventListener e) {
+        callbacks = e;
         eventListener = e;
         activity = a;
         p2pManager = (WifiP2pManager) activity.getSystemService(Context.WIFI_P2P_SERVICE);
@@ -60,10 +118,11 @@ public final class WifiDirectManager {
     /**Please call the Close() method before the object is destroyed by the GC to ensure that resources are released.*/
     public void Close() {
         CancelDiscovery();
+        mainHandler.removeCallbacks(expireServices);
         CancelConnect();
-        if (thread != null) {
-            thread.CloseThread();
-            thread = null;
+        if (transport != null) {
+            transport.CloseThread();
+            transport = null;
         }
         RemoveService();
         Disconnect();
@@ -80,23 +139,38 @@ public final class WifiDirectManager {
     public void CreateDiscoverableServer(String passphrase) {
         RemoveService();
         Disconnect();
-        WifiP2pConfig config = new Builder().setNetworkName("DIRECT-pn3-Pennies-Server").setPassphrase(passphrase).build();
+        WifiP2pConfig config = new Builder().setNetworkName(NETWORK_NAME).setPassphrase(passphrase).build();
         p2pManager.createGroup(channel, config, new ActionListener() {
-            @Override public void onSuccess() {
-                Map<String, String> record = new HashMap<>();
-                record.put("SSID", config.getNetworkName());
-                serviceInfo = WifiP2pDnsSdServiceInfo.newInstance("3-Pennies-Server", "_presence._tcp", record);
-                p2pManager.addLocalService(channel, serviceInfo, new WifiP2pManager.ActionListener() {
-                    @Override public void onSuccess() {eventListener.OnDiscoveryStatusChanged(Status.SERVICE_DISCOVERABLE.ordinal());}
-                    @Override public void onFailure(int reason) {eventListener.OnError(Status.ERROR_ADDING_SERVICE.ordinal(), reason);}
-                });
-            }
+            @Override public void onSuccess() {AddService();}
             @Override public void onFailure(int i) {eventListener.OnError(Status.ERROR_CREATING_GROUP.ordinal(), i);}//TODO figure out why this errored
         });
     }
 
+    /**Sets the player count and game version advertised in the service's TXT record, which clients see before connecting.
+     * Re-advertises the service if it is already discoverable, clients see the change on their next discovery.*/
+    public void SetServiceRecord(int playerCount, String gameVersion) {
+        this.playerCount = playerCount;
+        this.gameVersion = gameVersion;
+        if (serviceInfo == null) return;
+        p2pManager.removeLocalService(channel, serviceInfo, null);
+        AddService();
+    }
+
+    private void AddService() {
+        Map<String, String> record = new HashMap<>();
+        record.put(DiscoveryCache.KEY_SSID, NETWORK_NAME);
+        record.put(DiscoveryCache.KEY_PLAYER_COUNT, Integer.toString(playerCount));
+        record.put(DiscoveryCache.KEY_GAME_VERSION, gameVersion);
+        serviceInfo = WifiP2pDnsSdServiceInfo.newInstance(SERVICE_INSTANCE, "_presence._tcp", record);
+        p2pManager.addLocalService(channel, serviceInfo, new WifiP2pManager.ActionListener() {
+            @Override public void onSuccess() {eventListener.OnDiscoveryStatusChanged(Status.SERVICE_DISCOVERABLE.ordinal());}
+            @Override public void onFailure(int reason) {eventListener.OnError(Status.ERROR_ADDING_SERVICE.ordinal(), reason);}
+        });
+    }
+
     /**Removes the local service from discoverability. Does not disconnect clients.*/
     public void RemoveService() {
+        serviceInfo = null;
         p2pManager.clearLocalServices(channel, new ActionListener() {
             @Override public void onSuccess() {eventListener.OnDiscoveryStatusChanged(Status.SERVICE_REMOVED.ordinal());}
             @Override public void onFailure(int i) {}
@@ -107,7 +181,9 @@ public final class WifiDirectManager {
     /*================================ CLIENT ================================*/
     /*========================================================================*/
 
-    /**Asynchronous call to start discovering services. Filters by network name to only callback 3-Pennies-Server.*/
+    /**Asynchronous call to start discovering services. Filters by instance name to only callback 3-Pennies-Server.
+     * Services found by earlier runs stay cached until they haven't been seen for the discovery TTL, see SetDiscoveryTtl(),
+     * and every change to the cache is reported with OnServiceChanged().*/
     public void DiscoverServices() {
         CancelDiscovery();
         WifiP2pDnsSdServiceRequest serviceRequest = WifiP2pDnsSdServiceRequest.newInstance();
@@ -123,27 +199,45 @@ public final class WifiDirectManager {
         });
         p2pManager.setDnsSdResponseListeners(channel,
             (instanceName, registrationType, srcDevice) -> {
-                if (instanceName.equals("3-Pennies-Server")) {
-                    discoveredServices.put(srcDevice.deviceAddress, srcDevice.deviceName);
-                    eventListener.OnDiscoveryStatusChanged(Status.SERVICE_LIST_CHANGED.ordinal());
-                }
-            }, null
+                if (instanceName.equals(SERVICE_INSTANCE)) ServiceSeen(srcDevice.deviceAddress, srcDevice.deviceName, null);
+            },
+            (fullDomainName, record, srcDevice) -> {//arrives separately, and usually first
+                if (fullDomainName.regionMatches(true, 0, SERVICE_INSTANCE + ".", 0, SERVICE_INSTANCE.length() + 1))
+                    ServiceSeen(srcDevice.deviceAddress, srcDevice.deviceName, record);
+            }
         );
     }
 
-    /**Stops an ongoing discovery search.*/
-    public void CancelDiscovery() {
-        p2pManager.clearServiceRequests(channel, null);
-        discoveredServices.clear();
+    /**Stops an ongoing discovery search. Discovered services stay cached, see DiscoverServices().*/
+    public void CancelDiscovery() {p2pManager.clearServiceRequests(channel, null);}
+
+    /**Returns a copy of the map of devices (MAC address, device name) that are hosting a valid service.*/
+    public Map<String, String> GetDiscoveredServices() {return discoveryCache.GetNames();}
+
+    /**Returns what is known of a discovered service, see the SERVICE indices: device name, SSID, player count and game version
+     * from its TXT record, and milliseconds since it was last seen. Unknown TXT record fields are empty, or -1 for the player
+     * count. Returns null if the service isn't cached.*/
+    public String[] GetDiscoveredService(String macAddress) {
+        DiscoveryCache.Service service = discoveryCache.Get(macAddress);
+        if (service == null) return null;
+        String ssid = service.GetSsid(), version = service.GetGameVersion();
+        return new String[] {service.deviceName, ssid != null ? ssid : "", Integer.toString(service.GetPlayerCount()),
+            version != null ? version : "", Long.toString(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - service.lastSeenNanos))};
     }
 
-    /**Returns the current map of devices (MAC address, device name) that are hosting a valid service.*/
-    public Map<String, String> GetDiscoveredServices() {return discoveredServices;}
+    /**Sets how long a discovered service stays cached after it was last seen. Defaults to 60000 ms.*/
+    public void SetDiscoveryTtl(int millis) {
+        discoveryCache.SetTtl(millis);
+        mainHandler.post(this::ScheduleExpiry);
+    }
 
-    /**Attempts to connect to the device with the given MAC address and passphrase.*/
+    /**Attempts to connect to the device with the given MAC address and passphrase. A cached service connects to the network
+     * it advertised without waiting for discovery, so this works after CancelDiscovery() too.*/
     @SuppressLint("MissingPermission")
     public void ConnectToService(String macAddress, String passphrase) {
-        WifiP2pConfig config = new Builder().setNetworkName("DIRECT-pn3-Pennies-Server").setDeviceAddress(MacAddress.fromString(macAddress)).setPassphrase(passphrase).build();
+        DiscoveryCache.Service service = discoveryCache.Get(macAddress);
+        String networkName = service != null && service.GetSsid() != null ? service.GetSsid() : NETWORK_NAME;//as advertised
+        WifiP2pConfig config = new Builder().setNetworkName(networkName).setDeviceAddress(MacAddress.fromString(macAddress)).setPassphrase(passphrase).build();
         config.wps.setup = WpsInfo.PBC;
         p2pManager.connect(channel, config, new ActionListener() {
             @Override public void onSuccess() {}//handled in broadcast receiver
@@ -161,24 +255,297 @@ public final class WifiDirectManager {
     /**Disconnects. If called by the server, you need to first call RemoveService().*/
     public void Disconnect() {p2pManager.removeGroup(channel, null);}
 
-    /**Sends a message to the other device.
+    /**Sends a message to the other device. If called by the group owner, the message is sent to every connected client.
      * Cannot be called until after a connection has successfully been established, and while they are connected.
-     * Cannot be called after StopThread(). Will throw Java Runtime exception.*/
-    public void SendMessage(byte[] message) {thread.SendMessage(message);}
+     * Cannot be called after StopThread(). Will throw Java Runtime exception.
+     * The message is copied before this returns, so the array can be reused for the next one.*/
+    public void SendMessage(byte[] message) {transport.SendMessage(message);}
+
+    /**Sends a message to one peer, as given by OnPeerConnected().
+     * Clients can send to other clients through the group owner, which needs SetRelayEnabled(true) on the group owner.*/
+    public void SendMessage(int peerId, byte[] message) {transport.SendMessage(peerId, message);}
+
+    /**Sends a message to one peer with the given delivery mode, see DELIVERY_RELIABLE.
+     * Falls back to the TCP stream when the UDP link is disabled or not ready yet, when a client sends to another client,
+     * or when the message is bigger than the UDP payload limit of 1200 bytes.*/
+    public void SendMessage(int peerId, byte[] message, int delivery) {transport.SendMessage(peerId, message, delivery);}
+
+    /**Group owner only. Opens a UDP socket next to the TCP one for the unreliable delivery modes. Takes effect on the next
+     * connection, clients open their side when the group owner tells them its UDP port. Disabled by default.*/
+    public void SetDatagramsEnabled(boolean enabled) {datagramsEnabled = enabled;}
+
+    /**Sends a message to every other device in the group. The message is encoded once and shared by every recipient.
+     * From a client, the group owner receives it and relays it to the other clients if SetRelayEnabled(true) was called on it.*/
+    public void BroadcastMessage(byte[] message) {transport.BroadcastMessage(message);}
+
+    /**Group owner only. Lets clients send messages to each other through the group owner. Disabled by default.*/
+    public void SetRelayEnabled(boolean enabled) {
+        relayEnabled = enabled;
+        if (transport != null) transport.SetRelayEnabled(enabled);
+    }
+
+    /**Sets the largest message in bytes that can be sent or received. Takes effect on the next connection.
+     * Both devices should use the same value, a device that receives a larger message drops the connection.*/
+    public void SetMaxMessageSize(int bytes) {maxFrameSize = bytes;}
+
+    /**Switches message delivery to borrowed views of the pooled receive buffer, which avoids allocating a byte[] per message.
+     * While a listener is set, EventListener.OnMessageReceived() is no longer called. Pass null to go back to copied messages.*/
+    public void SetMessageViewListener(MessageViewListener listener) {messageViewListener = listener;}
+
+    /**Enables or disables Nagle's algorithm on the socket. Takes effect on the next connection. Defaults to true (disabled Nagle),
+     * since messages are already batched by the send queue.*/
+    public void SetTcpNoDelay(boolean noDelay) {tcpNoDelay = noDelay;}
+
+    /**Controls how queued messages are batched into writes.
+     * 0 writes as soon as possible (default). A positive value waits that many microseconds after a message is queued to
+     * gather more messages into the same write. -1 only writes when FlushMessages() is called, e.g. once per frame.*/
+    public void SetFlushInterval(int micros) {
+        flushIntervalMicros = micros;
+        if (transport != null) transport.SetFlushInterval(micros);
+    }
+
+    /**Writes every queued message now. Only needed after SetFlushInterval(-1).*/
+    public void FlushMessages() {transport.FlushMessages();}
+
+    /**Returns {messages sent, bytes sent, write calls} for the current connection, summed over every peer on the group owner.
+     * Bytes sent divided by write calls shows how well messages are being batched.*/
+    public long[] GetSendCounters() {return transport.GetSendCounters();}
+
+    /**Sets the priority and delivery mode of a logical channel, from 0 to CHANNEL_COUNT - 1. Priority 0 is the most urgent,
+     * every channel starts at priority 0 with DELIVERY_RELIABLE. Reliable channel messages are sent in fragments of 4 KB, taking
+     * the next fragment from the most urgent channel each time, so a large transfer on a low priority channel doesn't hold up
+     * small messages on a higher one. Messages on one channel arrive in order, there is no ordering between channels.
+     * Unreliable channels use SendMessage() with their delivery mode. Can be changed at any time, takes effect on the next fragment.*/
+    public void ConfigureChannel(int channel, int priority, int delivery) {
+        if (channel >= 0 && channel < CHANNEL_COUNT) channels.Configure(channel, priority, delivery);
+    }
+
+    /**Sends a message to one peer on a logical channel, see ConfigureChannel(). Received messages come through OnMessageReceived()
+     * like any other. Clients can only use channels with the group owner, messages to other clients are relayed without them.
+     * The message is copied before this returns, like with SendMessage(byte[]).*/
+    public void SendOnChannel(int peerId, int channel, byte[] message) {
+        if (channel < 0 || channel >= CHANNEL_COUNT) eventListener.OnError(Status.ERROR_SENDING_MESSAGE.ordinal(), -1);
+        else if (channels.GetDelivery(channel) != DELIVERY_RELIABLE) transport.SendMessage(peerId, message, channels.GetDelivery(channel));
+        else transport.SendOnChannel(peerId, channel, message);
+    }
+
+    /**Returns 4 values per channel, channel after channel: {messages sent, mean queueing latency in microseconds,
+     * max queueing latency in microseconds, messages waiting}. Queueing latency runs from SendOnChannel() until the last
+     * fragment is handed to the socket. Summed over every peer on the group owner, kept across connections.*/
+    public long[] GetChannelStats() {return channels.GetStats();}
+
+    /**Streams a file to a peer in chunks, without loading it into memory. Returns a transfer ID for OnTransferProgress() and
+     * OnTransferComplete(), or -1 if the file can't be read or there is no such peer. The other device writes it to its transfer
+     * directory under the same name. If the connection drops, sending the same file again resumes where it stopped.*/
+    public int SendFile(int peerId, String path) {return transport.transfers.SendFile(peerId, path);}
+
+    /**Client only. Streams a file to the group owner, see SendFile(int, String).*/
+    public int SendFile(String path) {return SendFile(GROUP_OWNER_PEER_ID, path);}
+
+    /**Sets the directory that received files are written to. Defaults to the app's files directory.*/
+    public void SetTransferDirectory(String path) {
+        transferDirectory = path;
+        if (transport != null) transport.transfers.SetDirectory(new File(path));
+    }
+
+    /**Sets a replicated state slot, e.g. one per entity, which the peers get with the next SyncState() if it changed.
+     * The group owner replicates its slots to every client, a client to the group owner. Slots are kept across connections,
+     * and a peer that connects gets all of them. The array is kept as it is, so it must not be changed afterwards.*/
+    public void SetState(int key, byte[] value) {stateSlots.Set(key, value);}
+
+    /**Removes a replicated state slot, the peers get OnStateChanged() with null after the next SyncState().*/
+    public void RemoveState(int key) {stateSlots.Remove(key);}
+
+    /**Sends every peer the state slots that changed since it last got them, call once per tick. Each one goes as the
+     * difference from the value the peer last acknowledged. A peer that hasn't acknowledged the last 2 syncs gets nothing
+     * until it does, and then only the newest values, so a slow link never queues up stale state.
+     * Returns how many peers were sent something.*/
+    public int SyncState() {return transport == null ? 0 : transport.state.Sync();}
+
+    /**Returns the value a peer last replicated for a state slot, or null if it has no such slot.*/
+    public byte[] GetPeerState(int peerId, int key) {return transport == null ? null : transport.state.Get(peerId, key);}
+
+    /**Returns the keys of every state slot a peer replicated.*/
+    public int[] GetPeerStateKeys(int peerId) {return transport == null ? new int[0] : transport.state.GetKeys(peerId);}
+
+    /**Sets how often peers are pinged, and the shortest silence after which a peer counts as lost. The timeout grows on
+     * slow or jittery links, to the ping interval plus 4 times TCP's retransmission timeout computed from the measured
+     * round trips. Defaults to 1000 and 6000 ms. Takes effect on the next connection.*/
+    public void SetKeepAlive(int intervalMillis, int timeoutMillis) {
+        keepAliveIntervalMillis = intervalMillis;
+        keepAliveTimeoutMillis = timeoutMillis;
+    }
+
+    /**Sets how long a lost connection may take to come back before the peer is reported disconnected, and how many bytes
+     * of unacknowledged messages each side keeps to send again once it does. Nothing sent either way is lost or delivered
+     * twice by a connection that comes back in time. 0 ms reports every lost connection at once, as before.
+     * Defaults to 10000 ms and 8 MB. Takes effect on the next connection, and both devices need the same setting.*/
+    public void SetResume(int windowMillis, int replayBufferBytes) {
+        resumeWindowMillis = windowMillis;
+        this.replayBufferBytes = replayBufferBytes;
+    }
+
+    /**Group owner only. Disconnects a client once more than bytes are waiting to be sent to it, because it stopped reading
+     * or can't keep up, instead of queueing without end. Counted in STAT_SEND_QUEUE_OVERFLOWS. 0 never disconnects.
+     * Defaults to 8 MB. Takes effect on the next connection.*/
+    public void SetSendQueueLimit(int bytes) {sendQueueLimitBytes = bytes;}
+
+    /**Compresses messages at least thresholdBytes long with the codec, for every peer that can decode it, which every device
+     * running this version can. A message that doesn't shrink goes as it is, and so do channel messages, relays, datagrams
+     * and file transfers. Worth it for large or repetitive messages like JSON state, it costs CPU on both devices.
+     * Defaults to COMPRESSION_NONE and 128 bytes. Takes effect on the next connection.*/
+    public void SetCompression(int codec, int thresholdBytes) {
+        if (codec != COMPRESSION_NONE && codec != COMPRESSION_DEFLATE) throw new IllegalArgumentException("Unknown codec " + codec);
+        compressionCodec = codec;
+        compressionThreshold = thresholdBytes;
+    }
+
+    /**Returns the smoothed round trip time to a peer in milliseconds, measured by the keep-alive pings, or -1 if there is no
+     * such peer or no ping came back yet. Useful to size an interpolation delay.*/
+    public float GetRoundTripMillis(int peerId) {
+        KeepAlive.Session session = transport == null ? null : transport.GetKeepAlive(peerId);
+        return session == null ? -1 : session.GetRoundTripMillis();
+    }
+
+    /**From a client, the round trip to the group owner. From the group owner, the largest round trip to any client.*/
+    public float GetRoundTripMillis() {return transport == null ? -1 : transport.GetRoundTripMillis();}
+
+    /**Returns the mean deviation of the round trip time to a peer in milliseconds, or -1 if there is no sample yet.*/
+    public float GetJitterMillis(int peerId) {
+        KeepAlive.Session session = transport == null ? null : transport.GetKeepAlive(peerId);
+        return session == null ? -1 : session.GetJitterMillis();
+    }
+
+    /**Returns how far a peer's clock is ahead of this device's, in nanoseconds of System.nanoTime(), or CLOCK_UNKNOWN if
+     * there is no such peer or the clocks aren't synchronised yet. Estimated from the keep-alive pings like NTP does, from
+     * the quickest round trips of the last 64, and following the drift between the two clocks, so it is usually within a
+     * fraction of a millisecond on a quiet link. The first estimate comes with the first pong, one keep-alive interval in.*/
+    public long GetClockOffsetNanos(int peerId) {
+        KeepAlive.Session session = transport == null ? null : transport.GetKeepAlive(peerId);
+        return session == null ? CLOCK_UNKNOWN : session.clock.GetOffsetNanos();
+    }
+
+    /**From a client, how far the group owner's clock is ahead of this device's. On the group owner 0. Adding it to
+     * GetLocalTimeNanos() gives every device of the group the same time, e.g. to start a round together.*/
+    public long GetClockOffsetNanos() {
+        if (transport instanceof ServerTransport) return 0;
+        return GetClockOffsetNanos(GROUP_OWNER_PEER_ID);
+    }
+
+    /**The clock every time of this API is on, System.nanoTime().*/
+    public long GetLocalTimeNanos() {return System.nanoTime();}
+
+    /**Asks every peer to stamp the messages it sends this device with the time it sent them, which arrives translated to this
+     * device's clock, see GetClockOffsetNanos(). While enabled, messages come through OnTimedMessageReceived() instead of
+     * OnMessageReceived(), and in poll mode each one starts with that time as 8 bytes. Messages from another client are
+     * stamped too when the group owner has timestamps enabled as well, and travel on its clock. Messages that weren't
+     * stamped, such as datagrams, channel messages and those from an older version, or that arrive before the clocks are
+     * synchronised, have CLOCK_UNKNOWN. Message views don't get the time. Costs 8 bytes per message.
+     * Disabled by default. Peers are asked on the next connection.*/
+    public void SetMessageTimestamps(boolean enabled) {messageTimestamps = enabled;}
+
+    /**Switches to poll mode, see SetPollingEnabled(boolean, int), with a 1 MB message buffer.*/
+    public void SetPollingEnabled(boolean enabled) {SetPollingEnabled(enabled, DEFAULT_POLL_BUFFER_SIZE);}
+
+    /**In poll mode, received messages and events are queued in lock-free ring buffers instead of calling the EventListener,
+     * and the game collects them with DrainMessages() and DrainEvents(), e.g. once per frame. That is one JNI call per frame
+     * instead of one per message. The message buffer holds bufferBytes, messages that don't fit are dropped, see
+     * GetDroppedMessages(). Switching modes drops anything still queued.*/
+    public void SetPollingEnabled(boolean enabled, int bufferBytes) {
+        PollingListener listener = enabled ? new PollingListener(bufferBytes) : null;
+        polling = listener;
+        eventListener = enabled ? listener : callbacks;
+    }
+
+    /**Poll mode only. Copies as many whole pending messages as fit into dest, each one as its sender's peer ID, its length
+     * and its bytes, with both ints big-endian, see SetMessageTimestamps() for the time before the bytes. Returns the number of bytes written. Call from one thread only.*/
+    public int DrainMessages(byte[] dest) {
+        PollingListener listener = polling;
+        return listener == null ? 0 : listener.messages.Drain(dest);
+    }
+
+    /**Same as DrainMessages(byte[]), but returns every pending message in a new array, which is what a JNI caller can use.*/
+    public byte[] DrainMessages() {
+        PollingListener listener = polling;
+        return listener == null ? FrameCodec.EMPTY_PAYLOAD : listener.messages.Drain();
+    }
+
+    /**Poll mode only. Returns every pending event in a new array, each one as an EVENT code, the length of its arguments and
+     * the arguments: ints and longs big-endian, booleans as 1 byte, the path of a transfer as UTF-8 at the end, and so is the
+     * value of a state slot after a boolean that is 0 if it was removed.*/
+    public byte[] DrainEvents() {
+        PollingListener listener = polling;
+        return listener == null ? FrameCodec.EMPTY_PAYLOAD : listener.events.Drain();
+    }
+
+    /**Returns how many messages were dropped in poll mode because the buffer was full.*/
+    public long GetDroppedMessages() {
+        PollingListener listener = polling;
+        return listener == null ? 0 : listener.messages.GetDropped();
+    }
+
+    /**Returns every transport metric in one array, see the STAT and HISTOGRAM indices. Counters and histograms add up over
+     * every connection since the manager was created or ResetStats() was called, the send queue depth is the current one.
+     * Cheap enough to call every frame, though once a second is plenty for a lag report.*/
+    public long[] GetStats() {return metrics.GetStats();}
+
+    /**Clears every counter and histogram of GetStats().*/
+    public void ResetStats() {metrics.Reset();}
+
+    /**Metrics are enabled by default. Disabled, the socket threads skip them after one volatile read, and GetStats() keeps
+     * returning the values from before.*/
+    public void SetMetricsEnabled(boolean enabled) {metrics.SetEnabled(enabled);}
+
+    /**Starts recording every frame this device sends and receives over TCP, with the time it went out or came in, to an
+     * append-only file at path, replacing it. Meant for recording a real session to replay as a load test. The file is
+     * memory-mapped, so recording costs a copy per frame on the socket threads. Frames that would take it past maxMegabytes
+     * are left out. Keeps recording across connections until StopCapture(). Returns false if the file can't be created.*/
+    public boolean StartCapture(String path, int maxMegabytes) {
+        try {
+            capture.Start(new File(path), maxMegabytes * (1L << 20));
+            return true;
+        } catch (IOException e) {return false;}
+    }
+
+    /**Stops recording and completes the file. Returns its size in bytes, or -1 if nothing was being recorded or the file
+     * couldn't be completed.*/
+    public long StopCapture() {
+        try {return capture.Stop();}
+        catch (IOException e) {return -1;}
+    }
 
     /*================================ Event Handlers ================================*/
 
     public interface EventListener {
-        void OnMessageReceived(byte[] message);
+        void OnMessageReceived(int peerId, byte[] message);
+        /**Instead of OnMessageReceived() once SetMessageTimestamps(true) was called. sentAtNanos is on this device's clock.*/
+        void OnTimedMessageReceived(int peerId, byte[] message, long sentAtNanos);
+        void OnPeerConnected(int peerId);
+        void OnPeerDisconnected(int peerId);
         void OnStatusChanged(int status);
         void OnDiscoveryStatusChanged(int status);
         void OnConnectionStatusChanged(int status);
         void OnError(int status, int reason);
+        /**Called on both sides of a file transfer, about once per MB. The transfer ID is the one given by the sending side.*/
+        void OnTransferProgress(int peerId, int transferId, long transferred, long total);
+        /**The path is the file that was sent or received. A failed transfer can be resumed by sending the same file again.*/
+        void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded);
+        /**A discovered service was added, updated or expired, see SERVICE_ADDED. Read it with GetDiscoveredService().*/
+        void OnServiceChanged(int change, String macAddress);
+        /**A peer's state slot changed, with its full value, or null if it was removed. See SetState().*/
+        void OnStateChanged(int peerId, int key, byte[] value);
+    }
+
+    /**Receives messages without copying them. The ByteBuffer is a read-only view over the receive buffer, and the same view
+     * and buffer are reused for the next frame, so it is only valid during OnMessageReceived() and must not be kept or used
+     * afterwards. Copy the bytes out if they are needed later.*/
+    public interface MessageViewListener {
+        void OnMessageReceived(int peerId, ByteBuffer message);
     }
 
     private enum Status {
         WIFI_DIRECT_ENABLED, WIFI_DIRECT_DISABLED,//wifi direct toggled on/off
-        SERVICE_DISCOVERABLE, SERVICE_REMOVED, STARTED_DISCOVERY, SERVICE_LIST_CHANGED, STOPPED_DISCOVERY,//service discovery
+        SERVICE_DISCOVERABLE, SERVICE_REMOVED, STARTED_DISCOVERY, SERVICE_LIST_CHANGED, STOPPED_DISCOVERY,//service discovery, OnServiceChanged() replaced SERVICE_LIST_CHANGED
         CONNECTION_SUCCESSFUL, DISCONNECTED, CONNECTION_LOST,//connection status
         ERROR_CREATING_GROUP, ERROR_ADDING_SERVICE_REQUEST, ERROR_ADDING_SERVICE,//error status
             ERROR_DISCOVERING_SERVICES, ERROR_CONNECTING, ERROR_SOCKET_CONNECTION_FAILED,
@@ -189,6 +556,44 @@ public final class WifiDirectManager {
     /*================================ PRIVATE CLASSES ================================*/
     /*=================================================================================*/
 
+    /**Queues messages and events for DrainMessages() and DrainEvents() instead of calling back.*/
+    private static final class PollingListener implements EventListener {
+        private final MessageRing messages, events = new MessageRing(EVENT_BUFFER_SIZE);
+
+        private PollingListener(int bufferBytes) {messages = new MessageRing(bufferBytes);}
+
+        @Override public void OnMessageReceived(int peerId, byte[] message) {messages.Offer(peerId, message, 0, message.length);}
+        @Override public void OnTimedMessageReceived(int peerId, byte[] message, long sentAtNanos) {messages.Offer(peerId, sentAtNanos, ByteBuffer.wrap(message));}
+        @Override public void OnPeerConnected(int peerId) {Event(EVENT_PEER_CONNECTED, peerId);}
+        @Override public void OnPeerDisconnected(int peerId) {Event(EVENT_PEER_DISCONNECTED, peerId);}
+        @Override public void OnStatusChanged(int status) {Event(EVENT_STATUS_CHANGED, status);}
+        @Override public void OnDiscoveryStatusChanged(int status) {Event(EVENT_DISCOVERY_STATUS_CHANGED, status);}
+        @Override public void OnConnectionStatusChanged(int status) {Event(EVENT_CONNECTION_STATUS_CHANGED, status);}
+        @Override public void OnError(int status, int reason) {Event(EVENT_ERROR, ByteBuffer.allocate(8).putInt(status).putInt(reason));}
+        @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {
+            Event(EVENT_TRANSFER_PROGRESS, ByteBuffer.allocate(24).putInt(peerId).putInt(transferId).putLong(transferred).putLong(total));
+        }
+        @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {
+            byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+            Event(EVENT_TRANSFER_COMPLETE, ByteBuffer.allocate(9 + pathBytes.length).putInt(peerId).putInt(transferId)
+                .put((byte) (succeeded ? 1 : 0)).put(pathBytes));
+        }
+        @Override public void OnServiceChanged(int change, String macAddress) {
+            byte[] macBytes = macAddress.getBytes(StandardCharsets.UTF_8);
+            Event(EVENT_SERVICE_CHANGED, ByteBuffer.allocate(4 + macBytes.length).putInt(change).put(macBytes));
+        }
+        @Override public void OnStateChanged(int peerId, int key, byte[] value) {
+            int length = value == null ? 0 : value.length;
+            ByteBuffer arguments = ByteBuffer.allocate(9 + length).putInt(peerId).putInt(key).put((byte) (value == null ? 0 : 1));
+            Event(EVENT_STATE_CHANGED, value == null ? arguments : arguments.put(value));
+        }
+
+        private void Event(int event, int value) {Event(event, ByteBuffer.allocate(4).putInt(value));}
+
+        /**Queues the filled part of a full array backed buffer.*/
+        private void Event(int event, ByteBuffer arguments) {events.Offer(event, arguments.array(), 0, arguments.position());}
+    }
+
     /**Receives and handles system broadcasts. Nested in WifiDirectManager*/
     private final class WifiDirectBroadcastReceiver extends BroadcastReceiver {
         @Override public void onReceive(Context context, Intent intent) {
@@ -210,10 +615,12 @@ public final class WifiDirectManager {
                     if (info == null) return;
                     CancelDiscovery();
                     RemoveService();
-                    if (!info.groupFormed || thread != null) return;
+                    if (!info.groupFormed || transport != null) return;
                     eventListener.OnConnectionStatusChanged(Status.CONNECTION_SUCCESSFUL.ordinal());
-                    thread = info.isGroupOwner? new ServerThread() : new ClientThread(info.groupOwnerAddress.getHostAddress());
-                    thread.start();
+                    transport = info.isGroupOwner
+                        ? new ServerTransport(TransportSettings(), transportEvents)
+                        : new ClientTransport(info.groupOwnerAddress.getHostAddress(), TransportSettings(), transportEvents);
+                    transport.start();
                     break;
                 case WifiP2pManager.WIFI_P2P_DISCOVERY_CHANGED_ACTION:
                     //discovery turned on/off
@@ -230,149 +637,110 @@ public final class WifiDirectManager {
         }
     }
 
-    /*================================ Sockets and IO ================================*/
+    /*================================ Discovery ================================*/
 
-    private abstract class WifiDirectThread extends Thread {
-        protected Socket otherDeviceSocket;
-        protected InputStream iStream;
-        protected OutputStream oStream;
-        protected KeepAliveThread keepAliveThread;
-        private final ExecutorService executorService;
-        protected static final int portNum = PORT_NUM;
-
-        protected WifiDirectThread() {
-            executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-            keepAliveThread = new KeepAliveThread();
-        }
+    /**Called on the main looper for every service response and TXT record.*/
+    private void ServiceSeen(String macAddress, String deviceName, Map<String, String> record) {
+        discoveryCache.Seen(macAddress, deviceName, record, System.nanoTime());
+        ScheduleExpiry();
+    }
 
-        protected final void ReadMessages() throws IOException {
-            byte[] buffer = new byte[1024], temp;
-            int bytesRead;
-            executorService.execute(() -> {//send a keep-alive message every 5 seconds
-                while (otherDeviceSocket.isConnected()) {
-                    try {
-                        oStream.write(new byte[] {0});
-                        executorService.wait(5000);
-                    } catch (IOException | InterruptedException ignored) {
-                        eventListener.OnError(Status.ERROR_SENDING_MESSAGE.ordinal(), -1);
-                    }
-                }
-            });
-            while (otherDeviceSocket.isConnected()) {//continuously read messages
-                bytesRead = iStream.read(buffer);
-                if (bytesRead == -1) {
-                    eventListener.OnConnectionStatusChanged(Status.DISCONNECTED.ordinal());
-                    return;
-                }
-                if (isInterrupted()) return;
-                temp = new byte[bytesRead];
-                System.arraycopy(buffer, 0, temp, 0, bytesRead);
-                if (temp[0] == 0) keepAliveThread.GotKeepAlive();
-                else eventListener.OnMessageReceived(temp);
-            }
-        }
+    private void ExpireServices() {
+        discoveryCache.Expire(System.nanoTime());
+        ScheduleExpiry();
+    }
 
-        private void SendMessage(byte[] message) {
-            executorService.execute(() -> {
-                try {oStream.write(message);}
-                catch (IOException e) {eventListener.OnError(Status.ERROR_SENDING_MESSAGE.ordinal(), -1);}
-            });
-        }
+    /**Runs ExpireServices() when the oldest service expires, on the main looper. Nothing runs while the cache is empty.*/
+    private void ScheduleExpiry() {
+        mainHandler.removeCallbacks(expireServices);
+        long next = discoveryCache.NextExpiry();
+        if (next != -1) mainHandler.postDelayed(expireServices, Math.max(0, TimeUnit.NANOSECONDS.toMillis(next - System.nanoTime()) + 1));
+    }
 
-        protected final void CleanResources() {
-            try {otherDeviceSocket.close();} catch (IOException ignored) {/*Already closed*/}
-            try {iStream.close();} catch (IOException ignored) {/*Already closed*/}
-            try {oStream.close();} catch (IOException ignored) {/*Already closed*/}
-            otherDeviceSocket = null;
-            iStream = null;
-            oStream = null;
-            executorService.shutdown();
-            keepAliveThread.running = false;
-            keepAliveThread.interrupt();
-        }
+    /*================================ Sockets and IO ================================*/
 
-        protected void CloseThread() {
-            interrupt();
-            CleanResources();
+    /**Turns what the transport reports into EventListener calls.*/
+    private final class TransportEvents implements Transport.Listener {
+        @Override public void OnPeerConnected(int peerId) {eventListener.OnPeerConnected(peerId);}
+        @Override public void OnPeerDisconnected(int peerId) {eventListener.OnPeerDisconnected(peerId);}
+
+        @Override public void OnMessage(int peerId, ByteBuffer payload) {Deliver(peerId, payload, CLOCK_UNKNOWN);}
+        @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {Deliver(peerId, payload, sentAtNanos);}
+
+        /**Hands a received message to the listener. The payload is a borrowed view that is only valid during this call.*/
+        private void Deliver(int peerId, ByteBuffer payload, long sentAtNanos) {
+            boolean timed = messageTimestamps;
+            PollingListener pollingListener = polling;
+            if (pollingListener != null) {//straight from the receive buffer
+                if (timed) pollingListener.messages.Offer(peerId, sentAtNanos, payload);
+                else pollingListener.messages.Offer(peerId, payload);
+                return;
+            }
+            MessageViewListener viewListener = messageViewListener;
+            if (viewListener != null) {
+                viewListener.OnMessageReceived(peerId, payload);
+                return;
+            }
+            byte[] message = new byte[payload.remaining()];
+            payload.get(message);
+            if (timed) eventListener.OnTimedMessageReceived(peerId, message, sentAtNanos);
+            else eventListener.OnMessageReceived(peerId, message);
         }
 
-        private final class KeepAliveThread extends Thread {
-            private volatile boolean running, gotKeepAlive;
-            private KeepAliveThread() {running = true;}
-            private void GotKeepAlive() {gotKeepAlive = true;}
-            @Override public void run() {
-                while (running) {
-                    try {wait(6000);}
-                    catch (InterruptedException e) {CloseThread();}
-                    if (gotKeepAlive) gotKeepAlive = false;
-                    else {
-                        eventListener.OnConnectionStatusChanged(Status.CONNECTION_LOST.ordinal());
-                        CloseThread();
-                    }
-                }
+        @Override public void OnConnectionStatusChanged(int status) {
+            switch (status) {
+                case Transport.CONNECTED: eventListener.OnConnectionStatusChanged(Status.CONNECTION_SUCCESSFUL.ordinal()); break;
+                case Transport.CONNECT_FAILED: eventListener.OnConnectionStatusChanged(Status.ERROR_SOCKET_CONNECTION_FAILED.ordinal()); break;
+                case Transport.DISCONNECTED: eventListener.OnConnectionStatusChanged(Status.DISCONNECTED.ordinal()); break;
+                case Transport.CONNECTION_LOST: eventListener.OnConnectionStatusChanged(Status.CONNECTION_LOST.ordinal()); break;
             }
         }
-    }
 
-    private final class ServerThread extends WifiDirectThread {
-        private ServerSocket serverSocket;
-
-        private ServerThread() {super();}
-
-        @Override public void run() {
-            try {
-                serverSocket = new ServerSocket(portNum);
-                otherDeviceSocket = serverSocket.accept();
-                iStream = otherDeviceSocket.getInputStream();
-                oStream = otherDeviceSocket.getOutputStream();
-                keepAliveThread.start();
-                eventListener.OnConnectionStatusChanged(Status.CONNECTION_SUCCESSFUL.ordinal());
-            } catch (IOException e) {
-                eventListener.OnError(Status.ERROR_CREATING_SERVER_SOCKET.ordinal(), -1);
-                try {serverSocket.close();} catch (IOException ignored) {/*Already closed*/}
-                serverSocket = null;
-                CleanResources();
-            }
-            if (serverSocket == null || otherDeviceSocket == null || iStream == null || oStream == null) return;
-            try {ReadMessages();}
-            catch (IOException e) {eventListener.OnError(Status.ERROR_RECEIVING_MESSAGE.ordinal(), -1);}
-            finally {
-                try {serverSocket.close();} catch (IOException ignored) {/*Already closed*/}
-                serverSocket = null;
-                CleanResources();
+        @Override public void OnError(int error) {
+            switch (error) {
+                case Transport.ERROR_LISTENING: eventListener.OnError(Status.ERROR_CREATING_SERVER_SOCKET.ordinal(), -1); break;
+                case Transport.ERROR_CONNECTING: eventListener.OnError(Status.ERROR_SOCKET_CONNECTION_FAILED.ordinal(), -1); break;
+                case Transport.ERROR_SENDING: eventListener.OnError(Status.ERROR_SENDING_MESSAGE.ordinal(), -1); break;
+                case Transport.ERROR_RECEIVING: eventListener.OnError(Status.ERROR_RECEIVING_MESSAGE.ordinal(), -1); break;
             }
         }
 
-        @Override protected void CloseThread() {
-            super.CloseThread();
-            try {serverSocket.close();} catch (IOException ignored) {/*Already closed*/}
-            serverSocket = null;
+        @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {
+            eventListener.OnTransferProgress(peerId, transferId, transferred, total);
         }
-    }
-
-    private final class ClientThread extends WifiDirectThread {
-        private final String ipAddress;
-
-        private ClientThread (String ip) {
-            super();
-            ipAddress = ip;
+        @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {
+            eventListener.OnTransferComplete(peerId, transferId, path, succeeded);
         }
-
-        @Override public void run() {
-            try {
-                otherDeviceSocket = new Socket(ipAddress, portNum);
-                iStream = otherDeviceSocket.getInputStream();
-                oStream = otherDeviceSocket.getOutputStream();
-                keepAliveThread.start();
-                eventListener.OnConnectionStatusChanged(Status.CONNECTION_SUCCESSFUL.ordinal());
-            } catch (IOException e) {
-                eventListener.OnConnectionStatusChanged(Status.ERROR_SOCKET_CONNECTION_FAILED.ordinal());
-                CleanResources();
+        @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {
+            byte[] bytes = null;
+            if (value != null) {
+                bytes = new byte[value.remaining()];
+                value.get(bytes);
             }
-            if (otherDeviceSocket == null || iStream == null || oStream == null) return;
-            try {ReadMessages();}
-            catch (IOException ignored) {eventListener.OnError(Status.ERROR_RECEIVING_MESSAGE.ordinal(), -1);}
-            finally {CleanResources();}
+            eventListener.OnStateChanged(peerId, key, bytes);
         }
     }
+
+    /**Copies the current settings for a new connection.*/
+    private Transport.Settings TransportSettings() {
+        Transport.Settings settings = new Transport.Settings(PORT_NUM, receiveBuffers, channels, metrics);
+        settings.maxFrameSize = maxFrameSize;
+        settings.tcpNoDelay = tcpNoDelay;
+        settings.relayEnabled = relayEnabled;
+        settings.datagramsEnabled = datagramsEnabled;
+        settings.flushIntervalMicros = flushIntervalMicros;
+        settings.keepAliveIntervalMillis = keepAliveIntervalMillis;
+        settings.keepAliveTimeoutMillis = keepAliveTimeoutMillis;
+        settings.resumeWindowMillis = resumeWindowMillis;
+        settings.replayBufferBytes = replayBufferBytes;
+        settings.sendQueueLimitBytes = sendQueueLimitBytes;
+        settings.compressionCodec = compressionCodec;
+        settings.compressionThreshold = compressionThreshold;
+        settings.messageTimestamps = messageTimestamps;
+        settings.stateSlots = stateSlots;
+        settings.capture = capture;
+        String directory = transferDirectory;
+        settings.transferDirectory = directory != null ? new File(directory) : activity.getFilesDir();
+        return settings;
+    }
 }
\ No newline at end of file
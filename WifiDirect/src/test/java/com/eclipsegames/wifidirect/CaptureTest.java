@@ -0,0 +1,171 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**The log on its own, then a session over loopback captured on both ends and replayed at full and at recorded speed.*/
+public class CaptureTest {
+    @Rule public final TemporaryFolder folder = new TemporaryFolder();
+    private final List<Transport> transports = new ArrayList<>();
+
+    @After
+    public void closeAll() throws InterruptedException {
+        for (Transport transport : transports) transport.CloseThread();
+        for (Transport transport : transports) transport.join(5000);
+    }
+
+    @Test
+    public void readsBackEveryRecordAcrossRegions() throws Exception {
+        File file = folder.newFile();
+        Capture capture = new Capture();
+        assertEquals(-1, capture.Stop());
+        capture.Start(file, 1L << 30);
+        byte[] big = new byte[1 << 20];
+        for (int i = 0; i < 20; i++) {//20 MB, past the first mapped region
+            big[i] = (byte) i;
+            capture.Record(Capture.SENT, i, FrameCodec.TYPE_MESSAGE, big, 0, big.length);
+        }
+        ByteBuffer frame = ByteBuffer.wrap(FrameCodec.Encode(FrameCodec.TYPE_STATE, new byte[] {1, 2, 3})).asReadOnlyBuffer();
+        capture.Record(Capture.RECEIVED, 7, frame);
+        assertEquals(0, frame.position());
+        long size = capture.Stop();
+        assertEquals(file.length(), size);
+        assertFalse(capture.Capturing());
+
+        try (Capture.Reader reader = new Capture.Reader(file)) {
+            long nanos = 0;
+            for (int i = 0; i < 20; i++) {
+                assertTrue(reader.Next());
+                assertEquals(Capture.SENT, reader.GetDirection());
+                assertEquals(i, reader.GetPeerId());
+                assertEquals(FrameCodec.TYPE_MESSAGE, reader.GetType());
+                assertEquals(big.length, reader.GetPayload().remaining());
+                assertEquals((byte) i, reader.GetPayload().get(i));
+                assertTrue(reader.GetNanos() >= nanos);
+                nanos = reader.GetNanos();
+            }
+            assertTrue(reader.Next());
+            assertEquals(Capture.RECEIVED, reader.GetDirection());
+            assertEquals(FrameCodec.TYPE_STATE, reader.GetType());
+            assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), reader.GetPayload());
+            assertFalse(reader.Next());
+        }
+
+        try (RandomAccessFile cut = new RandomAccessFile(file, "rw")) {cut.setLength(size - 1);}//as if the last record was cut short
+        int records = 0;
+        try (Capture.Reader reader = new Capture.Reader(file)) {while (reader.Next()) records++;}
+        assertEquals(20, records);
+    }
+
+    @Test
+    public void dropsWhatDoesNotFit() throws Exception {
+        File file = folder.newFile();
+        Capture capture = new Capture();
+        capture.Start(file, 1000);
+        for (int i = 0; i < 10; i++) capture.Record(Capture.SENT, 0, FrameCodec.TYPE_MESSAGE, new byte[200], 0, 200);
+        assertEquals(6, capture.GetDropped());//16 bytes of file header, then 218 per record
+        assertEquals(16 + 4 * 218, capture.Stop());
+        capture.Record(Capture.SENT, 0, FrameCodec.TYPE_MESSAGE, new byte[1], 0, 1);//not capturing, ignored
+    }
+
+    /**A client and the group owner both capture a session with compression, relays and control frames in it. Replaying
+     * either capture delivers every message, and at recorded speed it takes about as long as the session did.*/
+    @Test
+    public void capturesAndReplaysALoopbackSession() throws Exception {
+        Transport.Settings ownerSettings = new Transport.Settings(0);
+        ownerSettings.compressionCodec = Compression.DEFLATE;
+        ownerSettings.relayEnabled = true;
+        ownerSettings.keepAliveIntervalMillis = 20;
+        ServerTransport owner = new ServerTransport(ownerSettings, new Counter());
+        transports.add(owner);
+        owner.start();
+        while (owner.GetPort() < 0) Thread.sleep(1);
+        Transport.Settings clientSettings = new Transport.Settings(owner.GetPort());
+        clientSettings.compressionCodec = Compression.DEFLATE;
+        Counter clientReceived = new Counter(), otherReceived = new Counter();
+        ClientTransport client = new ClientTransport("127.0.0.1", clientSettings, clientReceived);
+        ClientTransport other = new ClientTransport("127.0.0.1", new Transport.Settings(owner.GetPort()), otherReceived);
+        transports.add(client);
+        transports.add(other);
+        File ownerCapture = folder.newFile(), clientCapture = folder.newFile();
+        ownerSettings.capture.Start(ownerCapture, 1L << 30);
+        clientSettings.capture.Start(clientCapture, 1L << 30);
+        client.start();
+        other.start();
+        while (client.GetLocalPeerId() < 0 || other.GetLocalPeerId() < 0) Thread.sleep(1);
+
+        long start = System.nanoTime();
+        for (int tick = 0; tick < 100; tick++) {
+            byte[] snapshot = ("{\"tick\":" + tick + ",\"players\":[{\"x\":1},{\"x\":2},{\"x\":3},{\"x\":4}]}").repeat(10).getBytes(StandardCharsets.UTF_8);
+            owner.BroadcastMessage(snapshot);
+            client.SendMessage(new byte[] {(byte) tick});
+            if (tick % 10 == 0) client.SendMessage(other.GetLocalPeerId(), new byte[] {1, 2});//relayed
+            Thread.sleep(3);
+        }
+        while (clientReceived.count.get() < 100 || otherReceived.count.get() < 110) Thread.sleep(1);
+        long sessionNanos = System.nanoTime() - start;
+        ownerSettings.capture.Stop();
+        clientSettings.capture.Stop();
+
+        int[] clientFrames = CountFrames(clientCapture);
+        assertEquals(110, clientFrames[0]);//inputs and relays sent
+        assertEquals(100, clientFrames[1]);//snapshots received, compressed
+        assertTrue(clientFrames[2] > 0);//hello, welcome, pings and acks
+
+        Replay.Result clientReplay = Replay.Run(clientCapture, Replay.MAX_SPEED, 10_000);
+        assertEquals(210, clientReplay.messages);
+        assertTrue(clientReplay.skipped > 0);
+        Replay.Result ownerReplay = Replay.Run(ownerCapture, Replay.MAX_SPEED, 10_000);
+        assertEquals(200 + 110 + 10, ownerReplay.messages);//snapshots to both, everything from the client, relays to the other
+        long[] latency = ownerReplay.Latency();
+        assertEquals(320, latency[0]);
+
+        Replay.Result recorded = Replay.Run(clientCapture, 1, 10_000);
+        Replay.Result faster = Replay.Run(clientCapture, 4, 10_000);
+        assertEquals(210, recorded.messages);
+        assertEquals(210, faster.messages);
+        assertTrue(recorded.elapsedNanos > sessionNanos / 2);
+        assertTrue(faster.elapsedNanos < recorded.elapsedNanos);
+    }
+
+    /**Returns the data frames sent, the data frames received, and every other frame of a capture.*/
+    private static int[] CountFrames(File capture) throws Exception {
+        int[] counts = new int[3];
+        try (Capture.Reader reader = new Capture.Reader(capture)) {
+            while (reader.Next()) {
+                byte type = reader.GetType();
+                boolean data = type == FrameCodec.TYPE_MESSAGE || type == Compression.TYPE_COMPRESSED_MESSAGE
+                    || type == FrameCodec.TYPE_RELAY || type == FrameCodec.TYPE_RELAYED;
+                counts[!data ? 2 : reader.GetDirection() == Capture.SENT ? 0 : 1]++;
+            }
+        }
+        return counts;
+    }
+
+    private static final class Counter implements Transport.Listener {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override public void OnMessage(int peerId, ByteBuffer payload) {count.incrementAndGet();}
+        @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {OnMessage(peerId, payload);}
+        @Override public void OnPeerConnected(int peerId) {}
+        @Override public void OnPeerDisconnected(int peerId) {}
+        @Override public void OnConnectionStatusChanged(int status) {}
+        @Override public void OnError(int error) {}
+        @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {}
+        @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {}
+        @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {}
+    }
+}
@@ -0,0 +1,168 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**Logical channel tests. A bulk transfer on a low priority channel is queued first and a small message on an urgent channel
+ * right after it, and the small message has to arrive before the bulk transfer is done. ChannelBenchmark measures how long
+ * the urgent message takes.*/
+public class ChannelMuxTest {
+    private static final int BULK = 0, URGENT = 1;
+    private static final int BULK_SIZE = 8 * 1024 * 1024;
+
+    /**Reassembles channel messages and records which channel each one came from, in arrival order.*/
+    private static final class Receiver implements ChannelMux.Assembler.Handler {
+        final List<Integer> channels = new ArrayList<>();
+        final List<byte[]> messages = new ArrayList<>();
+        private final ChannelMux.Assembler assembler = new ChannelMux.Assembler(16 * 1024 * 1024);
+
+        @Override public void OnMessage(int channel, byte[] buffer, int offset, int length) {
+            channels.add(channel);
+            messages.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+
+        /**Reads until the given number of channel messages arrived.*/
+        void ReadFrom(InputStream in, int count) throws IOException {
+            FrameCodec.Decoder decoder = new FrameCodec.Decoder(64 * 1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+            while (messages.size() < count && decoder.ReadFrom(in, (type, buffer, offset, length) -> {
+                if (type == FrameCodec.TYPE_FRAGMENT) assembler.OnFragment(buffer, offset, length, this);
+            }));
+        }
+    }
+
+    private static ChannelMux.Config UrgentOverBulk() {
+        ChannelMux.Config config = new ChannelMux.Config();
+        config.Configure(URGENT, 0, WifiDirectManager.DELIVERY_RELIABLE);
+        config.Configure(BULK, 5, WifiDirectManager.DELIVERY_RELIABLE);
+        return config;
+    }
+
+    private static byte[] Bulk() {
+        byte[] bulk = new byte[BULK_SIZE];
+        for (int i = 0; i < bulk.length; i++) bulk[i] = (byte) (i * 31);
+        return bulk;
+    }
+
+    @Test
+    public void fragmentsInterleaveByPriority() throws Exception {
+        ChannelMux.Config config = UrgentOverBulk();
+        ChannelMux.Scheduler scheduler = new ChannelMux.Scheduler(config);
+        byte[] bulk = new byte[3 * ChannelMux.FRAGMENT_SIZE + 10];
+        scheduler.Offer(BULK, bulk);
+        byte[] first = scheduler.NextFragment();
+        scheduler.Offer(URGENT, new byte[] {1});
+        scheduler.Offer(URGENT, new byte[] {2});
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(first);
+        int frames = 1;
+        for (byte[] frame; (frame = scheduler.NextFragment()) != null; frames++) stream.write(frame);
+        assertEquals(6, frames);//4 bulk fragments and 2 urgent messages
+        Receiver receiver = new Receiver();
+        receiver.ReadFrom(new ByteArrayInputStream(stream.toByteArray()), 3);
+        assertEquals(Arrays.asList(URGENT, URGENT, BULK), receiver.channels);
+        assertEquals(1, receiver.messages.get(0)[0]);
+        assertEquals(2, receiver.messages.get(1)[0]);
+        assertArrayEquals(bulk, receiver.messages.get(2));
+        long[] stats = config.GetStats();
+        assertEquals(1, stats[BULK * 4]);
+        assertEquals(2, stats[URGENT * 4]);
+        assertEquals(0, stats[URGENT * 4 + 3]);
+    }
+
+    @Test
+    public void equalPriorityChannelsTakeTurns() throws Exception {
+        ChannelMux.Scheduler scheduler = new ChannelMux.Scheduler(new ChannelMux.Config());//every channel at priority 0
+        byte[] first = new byte[3 * ChannelMux.FRAGMENT_SIZE], second = new byte[3 * ChannelMux.FRAGMENT_SIZE];
+        Arrays.fill(second, (byte) 7);
+        scheduler.Offer(BULK, first);
+        scheduler.Offer(URGENT, second);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<Integer> order = new ArrayList<>();
+        for (byte[] frame; (frame = scheduler.NextFragment()) != null;) {
+            order.add((int) frame[FrameCodec.HEADER_SIZE]);
+            stream.write(frame);
+        }
+        assertEquals(Arrays.asList(BULK, URGENT, BULK, URGENT, BULK, URGENT), order);
+        Receiver receiver = new Receiver();
+        receiver.ReadFrom(new ByteArrayInputStream(stream.toByteArray()), 2);
+        assertArrayEquals(first, receiver.messages.get(0));
+        assertArrayEquals(second, receiver.messages.get(1));
+    }
+
+    @Test
+    public void urgentMessageOvertakesBulkTransferFromWriter() throws Exception {
+        ChannelMux.Config config = UrgentOverBulk();
+        byte[] bulk = Bulk();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+             Socket accepted = server.accept()) {
+            FrameWriter writer = new FrameWriter("ChannelWriter", new ChannelMux.Scheduler(config), e -> {});
+            writer.EnqueueOnChannel(BULK, bulk);
+            writer.Start(client.getOutputStream());
+            Thread.sleep(20);//let the bulk transfer fill the socket buffers
+            writer.EnqueueOnChannel(URGENT, new byte[] {42});
+            Receiver receiver = new Receiver();
+            receiver.ReadFrom(accepted.getInputStream(), 2);
+            writer.Close();
+            assertEquals(Arrays.asList(URGENT, BULK), receiver.channels);
+            assertArrayEquals(bulk, receiver.messages.get(1));
+        }
+        long[] stats = config.GetStats();
+        assertTrue(stats[URGENT * 4 + 2] < stats[BULK * 4 + 2]);
+    }
+
+    @Test
+    public void urgentMessageOvertakesBulkTransferFromGroupOwner() throws Exception {
+        CountDownLatch connected = new CountDownLatch(1);
+        SelectorServer server = new SelectorServer(0, 16 * 1024 * 1024, new BufferPool(1, 16 * 1024), UrgentOverBulk(), new SelectorServer.Listener() {
+            @Override public void OnPeerConnected(int peerId) {connected.countDown();}
+            @Override public void OnPeerDisconnected(int peerId) {}
+            @Override public void OnPeerResumed(int peerId) {}
+            @Override public void OnFrame(int peerId, byte type, ByteBuffer payload) {}
+            @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {}
+            @Override public void OnError(int peerId, IOException e) {fail(e.toString());}
+        });
+        Thread loop = new Thread(() -> {
+            try {server.Run();} catch (IOException e) {throw new RuntimeException(e);}
+        });
+        loop.start();
+        byte[] bulk = Bulk();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.GetPort())) {
+            assertTrue(connected.await(5, TimeUnit.SECONDS));
+            assertTrue(server.SendOnChannel(1, BULK, bulk));
+            Thread.sleep(20);
+            assertTrue(server.SendOnChannel(1, URGENT, new byte[] {42}));
+            Receiver receiver = new Receiver();
+            receiver.ReadFrom(socket.getInputStream(), 2);
+            assertEquals(Arrays.asList(URGENT, BULK), receiver.channels);
+            assertArrayEquals(bulk, receiver.messages.get(1));
+        } finally {
+            server.Close();
+            loop.join();
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsMessagesOverTheLimit() throws Exception {
+        ChannelMux.Scheduler scheduler = new ChannelMux.Scheduler(new ChannelMux.Config());
+        scheduler.Offer(BULK, new byte[2 * ChannelMux.FRAGMENT_SIZE]);
+        byte[] frame = scheduler.NextFragment();
+        new ChannelMux.Assembler(ChannelMux.FRAGMENT_SIZE).OnFragment(frame, FrameCodec.HEADER_SIZE, frame.length - FrameCodec.HEADER_SIZE, (channel, buffer, offset, length) -> {});
+    }
+}
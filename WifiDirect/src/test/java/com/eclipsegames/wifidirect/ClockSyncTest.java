@@ -0,0 +1,248 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**The estimator against simulated clocks, then a group owner and two clients synchronising through a proxy that delays
+ * every byte by a jittery amount, and timing the messages they send each other.*/
+public class ClockSyncTest {
+    private static final long MILLIS = 1_000_000;
+    private final List<Transport> transports = new ArrayList<>();
+    private DelayProxy proxy;
+
+    @After
+    public void closeAll() throws Exception {
+        for (Transport transport : transports) transport.CloseThread();
+        for (Transport transport : transports) transport.join(5000);
+        if (proxy != null) proxy.Close();
+    }
+
+    @Test
+    public void rejectsImpossibleSamples() {
+        ClockSync clock = new ClockSync();
+        assertFalse(clock.AddSample(100, 50, 60, 90));//came back before it was sent
+        assertFalse(clock.AddSample(0, 50, 40, 100));//the peer answered before it was asked
+        assertFalse(clock.AddSample(0, 10, 200, 100));//the peer took longer than the round trip
+        assertFalse(clock.HasEstimate());
+        assertEquals(ClockSync.UNKNOWN, clock.GetOffsetNanos());
+        assertEquals(ClockSync.UNKNOWN, clock.ToLocalNanos(123));
+        assertTrue(clock.AddSample(0, 1005, 1006, 11));
+        assertEquals(1000, clock.GetOffsetNanos(5));
+    }
+
+    /**The peer's clock starts near the end of the long range and runs 200 ppm fast. Each way takes 3 ms and up to 2 ms of
+     * jitter, and one exchange in 8 is held up by 40 ms on one side. Averaging every sample would be off by milliseconds,
+     * and so would ignoring the drift, which adds 6 ms across the window.*/
+    @Test
+    public void followsDriftThroughJitterAndSpikes() {
+        Random random = new Random(5);
+        double rate = 1 + 200e-6;
+        long origin = Long.MAX_VALUE - 5_000 * MILLIS;//wraps around a few seconds in
+        ClockSync clock = new ClockSync();
+        long local = 1_000 * MILLIS, worst = 0, total = 0;
+        int checks = 0;
+        for (int ping = 0; ping < 240; ping++, local += 500 * MILLIS) {
+            long t0 = local;
+            long t1Local = t0 + 3 * MILLIS + random.nextInt(2_000_000) + (random.nextInt(8) == 0 ? 40 * MILLIS : 0);
+            long t2Local = t1Local + 100_000;
+            long t3 = t2Local + 3 * MILLIS + random.nextInt(2_000_000) + (random.nextInt(8) == 0 ? 40 * MILLIS : 0);
+            assertTrue(clock.AddSample(t0, origin + (long) (t1Local * rate), origin + (long) (t2Local * rate), t3));
+            if (ping < ClockSync.WINDOW) continue;
+            long now = t3 + 200 * MILLIS, truth = origin + (long) (now * rate) - now;
+            long error = Math.abs(clock.GetOffsetNanos(now) - truth);
+            worst = Math.max(worst, error);
+            total += error;
+            checks++;
+            assertEquals(now, clock.ToLocalNanos(origin + (long) (now * rate)), 750_000);
+        }
+        assertTrue("Offset off by " + worst + " ns", worst < 750_000);
+        assertTrue(total / checks < 200_000);
+        assertEquals(200e-6, clock.GetDrift(), 50e-6);
+    }
+
+    /**The group owner and the first client ask for timestamps, the second one doesn't. Every link is 10 ms each way plus up
+     * to 4 ms of jitter, so the clocks, which are the same one here, must come out within a millisecond of each other, and
+     * every timed message must arrive about a one way delay after it was sent, compressed or not, broadcast or not. A
+     * relayed one crosses two links, so it arrives about two after.*/
+    @Test
+    public void synchronisesAndTimesMessagesOverADelayedLink() throws Exception {
+        Transport.Settings ownerSettings = new Transport.Settings(0);
+        ownerSettings.keepAliveIntervalMillis = 20;
+        ownerSettings.messageTimestamps = true;
+        ownerSettings.relayEnabled = true;
+        ownerSettings.compressionCodec = Compression.DEFLATE;
+        ownerSettings.compressionThreshold = 64;
+        Timer ownerTimer = new Timer();
+        ServerTransport owner = new ServerTransport(ownerSettings, ownerTimer);
+        transports.add(owner);
+        owner.start();
+        while (owner.GetPort() < 0) Thread.sleep(1);
+        proxy = new DelayProxy(owner.GetPort(), 10 * MILLIS, 4 * MILLIS);
+
+        Transport.Settings clientSettings = new Transport.Settings(proxy.GetPort());
+        clientSettings.keepAliveIntervalMillis = 20;
+        clientSettings.messageTimestamps = true;
+        clientSettings.compressionCodec = Compression.DEFLATE;
+        clientSettings.compressionThreshold = 64;
+        Timer clientTimer = new Timer(), plainTimer = new Timer();
+        ClientTransport client = new ClientTransport("127.0.0.1", clientSettings, clientTimer);
+        Transport.Settings plainSettings = new Transport.Settings(proxy.GetPort());
+        plainSettings.keepAliveIntervalMillis = 20;
+        ClientTransport plain = new ClientTransport("127.0.0.1", plainSettings, plainTimer);
+        transports.add(client);
+        transports.add(plain);
+        client.start();
+        plain.start();
+        while (client.GetLocalPeerId() < 0 || plain.GetLocalPeerId() < 0) Thread.sleep(1);
+        int clientId = client.GetLocalPeerId(), plainId = plain.GetLocalPeerId();
+        Thread.sleep(1500);//a window of pongs
+
+        ClockSync clientClock = client.GetKeepAlive(SelectorServer.GROUP_OWNER_ID).clock, ownerClock = owner.GetKeepAlive(clientId).clock;
+        assertEquals(0, clientClock.GetOffsetNanos(), MILLIS);
+        assertEquals(0, ownerClock.GetOffsetNanos(), MILLIS);
+        assertEquals(0, plain.GetKeepAlive(SelectorServer.GROUP_OWNER_ID).clock.GetOffsetNanos(), MILLIS);
+
+        byte[] small = {1, 2, 3}, large = "{\"x\":1,\"y\":2}".repeat(40).getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 20; i++) {
+            owner.SendMessage(clientId, small);
+            owner.BroadcastMessage(large);
+            client.SendMessage(small);
+            client.SendMessage(large);
+            plain.BroadcastMessage(small);//stamped by plain, since the group owner asked, and relayed stamped to client
+            client.SendMessage(plainId, large);
+            Thread.sleep(5);
+        }
+        while (clientTimer.Count() < 60 || ownerTimer.Count() < 60 || plainTimer.untimed < 40) Thread.sleep(1);
+        Thread.sleep(50);
+        assertEquals(60, clientTimer.Count());
+        assertEquals(60, ownerTimer.Count());
+        assertEquals(0, plainTimer.Count());//didn't ask, so not stamped
+        assertEquals(40, plainTimer.untimed);
+        assertEquals(20, clientTimer.sizes.get(large.length).size());
+        assertEquals(40, ownerTimer.sizes.get(small.length).size());
+        assertEquals(20, ownerTimer.sizes.get(large.length).size());
+        List<Long> direct = new ArrayList<>(clientTimer.delays.get(SelectorServer.GROUP_OWNER_ID));
+        assertEquals(40, direct.size());
+        for (List<Long> delays : ownerTimer.delays.values()) direct.addAll(delays);
+        for (long delay : direct) assertTrue("Delivered " + delay + " ns after sending", delay > 9 * MILLIS && delay < 40 * MILLIS);
+        List<Long> relayed = clientTimer.delays.get(plainId);
+        assertEquals(20, relayed.size());
+        for (long delay : relayed) assertTrue("Relayed " + delay + " ns after sending", delay > 19 * MILLIS && delay < 60 * MILLIS);
+    }
+
+    /**Records how long after sending every timed message arrived, by sender and by length.*/
+    private static final class Timer implements Transport.Listener {
+        final ConcurrentHashMap<Integer, List<Long>> delays = new ConcurrentHashMap<>(), sizes = new ConcurrentHashMap<>();
+        volatile int untimed;
+
+        int Count() {return delays.values().stream().mapToInt(List::size).sum();}
+
+        @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {
+            long delay = System.nanoTime() - sentAtNanos;
+            assertNotEquals(ClockSync.UNKNOWN, sentAtNanos);
+            byte[] message = new byte[payload.remaining()];
+            payload.get(message);
+            if (message.length > 3) assertTrue(new String(message, StandardCharsets.UTF_8).startsWith("{\"x\":1"));
+            else assertArrayEquals(new byte[] {1, 2, 3}, message);
+            sizes.computeIfAbsent(message.length, length -> new CopyOnWriteArrayList<>()).add(delay);
+            delays.computeIfAbsent(peerId, id -> new CopyOnWriteArrayList<>()).add(delay);
+        }
+        @SuppressWarnings("NonAtomicOperationOnVolatileField")//one reading thread
+        @Override public void OnMessage(int peerId, ByteBuffer payload) {untimed++;}
+        @Override public void OnPeerConnected(int peerId) {}
+        @Override public void OnPeerDisconnected(int peerId) {}
+        @Override public void OnConnectionStatusChanged(int status) {}
+        @Override public void OnError(int error) {}
+        @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {}
+        @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {}
+        @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {}
+    }
+
+    /**Forwards every connection to the target port, holding each chunk back by delay plus up to jitter, in order.*/
+    private static final class DelayProxy {
+        private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+        private final Random random = new Random(21);
+        private final long delayNanos, jitterNanos;
+
+        DelayProxy(int targetPort, long delayNanos, long jitterNanos) throws IOException {
+            this.delayNanos = delayNanos;
+            this.jitterNanos = jitterNanos;
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket client = serverSocket.accept(), target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                        client.setTcpNoDelay(true);
+                        target.setTcpNoDelay(true);
+                        sockets.add(client);
+                        sockets.add(target);
+                        Pump(client, target);
+                        Pump(target, client);
+                    }
+                } catch (IOException ignored) {/*Closed*/}
+            }, "ProxyAcceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int GetPort() {return serverSocket.getLocalPort();}
+
+        /**One thread reads and stamps each chunk with its release time, another writes it once that time has come.*/
+        private void Pump(Socket from, Socket to) {
+            BlockingQueue<Object[]> chunks = new LinkedBlockingQueue<>();
+            Thread reader = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                long release = 0;
+                try {
+                    InputStream in = from.getInputStream();
+                    for (int read; (read = in.read(buffer)) != -1;) {
+                        long jitter;
+                        synchronized (random) {jitter = (long) (random.nextDouble() * jitterNanos);}
+                        release = Math.max(release, System.nanoTime() + delayNanos + jitter);//bytes never overtake each other
+                        chunks.add(new Object[] {release, Arrays.copyOf(buffer, read)});
+                    }
+                } catch (IOException ignored) {/*Closed*/}
+                chunks.add(new Object[0]);
+            }, "ProxyReader");
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = to.getOutputStream();
+                    for (Object[] chunk; (chunk = chunks.take()).length > 0;) {
+                        for (long wait; (wait = (long) chunk[0] - System.nanoTime()) > 0;) LockSupport.parkNanos(wait);
+                        out.write((byte[]) chunk[1]);
+                    }
+                    to.shutdownOutput();
+                } catch (IOException | InterruptedException ignored) {/*Closed*/}
+            }, "ProxyWriter");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        void Close() throws IOException {
+            serverSocket.close();
+            for (Socket socket : sockets) socket.close();
+        }
+    }
+}
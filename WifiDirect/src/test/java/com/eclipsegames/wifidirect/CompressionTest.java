@@ -0,0 +1,176 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**The codec on its own, then a group owner and clients over loopback with compression negotiated, and with a client from
+ * before compression that doesn't announce any codec.*/
+public class CompressionTest {
+    private final List<Transport> transports = new ArrayList<>();
+
+    @After
+    public void closeAll() throws InterruptedException {
+        for (Transport transport : transports) transport.CloseThread();
+        for (Transport transport : transports) transport.join(5000);
+    }
+
+    /**Something like a game's state, repetitive but not constant.*/
+    private static byte[] Compressible(int size, int seed) {
+        StringBuilder state = new StringBuilder();
+        for (int i = 0; state.length() < size; i++)
+            state.append("{\"id\":").append(i).append(",\"x\":").append((i * 7 + seed) % 100).append(",\"alive\":true}");
+        return Arrays.copyOf(state.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    private static byte[] Decompress(Compression.Decoder decoder, byte[] payload, int length) throws ProtocolException {
+        ByteBuffer view = decoder.Decompress(payload, 0, length);
+        byte[] message = new byte[view.remaining()];
+        view.get(message);
+        return message;
+    }
+
+    @Test
+    public void roundTripsAndSkipsWhatDoesNotShrink() throws Exception {
+        Compression compression = new Compression(Compression.DEFLATE, 128);
+        Compression.Encoder encoder = compression.NewEncoder();
+        Compression.Decoder decoder = new Compression.Decoder(FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        for (int size : new int[] {128, 1000, 64 * 1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE}) {
+            byte[] message = Compressible(size, size);
+            int length = encoder.Compress(message);
+            assertTrue(size + " bytes", length > 0 && length < size);
+            assertArrayEquals(message, Decompress(decoder, encoder.Output(), length));
+        }
+        assertEquals(-1, encoder.Compress(Compressible(127, 0)));//below the threshold
+        byte[] noise = new byte[4096];
+        new Random(1).nextBytes(noise);
+        assertEquals(-1, encoder.Compress(noise));
+        assertNull(compression.EncodeFrame(noise));
+
+        byte[] message = Compressible(500, 1), frame = compression.EncodeFrame(message);
+        assertEquals(Compression.TYPE_COMPRESSED_MESSAGE, frame[4]);
+        assertEquals(frame.length - FrameCodec.HEADER_SIZE, FrameCodec.ReadInt(frame, 0));
+        assertArrayEquals(message, Decompress(decoder, Arrays.copyOfRange(frame, FrameCodec.HEADER_SIZE, frame.length), frame.length - FrameCodec.HEADER_SIZE));
+        assertNull(new Compression(Compression.NONE, 0).EncodeFrame(message));
+    }
+
+    @Test
+    public void negotiatesOnlyKnownCodecs() {
+        Compression compression = new Compression(Compression.DEFLATE, 0);
+        assertEquals(Compression.DEFLATE, compression.Choose(Compression.DECODABLE));
+        assertEquals(Compression.NONE, compression.Choose((byte) 0));
+        assertEquals(Compression.NONE, new Compression(Compression.NONE, 0).Choose(Compression.DECODABLE));
+    }
+
+    @Test
+    public void rejectsCorruptOrOversizedMessages() {
+        Compression.Encoder encoder = new Compression(Compression.DEFLATE, 0).NewEncoder();
+        int length = encoder.Compress(Compressible(10_000, 0));
+        byte[] payload = Arrays.copyOf(encoder.Output(), length);
+        Compression.Decoder small = new Compression.Decoder(1000), decoder = new Compression.Decoder(1 << 20);
+        assertThrows(ProtocolException.class, () -> small.Decompress(payload, 0, length));
+        assertThrows(ProtocolException.class, () -> decoder.Decompress(payload, 0, length / 2));//truncated
+        byte[] wrongLength = payload.clone();
+        FrameCodec.WriteInt(wrongLength, 1, 10_001);
+        assertThrows(ProtocolException.class, () -> decoder.Decompress(wrongLength, 0, length));
+        byte[] unknownCodec = payload.clone();
+        unknownCodec[0] = 5;
+        assertThrows(ProtocolException.class, () -> decoder.Decompress(unknownCodec, 0, length));
+        byte[] corrupt = payload.clone();
+        for (int i = 8; i < length; i += 3) corrupt[i] ^= 0x55;
+        assertThrows(ProtocolException.class, () -> decoder.Decompress(corrupt, 0, length));
+    }
+
+    /**Every message arrives intact both ways, broadcasts included, and the compressed ones put a fraction of their size on the
+     * wire. A client without compression still gets broadcasts it can read.*/
+    @Test
+    public void compressesOverLoopbackForPeersThatDecode() throws Exception {
+        BlockingQueue<byte[]> ownerReceived = new LinkedBlockingQueue<>(), clientReceived = new LinkedBlockingQueue<>();
+        Transport.Settings ownerSettings = new Transport.Settings(0);
+        ownerSettings.compressionCodec = Compression.DEFLATE;
+        ServerTransport owner = new ServerTransport(ownerSettings, new Recorder(ownerReceived));
+        transports.add(owner);
+        owner.start();
+        while (owner.GetPort() < 0) Thread.sleep(1);
+        Transport.Settings clientSettings = new Transport.Settings(owner.GetPort());
+        clientSettings.compressionCodec = Compression.DEFLATE;
+        ClientTransport client = new ClientTransport("127.0.0.1", clientSettings, new Recorder(clientReceived));
+        transports.add(client);
+        client.start();
+        while (client.GetLocalPeerId() < 0) Thread.sleep(1);
+
+        try (Socket old = new Socket("127.0.0.1", owner.GetPort())) {
+            old.getOutputStream().write(FrameCodec.Encode(FrameCodec.TYPE_RESUME, new byte[20]));//a hello without codecs
+            InputStream in = old.getInputStream();
+            assertEquals(FrameCodec.TYPE_WELCOME, NextFrame(in, FrameCodec.TYPE_WELCOME)[0]);
+            while (owner.GetPeerCount() < 2) Thread.sleep(1);
+
+            long clientBytes = clientSettings.metrics.Get(Metrics.BYTES_OUT), raw = 0;
+            List<byte[]> sent = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                byte[] message = Compressible(100 + i * 50, i);
+                sent.add(message);
+                raw += message.length;
+                client.SendMessage(message);
+                owner.BroadcastMessage(message);
+            }
+            client.SendMessage(Compressible(20, 0));//below the threshold
+            for (byte[] message : sent) {
+                assertArrayEquals(message, ownerReceived.poll(5, TimeUnit.SECONDS));
+                assertArrayEquals(message, clientReceived.poll(5, TimeUnit.SECONDS));
+                byte[] frame = NextFrame(in, FrameCodec.TYPE_MESSAGE);
+                assertArrayEquals(message, Arrays.copyOfRange(frame, 1, frame.length));
+            }
+            assertArrayEquals(Compressible(20, 0), ownerReceived.poll(5, TimeUnit.SECONDS));
+            long wire = clientSettings.metrics.Get(Metrics.BYTES_OUT) - clientBytes;
+            assertTrue(wire < raw / 3);
+        }
+    }
+
+    /**Returns the type then the payload of the next frame of that type from a raw socket, skipping the others.*/
+    private static byte[] NextFrame(InputStream in, byte type) throws Exception {
+        while (true) {
+            byte[] header = in.readNBytes(FrameCodec.HEADER_SIZE);
+            assertEquals(FrameCodec.HEADER_SIZE, header.length);
+            byte[] frame = new byte[1 + FrameCodec.ReadInt(header, 0)];
+            frame[0] = header[4];
+            assertEquals(frame.length - 1, in.readNBytes(frame, 1, frame.length - 1));
+            assertNotEquals(Compression.TYPE_COMPRESSED_MESSAGE, frame[0]);
+            if (frame[0] == type) return frame;
+        }
+    }
+
+    /**Keeps a copy of every message.*/
+    private static final class Recorder implements Transport.Listener {
+        private final BlockingQueue<byte[]> messages;
+        Recorder(BlockingQueue<byte[]> messages) {this.messages = messages;}
+
+        @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {OnMessage(peerId, payload);}
+        @Override public void OnPeerConnected(int peerId) {}
+        @Override public void OnPeerDisconnected(int peerId) {}
+        @Override public void OnMessage(int peerId, ByteBuffer payload) {
+            byte[] message = new byte[payload.remaining()];
+            payload.get(message);
+            messages.add(message);
+        }
+        @Override public void OnConnectionStatusChanged(int status) {}
+        @Override public void OnError(int error) {}
+        @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {}
+        @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {}
+        @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {}
+    }
+}
@@ -0,0 +1,213 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**UDP link tests over loopback, through a local proxy that drops and reorders datagrams.*/
+public class DatagramLinkTest {
+    private static final int CLIENT_ID = 1;
+
+    /**Forwards datagrams between one client and the group owner, dropping and swapping some of them.*/
+    private static final class LossyProxy implements AutoCloseable {
+        private final DatagramChannel channel;
+        private final InetSocketAddress target;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        LossyProxy(int targetPort, double loss, double reorder, long seed) throws IOException {
+            channel = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            target = new InetSocketAddress(InetAddress.getLoopbackAddress(), targetPort);
+            Random random = new Random(seed);
+            thread = new Thread(() -> {
+                ByteBuffer buffer = ByteBuffer.allocate(2048), held = null;
+                SocketAddress client = null, heldTo = null;
+                try {
+                    while (running) {
+                        buffer.clear();
+                        SocketAddress from = channel.receive(buffer);
+                        buffer.flip();
+                        SocketAddress to = from.equals(target) ? client : target;
+                        if (to == target) client = from;
+                        if (to == null || random.nextDouble() < loss) continue;
+                        ByteBuffer packet = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                        if (held == null && random.nextDouble() < reorder) {//send it after the next one
+                            held = packet;
+                            heldTo = to;
+                            continue;
+                        }
+                        channel.send(packet, to);
+                        if (held != null) channel.send(held, heldTo);
+                        held = null;
+                    }
+                } catch (IOException ignored) {/*Closed*/}
+            });
+            thread.start();
+        }
+
+        InetSocketAddress Address() throws IOException {return (InetSocketAddress) channel.getLocalAddress();}
+
+        @Override public void close() throws Exception {
+            running = false;
+            channel.close();
+            thread.join();
+        }
+    }
+
+    /**Group owner link that records the first 4 bytes of every datagram, and a client link connected to it through the proxy.*/
+    private static final class Pair implements AutoCloseable {
+        final List<Integer> received = new CopyOnWriteArrayList<>();
+        final DatagramLink server, client;
+        final LossyProxy proxy;
+
+        Pair(double loss, double reorder) throws IOException {
+            server = new DatagramLink(0, SelectorServer.GROUP_OWNER_ID, (peerId, payload) -> {
+                assertEquals(CLIENT_ID, peerId);
+                received.add(payload.getInt());
+            });
+            server.Expect(CLIENT_ID, InetAddress.getLoopbackAddress());
+            server.Start();
+            proxy = new LossyProxy(server.GetPort(), loss, reorder, 3);
+            client = new DatagramLink(0, CLIENT_ID, (peerId, payload) -> {});
+            client.Start();
+            client.Connect(SelectorServer.GROUP_OWNER_ID, proxy.Address());
+        }
+
+        /**Waits until the group owner has learned the client's address from its hello.*/
+        void AwaitHello() throws InterruptedException {
+            while (!server.Send(CLIENT_ID, new byte[0], false)) Thread.sleep(1);
+        }
+
+        @Override public void close() throws Exception {
+            client.Close();
+            server.Close();
+            proxy.close();
+        }
+    }
+
+    private static byte[] Message(int i) {return ByteBuffer.allocate(64).putInt(i).array();}
+
+    @Test
+    public void plainMessagesDropStaleOnes() throws Exception {
+        try (Pair pair = new Pair(0.1, 0.2)) {
+            pair.AwaitHello();
+            for (int i = 0; i < 5_000; i++) {
+                assertTrue(pair.client.Send(SelectorServer.GROUP_OWNER_ID, Message(i), false));
+                if (i % 50 == 0) Thread.sleep(1);
+            }
+            Thread.sleep(200);
+            List<Integer> received = pair.received;
+            assertTrue(received.size() > 1_000 && received.size() < 5_000);
+            for (int i = 1; i < received.size(); i++) assertTrue(received.get(i) > received.get(i - 1));//never out of order
+        }
+    }
+
+    @Test
+    public void ackedMessagesArriveExactlyOnce() throws Exception {
+        try (Pair pair = new Pair(0.2, 0.2)) {
+            pair.AwaitHello();
+            for (int i = 0; i < 1_000; i++) {
+                assertTrue(pair.client.Send(SelectorServer.GROUP_OWNER_ID, Message(i), true));
+                if (i % 50 == 0) Thread.sleep(1);
+            }
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (pair.received.size() < 1_000 && System.nanoTime() < deadline) Thread.sleep(10);
+            Thread.sleep(200);//let any duplicates show up
+            Set<Integer> unique = ConcurrentHashMap.newKeySet();
+            unique.addAll(pair.received);
+            assertEquals(1_000, unique.size());
+            assertEquals(1_000, pair.received.size());
+        }
+    }
+
+    /**Sends a timestamped update every 200 microseconds with 5% loss. Over UDP a lost update is simply skipped. Over TCP the
+     * loss is modelled by a proxy that holds the stream for a retransmission timeout, which delays every update behind it.
+     * DatagramBenchmark measures the latency without loss.*/
+    @Test
+    public void lossHurtsDatagramLatencyLessThanTcp() throws Exception {
+        final int updates = 2_000;
+        final double loss = 0.05;
+        final long stallNanos = 20_000_000L;
+        List<Long> udpLatencies = Collections.synchronizedList(new ArrayList<>());
+        DatagramLink server = new DatagramLink(0, SelectorServer.GROUP_OWNER_ID, (peerId, payload) -> udpLatencies.add(System.nanoTime() - payload.getLong()));
+        server.Expect(CLIENT_ID, InetAddress.getLoopbackAddress());
+        server.Start();
+        try (LossyProxy proxy = new LossyProxy(server.GetPort(), loss, 0, 4)) {
+            DatagramLink client = new DatagramLink(0, CLIENT_ID, (peerId, payload) -> {});
+            client.Start();
+            client.Connect(SelectorServer.GROUP_OWNER_ID, proxy.Address());
+            for (int i = 0; i < updates; i++) {
+                client.Send(SelectorServer.GROUP_OWNER_ID, ByteBuffer.allocate(8).putLong(System.nanoTime()).array(), false);
+                LockSupport.parkNanos(200_000);
+            }
+            Thread.sleep(100);
+            client.Close();
+        } finally {server.Close();}
+
+        List<Long> tcpLatencies = new ArrayList<>();
+        try (ServerSocket receiver = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             ServerSocket proxy = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread stallingProxy = new Thread(() -> {
+                Random random = new Random(4);
+                try (Socket in = proxy.accept(); Socket out = new Socket(InetAddress.getLoopbackAddress(), receiver.getLocalPort())) {
+                    out.setTcpNoDelay(true);
+                    byte[] buffer = new byte[4096];
+                    InputStream from = in.getInputStream();
+                    OutputStream to = out.getOutputStream();
+                    for (int n; (n = from.read(buffer)) != -1;) {
+                        if (random.nextDouble() < loss) LockSupport.parkNanos(stallNanos);//segment lost, wait for the resend
+                        to.write(buffer, 0, n);
+                    }
+                } catch (IOException e) {throw new RuntimeException(e);}
+            });
+            stallingProxy.start();
+            Thread sender = new Thread(() -> {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxy.getLocalPort())) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    for (int i = 0; i < updates; i++) {
+                        out.write(FrameCodec.Encode(FrameCodec.TYPE_MESSAGE, ByteBuffer.allocate(8).putLong(System.nanoTime()).array()));
+                        LockSupport.parkNanos(200_000);
+                    }
+                } catch (IOException e) {throw new RuntimeException(e);}
+            });
+            sender.start();
+            try (Socket socket = receiver.accept()) {
+                FrameCodec.Decoder decoder = new FrameCodec.Decoder(1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+                InputStream in = socket.getInputStream();
+                while (decoder.ReadFrom(in, (type, buffer, offset, length) -> tcpLatencies.add(System.nanoTime() - ByteBuffer.wrap(buffer, offset, length).getLong())));
+            }
+            sender.join();
+            stallingProxy.join();
+        }
+
+        long[] udp = Percentiles(udpLatencies), tcp = Percentiles(tcpLatencies);
+        assertEquals(updates, tcpLatencies.size());
+        assertTrue(udp[2] < tcp[2]);
+    }
+
+    private static long[] Percentiles(List<Long> latencies) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        return new long[] {sorted.get(sorted.size() / 2), sorted.get(sorted.size() * 9 / 10), sorted.get(sorted.size() * 99 / 100)};
+    }
+}
@@ -0,0 +1,97 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**Change events and TTL expiry on a clock the test moves, then responses and expiry racing on several threads.*/
+public class DiscoveryCacheTest {
+    private static final String MAC = "02:00:00:00:00:01";
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static Map<String, String> Record(int players, String version) {
+        Map<String, String> record = new HashMap<>();
+        record.put(DiscoveryCache.KEY_SSID, "DIRECT-pn3-Pennies-Server");
+        record.put(DiscoveryCache.KEY_PLAYER_COUNT, Integer.toString(players));
+        record.put(DiscoveryCache.KEY_GAME_VERSION, version);
+        return record;
+    }
+
+    @Test
+    public void reportsOnlyRealChanges() {
+        List<String> events = new ArrayList<>();
+        DiscoveryCache cache = new DiscoveryCache((change, macAddress) -> events.add(change + " " + macAddress));
+        cache.Seen(MAC, null, Record(2, "1.0"), 0);//the TXT record usually comes first
+        cache.Seen(MAC, "Pixel", null, 1);
+        cache.Seen(MAC, "Pixel", null, 2);//only seen again
+        cache.Seen(MAC, "Pixel", Record(2, "1.0"), 3);
+        cache.Seen(MAC, "Pixel", Record(3, "1.0"), 4);
+        assertEquals(List.of(DiscoveryCache.ADDED + " " + MAC, DiscoveryCache.UPDATED + " " + MAC, DiscoveryCache.UPDATED + " " + MAC), events);
+        DiscoveryCache.Service service = cache.Get(MAC);
+        assertEquals("Pixel", service.deviceName);
+        assertEquals("DIRECT-pn3-Pennies-Server", service.GetSsid());
+        assertEquals(3, service.GetPlayerCount());
+        assertEquals("1.0", service.GetGameVersion());
+        assertEquals(4, service.lastSeenNanos);
+        assertEquals(Collections.singletonMap(MAC, "Pixel"), cache.GetNames());
+    }
+
+    @Test
+    public void expiresOnlyServicesPastTheirTtl() {
+        List<String> expired = new ArrayList<>();
+        DiscoveryCache cache = new DiscoveryCache((change, macAddress) -> {if (change == DiscoveryCache.EXPIRED) expired.add(macAddress);});
+        cache.SetTtl(10_000);
+        assertEquals(-1, cache.NextExpiry());
+        cache.Seen("a", "A", null, 0);
+        cache.Seen("b", "B", null, 5 * SECOND);
+        assertEquals(10 * SECOND, cache.NextExpiry());
+        assertEquals(0, cache.Expire(10 * SECOND - 1));
+        cache.Seen("a", "A", null, 8 * SECOND);//refreshed before it expired
+        assertEquals(0, cache.Expire(10 * SECOND));
+        assertEquals(1, cache.Expire(15 * SECOND));
+        assertEquals(List.of("b"), expired);
+        assertNull(cache.Get("b"));
+        assertNotNull(cache.Get("a"));
+    }
+
+    /**Every service ends up added once more than it expired if it is still cached, and as often otherwise.*/
+    @Test
+    public void staysConsistentUnderConcurrentResponsesAndExpiry() throws Exception {
+        Map<String, AtomicInteger> balance = new ConcurrentHashMap<>();
+        DiscoveryCache cache = new DiscoveryCache((change, macAddress) -> {
+            AtomicInteger count = balance.computeIfAbsent(macAddress, mac -> new AtomicInteger());
+            if (change == DiscoveryCache.ADDED) count.incrementAndGet();
+            else if (change == DiscoveryCache.EXPIRED) count.decrementAndGet();
+        });
+        cache.SetTtl(0);//anything not seen at this very instant expires
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger expired = new AtomicInteger();
+        Thread expirer = new Thread(() -> {while (!done.get()) expired.addAndGet(cache.Expire(System.nanoTime()));});
+        expirer.start();
+        Thread[] writers = new Thread[3];
+        for (int t = 0; t < writers.length; t++) {
+            int seed = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++)
+                    cache.Seen("mac" + (i + seed) % 32, "Device", (i & 1) == 0 ? null : Record(i % 4, "1.0"), System.nanoTime());
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) writer.join();
+        done.set(true);
+        expirer.join();
+        assertTrue(expired.get() > 0);
+        for (Map.Entry<String, AtomicInteger> entry : balance.entrySet())
+            assertEquals(entry.getKey(), cache.Get(entry.getKey()) != null ? 1 : 0, entry.getValue().get());
+    }
+}
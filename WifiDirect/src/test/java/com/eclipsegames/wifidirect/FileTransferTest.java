@@ -0,0 +1,250 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**File transfers between two endpoints connected over loopback, each with its own FrameWriter and reader thread.
+ * FileTransferBenchmark measures the throughput.*/
+public class FileTransferTest {
+    private static final int PEER = 1;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final class Completion {
+        final String path;
+        final boolean succeeded;
+        Completion(String path, boolean succeeded) {this.path = path; this.succeeded = succeeded;}
+    }
+
+    /**One side of a connection. Chunk bytes sent are counted, and the next chunk can be corrupted on its way out.*/
+    private static final class Endpoint implements FileTransfer.Listener {
+        final FileTransfer transfer = new FileTransfer(this::Send, this);
+        final BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+        final AtomicLong progress = new AtomicLong(), chunkBytesSent = new AtomicLong();
+        final AtomicBoolean corruptNextChunk = new AtomicBoolean();
+        private Socket socket;
+        private FrameWriter writer;
+        private Thread reader;
+
+        Endpoint(File directory) {transfer.SetDirectory(directory);}
+
+        void Connect(Socket socket) throws IOException {
+            this.socket = socket;
+            writer = new FrameWriter("TransferWriter", e -> {});
+            writer.Start(socket.getOutputStream());
+            InputStream in = socket.getInputStream();
+            reader = new Thread(() -> {
+                FrameCodec.Decoder decoder = new FrameCodec.Decoder(64 * 1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+                try {
+                    while (decoder.ReadFrom(in, (type, buffer, offset, length) -> {
+                        if (type == FrameCodec.TYPE_TRANSFER) transfer.OnFrame(PEER, decoder.PayloadView(offset, length));
+                    }));
+                } catch (IOException ignored) {/*Disconnected*/}
+                transfer.OnPeerDisconnected(PEER);
+            }, "TransferReader");
+            reader.start();
+        }
+
+        void Disconnect() throws Exception {
+            writer.Close();
+            socket.close();
+            reader.join();
+        }
+
+        private boolean Send(int peerId, byte type, byte[] payload) {
+            if (payload[0] == 2) {//a chunk
+                chunkBytesSent.addAndGet(payload.length - 17);
+                if (corruptNextChunk.getAndSet(false)) payload[payload.length - 1] ^= 1;
+            }
+            writer.Enqueue(type, payload);
+            return true;
+        }
+
+        @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {progress.set(transferred);}
+        @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {completions.add(new Completion(path, succeeded));}
+    }
+
+    /**Connects two endpoints over loopback.*/
+    private static void Connect(Endpoint a, Endpoint b) throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            socket.setTcpNoDelay(true);
+            a.Connect(socket);
+            b.Connect(server.accept());
+        }
+    }
+
+    /**Writes a file of the given size with a position dependent pattern, 1 MB at a time.*/
+    private File CreateFile(String name, long size) throws IOException {
+        File file = folder.newFile(name);
+        ByteBuffer block = ByteBuffer.allocate(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            for (long position = 0; position < size; position += block.capacity()) {
+                block.clear();
+                while (block.hasRemaining()) block.putLong(position + block.position());
+                block.flip().limit((int) Math.min(block.capacity(), size - position));
+                while (block.hasRemaining()) channel.write(block);
+            }
+        }
+        return file;
+    }
+
+    private static Completion Await(Endpoint endpoint) throws InterruptedException {
+        Completion completion = endpoint.completions.poll(60, TimeUnit.SECONDS);
+        assertNotNull(completion);
+        return completion;
+    }
+
+    @Test
+    public void streamsLargeFileWithConstantHeap() throws Exception {
+        final long size = 512L * 1024 * 1024;
+        File source = CreateFile("replay.bin", size);
+        File received = folder.newFolder("received");
+        Endpoint sender = new Endpoint(folder.getRoot()), receiver = new Endpoint(received);
+        Connect(sender, receiver);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long baseline = runtime.totalMemory() - runtime.freeMemory();
+        AtomicLong peak = new AtomicLong();
+        AtomicBoolean sampling = new AtomicBoolean(true);
+        Thread sampler = new Thread(() -> {//live heap after a collection, every 100 ms
+            while (sampling.get()) {
+                System.gc();
+                peak.accumulateAndGet(runtime.totalMemory() - runtime.freeMemory(), Math::max);
+                try {Thread.sleep(100);} catch (InterruptedException e) {return;}
+            }
+        });
+        sampler.start();
+        assertTrue(sender.transfer.SendFile(PEER, source.getPath()) >= 0);
+        Completion sent = Await(sender), written = Await(receiver);
+        sampling.set(false);
+        sampler.join();
+        sender.Disconnect();
+        receiver.Disconnect();
+        assertTrue(sent.succeeded);
+        assertTrue(written.succeeded);
+        assertEquals(new File(received, "replay.bin").getPath(), written.path);
+        assertEquals(-1, Files.mismatch(source.toPath(), new File(received, "replay.bin").toPath()));
+        assertTrue(peak.get() - baseline < 16L * 1024 * 1024);
+    }
+
+    @Test
+    public void resumesAfterDroppedConnection() throws Exception {
+        final long size = 16L * 1024 * 1024 + 123;
+        File source = CreateFile("map.bin", size);
+        File received = folder.newFolder("received");
+        Endpoint sender = new Endpoint(folder.getRoot()), receiver = new Endpoint(received);
+        Connect(sender, receiver);
+        assertTrue(sender.transfer.SendFile(PEER, source.getPath()) >= 0);
+        while (receiver.progress.get() < size / 2) Thread.sleep(1);
+        receiver.Disconnect();
+        sender.Disconnect();
+        assertFalse(Await(sender).succeeded);
+        assertFalse(Await(receiver).succeeded);
+        long partial = new File(received, "map.bin" + FileTransfer.PARTIAL_SUFFIX).length();
+        assertTrue(partial >= size / 2);
+
+        Endpoint resumedSender = new Endpoint(folder.getRoot()), resumedReceiver = new Endpoint(received);
+        Connect(resumedSender, resumedReceiver);
+        assertTrue(resumedSender.transfer.SendFile(PEER, source.getPath()) >= 0);
+        assertTrue(Await(resumedSender).succeeded);
+        assertTrue(Await(resumedReceiver).succeeded);
+        assertTrue(resumedSender.chunkBytesSent.get() <= size - partial + FileTransfer.CHUNK_SIZE);//only the missing part
+        assertEquals(-1, Files.mismatch(source.toPath(), new File(received, "map.bin").toPath()));
+        assertFalse(new File(received, "map.bin" + FileTransfer.PARTIAL_SUFFIX).exists());
+        resumedSender.Disconnect();
+        resumedReceiver.Disconnect();
+    }
+
+    @Test
+    public void startsOverFromPartialFileOfAnotherFile() throws Exception {
+        final long size = 4L * FileTransfer.CHUNK_SIZE + 77;
+        File source = CreateFile("level.bin", size);
+        File received = folder.newFolder("received");
+        Files.write(new File(received, "level.bin" + FileTransfer.PARTIAL_SUFFIX).toPath(), new byte[2 * FileTransfer.CHUNK_SIZE]);//left by a different level.bin
+        Endpoint sender = new Endpoint(folder.getRoot()), receiver = new Endpoint(received);
+        Connect(sender, receiver);
+        assertTrue(sender.transfer.SendFile(PEER, source.getPath()) >= 0);
+        assertTrue(Await(sender).succeeded);
+        assertTrue(Await(receiver).succeeded);
+        assertEquals(size, sender.chunkBytesSent.get());//nothing of the partial file was kept
+        assertEquals(-1, Files.mismatch(source.toPath(), new File(received, "level.bin").toPath()));
+        sender.Disconnect();
+        receiver.Disconnect();
+    }
+
+    @Test
+    public void rejectsCorruptedChunkAndResumes() throws Exception {
+        File source = CreateFile("save.bin", 1024 * 1024);
+        File received = folder.newFolder("received");
+        Endpoint sender = new Endpoint(folder.getRoot()), receiver = new Endpoint(received);
+        Connect(sender, receiver);
+        sender.corruptNextChunk.set(true);
+        assertTrue(sender.transfer.SendFile(PEER, source.getPath()) >= 0);
+        assertFalse(Await(sender).succeeded);
+        assertFalse(Await(receiver).succeeded);
+        assertFalse(new File(received, "save.bin").exists());
+
+        assertTrue(sender.transfer.SendFile(PEER, source.getPath()) >= 0);
+        assertTrue(Await(sender).succeeded);
+        assertTrue(Await(receiver).succeeded);
+        assertEquals(-1, Files.mismatch(source.toPath(), new File(received, "save.bin").toPath()));
+        sender.Disconnect();
+        receiver.Disconnect();
+    }
+
+    @Test
+    public void dropsShortFramesAndWorksOffTheReadingThread() throws Exception {
+        File source = CreateFile("short.bin", 100);
+        BlockingQueue<byte[]> sent = new LinkedBlockingQueue<>();
+        BlockingQueue<String> threads = new LinkedBlockingQueue<>();
+        FileTransfer transfer = new FileTransfer((peerId, type, payload) -> {
+            threads.add(Thread.currentThread().getName());
+            return sent.add(payload);
+        }, new Endpoint(folder.getRoot()));
+        int id = transfer.SendFile(PEER, source.getPath());
+        assertEquals(0, sent.take()[0]);//the offer
+        threads.clear();
+        ByteBuffer accept = ByteBuffer.allocate(17).put((byte) 1).putInt(id).putLong(0).putInt(0);
+        transfer.OnFrame(PEER, ByteBuffer.wrap(accept.array(), 0, 9));//cut short
+        transfer.OnFrame(PEER, ByteBuffer.wrap(accept.array()));
+        byte[] chunk = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull(chunk);
+        assertEquals(2, chunk[0]);
+        assertEquals(17 + 100, chunk.length);
+        assertNotEquals(Thread.currentThread().getName(), threads.take());
+    }
+
+    @Test
+    public void sendsEmptyFile() throws Exception {
+        File source = folder.newFile("empty.bin");
+        File received = folder.newFolder("received");
+        Endpoint sender = new Endpoint(folder.getRoot()), receiver = new Endpoint(received);
+        Connect(sender, receiver);
+        assertTrue(sender.transfer.SendFile(PEER, source.getPath()) >= 0);
+        assertTrue(Await(sender).succeeded);
+        assertTrue(Await(receiver).succeeded);
+        assertEquals(0, new File(received, "empty.bin").length());
+        sender.Disconnect();
+        receiver.Disconnect();
+    }
+}
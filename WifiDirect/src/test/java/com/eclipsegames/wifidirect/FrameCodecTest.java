@@ -0,0 +1,201 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**Frame codec tests. The socket tests run over loopback so TCP is free to split and merge frames.*/
+public class FrameCodecTest {
+    private static final int MESSAGE_COUNT = 100_000;
+
+    /**Collects every frame the decoder hands out.*/
+    private static final class Collector implements FrameCodec.FrameHandler {
+        final List<byte[]> payloads = new ArrayList<>();
+        final List<Byte> types = new ArrayList<>();
+
+        @Override public void OnFrame(byte type, byte[] buffer, int offset, int length) {
+            byte[] payload = new byte[length];
+            System.arraycopy(buffer, offset, payload, 0, length);
+            payloads.add(payload);
+            types.add(type);
+        }
+    }
+
+    private static byte[] Message(int i) {
+        byte[] message = new byte[1 + i % 300];
+        for (int j = 0; j < message.length; j++) message[j] = (byte) (i + j);
+        message[0] = (byte) i;//lets messages start with 0, which used to be taken as a keep-alive
+        return message;
+    }
+
+    @Test
+    public void decodesFramesFedOneByteAtATime() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 500; i++) out.write(FrameCodec.Encode(FrameCodec.TYPE_MESSAGE, Message(i)));
+        out.write(FrameCodec.Encode(FrameCodec.TYPE_PING, FrameCodec.EMPTY_PAYLOAD));
+        InputStream in = new ByteArrayInputStream(out.toByteArray()) {
+            @Override public synchronized int read(byte[] b, int off, int len) {return super.read(b, off, Math.min(len, 1));}
+        };
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder(8, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        Collector collector = new Collector();
+        while (decoder.ReadFrom(in, collector));
+        assertEquals(501, collector.payloads.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(FrameCodec.TYPE_MESSAGE, (byte) collector.types.get(i));
+            assertArrayEquals(Message(i), collector.payloads.get(i));
+        }
+        assertEquals(FrameCodec.TYPE_PING, (byte) collector.types.get(500));
+        assertEquals(0, collector.payloads.get(500).length);
+    }
+
+    @Test
+    public void growsForFramesLargerThanTheBuffer() throws IOException {
+        byte[] large = new byte[200_000];
+        new Random(1).nextBytes(large);
+        byte[] stream = FrameCodec.Encode(FrameCodec.TYPE_MESSAGE, large);
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder(1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        Collector collector = new Collector();
+        InputStream in = new ByteArrayInputStream(stream);
+        while (decoder.ReadFrom(in, collector));
+        assertEquals(1, collector.payloads.size());
+        assertArrayEquals(large, collector.payloads.get(0));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsFramesOverTheMaximumSize() throws IOException {
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder(1024, 100);
+        InputStream in = new ByteArrayInputStream(FrameCodec.Encode(FrameCodec.TYPE_MESSAGE, new byte[101]));
+        while (decoder.ReadFrom(in, new Collector()));
+    }
+
+    @Test
+    public void reportsNegativeFrameLength() {
+        byte[] stream = FrameCodec.Encode(FrameCodec.TYPE_MESSAGE, new byte[4]);
+        FrameCodec.WriteInt(stream, 0, -4);
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder(1024, 100);
+        InputStream in = new ByteArrayInputStream(stream);
+        ProtocolException e = assertThrows(ProtocolException.class, () -> {while (decoder.ReadFrom(in, new Collector()));});
+        assertEquals("Negative frame length -4", e.getMessage());
+    }
+
+    @Test
+    public void keepsBoundariesWhenFramesAreFragmented() throws Exception {
+        Random random = new Random(2);
+        RunOverLoopback(out -> {
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                byte[] frame = FrameCodec.Encode(FrameCodec.TYPE_MESSAGE, Message(i));
+                for (int offset = 0; offset < frame.length;) {//split every frame into random pieces
+                    int length = Math.min(frame.length - offset, 1 + random.nextInt(16));
+                    out.write(frame, offset, length);
+                    offset += length;
+                }
+            }
+        });
+    }
+
+    @Test
+    public void keepsBoundariesWhenFramesAreCoalesced() throws Exception {
+        RunOverLoopback(out -> {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            for (int i = 0; i < MESSAGE_COUNT; i++) {//write many frames per call
+                batch.write(FrameCodec.Encode(FrameCodec.TYPE_MESSAGE, Message(i)));
+                if (i % 1000 == 999) {
+                    batch.writeTo(out);
+                    batch.reset();
+                }
+            }
+            batch.writeTo(out);
+        });
+    }
+
+    @Test
+    public void pooledDecodingDoesNotAllocatePerMessage() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) out.write(FrameCodec.Encode(FrameCodec.TYPE_MESSAGE, Message(i)));
+        byte[] stream = out.toByteArray();
+        InputStream in = new InputStream() {//replays the same frames forever without allocating
+            private final byte[] one = new byte[1];
+            private int position;
+            @Override public int read() {return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;}
+            @Override public int read(byte[] b, int off, int len) {
+                int length = Math.min(Math.min(len, 700), stream.length - position);
+                System.arraycopy(stream, position, b, off, length);
+                position = (position + length) % stream.length;
+                return length;
+            }
+        };
+        BufferPool pool = new BufferPool(2, 16 * 1024);
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder(pool, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        long[] checksum = {0, 0};//sum of bytes, frame count
+        FrameCodec.FrameHandler handler = (type, buffer, offset, length) -> {
+            ByteBuffer view = decoder.PayloadView(offset, length);
+            while (view.hasRemaining()) checksum[0] += view.get();
+            checksum[1]++;
+        };
+        for (int i = 0; i < 10_000; i++) decoder.ReadFrom(in, handler);//warm up
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId(), framesBefore = checksum[1];
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100_000; i++) decoder.ReadFrom(in, handler);
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore, frames = checksum[1] - framesBefore;
+        assertTrue(frames > 100_000);
+        assertTrue("Allocated " + allocated + " bytes for " + frames + " frames", allocated < frames / 100);//a few stray bytes, not one per message
+        decoder.Release();
+        assertEquals(16 * 1024, pool.Acquire().length);
+    }
+
+    @Test
+    public void bufferPoolReusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(1, 64);
+        byte[] buffer = pool.Acquire();
+        pool.Release(buffer);
+        assertSame(buffer, pool.Acquire());
+        assertNotSame(buffer, pool.Acquire());//pool is empty again
+        pool.Release(new byte[32]);//wrong size is ignored
+        assertEquals(64, pool.Acquire().length);
+    }
+
+    private interface Writer {
+        void Write(OutputStream out) throws IOException;
+    }
+
+    private static void RunOverLoopback(Writer writer) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread sender = new Thread(() -> {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort())) {
+                    socket.setTcpNoDelay(true);
+                    writer.Write(socket.getOutputStream());
+                } catch (IOException e) {throw new RuntimeException(e);}
+            });
+            sender.start();
+            int[] received = {0};
+            try (Socket socket = serverSocket.accept()) {
+                FrameCodec.Decoder decoder = new FrameCodec.Decoder(1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+                InputStream in = socket.getInputStream();
+                while (decoder.ReadFrom(in, (type, buffer, offset, length) -> {
+                    byte[] expected = Message(received[0]++);
+                    assertEquals(FrameCodec.TYPE_MESSAGE, type);
+                    assertEquals(expected.length, length);
+                    for (int i = 0; i < length; i++) assertEquals(expected[i], buffer[offset + i]);
+                }));
+            }
+            sender.join();
+            assertEquals(MESSAGE_COUNT, received[0]);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**Send pipeline tests over loopback.*/
+public class FrameWriterTest {
+    private static final int PRODUCERS = 4, MESSAGES_PER_PRODUCER = 50_000;
+
+    /**Message payload is {producer, sequence number}, so the receiver can check per-producer ordering.*/
+    private static byte[] Message(int producer, int sequence) {
+        return ByteBuffer.allocate(8).putInt(producer).putInt(sequence).array();
+    }
+
+    @Test
+    public void keepsOrderWithManyProducers() throws Exception {
+        long[] counters = RunOverLoopback(FrameWriter.FLUSH_IMMEDIATE, null);
+        assertEquals(PRODUCERS * MESSAGES_PER_PRODUCER, counters[0]);
+    }
+
+    @Test
+    public void batchedFlushPacksMessagesIntoFewerWrites() throws Exception {
+        long[] counters = RunOverLoopback(500, null);
+        assertTrue("Expected batching, got " + counters[0] + " messages in " + counters[2] + " writes", counters[2] * 10 < counters[0]);
+        assertEquals(counters[0] * (FrameCodec.HEADER_SIZE + 8), counters[1]);
+    }
+
+    @Test
+    public void manualFlushWritesOncePerTick() throws Exception {
+        long[] counters = RunOverLoopback(FrameWriter.FLUSH_MANUAL, writer -> {
+            for (int tick = 0; tick < 100; tick++) {
+                writer.Flush();
+                Thread.sleep(1);
+            }
+        });
+        assertTrue(counters[2] * 10 < counters[0]);
+    }
+
+    @Test
+    public void manualFlushStillSendsPingsRightAway() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket sender = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+             Socket receiver = serverSocket.accept()) {
+            FrameWriter writer = new FrameWriter("TestWriter", e -> fail(e.toString()));
+            writer.SetFlushInterval(FrameWriter.FLUSH_MANUAL);
+            writer.Start(sender.getOutputStream());
+            writer.Enqueue(FrameCodec.TYPE_MESSAGE, Message(0, 0));
+            Thread.sleep(50);
+            assertEquals(0, writer.GetCounters()[0]);//held for the tick
+            writer.Enqueue(FrameCodec.TYPE_PING, new byte[8]);
+            receiver.setSoTimeout(5000);
+            FrameCodec.Decoder decoder = new FrameCodec.Decoder(1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+            byte[] types = new byte[2];
+            int[] count = {0};
+            InputStream in = receiver.getInputStream();
+            while (count[0] < 2 && decoder.ReadFrom(in, (type, buffer, offset, length) -> types[count[0]++] = type));
+            assertArrayEquals(new byte[] {FrameCodec.TYPE_MESSAGE, FrameCodec.TYPE_PING}, types);//without a Flush(), in order
+            writer.Close();
+        }
+    }
+
+    /**Pings and pongs are copied, so the caller's array can be reused at once, and only the latest of each is written.*/
+    @Test
+    public void copiesControlFramesAndKeepsTheLatest() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket sender = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+             Socket receiver = serverSocket.accept()) {
+            FrameWriter writer = new FrameWriter("TestWriter", e -> fail(e.toString()));
+            byte[] payload = new byte[8];
+            FrameCodec.WriteLong(payload, 0, 1);
+            writer.EnqueueControl(FrameCodec.TYPE_PING, payload);
+            FrameCodec.WriteLong(payload, 0, 2);
+            writer.EnqueueControl(FrameCodec.TYPE_PING, payload);
+            FrameCodec.WriteLong(payload, 0, 3);
+            writer.EnqueueControl(FrameCodec.TYPE_PONG, payload);
+            FrameCodec.WriteLong(payload, 0, 4);//after the last call, never sent
+            writer.Start(sender.getOutputStream());
+            receiver.setSoTimeout(5000);
+            FrameCodec.Decoder decoder = new FrameCodec.Decoder(1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+            long[] frames = new long[4];
+            int[] count = {0};
+            InputStream in = receiver.getInputStream();
+            while (count[0] < 4 && decoder.ReadFrom(in, (type, buffer, offset, length) -> {
+                frames[count[0]++] = type;
+                frames[count[0]++] = FrameCodec.ReadLong(buffer, offset);
+            }));
+            assertArrayEquals(new long[] {FrameCodec.TYPE_PING, 2, FrameCodec.TYPE_PONG, 3}, frames);
+            assertEquals(2, writer.GetCounters()[0]);
+            writer.Close();
+        }
+    }
+
+    /**Messages and channel messages are copied when queued, so a caller that reuses one array sends what it held at each call,
+     * even while the writer holds everything for a manual flush.*/
+    @Test
+    public void copiesMessagesSoTheCallerCanReuseItsArray() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket sender = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+             Socket receiver = serverSocket.accept()) {
+            FrameWriter writer = new FrameWriter("TestWriter", new ChannelMux.Scheduler(new ChannelMux.Config()), e -> fail(e.toString()));
+            writer.SetFlushInterval(FrameWriter.FLUSH_MANUAL);
+            writer.Start(sender.getOutputStream());
+            byte[] payload = new byte[8];
+            FrameCodec.WriteLong(payload, 0, 1);
+            writer.Enqueue(FrameCodec.TYPE_MESSAGE, payload);
+            FrameCodec.WriteLong(payload, 0, 2);
+            writer.Enqueue(FrameCodec.TYPE_MESSAGE, payload);
+            FrameCodec.WriteLong(payload, 0, 3);
+            writer.EnqueueOnChannel(0, payload);
+            FrameCodec.WriteLong(payload, 0, 4);//after the last call, never sent
+            writer.Flush();
+            receiver.setSoTimeout(5000);
+            FrameCodec.Decoder decoder = new FrameCodec.Decoder(1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+            ChannelMux.Assembler assembler = new ChannelMux.Assembler(1024);
+            long[] values = new long[3];
+            int[] count = {0};
+            InputStream in = receiver.getInputStream();
+            while (count[0] < 3 && decoder.ReadFrom(in, (type, buffer, offset, length) -> {
+                if (type == FrameCodec.TYPE_MESSAGE) values[count[0]++] = FrameCodec.ReadLong(buffer, offset);
+                else if (type == FrameCodec.TYPE_FRAGMENT)
+                    assembler.OnFragment(buffer, offset, length, (channel, message, start, size) -> values[count[0]++] = FrameCodec.ReadLong(message, start));
+            }));
+            assertArrayEquals(new long[] {1, 2, 3}, values);
+            writer.Close();
+        }
+    }
+
+    private interface Ticker {
+        void Run(FrameWriter writer) throws InterruptedException;
+    }
+
+    private static long[] RunOverLoopback(int flushMicros, Ticker ticker) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket sender = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+             Socket receiver = serverSocket.accept()) {
+            sender.setTcpNoDelay(true);
+            IOException[] writeError = {null};
+            FrameWriter writer = new FrameWriter("TestWriter", e -> writeError[0] = e);
+            writer.SetFlushInterval(flushMicros);
+            writer.Start(sender.getOutputStream());
+            Thread[] producers = new Thread[PRODUCERS];
+            for (int p = 0; p < PRODUCERS; p++) {
+                int producer = p;
+                producers[p] = new Thread(() -> {
+                    for (int i = 0; i < MESSAGES_PER_PRODUCER; i++) writer.Enqueue(FrameCodec.TYPE_MESSAGE, Message(producer, i));
+                });
+                producers[p].start();
+            }
+            int[] next = new int[PRODUCERS];
+            int[] received = {0};
+            Thread reader = new Thread(() -> {
+                FrameCodec.Decoder decoder = new FrameCodec.Decoder(1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+                try {
+                    InputStream in = receiver.getInputStream();
+                    while (received[0] < PRODUCERS * MESSAGES_PER_PRODUCER && decoder.ReadFrom(in, (type, buffer, offset, length) -> {
+                        ByteBuffer message = ByteBuffer.wrap(buffer, offset, length);
+                        int producer = message.getInt();
+                        assertEquals(next[producer]++, message.getInt());
+                        received[0]++;
+                    }));
+                } catch (IOException e) {throw new RuntimeException(e);}
+            });
+            reader.start();
+            for (Thread producer : producers) producer.join();
+            if (ticker != null) while (reader.isAlive()) ticker.Run(writer);
+            reader.join(30_000);
+            writer.Close();
+            assertNull(writeError[0]);
+            assertEquals(PRODUCERS * MESSAGES_PER_PRODUCER, received[0]);
+            for (int count : next) assertEquals(MESSAGES_PER_PRODUCER, count);
+            return writer.GetCounters();
+        }
+    }
+}
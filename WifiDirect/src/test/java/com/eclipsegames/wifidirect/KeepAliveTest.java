@@ -0,0 +1,133 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**Keep-alive sessions wired to each other through a link that delays every frame.*/
+public class KeepAliveTest {
+    /**Delivers frames to the other session after a fixed delay plus random jitter, or drops them all.*/
+    private static final class DelayedLink implements KeepAlive.Link {
+        private final ScheduledExecutorService delays;
+        private final long delayMicros, jitterMicros;
+        private final Random random = new Random(7);
+        volatile KeepAlive.Session other;
+        volatile boolean dropping;
+
+        DelayedLink(ScheduledExecutorService delays, long delayMicros, long jitterMicros) {
+            this.delays = delays;
+            this.delayMicros = delayMicros;
+            this.jitterMicros = jitterMicros;
+        }
+
+        @Override public void Send(byte type, byte[] payload) {
+            if (dropping) return;
+            long delay = delayMicros + (jitterMicros == 0 ? 0 : random.nextInt((int) jitterMicros));
+            byte[] frame = payload.clone();//the session reuses its payload
+            delays.schedule(() -> {
+                KeepAlive.Session session = other;
+                session.Heard();
+                if (type == FrameCodec.TYPE_PING) session.OnPing(ByteBuffer.wrap(frame));
+                else if (type == FrameCodec.TYPE_PONG) session.OnPong(ByteBuffer.wrap(frame));
+            }, delay, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    @Test
+    public void measuresRoundTripAndJitter() throws Exception {
+        ScheduledExecutorService delays = Executors.newSingleThreadScheduledExecutor();
+        DelayedLink toB = new DelayedLink(delays, 20_000, 10_000), toA = new DelayedLink(delays, 20_000, 10_000);
+        KeepAlive.Session a = new KeepAlive.Session(toB, () -> fail("lost"), 20, 1000);
+        KeepAlive.Session b = new KeepAlive.Session(toA, () -> fail("lost"), 20, 1000);
+        toB.other = b;
+        toA.other = a;
+        assertEquals(-1, a.GetRoundTripMillis(), 0);
+        a.Start();
+        b.Start();
+        Thread.sleep(1000);
+        a.Stop();
+        b.Stop();
+        delays.shutdown();
+        assertTrue(a.GetRoundTripMillis() >= 40 && a.GetRoundTripMillis() < 80);//2 x (20 ms + up to 10 ms jitter)
+        assertTrue(a.GetJitterMillis() > 0 && a.GetJitterMillis() < 20);
+    }
+
+    @Test
+    public void reportsLostPeerAfterSilence() throws Exception {
+        ScheduledExecutorService delays = Executors.newSingleThreadScheduledExecutor();
+        DelayedLink toB = new DelayedLink(delays, 1_000, 0), toA = new DelayedLink(delays, 1_000, 0);
+        CountDownLatch lost = new CountDownLatch(1);
+        KeepAlive.Session a = new KeepAlive.Session(toB, lost::countDown, 20, 200);
+        KeepAlive.Session b = new KeepAlive.Session(toA, () -> {}, 20, 200);
+        toB.other = b;
+        toA.other = a;
+        a.Start();
+        b.Start();
+        assertFalse(lost.await(500, TimeUnit.MILLISECONDS));//pongs keep it alive
+        toA.dropping = true;
+        long silentSince = System.nanoTime();
+        assertTrue(lost.await(2, TimeUnit.SECONDS));
+        long millis = (System.nanoTime() - silentSince) / 1_000_000;
+        assertTrue(millis >= 180 && millis < 500);
+        b.Stop();
+        delays.shutdown();
+    }
+
+    @Test
+    public void timeoutGrowsWithSlowRoundTrips() {
+        KeepAlive.Session session = new KeepAlive.Session((type, payload) -> {}, () -> {}, 100, 500);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), session.GetTimeoutNanos());
+        for (int i = 0; i < 10; i++)
+            session.OnPong(ByteBuffer.wrap(ByteBuffer.allocate(8).putLong(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(300)).array()));
+        assertEquals(300, session.GetRoundTripMillis(), 5);
+        assertTrue(session.GetTimeoutNanos() > TimeUnit.MILLISECONDS.toNanos(1300));//interval + 4 x RTT at least
+    }
+
+    @Test
+    public void reusesPingAndPongPayloads() throws Exception {
+        List<byte[]> pings = new ArrayList<>(), pongs = new ArrayList<>();
+        List<Long> sentAt = new ArrayList<>();
+        CountDownLatch ticks = new CountDownLatch(3);
+        KeepAlive.Session session = new KeepAlive.Session((type, payload) -> {
+            if (type == FrameCodec.TYPE_PONG) pongs.add(payload);
+            else synchronized (pings) {
+                pings.add(payload);
+                sentAt.add(FrameCodec.ReadLong(payload, 0));
+                ticks.countDown();
+            }
+        }, () -> {}, 10, 10_000);
+        session.Start();
+        assertTrue(ticks.await(5, TimeUnit.SECONDS));
+        session.Stop();
+        synchronized (pings) {
+            assertSame(pings.get(0), pings.get(2));
+            assertTrue(sentAt.get(2) > sentAt.get(0));//rewritten on every tick
+        }
+        session.OnPing(ByteBuffer.wrap(new byte[8]));
+        session.OnPing(ByteBuffer.wrap(new byte[8]));
+        assertSame(pongs.get(0), pongs.get(1));
+    }
+
+    @Test
+    public void sessionsShareOneTimerThread() throws Exception {
+        List<KeepAlive.Session> sessions = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            KeepAlive.Session session = new KeepAlive.Session((type, payload) -> {}, () -> {}, 10, 10_000);
+            session.Start();
+            sessions.add(session);
+        }
+        Thread.sleep(50);
+        long timers = Thread.getAllStackTraces().keySet().stream().filter(t -> t.getName().equals("WifiDirectKeepAlive")).count();
+        for (KeepAlive.Session session : sessions) session.Stop();
+        assertEquals(1, timers);
+    }
+}
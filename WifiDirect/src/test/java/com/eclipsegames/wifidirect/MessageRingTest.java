@@ -0,0 +1,126 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**Ring buffer tests.*/
+public class MessageRingTest {
+    private static byte[] Message(int producer, int sequence, int length) {
+        ByteBuffer message = ByteBuffer.allocate(Math.max(8, length));
+        message.putInt(producer).putInt(sequence);
+        return message.array();
+    }
+
+    @Test
+    public void drainsRecordsInTheirLayout() {
+        MessageRing ring = new MessageRing(1024);
+        assertTrue(ring.Offer(3, new byte[] {1, 2, 3}, 0, 3));
+        assertTrue(ring.Offer(-1, ByteBuffer.wrap(new byte[] {4})));
+        assertTrue(ring.Offer(7, new byte[0], 0, 0));
+        byte[] dest = new byte[64];
+        assertEquals(8 + 3 + 8 + 1 + 8, ring.Drain(dest));
+        ByteBuffer drained = ByteBuffer.wrap(dest);
+        assertEquals(3, drained.getInt());
+        assertEquals(3, drained.getInt());
+        assertEquals(1, drained.get());
+        drained.position(drained.position() + 2);
+        assertEquals(-1, drained.getInt());
+        assertEquals(1, drained.getInt());
+        assertEquals(4, drained.get());
+        assertEquals(7, drained.getInt());
+        assertEquals(0, drained.getInt());
+        assertEquals(0, ring.Drain(dest));
+    }
+
+    @Test
+    public void keepsWhatDoesNotFitInDest() {
+        MessageRing ring = new MessageRing(1024);
+        for (int i = 0; i < 10; i++) ring.Offer(i, new byte[20], 0, 20);
+        byte[] dest = new byte[3 * 28 + 10];
+        assertEquals(3 * 28, ring.Drain(dest));
+        assertEquals(3, ByteBuffer.wrap(ring.Drain()).getInt());//the rest, starting with the 4th
+    }
+
+    @Test
+    public void wrapsAroundAndDropsWhenFull() {
+        MessageRing ring = new MessageRing(256);
+        int next = 0, expected = 0;
+        byte[] dest = new byte[256];
+        for (int round = 0; round < 1000; round++) {
+            while (ring.Offer(next, Message(0, next, 20 + next % 13), 0, 20 + next % 13)) next++;
+            ByteBuffer drained = ByteBuffer.wrap(dest, 0, ring.Drain(dest));
+            while (drained.hasRemaining()) {
+                assertEquals(expected++, drained.getInt());
+                int length = drained.getInt();
+                drained.position(drained.position() + length);
+            }
+        }
+        assertEquals(next, expected);
+        assertEquals(1000, ring.GetDropped());//one failed offer per round
+        assertFalse(ring.Offer(0, new byte[300], 0, 300));
+    }
+
+    @Test
+    public void manyProducersKeepTheirOwnOrder() throws Exception {
+        final int producers = 4, messages = 200_000;
+        MessageRing ring = new MessageRing(64 * 1024);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < messages; i++) {
+                    byte[] message = Message(producer, i, 8 + i % 40);
+                    while (!ring.Offer(producer, message, 0, message.length)) Thread.onSpinWait();
+                }
+            });
+            threads[p].start();
+        }
+        int[] next = new int[producers];
+        int received = 0;
+        byte[] dest = new byte[16 * 1024];
+        while (received < producers * messages) {
+            ByteBuffer drained = ByteBuffer.wrap(dest, 0, ring.Drain(dest));
+            while (drained.hasRemaining()) {
+                int producer = drained.getInt(), length = drained.getInt(), start = drained.position();
+                assertEquals(producer, drained.getInt());
+                assertEquals(next[producer]++, drained.getInt());
+                assertEquals(8 + (next[producer] - 1) % 40, length);
+                drained.position(start + length);
+                received++;
+            }
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(0, ring.Drain(dest));
+    }
+
+    /**A socket thread delivers 32 byte messages as fast as it can while the game drains everything once per 1 ms frame, so
+     * every drain has to carry many messages. MessageRingBenchmark compares the cost with a callback per message.*/
+    @Test
+    public void drainsManyMessagesPerFrame() throws Exception {
+        final int messages = 2_000_000;
+        byte[] payload = new byte[32];
+        ByteBuffer view = ByteBuffer.wrap(payload).asReadOnlyBuffer();
+        MessageRing ring = new MessageRing(4 * 1024 * 1024);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < messages; i++) {
+                view.clear();
+                while (!ring.Offer(1, view.duplicate())) Thread.onSpinWait();
+            }
+        });
+        byte[] dest = new byte[4 * 1024 * 1024];
+        long drains = 0, received = 0;
+        producer.start();
+        while (received < messages) {
+            int length = ring.Drain(dest);
+            received += length / (MessageRing.RECORD_HEADER_SIZE + payload.length);
+            drains++;
+            Thread.sleep(1);//one game frame
+        }
+        producer.join();
+        assertEquals(messages, received);
+        assertTrue(drains < messages / 100);
+    }
+}
@@ -0,0 +1,184 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**Histogram accuracy, counters over a loopback connection, and the cost of metrics on the send and receive paths.*/
+public class MetricsTest {
+    private static final int HISTOGRAM = Metrics.COUNTER_COUNT;//the decode histogram, first after the counters
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextLong() >>> 1 + random.nextInt(63);
+            int index = Metrics.Histogram.Index(value);
+            assertTrue(Metrics.Histogram.HighestValue(index) >= value);
+            assertTrue(index == 0 || Metrics.Histogram.HighestValue(index - 1) < value);
+            assertTrue(Metrics.Histogram.HighestValue(index) - value <= value / 64);
+        }
+        assertEquals(Metrics.Histogram.BUCKET_COUNT - 1, Metrics.Histogram.Index(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, Metrics.Histogram.HighestValue(Metrics.Histogram.BUCKET_COUNT - 1));
+    }
+
+    @Test
+    public void percentilesWithinResolution() {
+        Metrics metrics = new Metrics();
+        for (long value = 1; value <= 1_000_000; value++) metrics.Record(Metrics.DECODE, value);
+        long[] stats = metrics.GetStats();
+        assertEquals(1_000_000, stats[HISTOGRAM]);
+        assertEquals(1, stats[HISTOGRAM + 1]);
+        assertEquals(500_000, stats[HISTOGRAM + 2]);
+        assertEquals(500_000, stats[HISTOGRAM + 3], 500_000 / 64.0);
+        assertEquals(900_000, stats[HISTOGRAM + 4], 900_000 / 64.0);
+        assertEquals(990_000, stats[HISTOGRAM + 5], 990_000 / 64.0);
+        assertEquals(999_000, stats[HISTOGRAM + 6], 999_000 / 64.0);
+        assertEquals(1_000_000, stats[HISTOGRAM + 7]);
+        metrics.Reset();
+        assertEquals(0, metrics.GetStats()[HISTOGRAM]);
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        Metrics metrics = new Metrics();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int seed = t;
+            threads[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 250_000; i++) {
+                    metrics.Record(Metrics.WRITE, random.nextInt(10_000_000));
+                    metrics.Add(Metrics.BYTES_OUT, 2);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        long[] stats = metrics.GetStats();
+        assertEquals(1_000_000, stats[Metrics.COUNTER_COUNT + Metrics.WRITE * Metrics.HISTOGRAM_STATS]);
+        assertEquals(2_000_000, stats[Metrics.BYTES_OUT]);
+    }
+
+    @Test
+    public void countsTrafficOverLoopback() throws Exception {
+        BlockingQueue<Integer> received = new LinkedBlockingQueue<>();
+        Transport.Listener listener = new Transport.Listener() {
+            @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {OnMessage(peerId, payload);}
+            @Override public void OnPeerConnected(int peerId) {}
+            @Override public void OnPeerDisconnected(int peerId) {}
+            @Override public void OnMessage(int peerId, ByteBuffer payload) {received.add(payload.remaining());}
+            @Override public void OnConnectionStatusChanged(int status) {}
+            @Override public void OnError(int error) {}
+            @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {}
+            @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {}
+            @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {}
+        };
+        Transport.Settings ownerSettings = new Transport.Settings(0);
+        ownerSettings.keepAliveIntervalMillis = 10;
+        ServerTransport owner = new ServerTransport(ownerSettings, listener);
+        owner.start();
+        while (owner.GetPort() < 0) Thread.sleep(1);
+        Transport.Settings clientSettings = new Transport.Settings(owner.GetPort());
+        clientSettings.keepAliveIntervalMillis = 10;
+        ClientTransport client = new ClientTransport("127.0.0.1", clientSettings, listener);
+        client.start();
+        for (int i = 0; i < 1000; i++) client.SendMessage(new byte[100]);
+        client.FlushMessages();
+        for (int i = 0; i < 1000; i++) assertEquals(Integer.valueOf(100), received.poll(5, TimeUnit.SECONDS));
+        Thread.sleep(100);//some keep-alive round trips
+        long[] ownerStats = ownerSettings.metrics.GetStats(), clientStats = clientSettings.metrics.GetStats();
+        assertEquals(1, ownerStats[Metrics.CONNECTS]);
+        assertEquals(1, clientStats[Metrics.CONNECTS]);
+        assertTrue(ownerStats[Metrics.MESSAGES_IN] >= 1000);
+        assertTrue(ownerStats[Metrics.BYTES_IN] >= 1000 * (100 + FrameCodec.HEADER_SIZE));
+        assertTrue(clientStats[Metrics.MESSAGES_OUT] >= 1000);
+        assertTrue(clientStats[Metrics.BYTES_OUT] >= 1000 * (100 + FrameCodec.HEADER_SIZE));
+        int roundTrip = Metrics.COUNTER_COUNT + Metrics.ROUND_TRIP * Metrics.HISTOGRAM_STATS;
+        assertTrue(ownerStats[roundTrip] > 0);
+        assertTrue(clientStats[roundTrip] > 0);
+        assertTrue(clientStats[roundTrip + 3] > 0 && clientStats[roundTrip + 3] < TimeUnit.MILLISECONDS.toNanos(100));
+
+        clientSettings.metrics.SetEnabled(false);
+        Thread.sleep(20);//a write that saw metrics on may still be finishing
+        long bytesOut = clientSettings.metrics.Get(Metrics.BYTES_OUT);
+        for (int i = 0; i < 10; i++) client.SendMessage(new byte[100]);
+        client.FlushMessages();
+        for (int i = 0; i < 10; i++) assertNotNull(received.poll(5, TimeUnit.SECONDS));
+        assertEquals(bytesOut, clientSettings.metrics.Get(Metrics.BYTES_OUT));
+        client.CloseThread();
+        owner.CloseThread();
+        client.join(5000);
+        owner.join(5000);
+        assertEquals(1, ownerSettings.metrics.GetStats()[Metrics.DISCONNECTS]);
+    }
+
+    /**Both paths run the same work with metrics off and on, back to back, and the median ratio of the pairs is compared,
+     * so a pause or a frequency change hits both halves of a pair instead of one side of the comparison. MetricsBenchmark
+     * reports the cost per message.*/
+    @Test
+    public void overheadStaysUnderFivePercent() throws Exception {
+        final int messages = 200_000, size = 64, rounds = 31;
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (int i = 0; i < messages; i++) encoded.write(FrameCodec.Encode(FrameCodec.TYPE_MESSAGE, new byte[size]));
+        byte[] stream = encoded.toByteArray();
+        Metrics off = new Metrics(), on = new Metrics();
+        off.SetEnabled(false);
+        double[] receive = new double[rounds], send = new double[rounds];
+        for (int round = -5; round < rounds; round++) {//the first rounds warm up
+            long receiveOff = Receive(stream, off, messages), sendOff = Send(messages, size, off);
+            if (round < 0) {
+                Receive(stream, on, messages);
+                Send(messages, size, on);
+                continue;
+            }
+            receive[round] = (double) Receive(stream, on, messages) / receiveOff;
+            send[round] = (double) Send(messages, size, on) / sendOff;
+        }
+        Arrays.sort(receive);
+        Arrays.sort(send);
+        double receiveOverhead = receive[rounds / 2] - 1, sendOverhead = send[rounds / 2] - 1;
+        assertTrue(receiveOverhead < 0.05);
+        assertTrue(sendOverhead < 0.05);
+    }
+
+    /**Decodes and delivers every frame of the stream, 16 KB per read as from a socket. Returns the time it took.*/
+    private static long Receive(byte[] stream, Metrics metrics, int messages) throws IOException {
+        FrameCodec.Decoder decoder = new FrameCodec.Decoder(16 * 1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        decoder.SetMetrics(metrics);
+        ByteArrayInputStream in = new ByteArrayInputStream(stream);
+        int[] count = new int[1];
+        long start = System.nanoTime();
+        while (decoder.ReadFrom(in, (type, buffer, offset, length) -> count[0] += buffer[offset] + 1));
+        long nanos = System.nanoTime() - start;
+        assertEquals(messages, count[0]);
+        return nanos;
+    }
+
+    /**Queues every message, then lets the writer pack and write them to a stream that drops them. Returns the time it took.*/
+    private static long Send(int messages, int size, Metrics metrics) throws InterruptedException {
+        FrameWriter writer = new FrameWriter("MetricsWriter", e -> fail());
+        writer.SetMetrics(metrics);
+        writer.SetFlushInterval(FrameWriter.FLUSH_MANUAL);
+        writer.Start(OutputStream.nullOutputStream());
+        byte[] message = new byte[size];
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) writer.EnqueueOwned(FrameCodec.TYPE_MESSAGE, message);//never changed, no copy needed
+        writer.Flush();
+        while (writer.GetCounters()[0] < messages) Thread.yield();
+        long nanos = System.nanoTime() - start;
+        writer.Close();
+        return nanos;
+    }
+}
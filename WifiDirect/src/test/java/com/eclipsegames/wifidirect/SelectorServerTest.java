@@ -0,0 +1,254 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**Loopback load test for the multi-client group owner. Many simulated clients send to the server, which echoes every message.
+ * Only correctness is checked here, the throughput is measured by TransportBenchmark in the benchmarks module.*/
+public class SelectorServerTest {
+    private static final int CLIENTS = 32, MESSAGES_PER_CLIENT = 5_000;
+
+    /**Echoes every message back to the peer it came from.*/
+    private static class EchoListener implements SelectorServer.Listener {
+        SelectorServer server;
+        final Set<Integer> connected = ConcurrentHashMap.newKeySet();
+        final AtomicInteger received = new AtomicInteger(), disconnected = new AtomicInteger();
+
+        @Override public void OnPeerConnected(int peerId) {connected.add(peerId);}
+        @Override public void OnPeerDisconnected(int peerId) {disconnected.incrementAndGet();}
+        @Override public void OnPeerResumed(int peerId) {}
+        @Override public void OnFrame(int peerId, byte type, ByteBuffer payload) {
+            if (type != FrameCodec.TYPE_MESSAGE) return;
+            byte[] message = new byte[payload.remaining()];
+            payload.get(message);
+            received.incrementAndGet();
+            assertTrue(server.Send(peerId, FrameCodec.TYPE_MESSAGE, message));
+        }
+        @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {}
+        @Override public void OnError(int peerId, IOException e) {fail(e.toString());}
+    }
+
+    @Test
+    public void servesManyClientsFromOneThread() throws Exception {
+        EchoListener listener = new EchoListener();
+        SelectorServer server = new SelectorServer(0, FrameCodec.DEFAULT_MAX_FRAME_SIZE, new BufferPool(CLIENTS, 16 * 1024), listener);
+        listener.server = server;
+        Set<Thread> threadsBefore = Thread.getAllStackTraces().keySet();
+        Thread loop = new Thread(() -> {
+            try {server.Run();} catch (IOException e) {throw new RuntimeException(e);}
+        }, "SelectorServerLoop");
+        loop.start();
+
+        CountDownLatch done = new CountDownLatch(CLIENTS);
+        AtomicInteger echoed = new AtomicInteger();
+        for (int c = 0; c < CLIENTS; c++) {
+            new Thread(() -> {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.GetPort())) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    Thread writer = new Thread(() -> {
+                        try {
+                            for (int i = 0; i < MESSAGES_PER_CLIENT; i++)
+                                out.write(FrameCodec.Encode(FrameCodec.TYPE_MESSAGE, ByteBuffer.allocate(4).putInt(i).array()));
+                        } catch (IOException e) {throw new RuntimeException(e);}
+                    }, "TestClientWriter");
+                    writer.start();
+                    FrameCodec.Decoder decoder = new FrameCodec.Decoder(1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+                    InputStream in = socket.getInputStream();
+                    int[] next = {0};
+                    while (next[0] < MESSAGES_PER_CLIENT && decoder.ReadFrom(in, (type, buffer, offset, length) -> {
+                        if (type != FrameCodec.TYPE_MESSAGE) return;
+                        assertEquals(next[0]++, ByteBuffer.wrap(buffer, offset, length).getInt());//echoes come back in order
+                    }));
+                    echoed.addAndGet(next[0]);
+                    writer.join();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {done.countDown();}
+            }, "TestClient").start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        int total = CLIENTS * MESSAGES_PER_CLIENT;
+        assertEquals(CLIENTS, listener.connected.size());
+        assertEquals(total, listener.received.get());
+        assertEquals(total, echoed.get());
+        long serverThreads = Thread.getAllStackTraces().keySet().stream()
+            .filter(t -> !threadsBefore.contains(t) && !t.getName().startsWith("TestClient")).count();
+        assertEquals(1, serverThreads);
+
+        server.Close();
+        loop.join(5_000);
+        assertFalse(loop.isAlive());
+        assertEquals(CLIENTS, listener.disconnected.get());
+    }
+
+    /**Blocking loopback client that speaks the frame protocol.*/
+    private static final class TestClient implements AutoCloseable {
+        private final Socket socket;
+        private final FrameCodec.Decoder decoder = new FrameCodec.Decoder(1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+
+        TestClient(SelectorServer server, int expectedPeers) throws Exception {
+            socket = new Socket(InetAddress.getLoopbackAddress(), server.GetPort());
+            socket.setTcpNoDelay(true);
+            while (server.GetPeerCount() < expectedPeers) Thread.sleep(1);//peer IDs follow connection order
+        }
+
+        void Send(byte type, byte[] payload) throws IOException {socket.getOutputStream().write(FrameCodec.Encode(type, payload));}
+
+        /**Blocks until a frame arrives and returns it as {type, payload...}.*/
+        byte[] Receive() throws IOException {
+            while (frames.isEmpty() && decoder.ReadFrom(socket.getInputStream(), (type, buffer, offset, length) -> {
+                byte[] frame = new byte[length + 1];
+                frame[0] = type;
+                System.arraycopy(buffer, offset, frame, 1, length);
+                frames.add(frame);
+            }));
+            return frames.poll();
+        }
+
+        /**Counts bytes as they arrive until the stream ends.*/
+        Thread Drain(AtomicInteger bytes) {
+            Thread reader = new Thread(() -> {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    InputStream in = socket.getInputStream();
+                    for (int n; (n = in.read(buffer)) != -1;) bytes.addAndGet(n);
+                } catch (IOException ignored) {/*Closed*/}
+            }, "TestClientReader");
+            reader.start();
+            return reader;
+        }
+
+        @Override public void close() throws IOException {socket.close();}
+    }
+
+    private static byte[] Relayed(int source, byte[] message) {
+        byte[] expected = new byte[5 + message.length];
+        expected[0] = FrameCodec.TYPE_RELAYED;
+        FrameCodec.WriteInt(expected, 1, source);
+        System.arraycopy(message, 0, expected, 5, message.length);
+        return expected;
+    }
+
+    private static byte[] RelayPayload(int target, byte[] message) {
+        byte[] payload = new byte[4 + message.length];
+        FrameCodec.WriteInt(payload, 0, target);
+        System.arraycopy(message, 0, payload, 4, message.length);
+        return payload;
+    }
+
+    @Test
+    public void relaysClientMessagesToOtherPeers() throws Exception {
+        EchoListener listener = new EchoListener() {
+            @Override public void OnFrame(int peerId, byte type, ByteBuffer payload) {received.incrementAndGet();}
+        };
+        SelectorServer server = new SelectorServer(0, FrameCodec.DEFAULT_MAX_FRAME_SIZE, new BufferPool(4, 16 * 1024), listener);
+        server.SetRelayEnabled(true);
+        Thread loop = new Thread(() -> {
+            try {server.Run();} catch (IOException e) {throw new RuntimeException(e);}
+        });
+        loop.start();
+        try (TestClient a = new TestClient(server, 1); TestClient b = new TestClient(server, 2); TestClient c = new TestClient(server, 3)) {
+            byte[] toEveryone = {1, 2, 3}, toC = {4, 5};
+            a.Send(FrameCodec.TYPE_RELAY, RelayPayload(FrameCodec.ALL_PEERS, toEveryone));
+            a.Send(FrameCodec.TYPE_RELAY, RelayPayload(3, toC));
+            assertArrayEquals(Relayed(1, toEveryone), b.Receive());
+            assertArrayEquals(Relayed(1, toEveryone), c.Receive());
+            assertArrayEquals(Relayed(1, toC), c.Receive());
+            b.Send(FrameCodec.TYPE_MESSAGE, toC);//b only hears from others through the group owner
+            server.Broadcast(FrameCodec.TYPE_MESSAGE, toC, SelectorServer.GROUP_OWNER_ID);
+            byte[] fromGroupOwner = new byte[toC.length + 1];
+            fromGroupOwner[0] = FrameCodec.TYPE_MESSAGE;
+            System.arraycopy(toC, 0, fromGroupOwner, 1, toC.length);
+            assertArrayEquals(fromGroupOwner, b.Receive());
+            assertArrayEquals(fromGroupOwner, a.Receive());//a's relay to everyone did not come back to a
+            while (listener.received.get() < 2) Thread.sleep(1);//the group owner got the relay to everyone and b's message
+        } finally {
+            server.Close();
+            loop.join();
+        }
+    }
+
+    /**Client 0 never reads, so once the socket buffers are full its queue grows until it passes the limit and it is
+     * disconnected, while the others, which keep up, get every broadcast.*/
+    @Test
+    public void slowPeerDoesNotStallBroadcasts() throws Exception {
+        final int peers = 8, broadcasts = 2_000, size = 16 * 1024;
+        EchoListener listener = new EchoListener();
+        Metrics metrics = new Metrics();
+        SelectorServer server = new SelectorServer(0, FrameCodec.DEFAULT_MAX_FRAME_SIZE, new BufferPool(peers, 16 * 1024), listener);
+        server.SetSendQueueLimit(4 * 1024 * 1024);
+        server.SetMetrics(metrics);
+        Thread loop = new Thread(() -> {
+            try {server.Run();} catch (IOException e) {throw new RuntimeException(e);}
+        });
+        loop.start();
+        TestClient[] clients = new TestClient[peers];
+        AtomicInteger[] received = new AtomicInteger[peers];
+        try {
+            for (int i = 0; i < peers; i++) {
+                clients[i] = new TestClient(server, i + 1);
+                received[i] = new AtomicInteger();
+                if (i > 0) clients[i].Drain(received[i]);//client 0 never reads
+            }
+            byte[] message = new byte[size];
+            long start = System.nanoTime();
+            long expected = 0;
+            for (int i = 0; i < broadcasts; i++) {
+                assertTrue(server.Broadcast(FrameCodec.TYPE_MESSAGE, message, SelectorServer.GROUP_OWNER_ID) >= peers - 1);
+                expected += FrameCodec.HEADER_SIZE + size;
+                if (i % 64 != 63 && i != broadcasts - 1) continue;
+                for (int peer = 1; peer < peers; peer++) while (received[peer].get() < expected) {//keeps the readers within a megabyte
+                    assertTrue("Peer " + peer + " stalled", System.nanoTime() - start < 30_000_000_000L);
+                    Thread.sleep(1);
+                }
+            }
+            assertTrue(received[0].get() < expected);
+            assertEquals(1, listener.disconnected.get());
+            assertEquals(peers - 1, server.GetPeerCount());
+            assertEquals(1, metrics.Get(Metrics.SEND_QUEUE_OVERFLOWS));
+        } finally {
+            server.Close();
+            loop.join();
+            for (TestClient client : clients) if (client != null) client.close();
+        }
+    }
+
+    @Test
+    public void manualFlushStillSendsPingsRightAway() throws Exception {
+        SelectorServer server = new SelectorServer(0, FrameCodec.DEFAULT_MAX_FRAME_SIZE, new BufferPool(1, 16 * 1024), new EchoListener());
+        server.SetFlushInterval(FrameWriter.FLUSH_MANUAL);
+        Thread loop = new Thread(() -> {
+            try {server.Run();} catch (IOException e) {throw new RuntimeException(e);}
+        });
+        loop.start();
+        try (TestClient client = new TestClient(server, 1)) {
+            byte[] message = {1, 2, 3}, ping = new byte[8];
+            assertTrue(server.Send(1, FrameCodec.TYPE_MESSAGE, message));
+            Thread.sleep(50);
+            assertEquals(0, server.GetCounters()[0]);//held for the tick
+            assertTrue(server.Send(1, FrameCodec.TYPE_PING, ping));
+            client.socket.setSoTimeout(5000);
+            assertEquals(FrameCodec.TYPE_MESSAGE, client.Receive()[0]);//without a Flush(), in order
+            assertEquals(FrameCodec.TYPE_PING, client.Receive()[0]);
+        } finally {
+            server.Close();
+            loop.join();
+        }
+    }
+}
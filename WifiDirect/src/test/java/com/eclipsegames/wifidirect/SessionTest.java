@@ -0,0 +1,229 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**The replay buffer on its own, then a group owner and a client resuming through a proxy that resets their connection.*/
+public class SessionTest {
+    private static Session<byte[]> NewSession(int replayLimit) {return new Session<>(replayLimit, frame -> frame.length);}
+
+    @Test
+    public void replaysOnlyWhatWasNotReceived() {
+        Session<byte[]> session = NewSession(1024);
+        for (int i = 1; i <= 10; i++) session.Sent(new byte[] {(byte) i});
+        session.Acked(4);
+        assertNull(session.Resume(3));//already acked, so no longer buffered
+        assertNull(session.Resume(11));//never sent
+        List<byte[]> frames = session.Resume(6);
+        assertEquals(4, frames.size());
+        for (int i = 0; i < 4; i++) assertEquals(7 + i, frames.get(i)[0]);
+        for (byte[] frame : frames) session.Sent(frame);//written again on the new connection
+        assertEquals(4, session.Resume(6).size());
+    }
+
+    @Test
+    public void evictsOldestFramesOverTheLimit() {
+        Session<byte[]> session = NewSession(100);
+        for (int i = 0; i < 10; i++) session.Sent(new byte[30]);
+        assertNull(session.Resume(5));//frame 6 was evicted to stay under 100 bytes
+        assertEquals(3, session.Resume(7).size());
+    }
+
+    @Test
+    public void acksAfterEnoughFrames() {
+        Session<byte[]> session = NewSession(1024);
+        int frames = 1;
+        while (!session.Received(10)) frames++;
+        assertTrue(frames > 1);
+        assertEquals(frames, FrameCodec.ReadLong(session.Ack(), 0));
+        assertFalse(session.Received(10));
+        assertTrue(session.Received(1024 * 1024));
+    }
+
+    /**Forwards connections to a port, and resets every open one at random intervals. A goodbye is passed on as one.*/
+    private static final class FlakyProxy {
+        private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+        private final Random random = new Random(13);
+        final AtomicInteger resets = new AtomicInteger();
+        volatile boolean flaky = true;
+
+        FlakyProxy(int targetPort) throws IOException {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket client = serverSocket.accept(), target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                        client.setSoLinger(true, 0);//any close is a reset, the way a dropped Wi-Fi link ends a connection
+                        target.setSoLinger(true, 0);
+                        sockets.add(client);
+                        sockets.add(target);
+                        Pump(client, target);
+                        Pump(target, client);
+                    }
+                } catch (IOException ignored) {/*Closed*/}
+            }, "ProxyAcceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            Thread resetter = new Thread(() -> {
+                try {
+                    while (!serverSocket.isClosed()) {
+                        Thread.sleep(30 + random.nextInt(120));
+                        if (flaky && !sockets.isEmpty()) {
+                            ResetAll();
+                            resets.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException ignored) {/*Done*/}
+            }, "ProxyResetter");
+            resetter.setDaemon(true);
+            resetter.start();
+        }
+
+        int GetPort() {return serverSocket.getLocalPort();}
+
+        private void Pump(Socket from, Socket to) {
+            Thread pump = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    for (int read; (read = in.read(buffer)) != -1;) out.write(buffer, 0, read);
+                    to.shutdownOutput();
+                } catch (IOException e) {//one side was reset, so is the other
+                    try {from.close(); to.close();} catch (IOException ignored) {/*Already closed*/}
+                }
+            }, "ProxyPump");
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        private void ResetAll() {
+            for (Socket socket : sockets) {
+                try {socket.close();} catch (IOException ignored) {/*Already closed*/}
+                sockets.remove(socket);
+            }
+        }
+
+        void Close() throws IOException {
+            serverSocket.close();
+            ResetAll();
+        }
+    }
+
+    /**Checks that numbered messages arrive exactly once and in order.*/
+    private static final class Sequence implements Transport.Listener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        final AtomicInteger next = new AtomicInteger();
+        volatile int peerId = -1;
+        volatile String failure;
+
+        @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {OnMessage(peerId, payload);}
+        @Override public void OnPeerConnected(int peerId) {
+            this.peerId = peerId;
+            events.add("connected " + peerId);
+        }
+        @Override public void OnPeerDisconnected(int peerId) {events.add("disconnected " + peerId);}
+        @Override public void OnMessage(int peerId, ByteBuffer payload) {
+            int number = payload.getInt(payload.position()), expected = next.getAndIncrement();
+            if (number != expected && failure == null) failure = "Expected message " + expected + " but got " + number;
+        }
+        @Override public void OnConnectionStatusChanged(int status) {events.add("status " + status);}
+        @Override public void OnError(int error) {events.add("error " + error);}
+        @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {}
+        @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {}
+        @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {}
+
+        void AwaitAll(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (next.get() < count && failure == null && System.nanoTime() < deadline) Thread.sleep(10);
+            assertNull(failure, failure);
+            assertEquals(count, next.get());
+        }
+    }
+
+    @Test
+    public void resumesWithoutLosingOrDuplicatingMessages() throws Exception {
+        final int messages = 20_000;
+        Sequence ownerEvents = new Sequence(), clientEvents = new Sequence();
+        Transport.Settings ownerSettings = new Transport.Settings(0);
+        ServerTransport owner = new ServerTransport(ownerSettings, ownerEvents);
+        owner.start();
+        while (owner.GetPort() < 0) Thread.sleep(1);
+        FlakyProxy proxy = new FlakyProxy(owner.GetPort());
+        proxy.flaky = false;
+        Transport.Settings clientSettings = new Transport.Settings(proxy.GetPort());
+        ClientTransport client = new ClientTransport("127.0.0.1", clientSettings, clientEvents);
+        client.start();
+        while (client.GetLocalPeerId() < 0 || ownerEvents.peerId < 0) Thread.sleep(1);
+        proxy.flaky = true;
+
+        for (int i = 0; i < messages; i++) {
+            byte[] message = ByteBuffer.allocate(64).putInt(i).array();
+            client.SendMessage(message);
+            owner.SendMessage(ownerEvents.peerId, message);
+            if (i % 100 == 99) Thread.sleep(5);//spread the traffic over many resets
+        }
+        ownerEvents.AwaitAll(messages);
+        clientEvents.AwaitAll(messages);
+        proxy.flaky = false;
+        assertTrue(proxy.resets.get() >= 3);
+        assertTrue(ownerSettings.metrics.Get(Metrics.RECONNECTS) > 0);
+        assertEquals(1, ownerSettings.metrics.Get(Metrics.CONNECTS));//the same peer all along
+        assertEquals("connected " + ownerEvents.peerId, ownerEvents.events.poll());
+        assertNull(ownerEvents.events.poll());
+        assertEquals("status " + Transport.CONNECTED, clientEvents.events.poll());
+        assertEquals("connected " + SelectorServer.GROUP_OWNER_ID, clientEvents.events.poll());
+        assertNull(clientEvents.events.poll());
+
+        client.CloseThread();
+        client.join(5000);
+        assertEquals("disconnected " + ownerEvents.peerId, ownerEvents.events.poll(ownerSettings.resumeWindowMillis + 5_000, TimeUnit.MILLISECONDS));
+        owner.CloseThread();
+        owner.join(5000);
+        proxy.Close();
+    }
+
+    @Test
+    public void reportsLostConnectionOnceTheWindowHasPassed() throws Exception {
+        Sequence ownerEvents = new Sequence(), clientEvents = new Sequence();
+        Transport.Settings ownerSettings = new Transport.Settings(0);
+        ownerSettings.resumeWindowMillis = 300;
+        ServerTransport owner = new ServerTransport(ownerSettings, ownerEvents);
+        owner.start();
+        while (owner.GetPort() < 0) Thread.sleep(1);
+        FlakyProxy proxy = new FlakyProxy(owner.GetPort());
+        proxy.flaky = false;
+        Transport.Settings clientSettings = new Transport.Settings(proxy.GetPort());
+        clientSettings.resumeWindowMillis = 300;
+        ClientTransport client = new ClientTransport("127.0.0.1", clientSettings, clientEvents);
+        client.start();
+        while (client.GetLocalPeerId() < 0 || ownerEvents.peerId < 0) Thread.sleep(1);
+        proxy.Close();//the group owner is out of reach from now on
+
+        assertEquals("connected " + ownerEvents.peerId, ownerEvents.events.poll());
+        assertEquals("disconnected " + ownerEvents.peerId, ownerEvents.events.poll(5, TimeUnit.SECONDS));
+        String event;
+        while ((event = clientEvents.events.poll(5, TimeUnit.SECONDS)) != null && !event.equals("status " + Transport.CONNECTION_LOST));
+        assertEquals("status " + Transport.CONNECTION_LOST, event);
+        client.join(5000);
+        assertFalse(client.isAlive());
+        owner.CloseThread();
+        owner.join(5000);
+    }
+}
@@ -0,0 +1,291 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**Delta encoding on its own, two syncs wired back to back with the frames delivered by hand, then a synthetic 100 entity
+ * workload over loopback against sending every entity every tick.*/
+public class StateSyncTest {
+    private static final int ENTITIES = 100, ENTITY_SIZE = 32, TICKS = 200;
+    private final List<Transport> transports = new ArrayList<>();
+
+    @After
+    public void closeAll() throws InterruptedException {
+        for (Transport transport : transports) transport.CloseThread();
+        for (Transport transport : transports) transport.join(5000);
+    }
+
+    @Test
+    public void deltasRoundTripAndStaySmall() {
+        Random random = new Random(5);
+        StateSync.Buffer out = new StateSync.Buffer();
+        for (int i = 0; i < 2000; i++) {
+            byte[] base = new byte[random.nextInt(100)], value = new byte[random.nextInt(100)];
+            random.nextBytes(base);
+            System.arraycopy(base, 0, value, 0, Math.min(base.length, value.length));
+            for (int changes = random.nextInt(5); changes > 0 && value.length > 0; changes--) value[random.nextInt(value.length)] ^= 1 + random.nextInt(255);
+            out.Clear();
+            StateSync.WriteDelta(base, value, out);
+            assertArrayEquals(value, StateSync.ReadDelta(base, value.length, ByteBuffer.wrap(out.ToArray())));
+        }
+        byte[] base = new byte[64], value = base.clone();
+        value[10] = 1;
+        value[40] = 2;
+        out.Clear();
+        StateSync.WriteDelta(base, value, out);
+        assertEquals(8, out.ToArray().length);//2 runs of 1 changed byte, then the unchanged end
+        out.Clear();
+        StateSync.WriteDelta(base, base, out);
+        assertEquals(2, out.ToArray().length);
+    }
+
+    /**Two devices, each with its own sync, the frames between them held until Deliver().*/
+    private static final class Pair implements StateSync.Listener {
+        final StateSync.Slots slots = new StateSync.Slots();
+        final Map<Integer, byte[]> received = new HashMap<>();
+        final ArrayDeque<byte[]> toReceiver = new ArrayDeque<>(), toSender = new ArrayDeque<>();
+        long snapshotBytes;
+        final StateSync sender = new StateSync(slots, (peerId, type, payload) -> {
+            snapshotBytes += payload.length;
+            return toReceiver.add(payload);
+        }, this);
+        final StateSync receiver = new StateSync(new StateSync.Slots(), (peerId, type, payload) -> toSender.add(payload), this);
+
+        Pair() {
+            sender.OnPeerConnected(1);
+            receiver.OnPeerConnected(0);
+        }
+
+        @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {
+            if (value == null) received.remove(key);
+            else {
+                byte[] bytes = new byte[value.remaining()];
+                value.get(bytes);
+                received.put(key, bytes);
+            }
+        }
+
+        void DeliverSnapshots() {for (byte[] frame; (frame = toReceiver.poll()) != null;) receiver.OnFrame(0, ByteBuffer.wrap(frame));}
+        void DeliverAcks() {for (byte[] frame; (frame = toSender.poll()) != null;) sender.OnFrame(1, ByteBuffer.wrap(frame));}
+
+        void AssertReplicated() {
+            assertEquals(slots.Size(), received.size());
+            for (Map.Entry<Integer, byte[]> entry : received.entrySet()) {
+                assertArrayEquals(slots.Get(entry.getKey()), entry.getValue());
+                assertArrayEquals(entry.getValue(), receiver.Get(0, entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void sendsOnlyChangesAndConflatesWhileUnacked() {
+        Pair pair = new Pair();
+        for (int key = 0; key < 10; key++) pair.slots.Set(key, new byte[ENTITY_SIZE]);
+        assertEquals(1, pair.sender.Sync());
+        assertEquals(0, pair.sender.Sync());//nothing changed
+        pair.DeliverSnapshots();
+        pair.DeliverAcks();
+        pair.AssertReplicated();
+
+        long before = pair.snapshotBytes;
+        byte[] moved = new byte[ENTITY_SIZE];
+        moved[4] = 7;
+        pair.slots.Set(3, moved);
+        assertEquals(1, pair.sender.Sync());
+        assertTrue(pair.snapshotBytes - before < 30);//one slot, as a delta
+
+        for (int tick = 0; tick < 10; tick++) {//acks don't come back, later ticks wait in the slots
+            pair.slots.Set(5, new byte[] {(byte) tick});
+            pair.sender.Sync();
+        }
+        assertEquals(StateSync.MAX_UNACKED, pair.toReceiver.size());
+        assertEquals(StateSync.MAX_UNACKED, pair.sender.GetUnacked(1));
+        pair.DeliverSnapshots();
+        pair.DeliverAcks();
+        assertEquals(1, pair.sender.Sync());
+        pair.DeliverSnapshots();
+        pair.DeliverAcks();
+        pair.AssertReplicated();
+        assertArrayEquals(new byte[] {9}, pair.received.get(5));
+
+        pair.slots.Remove(5);
+        pair.sender.Sync();
+        pair.slots.Set(5, new byte[] {1, 2});//added again before the removal was acked
+        pair.sender.Sync();
+        pair.DeliverSnapshots();
+        pair.DeliverAcks();
+        pair.AssertReplicated();
+    }
+
+    /**Random changes, removals and syncs, with snapshots and acks delivered late and in bursts.*/
+    @Test
+    public void replicatesRandomChangesWithLateAcks() {
+        Random random = new Random(11);
+        Pair pair = new Pair();
+        for (int step = 0; step < 20_000; step++) {
+            int key = random.nextInt(40), action = random.nextInt(10);
+            if (action < 6) {
+                byte[] value = pair.slots.Get(key);
+                if (value == null || random.nextInt(8) == 0) value = new byte[random.nextInt(48)];
+                if (value.length > 0) value[random.nextInt(value.length)] = (byte) random.nextInt();
+                pair.slots.Set(key, value);
+            } else if (action == 6) pair.slots.Remove(key);
+            else if (action == 7) pair.sender.Sync();
+            else if (action == 8) pair.DeliverSnapshots();
+            else pair.DeliverAcks();
+        }
+        for (int i = 0; i < StateSync.MAX_UNACKED + 1; i++) {
+            pair.DeliverSnapshots();
+            pair.DeliverAcks();
+            pair.sender.Sync();
+        }
+        pair.DeliverSnapshots();
+        pair.DeliverAcks();
+        pair.AssertReplicated();
+    }
+
+    /**Entities with a position, a velocity and a few fields, of which a fifth move each tick.*/
+    private static final class World {
+        private final ByteBuffer[] entities = new ByteBuffer[ENTITIES];
+        private final Random random = new Random(3);
+
+        World() {
+            for (int id = 0; id < ENTITIES; id++)
+                entities[id] = ByteBuffer.allocate(ENTITY_SIZE).putInt(id).putFloat(id * 10).putFloat(id * 5).putFloat(0)
+                    .putFloat(1).putFloat(0).putInt(100).putInt(0);
+        }
+
+        void Tick() {
+            for (int i = 0; i < ENTITIES / 5; i++) {
+                ByteBuffer entity = entities[random.nextInt(ENTITIES)];
+                entity.putFloat(4, entity.getFloat(4) + entity.getFloat(16) * 0.016f);
+                entity.putFloat(8, entity.getFloat(8) + random.nextFloat() * 0.1f);
+            }
+        }
+
+        byte[] Get(int id) {return entities[id].array().clone();}
+
+        byte[] Snapshot() {
+            ByteBuffer all = ByteBuffer.allocate(ENTITIES * ENTITY_SIZE);
+            for (ByteBuffer entity : entities) all.put(entity.array());
+            return all.array();
+        }
+    }
+
+    /**The same client to group owner traffic twice, every entity in a message each tick, then through StateSync. Paced ticks
+     * show what deltas save on the wire, a burst into a group owner that takes a millisecond per update shows how far
+     * behind each gets: messages sent but not received, against snapshots sent but not acknowledged.*/
+    @Test
+    public void syntheticWorkloadOverLoopback() throws Exception {
+        AtomicLong messages = new AtomicLong(), updates = new AtomicLong();
+        AtomicLong slowMillis = new AtomicLong();
+        Transport.Listener ownerEvents = new Transport.Listener() {
+            @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {OnMessage(peerId, payload);}
+            @Override public void OnPeerConnected(int peerId) {}
+            @Override public void OnPeerDisconnected(int peerId) {}
+            @Override public void OnMessage(int peerId, ByteBuffer payload) {
+                Slow(slowMillis.get());
+                messages.incrementAndGet();
+            }
+            @Override public void OnConnectionStatusChanged(int status) {}
+            @Override public void OnError(int error) {}
+            @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {}
+            @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {}
+            @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {
+                if (updates.incrementAndGet() % (ENTITIES / 5) == 0) Slow(slowMillis.get());//about once per snapshot
+            }
+        };
+        ServerTransport owner = new ServerTransport(new Transport.Settings(0), ownerEvents);
+        transports.add(owner);
+        owner.start();
+        while (owner.GetPort() < 0) Thread.sleep(1);
+        Transport.Settings clientSettings = new Transport.Settings(owner.GetPort());
+        ClientTransport client = new ClientTransport("127.0.0.1", clientSettings, new Transport.Listener() {
+            @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {OnMessage(peerId, payload);}
+            @Override public void OnPeerConnected(int peerId) {}
+            @Override public void OnPeerDisconnected(int peerId) {}
+            @Override public void OnMessage(int peerId, ByteBuffer payload) {}
+            @Override public void OnConnectionStatusChanged(int status) {}
+            @Override public void OnError(int error) {}
+            @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {}
+            @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {}
+            @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {}
+        });
+        transports.add(client);
+        client.start();
+        while (client.GetLocalPeerId() < 0) Thread.sleep(1);
+        int peerId = client.GetLocalPeerId();
+        World world = new World();
+
+        long bytes = clientSettings.metrics.Get(Metrics.BYTES_OUT);
+        for (int tick = 0; tick < TICKS; tick++) {
+            world.Tick();
+            client.SendMessage(world.Snapshot());
+            Thread.sleep(1);
+        }
+        while (messages.get() < TICKS) Thread.sleep(1);
+        long snapshotBytes = clientSettings.metrics.Get(Metrics.BYTES_OUT) - bytes;
+        bytes = clientSettings.metrics.Get(Metrics.BYTES_OUT);
+        for (int tick = 0; tick < TICKS; tick++) {
+            world.Tick();
+            for (int id = 0; id < ENTITIES; id++) clientSettings.stateSlots.Set(id, world.Get(id));
+            client.state.Sync();
+            Thread.sleep(1);
+        }
+        Converge(client, owner, peerId, world);
+        long stateBytes = clientSettings.metrics.Get(Metrics.BYTES_OUT) - bytes;
+
+        slowMillis.set(1);
+        int maxMessageBacklog = 0, maxStateBacklog = 0;
+        messages.set(0);
+        for (int tick = 0; tick < TICKS; tick++) {
+            world.Tick();
+            client.SendMessage(world.Snapshot());
+            maxMessageBacklog = Math.max(maxMessageBacklog, (int) (tick + 1 - messages.get()));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (messages.get() < TICKS && System.nanoTime() < deadline) Thread.sleep(1);
+        for (int tick = 0; tick < TICKS; tick++) {
+            world.Tick();
+            for (int id = 0; id < ENTITIES; id++) clientSettings.stateSlots.Set(id, world.Get(id));
+            client.state.Sync();
+            maxStateBacklog = Math.max(maxStateBacklog, client.state.GetUnacked(SelectorServer.GROUP_OWNER_ID));
+        }
+        Converge(client, owner, peerId, world);
+        assertTrue(stateBytes < snapshotBytes / 4);
+        assertTrue(maxStateBacklog <= StateSync.MAX_UNACKED);
+        assertTrue(maxMessageBacklog > 10 * StateSync.MAX_UNACKED);
+    }
+
+    /**Syncs until the group owner has every entity as the world has it.*/
+    private static void Converge(ClientTransport client, ServerTransport owner, int peerId, World world) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            client.state.Sync();
+            boolean done = true;
+            for (int id = 0; id < ENTITIES && done; id++) done = Arrays.equals(world.Get(id), owner.state.Get(peerId, id));
+            if (done) return;
+            assertTrue("state never converged", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void Slow(long millis) {
+        if (millis == 0) return;
+        try {Thread.sleep(millis);}
+        catch (InterruptedException e) {Thread.currentThread().interrupt();}
+    }
+}
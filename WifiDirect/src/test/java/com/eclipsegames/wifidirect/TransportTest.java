@@ -0,0 +1,140 @@
+package com.eclipsegames.wifidirect;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**A group owner and its clients over loopback, on a plain JVM without Wi-Fi Direct.*/
+public class TransportTest {
+    /**Records everything a transport reports.*/
+    private static final class Recorder implements Transport.Listener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        final BlockingQueue<byte[]> messages = new LinkedBlockingQueue<>();
+
+        @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {OnMessage(peerId, payload);}
+        @Override public void OnPeerConnected(int peerId) {events.add("connected " + peerId);}
+        @Override public void OnPeerDisconnected(int peerId) {events.add("disconnected " + peerId);}
+        @Override public void OnMessage(int peerId, ByteBuffer payload) {
+            byte[] message = new byte[4 + payload.remaining()];
+            FrameCodec.WriteInt(message, 0, peerId);
+            payload.get(message, 4, message.length - 4);
+            messages.add(message);
+        }
+        @Override public void OnConnectionStatusChanged(int status) {events.add("status " + status);}
+        @Override public void OnError(int error) {events.add("error " + error);}
+        @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {}
+        @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {}
+        @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {}
+
+        String NextEvent() throws InterruptedException {return events.poll(5, TimeUnit.SECONDS);}
+
+        /**Returns the sender of the next message, and checks its content.*/
+        int NextMessage(String expected) throws InterruptedException {
+            byte[] message = messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertEquals(expected, new String(message, 4, message.length - 4));
+            return FrameCodec.ReadInt(message, 0);
+        }
+    }
+
+    private final Recorder ownerEvents = new Recorder();
+    private final List<Transport> transports = new ArrayList<>();
+
+    @After
+    public void closeAll() throws InterruptedException {
+        for (Transport transport : transports) transport.CloseThread();
+        for (Transport transport : transports) transport.join(5000);
+    }
+
+    private ServerTransport StartServer(boolean relayEnabled) throws InterruptedException {
+        Transport.Settings settings = new Transport.Settings(0);
+        settings.relayEnabled = relayEnabled;
+        ServerTransport server = new ServerTransport(settings, ownerEvents);
+        transports.add(server);
+        server.start();
+        while (server.GetPort() < 0) Thread.sleep(1);
+        return server;
+    }
+
+    private ClientTransport Connect(ServerTransport server, Recorder events) throws InterruptedException {
+        ClientTransport client = new ClientTransport("127.0.0.1", new Transport.Settings(server.GetPort()), events);
+        transports.add(client);
+        client.start();
+        assertEquals("status " + Transport.CONNECTED, events.NextEvent());
+        assertEquals("connected " + SelectorServer.GROUP_OWNER_ID, events.NextEvent());
+        while (client.GetLocalPeerId() < 0) Thread.sleep(1);
+        assertEquals("connected " + client.GetLocalPeerId(), ownerEvents.NextEvent());
+        return client;
+    }
+
+    @Test
+    public void exchangesMessagesWithEveryClient() throws Exception {
+        ServerTransport server = StartServer(false);
+        Recorder aEvents = new Recorder(), bEvents = new Recorder();
+        ClientTransport a = Connect(server, aEvents), b = Connect(server, bEvents);
+        assertEquals(2, server.GetPeerCount());
+
+        a.SendMessage("from a".getBytes());
+        assertEquals(a.GetLocalPeerId(), ownerEvents.NextMessage("from a"));
+        server.SendMessage(b.GetLocalPeerId(), "to b".getBytes());
+        assertEquals(SelectorServer.GROUP_OWNER_ID, bEvents.NextMessage("to b"));
+        server.BroadcastMessage("everyone".getBytes());
+        aEvents.NextMessage("everyone");
+        bEvents.NextMessage("everyone");
+        b.SendOnChannel(SelectorServer.GROUP_OWNER_ID, 3, "on a channel".getBytes());
+        assertEquals(b.GetLocalPeerId(), ownerEvents.NextMessage("on a channel"));
+    }
+
+    @Test
+    public void relaysBetweenClients() throws Exception {
+        ServerTransport server = StartServer(true);
+        Recorder aEvents = new Recorder(), bEvents = new Recorder();
+        ClientTransport a = Connect(server, aEvents), b = Connect(server, bEvents);
+        a.SendMessage(b.GetLocalPeerId(), "a to b".getBytes());
+        assertEquals(a.GetLocalPeerId(), bEvents.NextMessage("a to b"));
+        b.BroadcastMessage("b to all".getBytes());
+        assertEquals(b.GetLocalPeerId(), aEvents.NextMessage("b to all"));
+        assertEquals(b.GetLocalPeerId(), ownerEvents.NextMessage("b to all"));
+        assertNull(bEvents.messages.poll(100, TimeUnit.MILLISECONDS));//not back to the sender
+    }
+
+    @Test
+    public void reportsDisconnectsOnBothSides() throws Exception {
+        ServerTransport server = StartServer(false);
+        Recorder aEvents = new Recorder();
+        ClientTransport a = Connect(server, aEvents);
+        int peerId = a.GetLocalPeerId();
+        a.CloseThread();
+        assertEquals("disconnected " + peerId, ownerEvents.NextEvent());
+        a.join(5000);
+        assertFalse(a.isAlive());
+
+        Recorder bEvents = new Recorder();
+        Connect(server, bEvents);
+        server.CloseThread();
+        String event;
+        while ((event = bEvents.NextEvent()) != null && !event.startsWith("disconnected"));
+        assertEquals("disconnected " + SelectorServer.GROUP_OWNER_ID, event);
+    }
+
+    @Test
+    public void reportsFailedConnection() throws Exception {
+        ServerTransport server = StartServer(false);
+        int port = server.GetPort();
+        server.CloseThread();
+        server.join(5000);
+        Recorder events = new Recorder();
+        ClientTransport client = new ClientTransport("127.0.0.1", new Transport.Settings(port), events);
+        transports.add(client);
+        client.start();
+        assertEquals("status " + Transport.CONNECT_FAILED, events.NextEvent());
+    }
+}
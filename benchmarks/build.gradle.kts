@@ -0,0 +1,28 @@
+plugins {
+    java
+    id("me.champeau.jmh")
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+//Builds the plugin's sources for a plain JVM, everything but the WifiDirectManager facade runs without the Android SDK.
+sourceSets {
+    main {
+        java {
+            srcDir("../WifiDirect/src/main/java")
+            exclude("**/WifiDirectManager.java")
+        }
+    }
+}
+
+//./gradlew :benchmarks:jmh runs every size and peer count, which takes a while.
+//Narrow it down with e.g. -PjmhIncludes=roundTrip, results end up in build/results/jmh.
+jmh {
+    jmhVersion.set("1.37")
+    profilers.add("gc")//allocation rate, gc.alloc.rate.norm is bytes allocated per operation
+    resultFormat.set("JSON")
+    if (project.hasProperty("jmhIncludes")) includes.add(project.property("jmhIncludes").toString())
+}
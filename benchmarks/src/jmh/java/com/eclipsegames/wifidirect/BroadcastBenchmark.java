@@ -0,0 +1,118 @@
+package com.eclipsegames.wifidirect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**Cost of sending one message to every peer of the group owner, as one shared broadcast frame or as a separately encoded
+ * frame per peer. The peers are plain sockets whose threads only count the bytes, so the score is the sending side, the
+ * event loop included. Divide by peers for the cost per peer.*/
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BroadcastBenchmark {
+    private static final int IN_FLIGHT_BYTES = 1024 * 1024;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"64", "1024", "16384"})
+    public int messageSize;
+
+    @Param({"2", "8", "32"})
+    public int peers;
+
+    private SelectorServer server;
+    private Thread loop;
+    private Socket[] sockets;
+    private AtomicLongArray received;
+    private byte[] message;
+    private long sent;//bytes per peer, benchmark thread only
+
+    @Setup(Level.Trial)
+    public void connect() throws IOException, InterruptedException {
+        message = new byte[messageSize];
+        server = new SelectorServer(0, FrameCodec.DEFAULT_MAX_FRAME_SIZE, new BufferPool(peers, 16 * 1024), new Listener());
+        loop = new Thread(() -> {
+            try {server.Run();} catch (IOException e) {throw new RuntimeException(e);}
+        }, "BroadcastBenchmarkLoop");
+        loop.start();
+        sockets = new Socket[peers];
+        received = new AtomicLongArray(peers);
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        for (int i = 0; i < peers; i++) {
+            Socket socket = sockets[i] = new Socket(InetAddress.getLoopbackAddress(), server.GetPort());
+            int index = i;
+            Thread reader = new Thread(() -> {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    InputStream in = socket.getInputStream();
+                    for (int n; (n = in.read(buffer)) != -1;) received.addAndGet(index, n);
+                } catch (IOException ignored) {/*Closed*/}
+            }, "BroadcastBenchmarkPeer");
+            reader.setDaemon(true);
+            reader.start();
+            while (server.GetPeerCount() <= i) Wait(deadline);//peer IDs follow connection order
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException, InterruptedException {
+        server.Close();
+        loop.join(5000);
+        for (Socket socket : sockets) socket.close();
+    }
+
+    @Benchmark
+    public int broadcast() {
+        int count = server.Broadcast(FrameCodec.TYPE_MESSAGE, message, SelectorServer.GROUP_OWNER_ID);
+        Sent();
+        return count;
+    }
+
+    @Benchmark
+    public void separateSends() {
+        for (int peer = 1; peer <= peers; peer++) server.Send(peer, FrameCodec.TYPE_MESSAGE, message);
+        Sent();
+    }
+
+    /**Waits while a peer is more than IN_FLIGHT_BYTES behind, so the queues stay short.*/
+    private void Sent() {
+        sent += FrameCodec.HEADER_SIZE + messageSize;
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        for (int i = 0; i < peers; i++) while (sent - received.get(i) > IN_FLIGHT_BYTES) Wait(deadline);
+    }
+
+    private static void Wait(long deadline) {
+        if (System.nanoTime() - deadline > 0) throw new IllegalStateException("Timed out, the group owner stalled");
+        Thread.yield();
+    }
+
+    private static final class Listener implements SelectorServer.Listener {
+        @Override public void OnPeerConnected(int peerId) {}
+        @Override public void OnPeerDisconnected(int peerId) {}
+        @Override public void OnPeerResumed(int peerId) {}
+        @Override public void OnFrame(int peerId, byte type, ByteBuffer payload) {}
+        @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {}
+        @Override public void OnError(int peerId, IOException e) {}
+    }
+}
@@ -0,0 +1,101 @@
+package com.eclipsegames.wifidirect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Latency of a small message on an urgent logical channel, see ChannelMux, from the writer's queue to the reader over
+ * loopback. With bulkSize above 0 a bulk channel keeps the connection busy with one message of that size after the other,
+ * at bulkPriority, so the urgent message has to get past it: 5 puts the urgent channel first, 0 makes them take turns.*/
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChannelBenchmark {
+    private static final int URGENT = 0, BULK = 1;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"0", "1048576"})
+    public int bulkSize;
+
+    @Param({"5", "0"})
+    public int bulkPriority;
+
+    private ServerSocket serverSocket;
+    private Socket sender, receiver;
+    private FrameWriter writer;
+    private final AtomicLong urgentReceived = new AtomicLong();
+    private final byte[] urgent = new byte[16];
+    private byte[] bulk;
+
+    @Setup(Level.Trial)
+    public void connect() throws IOException {
+        ChannelMux.Config config = new ChannelMux.Config();
+        config.Configure(URGENT, 0, Transport.DELIVERY_RELIABLE);
+        config.Configure(BULK, bulkPriority, Transport.DELIVERY_RELIABLE);
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        sender = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        sender.setTcpNoDelay(true);
+        receiver = serverSocket.accept();
+        writer = new FrameWriter("ChannelBenchmarkWriter", new ChannelMux.Scheduler(config), e -> {});
+        bulk = new byte[bulkSize];
+        Thread reader = new Thread(() -> {
+            ChannelMux.Assembler assembler = new ChannelMux.Assembler(FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+            ChannelMux.Assembler.Handler handler = (channel, buffer, offset, length) -> {
+                if (channel == URGENT) urgentReceived.incrementAndGet();
+                else writer.EnqueueOnChannel(BULK, bulk);//the next one, so the bulk channel never runs dry
+            };
+            FrameCodec.Decoder decoder = new FrameCodec.Decoder(64 * 1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+            try {
+                InputStream in = receiver.getInputStream();
+                while (decoder.ReadFrom(in, (type, buffer, offset, length) -> {
+                    if (type == FrameCodec.TYPE_FRAGMENT) assembler.OnFragment(buffer, offset, length, handler);
+                }));
+            } catch (IOException ignored) {/*Closed*/}
+        }, "ChannelBenchmarkReader");
+        reader.setDaemon(true);
+        reader.start();
+        writer.Start(sender.getOutputStream());
+        if (bulkSize > 0) writer.EnqueueOnChannel(BULK, bulk);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        writer.Close();
+        sender.close();
+        receiver.close();
+        serverSocket.close();
+    }
+
+    @Benchmark
+    public void urgentMessage() {
+        long expected = urgentReceived.get() + 1, deadline = System.nanoTime() + TIMEOUT_NANOS;
+        writer.EnqueueOnChannel(URGENT, urgent);
+        while (urgentReceived.get() < expected) Wait(deadline);
+    }
+
+    private static void Wait(long deadline) {
+        if (System.nanoTime() - deadline > 0) throw new IllegalStateException("Timed out, the writer stalled");
+        Thread.yield();
+    }
+}
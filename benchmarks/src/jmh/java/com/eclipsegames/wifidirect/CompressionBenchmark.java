@@ -0,0 +1,89 @@
+package com.eclipsegames.wifidirect;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**CPU cost of compressing and decompressing one message, and what it saves on the wire, per message size and content.
+ * state is repetitive like a game's JSON state, random doesn't compress and measures what trying costs before the message
+ * goes as it is. The wire counters of compress add up the message bytes and the frame bytes sent for them, headers
+ * included, so wireBytes / rawBytes is the fraction that is left. Compare with TransportBenchmark and -p for the time
+ * the same sizes take over loopback uncompressed.*/
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompressionBenchmark {
+    @Param({"128", "1024", "16384", "262144"})
+    public int messageSize;
+
+    @Param({"state", "random"})
+    public String content;
+
+    private byte[] message, compressed;
+    private int compressedLength;
+    private Compression.Encoder encoder;
+    private Compression.Decoder decoder;
+
+    /**Bytes per iteration, reported next to the time per message.*/
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Wire {
+        public long rawBytes, wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {rawBytes = wireBytes = 0;}
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (content.equals("random")) {
+            message = new byte[messageSize];
+            new Random(1).nextBytes(message);
+        } else {
+            StringBuilder state = new StringBuilder();
+            Random random = new Random(1);
+            for (int i = 0; state.length() < messageSize; i++)
+                state.append("{\"id\":").append(i).append(",\"x\":").append(random.nextInt(1000)).append(",\"y\":")
+                    .append(random.nextInt(1000)).append(",\"hp\":100,\"alive\":true}");
+            message = Arrays.copyOf(state.toString().getBytes(StandardCharsets.UTF_8), messageSize);
+        }
+        encoder = new Compression(Compression.DEFLATE, Compression.DEFAULT_THRESHOLD).NewEncoder();
+        decoder = new Compression.Decoder(FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        compressedLength = encoder.Compress(message);
+        compressed = compressedLength < 0 ? null : Arrays.copyOf(encoder.Output(), compressedLength);
+    }
+
+    @Benchmark
+    public int compress(Wire wire) {
+        int length = encoder.Compress(message);
+        wire.rawBytes += message.length;
+        wire.wireBytes += FrameCodec.HEADER_SIZE + (length < 0 ? message.length : length);
+        return length;
+    }
+
+    /**Only runs for content that compresses, the rest is delivered as it is.*/
+    @Benchmark
+    public ByteBuffer decompress() throws ProtocolException {
+        return compressed == null ? null : decoder.Decompress(compressed, 0, compressedLength);
+    }
+}
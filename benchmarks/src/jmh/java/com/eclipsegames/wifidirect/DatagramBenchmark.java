@@ -0,0 +1,81 @@
+package com.eclipsegames.wifidirect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**Latency of one datagram from a client to the group owner over loopback, see DatagramLink, from Send() until the group
+ * owner's link thread delivers it. Only one is in flight at a time. Compare with TransportBenchmark.roundTrip for the TCP
+ * stream, which takes two trips. A plain datagram lost on the way is sent again after 100 ms, which shows as an outlier.*/
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DatagramBenchmark {
+    private static final int CLIENT_ID = 1;
+    private static final long RESEND_NANOS = TimeUnit.MILLISECONDS.toNanos(100), TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"8", "256", "1200"})
+    public int messageSize;
+
+    @Param({"false", "true"})
+    public boolean acked;
+
+    private DatagramLink owner, client;
+    private final AtomicLong received = new AtomicLong();
+    private byte[] message;
+
+    @Setup(Level.Trial)
+    public void connect() throws IOException {
+        message = new byte[messageSize];
+        owner = new DatagramLink(0, SelectorServer.GROUP_OWNER_ID, (peerId, payload) -> received.incrementAndGet());
+        owner.Expect(CLIENT_ID, InetAddress.getLoopbackAddress());
+        owner.Start();
+        client = new DatagramLink(0, CLIENT_ID, (peerId, payload) -> {});
+        client.Start();
+        client.Connect(SelectorServer.GROUP_OWNER_ID, new InetSocketAddress(InetAddress.getLoopbackAddress(), owner.GetPort()));
+        client.Send(SelectorServer.GROUP_OWNER_ID, message, true);//resent until it gets through, like the hello before it
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (received.get() == 0) Wait(deadline);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        client.Close();
+        owner.Close();
+    }
+
+    @Benchmark
+    public void oneWay() {
+        long expected = received.get() + 1, deadline = System.nanoTime() + TIMEOUT_NANOS;
+        client.Send(SelectorServer.GROUP_OWNER_ID, message, acked);
+        for (long resend = System.nanoTime() + RESEND_NANOS; received.get() < expected; Wait(deadline)) {
+            if (acked || System.nanoTime() - resend < 0) continue;//acked ones are resent by the link
+            client.Send(SelectorServer.GROUP_OWNER_ID, message, false);
+            resend = System.nanoTime() + RESEND_NANOS;
+        }
+    }
+
+    private static void Wait(long deadline) {
+        if (System.nanoTime() - deadline > 0) throw new IllegalStateException("Timed out, the link stalled");
+        Thread.yield();
+    }
+}
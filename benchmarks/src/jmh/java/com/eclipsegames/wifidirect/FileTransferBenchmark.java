@@ -0,0 +1,146 @@
+package com.eclipsegames.wifidirect;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**Sends one file from one endpoint to another over loopback per operation, see FileTransfer, from SendFile() until both
+ * sides reported it complete. The megabytes counter is the file bytes moved per second. The file is streamed in chunks, so
+ * gc.alloc.rate.norm from the gc profiler should grow with the chunk count and not hold the file; FileTransferTest checks
+ * that the live heap stays flat.*/
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FileTransferBenchmark {
+    private static final int PEER = 1;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    @Param({"1048576", "67108864"})
+    public int fileSize;
+
+    private File directory, source;
+    private Endpoint sender, receiver;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {megabytes = 0;}
+    }
+
+    /**One side of a connection, with its own FrameWriter and reader thread.*/
+    private static final class Endpoint implements FileTransfer.Listener {
+        final FileTransfer transfer = new FileTransfer(this::Send, this);
+        final AtomicInteger completed = new AtomicInteger(), failed = new AtomicInteger();
+        private final Socket socket;
+        private final FrameWriter writer = new FrameWriter("TransferBenchmarkWriter", e -> {});
+
+        Endpoint(File directory, Socket socket) throws IOException {
+            this.socket = socket;
+            transfer.SetDirectory(directory);
+            writer.Start(socket.getOutputStream());
+            InputStream in = socket.getInputStream();
+            Thread reader = new Thread(() -> {
+                FrameCodec.Decoder decoder = new FrameCodec.Decoder(64 * 1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+                try {
+                    while (decoder.ReadFrom(in, (type, buffer, offset, length) -> {
+                        if (type == FrameCodec.TYPE_TRANSFER) transfer.OnFrame(PEER, decoder.PayloadView(offset, length));
+                    }));
+                } catch (IOException ignored) {/*Closed*/}
+            }, "TransferBenchmarkReader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void Close() throws IOException {
+            writer.Close();
+            socket.close();
+        }
+
+        private boolean Send(int peerId, byte type, byte[] payload) {
+            writer.EnqueueOwned(type, payload);//built for this frame, as from Transport.SendFrame
+            return true;
+        }
+
+        @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {}
+        @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {
+            (succeeded ? completed : failed).incrementAndGet();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void connect() throws IOException {
+        directory = Files.createTempDirectory("FileTransferBenchmark").toFile();
+        File received = new File(directory, "received");
+        if (!received.mkdir()) throw new IOException("Can't create " + received);
+        source = new File(directory, "transfer.bin");
+        ByteBuffer block = ByteBuffer.allocate(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long position = 0; position < fileSize; position += block.capacity()) {
+                block.clear();
+                while (block.hasRemaining()) block.putLong(position + block.position());
+                block.flip().limit((int) Math.min(block.capacity(), fileSize - position));
+                while (block.hasRemaining()) channel.write(block);
+            }
+        }
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            socket.setTcpNoDelay(true);
+            sender = new Endpoint(directory, socket);
+            receiver = new Endpoint(received, server.accept());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        sender.Close();
+        receiver.Close();
+        File[] received = new File(directory, "received").listFiles();
+        if (received != null) for (File file : received) Files.delete(file.toPath());
+        Files.delete(new File(directory, "received").toPath());
+        Files.delete(source.toPath());
+        Files.delete(directory.toPath());
+    }
+
+    @Benchmark
+    public void transfer(Bytes bytes) {
+        int sent = sender.completed.get() + 1, written = receiver.completed.get() + 1;
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        if (sender.transfer.SendFile(PEER, source.getPath()) < 0) throw new IllegalStateException("Can't open " + source);
+        while (sender.completed.get() < sent || receiver.completed.get() < written) {
+            if (sender.failed.get() + receiver.failed.get() > 0) throw new IllegalStateException("The transfer failed");
+            if (System.nanoTime() - deadline > 0) throw new IllegalStateException("Timed out, the transfer stalled");
+            Thread.yield();
+        }
+        bytes.megabytes += fileSize / 1048576.0;
+    }
+}
@@ -0,0 +1,67 @@
+package com.eclipsegames.wifidirect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**Cost per received message of handing it to the game, see MessageRing. callbacks copies every message into its own
+ * byte[] for a call into the game, offerAndDrain writes them into the ring and drains the whole batch into one array, as
+ * the game does once per frame. The score is per message, for a batch of MESSAGES. On Android every callback is also a
+ * JNI crossing into Unity, which this doesn't include: callbacks makes MESSAGES of them, offerAndDrain one.*/
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageRingBenchmark {
+    private static final int MESSAGES = 1024;
+
+    @Param({"32", "256"})
+    public int messageSize;
+
+    private ByteBuffer view;
+    private MessageRing ring;
+    private byte[] dest;
+
+    @Setup
+    public void setup() {
+        view = ByteBuffer.wrap(new byte[messageSize]).asReadOnlyBuffer();//what the socket thread hands over
+        ring = new MessageRing(MESSAGES * (MessageRing.RECORD_HEADER_SIZE + messageSize));
+        dest = new byte[MESSAGES * (MessageRing.RECORD_HEADER_SIZE + messageSize)];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void callbacks(Blackhole blackhole) {
+        for (int i = 0; i < MESSAGES; i++) {
+            view.clear();
+            byte[] copy = new byte[view.remaining()];
+            view.get(copy);
+            blackhole.consume(copy);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int offerAndDrain() {
+        for (int i = 0; i < MESSAGES; i++) {
+            view.clear();
+            if (!ring.Offer(1, view)) throw new IllegalStateException("The ring is full");
+        }
+        return ring.Drain(dest);
+    }
+}
@@ -0,0 +1,85 @@
+package com.eclipsegames.wifidirect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**What Metrics adds to the send and receive paths, per 64 byte message. receive decodes and delivers a stream of frames
+ * 16 KB per read as from a socket, send queues messages and lets the writer pack and write them to a stream that drops
+ * them. Compare the scores of metrics false and true; MetricsTest fails if the difference passes 5%.*/
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricsBenchmark {
+    private static final int MESSAGES = 4096, SIZE = 64;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private ByteArrayInputStream stream;
+    private FrameCodec.Decoder decoder;
+    private FrameWriter writer;
+    private final byte[] message = new byte[SIZE];
+    private long queued;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Metrics stats = new Metrics();
+        stats.SetEnabled(metrics);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) encoded.write(FrameCodec.Encode(FrameCodec.TYPE_MESSAGE, message));
+        stream = new ByteArrayInputStream(encoded.toByteArray());
+        decoder = new FrameCodec.Decoder(16 * 1024, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        decoder.SetMetrics(stats);
+        writer = new FrameWriter("MetricsBenchmarkWriter", e -> {});
+        writer.SetMetrics(stats);
+        writer.SetFlushInterval(FrameWriter.FLUSH_MANUAL);
+        writer.Start(OutputStream.nullOutputStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {writer.Close();}
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int receive() throws IOException {
+        int[] count = new int[1];
+        stream.reset();
+        while (decoder.ReadFrom(stream, (type, buffer, offset, length) -> count[0] += buffer[offset] + 1));
+        return count[0];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void send() {
+        for (int i = 0; i < MESSAGES; i++) writer.EnqueueOwned(FrameCodec.TYPE_MESSAGE, message);//never changed, no copy needed
+        writer.Flush();
+        queued += MESSAGES;
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (writer.GetCounters()[0] < queued) {
+            if (System.nanoTime() - deadline > 0) throw new IllegalStateException("Timed out, the writer stalled");
+            Thread.yield();
+        }
+    }
+}
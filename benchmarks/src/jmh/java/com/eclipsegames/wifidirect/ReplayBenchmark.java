@@ -0,0 +1,121 @@
+package com.eclipsegames.wifidirect;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**Replays a capture over loopback, see Replay, once per operation. Record one on a device with StartCapture() and pass it
+ * with -p capture=/path/to/file, without one a group owner and 4 clients are captured exchanging 60 ticks of state and
+ * input first. speed 1 replays at the recorded pace, 0 as fast as the transports take it. The score is the time the whole
+ * replay took, the counters what it delivered per second and the latency from send to delivery, in microseconds.*/
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReplayBenchmark {
+    private static final int CLIENTS = 4, TICKS = 60, TICK_MILLIS = 16;
+
+    @Param({""})
+    public String capture;
+
+    @Param({"1", "10", "0"})
+    public double speed;
+
+    private File file;
+
+    /**Of the last replay of the iteration, which is the only one in single shot mode.*/
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Delivery {
+        public double messagesPerSecond, megabytesPerSecond;
+        public long p50Micros, p99Micros, maxMicros, lateMicros;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messagesPerSecond = megabytesPerSecond = 0;
+            p50Micros = p99Micros = maxMicros = lateMicros = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void record() throws IOException, InterruptedException {
+        if (!capture.isEmpty()) {
+            file = new File(capture);
+            return;
+        }
+        file = File.createTempFile("replay", ".capture");
+        file.deleteOnExit();
+        Transport.Settings settings = new Transport.Settings(0);
+        settings.capture.Start(file, 1L << 30);
+        ServerTransport owner = new ServerTransport(settings, new Listener());
+        ClientTransport[] clients = new ClientTransport[CLIENTS];
+        try {
+            owner.start();
+            while (owner.GetPort() < 0) Thread.sleep(1);
+            for (int i = 0; i < CLIENTS; i++) {
+                clients[i] = new ClientTransport("127.0.0.1", new Transport.Settings(owner.GetPort()), new Listener());
+                clients[i].start();
+                while (clients[i].GetLocalPeerId() < 0) Thread.sleep(1);
+            }
+            for (int tick = 0; tick < TICKS; tick++) {
+                StringBuilder state = new StringBuilder("{\"tick\":").append(tick).append(",\"entities\":[");
+                for (int id = 0; id < 40; id++) state.append("{\"id\":").append(id).append(",\"x\":").append(id * tick % 97).append("},");
+                owner.BroadcastMessage(state.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+                for (ClientTransport client : clients) client.SendMessage(new byte[32]);
+                Thread.sleep(TICK_MILLIS);
+            }
+            Thread.sleep(100);//the last ticks arrive
+        } finally {
+            settings.capture.Stop();
+            owner.CloseThread();
+            for (ClientTransport client : clients) if (client != null) client.CloseThread();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {if (capture.isEmpty()) file.delete();}
+
+    @Benchmark
+    public long replay(Delivery delivery) throws IOException, InterruptedException {
+        Replay.Result result = Replay.Run(file, speed == 0 ? Replay.MAX_SPEED : speed, 10_000);
+        long[] latency = result.Latency();
+        delivery.messagesPerSecond = result.MessagesPerSecond();
+        delivery.megabytesPerSecond = result.BytesPerSecond() / (1 << 20);
+        delivery.p50Micros = latency[3] / 1000;
+        delivery.p99Micros = latency[5] / 1000;
+        delivery.maxMicros = latency[7] / 1000;
+        delivery.lateMicros = result.maxLateNanos / 1000;
+        return result.messages;
+    }
+
+    private static final class Listener implements Transport.Listener {
+        @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {OnMessage(peerId, payload);}
+        @Override public void OnPeerConnected(int peerId) {}
+        @Override public void OnPeerDisconnected(int peerId) {}
+        @Override public void OnMessage(int peerId, ByteBuffer payload) {}
+        @Override public void OnConnectionStatusChanged(int status) {}
+        @Override public void OnError(int error) {}
+        @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {}
+        @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {}
+        @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {}
+    }
+}
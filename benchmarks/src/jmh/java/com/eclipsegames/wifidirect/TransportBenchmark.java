@@ -0,0 +1,162 @@
+package com.eclipsegames.wifidirect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**Group owner and clients over loopback, each client with its own socket, reader and writer thread as on a device.
+ * ownerToClients and clientsToOwner measure throughput with a bounded number of messages in flight, so queues never grow
+ * without limit. Each operation sends one message to or from every peer, so messages per second is the score times peers.
+ * roundTrip measures latency, every client sends one message that the group owner echoes back, and the operation ends once
+ * every echo arrived. Its p50 and p99 are in the sample time percentiles. Run with the gc profiler for allocation rates.*/
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransportBenchmark {
+    private static final byte DATA = 0, ECHO = 1;//first byte of a message, echo messages are sent back by the group owner
+    private static final int IN_FLIGHT_BYTES = 4 * 1024 * 1024, MAX_IN_FLIGHT = 1024;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"8", "64", "1024", "16384", "262144", "1048576"})
+    public int messageSize;
+
+    @Param({"1", "2", "4", "8"})
+    public int peers;
+
+    private ServerTransport owner;
+    private ClientTransport[] clients;
+    private byte[] data, echo;
+    private int window;
+    private long sentToClients, sentToOwner;//messages per peer, benchmark thread only
+    private long[] expectedEchoes;
+    private final AtomicLong ownerReceived = new AtomicLong();
+    private AtomicLongArray clientReceived, clientEchoes;
+
+    /**Counts what reaches the group owner and echoes the messages that ask for it.*/
+    private final class Owner extends Listener {
+        @Override public void OnMessage(int peerId, ByteBuffer payload) {
+            if (payload.get(payload.position()) == ECHO) owner.SendMessage(peerId, echo);
+            else ownerReceived.incrementAndGet();
+        }
+    }
+
+    private final class Client extends Listener {
+        private final int index;
+        Client(int index) {this.index = index;}
+
+        @Override public void OnMessage(int peerId, ByteBuffer payload) {
+            if (payload.get(payload.position()) == ECHO) clientEchoes.incrementAndGet(index);
+            else clientReceived.incrementAndGet(index);
+        }
+    }
+
+    private abstract static class Listener implements Transport.Listener {
+        @Override public void OnTimedMessage(int peerId, ByteBuffer payload, long sentAtNanos) {OnMessage(peerId, payload);}
+        @Override public void OnPeerConnected(int peerId) {}
+        @Override public void OnPeerDisconnected(int peerId) {}
+        @Override public void OnConnectionStatusChanged(int status) {}
+        @Override public void OnError(int error) {}//closing the sockets in close() fails the readers, a real failure shows as a stall
+        @Override public void OnTransferProgress(int peerId, int transferId, long transferred, long total) {}
+        @Override public void OnTransferComplete(int peerId, int transferId, String path, boolean succeeded) {}
+        @Override public void OnStateChanged(int peerId, int key, ByteBuffer value) {}
+    }
+
+    @Setup(Level.Trial)
+    public void connect() throws InterruptedException {
+        data = new byte[messageSize];
+        echo = new byte[messageSize];
+        data[0] = DATA;
+        echo[0] = ECHO;
+        window = Math.max(1, Math.min(MAX_IN_FLIGHT, IN_FLIGHT_BYTES / messageSize));
+        clientReceived = new AtomicLongArray(peers);
+        clientEchoes = new AtomicLongArray(peers);
+        expectedEchoes = new long[peers];
+        owner = new ServerTransport(NewSettings(0), new Owner());
+        owner.start();
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (owner.GetPort() < 0) Wait(deadline);
+        clients = new ClientTransport[peers];
+        for (int i = 0; i < peers; i++) {
+            clients[i] = new ClientTransport("127.0.0.1", NewSettings(owner.GetPort()), new Client(i));
+            clients[i].start();
+            while (clients[i].GetLocalPeerId() < 0) Wait(deadline);
+        }
+    }
+
+    private static Transport.Settings NewSettings(int port) {
+        Transport.Settings settings = new Transport.Settings(port);
+        settings.keepAliveTimeoutMillis = 60_000;//a busy loopback must not count as a lost peer
+        return settings;
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws InterruptedException {
+        for (ClientTransport client : clients) client.CloseThread();
+        owner.CloseThread();
+        for (ClientTransport client : clients) client.join(5000);
+        owner.join(5000);
+    }
+
+    /**Lets the queues drain between iterations, so one iteration's backlog isn't counted in the next.*/
+    @TearDown(Level.Iteration)
+    public void drain() {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (ownerReceived.get() < sentToOwner * peers) Wait(deadline);
+        for (int i = 0; i < peers; i++) while (clientReceived.get(i) < sentToClients) Wait(deadline);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void ownerToClients() {
+        owner.BroadcastMessage(data);
+        sentToClients++;
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        for (int i = 0; i < peers; i++) while (sentToClients - clientReceived.get(i) > window) Wait(deadline);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void clientsToOwner() {
+        for (ClientTransport client : clients) client.SendMessage(data);
+        sentToOwner++;
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while ((sentToOwner - window) * peers > ownerReceived.get()) Wait(deadline);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void roundTrip() {
+        for (int i = 0; i < peers; i++) {
+            expectedEchoes[i] = clientEchoes.get(i) + 1;
+            clients[i].SendMessage(echo);
+        }
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        for (int i = 0; i < peers; i++) while (clientEchoes.get(i) < expectedEchoes[i]) Wait(deadline);
+    }
+
+    /**Yields instead of parking, since parking would add the scheduler's wake-up time to every latency sample.
+     * Spinning without yielding would starve the transport threads on machines with few cores.*/
+    private static void Wait(long deadline) {
+        if (System.nanoTime() - deadline > 0) throw new IllegalStateException("Timed out, the transport stalled");
+        Thread.yield();
+    }
+}
@@ -16,3 +16,4 @@ dependencyResolutionManagement {
 rootProject.name = "Unity Wifi Direct Plugin"
 include(":app")
 include(":WifiDirect")
+include(":benchmarks")